@@ -17,6 +17,7 @@ import org.vivoweb.harvester.util.args.ArgDef;
 import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
+import org.vivoweb.harvester.util.repo.JenaConnectMetrics;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 
 /**
@@ -122,6 +123,7 @@ public class CSVtoRDF {
 			log.debug("Stacktrace:",e);
 			error = e;
 		} finally {
+			JenaConnectMetrics.logSummary();
 			log.info(getParser().getAppName() + ": End");
 			if(error != null) {
 				System.exit(1);
@@ -8,10 +8,12 @@ package org.vivoweb.harvester.diff;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vivoweb.harvester.util.FileAide;
@@ -21,6 +23,8 @@ import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
 import org.vivoweb.harvester.util.repo.JenaConnect;
+import org.vivoweb.harvester.util.repo.JenaConnectMetrics;
+import org.vivoweb.harvester.util.repo.StreamingRdfWriter;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.RDFWriter;
@@ -194,14 +198,27 @@ public class Diff {
 					filelanguage = "RDF/XML";
 				}
 				
-				RDFWriter fasterWriter = diffModel.getWriter(filelanguage);
-				if (filelanguage.equals("RDF/XML")){
-					fasterWriter.setProperty("showXmlDeclaration", "true");
-					fasterWriter.setProperty("allowBadURIs", "true");
-					fasterWriter.setProperty("relativeURIs", "");
+				OutputStream out = FileAide.getOutputStream(filepath);
+				if(filepath.endsWith(".gz")) {
+					out = new GZIPOutputStream(out, 65536);
+				}
+				try {
+					if(StreamingRdfWriter.supports(filelanguage)) {
+						StreamingRdfWriter.write(diffModel.getGraph(), null, out, filelanguage);
+					} else {
+						RDFWriter fasterWriter = diffModel.getWriter(filelanguage);
+						if (filelanguage.equals("RDF/XML")){
+							fasterWriter.setProperty("showXmlDeclaration", "true");
+							fasterWriter.setProperty("allowBadURIs", "true");
+							fasterWriter.setProperty("relativeURIs", "");
+						}
+						OutputStreamWriter osw = new OutputStreamWriter(out, Charset.availableCharsets().get("UTF-8"));
+						fasterWriter.write(diffModel, osw, "");
+						osw.flush();
+					}
+				} finally {
+					out.close();
 				}
-				OutputStreamWriter osw = new OutputStreamWriter(FileAide.getOutputStream(filepath), Charset.availableCharsets().get("UTF-8"));
-				fasterWriter.write(diffModel, osw, "");
 				log.debug(filelanguage + " Data was exported to " + filepath);	
 			}
 		}
@@ -269,6 +286,7 @@ public class Diff {
 			log.debug("Stacktrace:", e);
 			error = e;
 		} finally {
+			JenaConnectMetrics.logSummary();
 			log.info(getParser().getAppName() + ": End");
 			if(error != null) {
 				System.exit(1);
@@ -13,6 +13,7 @@ import org.vivoweb.harvester.util.args.ArgDef;
 import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
+import org.vivoweb.harvester.util.repo.JenaConnectMetrics;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 import de.fuberlin.wiwiss.d2r.D2rProcessor;
 
@@ -143,6 +144,7 @@ public class D2RMapFetch {
 			log.debug("Stacktrace:",e);
 			error = e;
 		} finally {
+			JenaConnectMetrics.logSummary();
 			log.info(getParser().getAppName() + ": End");
 			if(error != null) {
 				System.exit(1);
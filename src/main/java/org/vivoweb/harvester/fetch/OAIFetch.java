@@ -15,6 +15,7 @@ import org.vivoweb.harvester.util.args.ArgDef;
 import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
+import org.vivoweb.harvester.util.repo.JenaConnectMetrics;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 import org.vivoweb.harvester.util.repo.RecordStreamOrigin;
 import org.vivoweb.harvester.util.repo.XMLRecordOutputStream;
@@ -164,6 +165,7 @@ public class OAIFetch implements RecordStreamOrigin {
 			log.debug("Stacktrace:",e);
 			error = e;
 		} finally {
+			JenaConnectMetrics.logSummary();
 			log.info(getParser().getAppName() + ": End");
 			if(error != null) {
 				System.exit(1);
@@ -32,6 +32,7 @@ import org.vivoweb.harvester.util.args.ArgDef;
 import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
+import org.vivoweb.harvester.util.repo.JenaConnectMetrics;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -609,6 +610,7 @@ public class WOSFetch {
 			log.debug("Stacktrace:",e);
 			error = e;
 		} finally {
+			JenaConnectMetrics.logSummary();
 			log.info(getParser().getAppName() + ": End");
 			if(error != null) {
 				System.exit(1);
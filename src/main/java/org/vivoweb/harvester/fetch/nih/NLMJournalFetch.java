@@ -13,6 +13,7 @@ import org.vivoweb.harvester.util.InitLog;
 import org.vivoweb.harvester.util.WebAide;
 import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.UsageException;
+import org.vivoweb.harvester.util.repo.JenaConnectMetrics;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 import org.vivoweb.harvester.util.repo.XMLRecordOutputStream;
 
@@ -254,6 +255,7 @@ public class NLMJournalFetch extends NIHFetch {
 			log.debug("Stacktrace:",e);
 			error = e;
 		} finally {
+			JenaConnectMetrics.logSummary();
 			log.info("NLMJournalFetch: End");
 			if(error != null) {
 				System.exit(1);
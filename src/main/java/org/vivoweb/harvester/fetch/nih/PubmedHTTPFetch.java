@@ -16,6 +16,7 @@ import org.vivoweb.harvester.util.InitLog;
 import org.vivoweb.harvester.util.WebAide;
 import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.UsageException;
+import org.vivoweb.harvester.util.repo.JenaConnectMetrics;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 import org.w3c.dom.Document;
 import org.xml.sax.InputSource;
@@ -217,6 +218,7 @@ public class PubmedHTTPFetch extends NIHFetch {
 			log.debug("Stacktrace:",e);
 			error = e;
 		} finally {
+			JenaConnectMetrics.logSummary();
 			log.info("PubmedHTTPFetch: End");
 			if(error != null) {
 				System.exit(1);
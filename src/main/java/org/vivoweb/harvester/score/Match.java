@@ -25,13 +25,16 @@ import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
 import org.vivoweb.harvester.util.repo.JenaConnect;
+import org.vivoweb.harvester.util.repo.JenaConnectMetrics;
 import org.vivoweb.harvester.util.repo.MemJenaConnect;
+import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.query.QuerySolution;
 import com.hp.hpl.jena.rdf.model.Property;
 import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.rdf.model.ResourceFactory;
 import com.hp.hpl.jena.rdf.model.Statement;
 import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.sparql.util.FmtUtils;
 
 /**
  * VIVO Match
@@ -271,7 +274,7 @@ public class Match {
 					inc = 0;
 					uriFilters.clear();
 				}
-				uriFilters.add("(str(?s) = \"" + uri + "\")");
+				uriFilters.add("(str(?s) = " + FmtUtils.stringForNode(Node.createLiteral(uri)) + ")");
 				inc++;
 			}
 			buildTypesAndLiteralsQuery(uriFilters);
@@ -455,6 +458,7 @@ public class Match {
 			log.debug("Stacktrace:",e);
 			error = e;
 		} finally {
+			JenaConnectMetrics.logSummary();
 			log.info(getParser().getAppName() + ": End");
 			if(error != null) {
 				System.exit(1);
@@ -14,6 +14,7 @@ import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
 import org.vivoweb.harvester.util.repo.JenaConnect;
+import org.vivoweb.harvester.util.repo.JenaConnectMetrics;
 import org.vivoweb.harvester.util.repo.MemJenaConnect;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 
@@ -39,6 +40,10 @@ public class Transfer {
 	 * dump model option
 	 */
 	private String dumpFile;
+	/**
+	 * the language to dump the model in, null for RDF/XML
+	 */
+	private String dumpLang;
 	/**
 	 * input rdf file
 	 */
@@ -60,6 +65,10 @@ public class Transfer {
 	 * remove rather than add
 	 */
 	private boolean removeMode;
+	/**
+	 * number of threads to parse recordhandler records with
+	 */
+	private int threads;
 	
 	/**
 	 * Constructor
@@ -92,6 +101,7 @@ public class Transfer {
 		
 		// output to file, if requested
 		this.dumpFile = argList.get("d");
+		this.dumpLang = argList.get("D");
 		
 		// get namespace
 		this.namespace = argList.get("n");
@@ -99,6 +109,12 @@ public class Transfer {
 		// remove mode
 		this.removeMode = argList.has("m");
 		
+		// parser threads
+		this.threads = Integer.parseInt(argList.get("t"));
+		if(this.threads < 1) {
+			throw new IllegalArgumentException("Must use at least one parser thread");
+		}
+		
 		// Require output args
 		if(this.output == null && this.dumpFile == null) {
 			throw new IllegalArgumentException("Must provide an output {-o, -O, or -d}");
@@ -127,7 +143,7 @@ public class Transfer {
 				this.output.removeRdfFromFile(this.inRDF, this.namespace, this.inRDFlang);
 			}
 			if(this.inRH != null) {
-				this.output.removeRdfFromRH(this.inRH, this.namespace, this.inRDFlang);
+				this.output.removeRdfFromRH(this.inRH, this.namespace, this.inRDFlang, this.threads);
 			}
 		} else {
 			if(this.input != null) {
@@ -137,11 +153,11 @@ public class Transfer {
 				this.output.loadRdfFromFile(this.inRDF, this.namespace, this.inRDFlang);
 			}
 			if(this.inRH != null) {
-				this.output.loadRdfFromRH(this.inRH, this.namespace, this.inRDFlang);
+				this.output.loadRdfFromRH(this.inRH, this.namespace, this.inRDFlang, this.threads);
 			}
 		}
 		if(this.dumpFile != null) {
-			this.output.exportRdfToFile(this.dumpFile);
+			this.output.exportRdfToFile(this.dumpFile, this.dumpLang);
 		}
 		if(this.input != null) {
 			this.input.sync();
@@ -166,11 +182,13 @@ public class Transfer {
 		parser.addArgument(new ArgDef().setShortOption('S').setLongOpt("recordHandlerOverride").withParameterValueMap("RH_PARAM", "VALUE").setDescription("override the RH_PARAM of recordhandler using VALUE").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('n').setLongOpt("namespace").withParameter(true, "URI_BASE").setDescription("use URI_BASE when importing relative uris").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('m').setLongOpt("modeRemove").setDescription("remove from output model rather than add").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('t').setLongOpt("threads").withParameter(true, "THREADS").setDescription("parse recordhandler records using THREADS threads").setDefaultValue("1").setRequired(false));
 		
 		// Outputs
 		parser.addArgument(new ArgDef().setShortOption('o').setLongOpt("output").withParameter(true, "CONFIG_FILE").setDescription("config file for output jena model").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('O').setLongOpt("outputOverride").withParameterValueMap("JENA_PARAM", "VALUE").setDescription("override the JENA_PARAM of output jena model config using VALUE").setRequired(false));
-		parser.addArgument(new ArgDef().setShortOption('d').setLongOpt("dumptofile").withParameter(true, "FILENAME").setDescription("filename into which output model should be dumped (as rdf/xml)").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('d').setLongOpt("dumptofile").withParameter(true, "FILENAME").setDescription("filename into which output model should be dumped (gzipped if it ends in .gz)").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('D').setLongOpt("dumpLang").withParameter(true, "LANGUAGE").setDescription("rdf language of dump file, N-TRIPLE, N-QUADS and TURTLE-STREAM are streamed (default RDF/XML)").setRequired(false));
 		return parser;
 	}
 	
@@ -198,6 +216,7 @@ public class Transfer {
 			log.debug("Stacktrace:",e);
 			error = e;
 		} finally {
+			JenaConnectMetrics.logSummary();
 			log.info(getParser().getAppName() + ": End");
 			if(error != null) {
 				System.exit(1);
@@ -5,7 +5,6 @@
  ******************************************************************************/
 package org.vivoweb.harvester.translate;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -21,6 +20,7 @@ import org.vivoweb.harvester.util.args.ArgDef;
 import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
+import org.vivoweb.harvester.util.repo.JenaConnectMetrics;
 import org.vivoweb.harvester.util.repo.Record;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 import com.hp.gloze.Gloze;
@@ -192,16 +192,14 @@ public class GlozeTranslator {
 				// create a output stream for writing to the out store
 				ByteArrayOutputStream buff = new ByteArrayOutputStream();
 				// get from the in record and translate
-				for(Record r : this.inStore) {
-					if(r.needsProcessed(this.getClass())) {
-						this.inStream = new ByteArrayInputStream(r.getData().getBytes());
-						this.outStream = buff;
-						translateFile();
-						buff.flush();
-						this.outStore.addRecord(r.getID(), buff.toString(), this.getClass());
-						r.setProcessed(this.getClass());
-						buff.reset();
-					}
+				for(Record r : this.inStore.pendingRecords(this.getClass())) {
+					this.inStream = r.openStream();
+					this.outStream = buff;
+					translateFile();
+					buff.flush();
+					this.outStore.addRecord(r.getID(), buff.toByteArray(), this.getClass());
+					r.setProcessed(this.getClass());
+					buff.reset();
 				}
 				buff.close();
 			} catch(Exception e) {
@@ -253,6 +251,7 @@ public class GlozeTranslator {
 			log.debug("Stacktrace:",e);
 			error = e;
 		} finally {
+			JenaConnectMetrics.logSummary();
 			log.info(getParser().getAppName() + ": End");
 			if(error != null) {
 				System.exit(1);
@@ -21,6 +21,7 @@ import org.vivoweb.harvester.util.args.ArgDef;
 import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
+import org.vivoweb.harvester.util.repo.JenaConnectMetrics;
 import org.vivoweb.harvester.util.repo.Record;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 
@@ -160,24 +161,18 @@ public class RunBibutils {
 		File tempInputFile = FileAide.createTempFile("vivo", ".bib");
 
 		int translated = 0;
-		int skipped = 0;
 
-		for(Record r : this.inStore) {
-			if(this.force || r.needsProcessed(this.getClass())) {
-				log.trace("Running bibutils on record " + r.getID());
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
-				translateRecordWithBibutils(r, baos, tempInputFile);
-				this.outStore.addRecord(r.getID(), baos.toString(), this.getClass());
-				r.setProcessed(this.getClass());
-				baos.close();
-				translated++;
-			} else {
-				log.trace("No bibutils run needed: " + r.getID());
-				skipped++;
-			}
+		// only the records needing translation, unless forced
+		for(Record r : (this.force ? this.inStore : this.inStore.pendingRecords(this.getClass()))) {
+			log.trace("Running bibutils on record " + r.getID());
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			translateRecordWithBibutils(r, baos, tempInputFile);
+			this.outStore.addRecord(r.getID(), baos.toString(), this.getClass());
+			r.setProcessed(this.getClass());
+			baos.close();
+			translated++;
 		}
 		log.info(String.valueOf(translated) + " records translated into MODS by Bibutils.");
-		log.info(String.valueOf(skipped) + " records did not need translation into MODS by Bibutils.");
 	}
 	
 	/**
@@ -191,7 +186,7 @@ public class RunBibutils {
 	private void translateRecordWithBibutils(Record inputRecord, OutputStream outStream, File tempInputFile) throws IOException
 	{
 		FileOutputStream fos = new FileOutputStream(tempInputFile);
-		fos.write(inputRecord.getData().getBytes());
+		fos.write(inputRecord.getDataBytes());
 		fos.close();
 
 		String command = this.bibutilsBasePath + "/" + this.inputFormat + "2xml " + tempInputFile.getAbsolutePath();
@@ -263,6 +258,7 @@ public class RunBibutils {
 			log.debug("Stacktrace:",e);
 			error = e;
 		} finally {
+			JenaConnectMetrics.logSummary();
 			log.info(getParser().getAppName() + ": End");
 			if(error != null) {
 				System.exit(1);
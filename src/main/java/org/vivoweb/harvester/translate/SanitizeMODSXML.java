@@ -25,6 +25,7 @@ import org.vivoweb.harvester.util.args.ArgDef;
 import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
+import org.vivoweb.harvester.util.repo.JenaConnectMetrics;
 import org.vivoweb.harvester.util.repo.Record;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 import org.w3c.dom.Document;
@@ -118,24 +119,18 @@ public class SanitizeMODSXML {
 	 */
 	public void execute() throws IOException {
 		int sanitized = 0;
-		int skipped = 0;
 
-		for(Record r : this.inStore) {
-			if(this.force || r.needsProcessed(this.getClass())) {
-				log.trace("Sanitizing record " + r.getID());
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
-				sanitizeRecord(r, baos);
-				this.outStore.addRecord(r.getID(), baos.toString(), this.getClass());
-				r.setProcessed(this.getClass());
-				baos.close();
-				sanitized++;
-			} else {
-				log.trace("No sanitize needed: " + r.getID());
-				skipped++;
-			}
+		// only the records needing sanitization, unless forced
+		for(Record r : (this.force ? this.inStore : this.inStore.pendingRecords(this.getClass()))) {
+			log.trace("Sanitizing record " + r.getID());
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			sanitizeRecord(r, baos);
+			this.outStore.addRecord(r.getID(), baos.toString(), this.getClass());
+			r.setProcessed(this.getClass());
+			baos.close();
+			sanitized++;
 		}
 		log.info(String.valueOf(sanitized) + " records sanitized.");
-		log.info(String.valueOf(skipped) + " records did not need sanitization.");
 	}
 
 	/**
@@ -441,6 +436,7 @@ public class SanitizeMODSXML {
 			log.debug("Stacktrace:",e);
 			error = e;
 		} finally {
+			JenaConnectMetrics.logSummary();
 			log.info(getParser().getAppName() + ": End");
 			if(error != null) {
 				System.exit(1);
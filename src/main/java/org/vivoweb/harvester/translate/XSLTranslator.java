@@ -27,6 +27,7 @@ import org.vivoweb.harvester.util.args.ArgDef;
 import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
+import org.vivoweb.harvester.util.repo.JenaConnectMetrics;
 import org.vivoweb.harvester.util.repo.Record;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 
@@ -137,24 +138,19 @@ public class XSLTranslator {
 	public void execute() throws IOException {
 		// get from the in record and translate
 		int translated = 0;
-		int passed = 0;
+		byte[] translation = this.translationString.getBytes();
 		
-		for(Record r : this.inStore) {
-			if(this.force || r.needsProcessed(this.getClass())) {
-				log.trace("Translating Record " + r.getID());
-				ByteArrayOutputStream baos = new ByteArrayOutputStream();
-				xmlTranslate(new ByteArrayInputStream(r.getData().getBytes("UTF-8")), baos, new ByteArrayInputStream(this.translationString.getBytes()));
-				this.outStore.addRecord(r.getID(), baos.toString(), this.getClass());
-				r.setProcessed(this.getClass());
-				baos.close();
-				translated++;
-			} else {
-				log.trace("No Translation Needed: " + r.getID());
-				passed++;
-			}
+		// only the records needing translation, unless forced
+		for(Record r : (this.force ? this.inStore : this.inStore.pendingRecords(this.getClass()))) {
+			log.trace("Translating Record " + r.getID());
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			xmlTranslate(r.openStream(), baos, new ByteArrayInputStream(translation));
+			this.outStore.addRecord(r.getID(), baos.toByteArray(), this.getClass());
+			r.setProcessed(this.getClass());
+			baos.close();
+			translated++;
 		}
 		log.info(Integer.toString(translated) + " records translated.");
-		log.info(Integer.toString(passed) + " records did not need translation");
 	}
 	
 	/**
@@ -221,6 +217,7 @@ public class XSLTranslator {
 			log.debug("Stacktrace:",e);
 			error = e;
 		} finally {
+			JenaConnectMetrics.logSummary();
 			log.info(getParser().getAppName() + ": End");
 			if(error != null) {
 				System.exit(1);
@@ -13,10 +13,14 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import org.apache.commons.vfs.AllFileSelector;
+import org.apache.commons.vfs.FileContent;
 import org.apache.commons.vfs.FileObject;
 import org.apache.commons.vfs.FileSystemException;
 import org.apache.commons.vfs.FileType;
@@ -53,6 +57,16 @@ public class FileAide {
 		return VFS.getManager().resolveFile(new File("."), path);
 	}
 	
+	/**
+	 * Get the URI of the file a path resolves to, which is the same for every path to that file
+	 * @param path the path to resolve
+	 * @return the URI
+	 * @throws IOException error resolving path
+	 */
+	public static String getURI(String path) throws IOException {
+		return getFileObject(path).getName().getURI();
+	}
+	
 	/**
 	 * Checks if the path exists
 	 * @param path the path to resolve
@@ -95,6 +109,34 @@ public class FileAide {
 		return file.delete();
 	}
 	
+	/**
+	 * Moves the file at the given path, replacing any existing file at the destination
+	 * @param fromPath the path to move from
+	 * @param toPath the path to move to
+	 * @throws IOException error resolving path
+	 */
+	public static void move(String fromPath, String toPath) throws IOException {
+		FileObject to = getFileObject(toPath);
+		if(to.exists()) {
+			to.delete();
+		}
+		getFileObject(fromPath).moveTo(to);
+	}
+	
+	/**
+	 * Get the size in bytes of the file at the given path
+	 * @param path the path to resolve
+	 * @return the size, 0 if the file does not exist
+	 * @throws IOException error resolving path
+	 */
+	public static long getSize(String path) throws IOException {
+		FileObject file = getFileObject(path);
+		if(!file.exists()) {
+			return 0;
+		}
+		return file.getContent().getSize();
+	}
+	
 	/**
 	 * Creates a file at the given path
 	 * @param path the path to the file to create
@@ -168,22 +210,42 @@ public class FileAide {
 		return getFileObject(path).getContent().getInputStream();
 	}
 	
-//	/**
-//	 * Resolves the path and gets the contents of the file as a byte array
-//	 * @param path the path to resolve
-//	 * @return the byte array
-//	 * @throws IOException error resolving
-//	 */
-//	public static byte[] getContent(String path) throws IOException {
-//		if(path == null) {
-//			return null;
-//		}
-//		FileContent content = getFileObject(path).getContent();
-//		byte[] retVal = new byte[(int)content.getSize()];
-//		InputStream is = content.getInputStream();
-//		is.read(retVal);
-//		return retVal;
-//	}
+	/**
+	 * Resolves the path and gets the contents of the file as a byte array
+	 * @param path the path to resolve
+	 * @return the byte array
+	 * @throws IOException error resolving
+	 */
+	public static byte[] getContent(String path) throws IOException {
+		if(path == null) {
+			return null;
+		}
+		FileContent content = getFileObject(path).getContent();
+		byte[] retVal = new byte[(int)content.getSize()];
+		int len = 0;
+		InputStream is = content.getInputStream();
+		try {
+			while(true) {
+				if(len == retVal.length) {
+					// the file may have grown since its size was read
+					int next = is.read();
+					if(next < 0) {
+						break;
+					}
+					retVal = Arrays.copyOf(retVal, Math.max(retVal.length * 2, 4096));
+					retVal[len++] = (byte)next;
+				}
+				int read = is.read(retVal, len, retVal.length - len);
+				if(read < 0) {
+					break;
+				}
+				len += read;
+			}
+		} finally {
+			is.close();
+		}
+		return (len == retVal.length) ? retVal : Arrays.copyOf(retVal, len);
+	}
 	
 	/**
 	 * Resolves the path and gets the contents of the file as a text string
@@ -274,6 +336,32 @@ public class FileAide {
 		}
 	}
 	
+	/**
+	 * Resolves the path and sets the contents of the file from a byte array
+	 * @param path the path to resolve
+	 * @param value the value to set as the content
+	 * @param overwrite overwrite an existing file
+	 * @throws IOException error resolving
+	 */
+	public static void setContent(String path, byte[] value, boolean overwrite) throws IOException {
+		if(path == null) {
+			throw new IllegalArgumentException("File path must not be null");
+		}
+		if(!overwrite && exists(path)) {
+			throw new IOException("Failed to set file content because file " + path + " already exists.");
+		}
+		createFile(path);
+		if(!isWriteable(path)) {
+			throw new IOException("Insufficient file system privileges to modify file " + path);
+		}
+		OutputStream os = getOutputStream(path);
+		try {
+			os.write(value);
+		} finally {
+			os.close();
+		}
+	}
+	
 	/**
 	 * Resolves the path and gets an output stream for this file
 	 * @param path the path to resolve
@@ -314,6 +402,22 @@ public class FileAide {
 		return allFileListing;
 	}
 	
+	/**
+	 * Get a sorted set of non-hidden direct child folders of the given path
+	 * @param path the path to search under
+	 * @return a sorted set of the names of non-hidden direct child folders
+	 * @throws IOException error resolving path
+	 */
+	public static SortedSet<String> getNonHiddenChildFolders(String path) throws IOException {
+		SortedSet<String> folders = new TreeSet<String>();
+		for(FileObject file : getFileObject(path).findFiles(Selectors.SELECT_CHILDREN)) {
+			if(!file.isHidden() && (file.getType() == FileType.FOLDER)) {
+				folders.add(file.getName().getBaseName());
+			}
+		}
+		return folders;
+	}
+	
 	/**
 	 * Get an inputstream from the first file under the given path with a matching fileName
 	 * @param path the path to search under
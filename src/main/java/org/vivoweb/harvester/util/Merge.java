@@ -5,10 +5,15 @@
  ******************************************************************************/
 package org.vivoweb.harvester.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.slf4j.Logger;
@@ -18,8 +23,8 @@ import org.vivoweb.harvester.util.args.ArgList;
 import org.vivoweb.harvester.util.args.ArgParser;
 import org.vivoweb.harvester.util.args.UsageException;
 import org.vivoweb.harvester.util.repo.JenaConnect;
+import org.vivoweb.harvester.util.repo.JenaConnectMetrics;
 import org.vivoweb.harvester.util.repo.MemJenaConnect;
-import org.vivoweb.harvester.util.repo.Record;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 
 /**
@@ -43,6 +48,10 @@ public class Merge {
 	 * Regex for finding primary records (with a grouping for the subsection to use to find sub-records)
 	 */
 	private Pattern regex;
+	/**
+	 * number of threads merging records
+	 */
+	private int threads;
 	
 	/**
 	 * Constructor
@@ -51,6 +60,17 @@ public class Merge {
 	 * @param regex regex for finding primary records (with a grouping for the subsection to use to find sub-records)
 	 */
 	public Merge(RecordHandler input, RecordHandler output, String regex) {
+		this(input, output, regex, 1);
+	}
+	
+	/**
+	 * Constructor
+	 * @param input input recordhandler
+	 * @param output output recordhandler
+	 * @param regex regex for finding primary records (with a grouping for the subsection to use to find sub-records)
+	 * @param threads number of threads merging records
+	 */
+	public Merge(RecordHandler input, RecordHandler output, String regex, int threads) {
 		this.input = input;
 		if(this.input == null) {
 			throw new IllegalArgumentException("Must provide an input recordhandler");
@@ -60,6 +80,10 @@ public class Merge {
 			throw new IllegalArgumentException("Must provide an output recordhandler");
 		}
 		this.regex = Pattern.compile(regex);
+		this.threads = threads;
+		if(this.threads < 1) {
+			throw new IllegalArgumentException("Must use at least one merging thread");
+		}
 	}
 	
 	/**
@@ -81,7 +105,8 @@ public class Merge {
 		this(
 			RecordHandler.parseConfig(argList.get("i"), argList.getValueMap("I")), 
 			RecordHandler.parseConfig(argList.get("o"), argList.getValueMap("O")), 
-			argList.get("b")
+			argList.get("b"),
+			Integer.parseInt(argList.get("t"))
 		);
 	}
 	
@@ -93,33 +118,164 @@ public class Merge {
 	 * @throws IOException error in record handling
 	 */
 	public static void merge(RecordHandler input, RecordHandler output, Pattern regex) throws IOException {
-		Map<String, String> matchedIDs = new HashMap<String, String>();
+		merge(input, output, regex, 1);
+	}
+	
+	/**
+	 * Merge records in input using regex and write to output. The record ids are listed once, without reading any
+	 * record, and grouped by the first group of the primary records' matches: a record is merged into every group whose
+	 * key its id contains. The groups are then merged by the given number of threads.
+	 * @param input input recordhandler
+	 * @param output output recordhandler
+	 * @param regex regex for finding primary records (with a grouping for the subsection to use to find sub-records)
+	 * @param threads number of threads merging records
+	 * @throws IOException error in record handling
+	 */
+	public static void merge(RecordHandler input, RecordHandler output, Pattern regex, int threads) throws IOException {
 		log.info("Building List of Primary Records");
-		for(Record r : input) {
-			Matcher m = regex.matcher(r.getID());
+		SortedSet<String> ids = input.getRecordIDs();
+		Map<String, List<String>> groups = new TreeMap<String, List<String>>();
+		for(String id : ids) {
+			Matcher m = regex.matcher(id);
 			if(m.matches()) {
-				log.debug("Matched record '" + r.getID() + "' => '" + m.group(1) + "'");
-				matchedIDs.put(r.getID(), m.group(1));
+				log.debug("Matched record '" + id + "' => '" + m.group(1) + "'");
+				groups.put(m.group(1), new ArrayList<String>());
+			}
+		}
+		log.info("Building List Complete: Matched " + groups.size() + " records");
+		// each position of each id is checked for a key of every length in use
+		SortedSet<Integer> keyLengths = new TreeSet<Integer>();
+		for(String key : groups.keySet()) {
+			keyLengths.add(Integer.valueOf(key.length()));
+		}
+		for(String id : ids) {
+			for(int start = 0; start <= id.length(); start++) {
+				for(Integer len : keyLengths) {
+					int end = start + len.intValue();
+					if(end > id.length()) {
+						break;
+					}
+					List<String> group = groups.get(id.substring(start, end));
+					// a key found twice in an id was already seen
+					if((group != null) && (group.isEmpty() || !group.get(group.size() - 1).equals(id))) {
+						group.add(id);
+					}
+				}
 			}
 		}
-		int count = matchedIDs.size();
-		log.info("Building List Complete: Matched " + count + " records");
 		log.info("Beginning Merging Records into Primary Records");
-		int cur = 0;
-		JenaConnect jc = new MemJenaConnect();
-		for(String rid : new TreeSet<String>(matchedIDs.keySet())) {
-			cur++;
-			String matchTerm = matchedIDs.get(rid);
-			log.debug("(" + cur + "/" + count + ": " + Math.round(10000f * cur / count) / 100f + "%): merging '" + matchTerm + "'");
-			jc.truncate();
-			for(String id : input.find(matchTerm)) {
-				log.trace("Merging Record '" + id + "' into '" + matchTerm + "'");
-				jc.loadRdfFromString(input.getRecord(id).getData(), null, null);
+		GroupMerger merger = new GroupMerger(input, output, new ArrayList<Map.Entry<String, List<String>>>(groups.entrySet()));
+		List<Thread> workers = new ArrayList<Thread>();
+		for(int x = 1; x < Math.min(threads, groups.size()); x++) {
+			Thread worker = new Thread(merger, "Merge-" + x);
+			worker.start();
+			workers.add(worker);
+		}
+		merger.run();
+		for(Thread worker : workers) {
+			try {
+				worker.join();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while merging records", e);
 			}
-			output.addRecord(matchTerm, jc.exportRdfToString(), Merge.class);
 		}
+		merger.rethrow();
 		log.info("Merging into Primary Records Complete");
-		jc.close();
+	}
+	
+	/**
+	 * Merges groups of records, taking the next group not yet taken until none are left. Shared by the merging threads,
+	 * each merging in its own model.
+	 */
+	private static class GroupMerger implements Runnable {
+		/**
+		 * Input RecordHandler
+		 */
+		private final RecordHandler input;
+		/**
+		 * Output RecordHandler
+		 */
+		private final RecordHandler output;
+		/**
+		 * The groups: key of the primary record and the ids of the records to merge
+		 */
+		private final List<Map.Entry<String, List<String>>> groups;
+		/**
+		 * Position of the next group to take
+		 */
+		private final AtomicInteger next;
+		/**
+		 * First error raised by a merging thread
+		 */
+		private volatile Throwable error;
+		
+		/**
+		 * Constructor
+		 * @param input input recordhandler
+		 * @param output output recordhandler
+		 * @param groups the groups to merge
+		 */
+		protected GroupMerger(RecordHandler input, RecordHandler output, List<Map.Entry<String, List<String>>> groups) {
+			this.input = input;
+			this.output = output;
+			this.groups = groups;
+			this.next = new AtomicInteger();
+			this.error = null;
+		}
+		
+		@Override
+		public void run() {
+			JenaConnect jc = new MemJenaConnect();
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			try {
+				int count = this.groups.size();
+				int cur;
+				while((this.error == null) && ((cur = this.next.getAndIncrement()) < count)) {
+					Map.Entry<String, List<String>> group = this.groups.get(cur);
+					log.debug("(" + (cur + 1) + "/" + count + ": " + Math.round(10000f * (cur + 1) / count) / 100f + "%): merging '" + group.getKey() + "'");
+					jc.truncate();
+					for(String id : group.getValue()) {
+						log.trace("Merging Record '" + id + "' into '" + group.getKey() + "'");
+						jc.loadRdfFromStream(this.input.getRecord(id).openStream(), null, null);
+					}
+					baos.reset();
+					jc.exportRdfToStream(baos, null);
+					this.output.addRecord(group.getKey(), baos.toByteArray(), Merge.class);
+				}
+			} catch(Throwable e) {
+				// errors as well, so the merge fails rather than quietly missing this thread's groups
+				fail(e);
+			} finally {
+				jc.close();
+			}
+		}
+		
+		/**
+		 * Record an error, stopping every thread at its next group
+		 * @param e the error
+		 */
+		private synchronized void fail(Throwable e) {
+			if(this.error == null) {
+				this.error = e;
+			}
+		}
+		
+		/**
+		 * Throw the first error raised by a merging thread, if any
+		 * @throws IOException the error
+		 */
+		protected void rethrow() throws IOException {
+			if(this.error instanceof IOException) {
+				throw (IOException)this.error;
+			} else if(this.error instanceof RuntimeException) {
+				throw (RuntimeException)this.error;
+			} else if(this.error instanceof Error) {
+				throw (Error)this.error;
+			} else if(this.error != null) {
+				throw new IOException("Error merging records", this.error);
+			}
+		}
 	}
 	
 	/**
@@ -127,7 +283,7 @@ public class Merge {
 	 * @throws IOException error executing
 	 */
 	public void execute() throws IOException {
-		merge(this.input, this.output, this.regex);
+		merge(this.input, this.output, this.regex, this.threads);
 	}
 	
 	/**
@@ -144,6 +300,7 @@ public class Merge {
 		parser.addArgument(new ArgDef().setShortOption('O').setLongOpt("outputOverride").withParameterValueMap("JENA_PARAM", "VALUE").setDescription("override the JENA_PARAM of output jena model config using VALUE").setRequired(false));
 		// Params
 		parser.addArgument(new ArgDef().setShortOption('b').setLongOpt("baseRegex").withParameter(true, "REGEX").setDescription("match records using REGEX and use the first Group to find sub-records").setRequired(true));
+		parser.addArgument(new ArgDef().setShortOption('t').setLongOpt("threads").withParameter(true, "THREADS").setDescription("merge records using THREADS threads").setDefaultValue("1").setRequired(false));
 		return parser;
 	}
 	
@@ -171,6 +328,7 @@ public class Merge {
 			log.debug("Stacktrace:",e);
 			error = e;
 		} finally {
+			JenaConnectMetrics.logSummary();
 			log.info(getParser().getAppName() + ": End");
 			if(error != null) {
 				System.exit(1);
@@ -7,7 +7,6 @@ package org.vivoweb.harvester.util.repo;
 
 import java.io.IOException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -79,18 +78,28 @@ public abstract class DBJenaConnect extends JenaConnect {
 	}
 	
 	/**
-	 * Build a new jdbc connection using connect info
-	 * @return a new jdbc connection
+	 * Get the shared connection pool for this database
+	 * @return the pool
+	 * @throws IOException jdbc driver not found
+	 */
+	public JdbcConnectionPool getConnectionPool() throws IOException {
+		try {
+			return JdbcConnectionPool.getPool(this.dbClass, this.dbUrl, this.dbUser, this.dbPass);
+		} catch(ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	/**
+	 * Borrow a jdbc connection from the shared pool using connect info. Closing it returns it to the pool.
+	 * @return a jdbc connection
 	 * @throws IOException error making jdbc connection
 	 */
 	protected Connection buildConnection() throws IOException {
 		try {
-			Class.forName(this.dbClass);
-			return DriverManager.getConnection(this.dbUrl, this.dbUser, this.dbPass);
+			return getConnectionPool().getConnection();
 		} catch(SQLException e) {
 			throw new IOException(e);
-		} catch(ClassNotFoundException e) {
-			throw new IOException(e);
 		}
 	}
 	
@@ -100,6 +109,11 @@ public abstract class DBJenaConnect extends JenaConnect {
 		log.trace("dbUrl: '" + this.dbUrl + "'");
 		log.trace("dbType: '" + this.dbType + "'");
 		log.trace("dbClass: '" + this.dbClass + "'");
+		try {
+			log.trace("pool: " + getConnectionPool());
+		} catch(IOException e) {
+			// driver problems are reported on connect
+		}
 	}
 	
 	@Override
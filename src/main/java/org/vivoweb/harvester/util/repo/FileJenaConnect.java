@@ -5,13 +5,32 @@
  ******************************************************************************/
 package org.vivoweb.harvester.util.repo;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vivoweb.harvester.util.FileAide;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.QuerySolution;
 
 /**
- * Wraps a file an RDF File as a JenaConnect
+ * Wraps a file an RDF File as a JenaConnect. In journal mode the file holds an N-Triples snapshot and the changes made
+ * since the snapshot are appended to "&lt;file&gt;.journal" on each sync, rather than rewriting the whole file. The
+ * snapshot is rewritten (compacted) once the journal grows past a ratio of the snapshot size.
  * @author Christopher Haines hainesc@ufl.edu
  */
 public class FileJenaConnect extends MemJenaConnect {
@@ -19,10 +38,42 @@ public class FileJenaConnect extends MemJenaConnect {
 	 * SLF4J Logger
 	 */
 	private static Logger log = LoggerFactory.getLogger(FileJenaConnect.class);
+	/**
+	 * First line of a journal mode snapshot file
+	 */
+	protected static final String SNAPSHOT_HEADER = "# VIVO Harvester N-Triples snapshot";
+	/**
+	 * Suffix of the journal file
+	 */
+	protected static final String JOURNAL_SUFFIX = ".journal";
+	/**
+	 * Default journal size (as a fraction of the snapshot size) that triggers compaction
+	 */
+	public static final double DEFAULT_COMPACT_RATIO = 0.5;
+	/**
+	 * Number of triples added to the model at a time when loading a snapshot
+	 */
+	private static final int LOAD_BATCH_SIZE = 10000;
 	/**
 	 * 
 	 */
 	private final String filepath;
+	/**
+	 * the language the file is written in
+	 */
+	private final String language;
+	/**
+	 * changes since the last sync, tracked in journal mode only (true = added, false = removed)
+	 */
+	private final Map<Triple, Boolean> changes;
+	/**
+	 * journal size (as a fraction of the snapshot size) that triggers compaction
+	 */
+	private final double compactRatio;
+	/**
+	 * the snapshot must be rewritten on the next sync
+	 */
+	private boolean needsCompaction;
 	
 	/**
 	 * Constructor
@@ -55,19 +106,255 @@ public class FileJenaConnect extends MemJenaConnect {
 	 * @throws IOException error reading file
 	 */
 	public FileJenaConnect(String filepath, String namespace, String language) throws IOException {
-		super(FileAide.getInputStream(filepath), namespace, language);
+		this(filepath, namespace, language, false, DEFAULT_COMPACT_RATIO);
+	}
+	
+	/**
+	 * Constructor
+	 * @param filepath path to the file
+	 * @param namespace the base uri to use for imported uris
+	 * @param language the language the rdf is in (when it is not already a journal mode snapshot). Predefined values
+	 *        for lang are "RDF/XML", "N-TRIPLE", "TURTLE" (or "TTL") and "N3". null represents the default language,
+	 *        "RDF/XML". "RDF/XML-ABBREV" is a synonym for "RDF/XML"
+	 * @param journal use journal mode: the first sync converts the file to a snapshot, later syncs append to the journal
+	 * @param compactRatio journal size (as a fraction of the snapshot size) that triggers compaction
+	 * @throws IOException error reading file
+	 */
+	public FileJenaConnect(String filepath, String namespace, String language, boolean journal, double compactRatio) throws IOException {
+		super((String)null);
 		this.filepath = filepath;
+		this.language = language;
+		this.compactRatio = compactRatio;
+		if(journal && isSnapshot(filepath)) {
+			loadSnapshot();
+			this.needsCompaction = false;
+		} else {
+			InputStream in = openFile(filepath);
+			try {
+				loadRdfFromStream(in, namespace, language);
+			} finally {
+				in.close();
+			}
+			this.needsCompaction = true;
+		}
+		if(journal) {
+			this.changes = new LinkedHashMap<Triple, Boolean>();
+			getJenaModel().getGraph().getEventManager().register(new ChangeTracker());
+		} else {
+			this.changes = null;
+		}
+	}
+	
+	/**
+	 * Open the file for reading, decompressing it if it ends in ".gz"
+	 * @param filepath path to the file
+	 * @return the input stream
+	 * @throws IOException error reading file
+	 */
+	private static InputStream openFile(String filepath) throws IOException {
+		InputStream in = FileAide.getInputStream(filepath);
+		if(filepath.endsWith(".gz")) {
+			return new GZIPInputStream(in, 65536);
+		}
+		return in;
+	}
+	
+	/**
+	 * Open a file for reading lines of UTF-8 text
+	 * @param filepath path to the file
+	 * @return the reader
+	 * @throws IOException error reading file
+	 */
+	private static BufferedReader openReader(String filepath) throws IOException {
+		return new BufferedReader(new InputStreamReader(openFile(filepath), Charset.availableCharsets().get("UTF-8")), 65536);
+	}
+	
+	/**
+	 * Is the file a journal mode snapshot
+	 * @param filepath path to the file
+	 * @return true if the file starts with the snapshot header
+	 * @throws IOException error reading file
+	 */
+	private static boolean isSnapshot(String filepath) throws IOException {
+		if(!FileAide.exists(filepath)) {
+			return false;
+		}
+		BufferedReader br = openReader(filepath);
+		try {
+			return SNAPSHOT_HEADER.equals(br.readLine());
+		} finally {
+			br.close();
+		}
+	}
+	
+	/**
+	 * Load the snapshot, then replay the journal over it
+	 * @throws IOException error reading file
+	 */
+	private void loadSnapshot() throws IOException {
+		Graph g = getJenaModel().getGraph();
+		List<Triple> batch = new ArrayList<Triple>(LOAD_BATCH_SIZE);
+		long count = 0;
+		BufferedReader br = openReader(this.filepath);
+		try {
+			String line;
+			while((line = br.readLine()) != null) {
+				Triple t = NTriplesCodec.parseTriple(line, 0);
+				if(t != null) {
+					batch.add(t);
+					count++;
+					if(batch.size() >= LOAD_BATCH_SIZE) {
+						g.getBulkUpdateHandler().add(batch);
+						batch.clear();
+					}
+				}
+			}
+		} finally {
+			br.close();
+		}
+		g.getBulkUpdateHandler().add(batch);
+		log.debug("Loaded " + count + " triples from snapshot " + this.filepath);
+		String journal = this.filepath + JOURNAL_SUFFIX;
+		if(!FileAide.exists(journal)) {
+			return;
+		}
+		long adds = 0;
+		long dels = 0;
+		br = openReader(journal);
+		try {
+			String line;
+			while((line = br.readLine()) != null) {
+				if(line.length() < 2) {
+					continue;
+				}
+				Triple t;
+				try {
+					t = NTriplesCodec.parseTriple(line, 2);
+				} catch(IllegalArgumentException e) {
+					// a sync that died mid-write leaves a partial last line
+					log.warn("Ignoring unreadable journal entry in " + journal + ": " + e.getMessage());
+					continue;
+				}
+				if(t == null) {
+					continue;
+				}
+				if(line.charAt(0) == 'A') {
+					g.add(t);
+					adds++;
+				} else if(line.charAt(0) == 'D') {
+					g.delete(t);
+					dels++;
+				}
+			}
+		} finally {
+			br.close();
+		}
+		log.debug("Replayed " + adds + " additions and " + dels + " removals from journal " + journal);
+	}
+	
+	/**
+	 * Is this model in journal mode
+	 * @return true if changes are journaled
+	 */
+	public boolean isJournaled() {
+		return this.changes != null;
+	}
+	
+	@Override
+	public void executeUpdateQuery(String queryString, QuerySolution bindings, boolean datasetMode) throws IOException {
+		super.executeUpdateQuery(queryString, bindings, datasetMode);
+		if(datasetMode && isJournaled()) {
+			// dataset level updates do not pass through the model graph's listeners
+			this.needsCompaction = true;
+		}
 	}
 	
 	@Override
 	public void sync() {
 		log.trace("Syncronizing the model...");
 		try {
-			exportRdfToFile(this.filepath);
+			if(!isJournaled()) {
+				exportRdfToFile(this.filepath, this.language);
+			} else if(this.needsCompaction) {
+				compact();
+			} else if(!this.changes.isEmpty()) {
+				appendJournal();
+				if(FileAide.getSize(this.filepath + JOURNAL_SUFFIX) > (this.compactRatio * FileAide.getSize(this.filepath))) {
+					compact();
+				}
+			}
 			log.trace("Syncronization of model complete");
 		} catch(IOException e) {
 			log.error("Failed to syncronize the model!");
 			log.debug("Stacktrace:",e);
 		}
 	}
+	
+	/**
+	 * Append the changes since the last sync to the journal
+	 * @throws IOException error writing journal
+	 */
+	private void appendJournal() throws IOException {
+		String journal = this.filepath + JOURNAL_SUFFIX;
+		OutputStream out = FileAide.getOutputStream(journal, true);
+		try {
+			Writer w = new BufferedWriter(new OutputStreamWriter(out, Charset.availableCharsets().get("UTF-8")), 65536);
+			for(Map.Entry<Triple, Boolean> change : this.changes.entrySet()) {
+				w.write(change.getValue().booleanValue() ? "A " : "D ");
+				NTriplesCodec.writeTriple(change.getKey(), w);
+				w.write(" .\n");
+			}
+			w.flush();
+		} finally {
+			out.close();
+		}
+		log.debug("Journaled " + this.changes.size() + " changes to " + journal);
+		this.changes.clear();
+	}
+	
+	/**
+	 * Rewrite the snapshot from the current model and discard the journal
+	 * @throws IOException error writing snapshot
+	 */
+	private void compact() throws IOException {
+		String tmp = this.filepath + ".compact";
+		OutputStream out = FileAide.getOutputStream(tmp);
+		try {
+			if(this.filepath.endsWith(".gz")) {
+				out = new GZIPOutputStream(out, 65536);
+			}
+			out.write((SNAPSHOT_HEADER + "\n").getBytes("UTF-8"));
+			StreamingRdfWriter.write(getJenaModel().getGraph(), null, out, StreamingRdfWriter.NTRIPLES);
+		} finally {
+			out.close();
+		}
+		FileAide.move(tmp, this.filepath);
+		FileAide.delete(this.filepath + JOURNAL_SUFFIX);
+		log.debug("Compacted snapshot " + this.filepath);
+		this.changes.clear();
+		this.needsCompaction = false;
+	}
+	
+	/**
+	 * Records each change made to the model graph
+	 */
+	private class ChangeTracker extends TripleChangeListener {
+		/**
+		 * Default Constructor
+		 */
+		protected ChangeTracker() {
+			// Nothing to do here
+		}
+		
+		@Override
+		protected void changed(Graph g, Triple t, boolean added) {
+			FileJenaConnect.this.changes.put(t, Boolean.valueOf(added));
+		}
+		
+		@Override
+		protected void unlistedRemoval(Graph g) {
+			// bulk removals (removeAll and friends) do not report the triples they remove
+			FileJenaConnect.this.needsCompaction = true;
+		}
+	}
 }
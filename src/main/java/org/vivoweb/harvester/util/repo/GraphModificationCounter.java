@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.GraphEvents;
+import com.hp.hpl.jena.graph.GraphListener;
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * Graph listener that counts modifications made to a graph, so cached information about the graph can tell whether it
+ * is still current
+ * @author VIVO Harvester Team
+ */
+class GraphModificationCounter implements GraphListener {
+	/**
+	 * The modification count
+	 */
+	private final AtomicLong count;
+	
+	/**
+	 * Default Constructor
+	 */
+	protected GraphModificationCounter() {
+		this.count = new AtomicLong();
+	}
+	
+	/**
+	 * Get the modification count
+	 * @return the count
+	 */
+	protected long get() {
+		return this.count.get();
+	}
+	
+	/**
+	 * Record a modification
+	 */
+	protected void increment() {
+		this.count.incrementAndGet();
+	}
+	
+	@Override
+	public void notifyAddTriple(Graph g, Triple t) {
+		increment();
+	}
+	
+	@Override
+	public void notifyAddArray(Graph g, Triple[] triples) {
+		increment();
+	}
+	
+	@Override
+	public void notifyAddList(Graph g, List<Triple> triples) {
+		increment();
+	}
+	
+	@Override
+	public void notifyAddIterator(Graph g, Iterator<Triple> it) {
+		increment();
+	}
+	
+	@Override
+	public void notifyAddGraph(Graph g, Graph added) {
+		increment();
+	}
+	
+	@Override
+	public void notifyDeleteTriple(Graph g, Triple t) {
+		increment();
+	}
+	
+	@Override
+	public void notifyDeleteList(Graph g, List<Triple> triples) {
+		increment();
+	}
+	
+	@Override
+	public void notifyDeleteArray(Graph g, Triple[] triples) {
+		increment();
+	}
+	
+	@Override
+	public void notifyDeleteIterator(Graph g, Iterator<Triple> it) {
+		increment();
+	}
+	
+	@Override
+	public void notifyDeleteGraph(Graph g, Graph removed) {
+		increment();
+	}
+	
+	@Override
+	public void notifyEvent(Graph source, Object value) {
+		if((value instanceof GraphEvents) && (value != GraphEvents.startRead) && (value != GraphEvents.finishRead)) {
+			increment();
+		}
+	}
+}
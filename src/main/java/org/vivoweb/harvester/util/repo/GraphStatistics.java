@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Triple count, distinct subject count and per-predicate triple counts of a graph. JenaConnect computes these once
+ * with a single pass over the graph and then keeps them up to date from change notifications, so between full
+ * recomputes they are estimates: re-adding a triple that is already present, or deleting one that is not, is still
+ * counted as a change.
+ * @author VIVO Harvester Team
+ */
+public class GraphStatistics {
+	/**
+	 * Number of triples
+	 */
+	private long triples;
+	/**
+	 * Number of distinct subjects
+	 */
+	private long subjects;
+	/**
+	 * Number of triples per predicate uri
+	 */
+	private final Map<String, Long> predicates;
+	
+	/**
+	 * Constructor
+	 */
+	private GraphStatistics() {
+		this.triples = 0;
+		this.subjects = 0;
+		this.predicates = new TreeMap<String, Long>();
+	}
+	
+	/**
+	 * Copy Constructor
+	 * @param original the statistics to copy
+	 */
+	private GraphStatistics(GraphStatistics original) {
+		this.triples = original.triples;
+		this.subjects = original.subjects;
+		this.predicates = new TreeMap<String, Long>(original.predicates);
+	}
+	
+	/**
+	 * Compute statistics with one pass over a graph. Distinct subjects are counted as changes of subject between
+	 * consecutive triples, which is exact for stores that list triples grouped by subject (TDB and in-memory graphs)
+	 * and an overestimate otherwise.
+	 * @param g the graph
+	 * @return the statistics
+	 */
+	protected static GraphStatistics compute(Graph g) {
+		GraphStatistics stats = new GraphStatistics();
+		Node lastSubject = null;
+		ExtendedIterator<Triple> it = g.find(Node.ANY, Node.ANY, Node.ANY);
+		try {
+			while(it.hasNext()) {
+				Triple t = it.next();
+				stats.triples++;
+				stats.adjustPredicate(t.getPredicate(), 1);
+				if(!t.getSubject().equals(lastSubject)) {
+					stats.subjects++;
+					lastSubject = t.getSubject();
+				}
+			}
+		} finally {
+			it.close();
+		}
+		return stats;
+	}
+	
+	/**
+	 * Get a copy of these statistics
+	 * @return the copy
+	 */
+	protected synchronized GraphStatistics copy() {
+		return new GraphStatistics(this);
+	}
+	
+	/**
+	 * Apply a triple added to or removed from the graph
+	 * @param g the graph, already changed
+	 * @param t the triple
+	 * @param added true if added, false if removed
+	 */
+	protected synchronized void apply(Graph g, Triple t, boolean added) {
+		int delta = added ? 1 : -1;
+		this.triples = Math.max(0, this.triples + delta);
+		adjustPredicate(t.getPredicate(), delta);
+		// the subject index tells whether this triple was the subject's first or last
+		ExtendedIterator<Triple> it = g.find(t.getSubject(), Node.ANY, Node.ANY);
+		try {
+			if(added) {
+				if(it.hasNext()) {
+					it.next();
+					if(!it.hasNext()) {
+						this.subjects++;
+					}
+				}
+			} else if(!it.hasNext()) {
+				this.subjects = Math.max(0, this.subjects - 1);
+			}
+		} finally {
+			it.close();
+		}
+	}
+	
+	/**
+	 * Adjust the count for a predicate
+	 * @param predicate the predicate
+	 * @param delta the change
+	 */
+	private void adjustPredicate(Node predicate, int delta) {
+		String uri = predicate.isURI() ? predicate.getURI() : predicate.toString();
+		Long count = this.predicates.get(uri);
+		long value = ((count == null) ? 0 : count.longValue()) + delta;
+		if(value > 0) {
+			this.predicates.put(uri, Long.valueOf(value));
+		} else {
+			this.predicates.remove(uri);
+		}
+	}
+	
+	/**
+	 * Get the number of triples
+	 * @return the triple count
+	 */
+	public synchronized long getTripleCount() {
+		return this.triples;
+	}
+	
+	/**
+	 * Get the number of distinct subjects
+	 * @return the subject count
+	 */
+	public synchronized long getDistinctSubjectCount() {
+		return this.subjects;
+	}
+	
+	/**
+	 * Get the number of triples using a predicate
+	 * @param predicateUri the predicate uri
+	 * @return the triple count
+	 */
+	public synchronized long getPredicateCount(String predicateUri) {
+		Long count = this.predicates.get(predicateUri);
+		return (count == null) ? 0 : count.longValue();
+	}
+	
+	/**
+	 * Get the number of triples for each predicate
+	 * @return map of predicate uri to triple count, in uri order
+	 */
+	public synchronized Map<String, Long> getPredicateCounts() {
+		return Collections.unmodifiableMap(new TreeMap<String, Long>(this.predicates));
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "triples: " + this.triples + ", distinct subjects: " + this.subjects + ", predicates: " + this.predicates.size();
+	}
+}
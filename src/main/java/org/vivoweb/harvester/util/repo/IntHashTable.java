@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash table of non-negative int entries (ids or row numbers) whose keys and hashes are supplied by the
+ * subclass, so entries need no wrapper objects. Uses linear probing with backward shift deletion.
+ * @author VIVO Harvester Team
+ */
+abstract class IntHashTable {
+	/**
+	 * Marks an empty slot
+	 */
+	private static final int EMPTY = -1;
+	/**
+	 * the slots
+	 */
+	private int[] slots;
+	/**
+	 * number of entries
+	 */
+	private int size;
+	
+	/**
+	 * Default Constructor
+	 */
+	protected IntHashTable() {
+		this.slots = new int[16];
+		Arrays.fill(this.slots, EMPTY);
+		this.size = 0;
+	}
+	
+	/**
+	 * Get the hash of an entry's key
+	 * @param entry the entry
+	 * @return the hash
+	 */
+	protected abstract int hashEntry(int entry);
+	
+	/**
+	 * Does an entry have a key
+	 * @param entry the entry
+	 * @param key the key
+	 * @return true if the entry's key equals key
+	 */
+	protected abstract boolean matches(int entry, Object key);
+	
+	/**
+	 * Spread a hash over the table
+	 * @param hash the hash
+	 * @return the spread hash
+	 */
+	protected static int mix(int hash) {
+		int h = hash * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	/**
+	 * Find the slot holding a key
+	 * @param hash the key's hash
+	 * @param key the key
+	 * @return the slot, or -1 if absent
+	 */
+	private int slotOf(int hash, Object key) {
+		int mask = this.slots.length - 1;
+		for(int x = mix(hash) & mask; this.slots[x] != EMPTY; x = (x + 1) & mask) {
+			if(matches(this.slots[x], key)) {
+				return x;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Get the entry with a key
+	 * @param hash the key's hash
+	 * @param key the key
+	 * @return the entry, or -1 if absent
+	 */
+	protected int get(int hash, Object key) {
+		int slot = slotOf(hash, key);
+		return (slot < 0) ? -1 : this.slots[slot];
+	}
+	
+	/**
+	 * Add an entry whose key is not already present
+	 * @param entry the entry
+	 */
+	protected void add(int entry) {
+		if(((this.size + 1) * 2) > this.slots.length) {
+			int[] old = this.slots;
+			this.slots = new int[old.length * 2];
+			Arrays.fill(this.slots, EMPTY);
+			for(int e : old) {
+				if(e != EMPTY) {
+					insert(e);
+				}
+			}
+		}
+		insert(entry);
+		this.size++;
+	}
+	
+	/**
+	 * Place an entry in the first free slot of its probe sequence
+	 * @param entry the entry
+	 */
+	private void insert(int entry) {
+		int mask = this.slots.length - 1;
+		int x = mix(hashEntry(entry)) & mask;
+		while(this.slots[x] != EMPTY) {
+			x = (x + 1) & mask;
+		}
+		this.slots[x] = entry;
+	}
+	
+	/**
+	 * Replace the entry with a key by another entry with the same key
+	 * @param hash the key's hash
+	 * @param key the key
+	 * @param entry the new entry
+	 * @return true if the key was present
+	 */
+	protected boolean replace(int hash, Object key, int entry) {
+		int slot = slotOf(hash, key);
+		if(slot < 0) {
+			return false;
+		}
+		this.slots[slot] = entry;
+		return true;
+	}
+	
+	/**
+	 * Remove the entry with a key
+	 * @param hash the key's hash
+	 * @param key the key
+	 * @return true if the key was present
+	 */
+	protected boolean remove(int hash, Object key) {
+		int hole = slotOf(hash, key);
+		if(hole < 0) {
+			return false;
+		}
+		int mask = this.slots.length - 1;
+		this.slots[hole] = EMPTY;
+		this.size--;
+		// move later entries of the run back into the hole when their home slot allows it
+		for(int x = (hole + 1) & mask; this.slots[x] != EMPTY; x = (x + 1) & mask) {
+			int home = mix(hashEntry(this.slots[x])) & mask;
+			boolean reachable = (hole <= x) ? ((hole < home) && (home <= x)) : ((hole < home) || (home <= x));
+			if(!reachable) {
+				this.slots[hole] = this.slots[x];
+				this.slots[x] = EMPTY;
+				hole = x;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Remove all entries
+	 */
+	protected void clear() {
+		this.slots = new int[16];
+		Arrays.fill(this.slots, EMPTY);
+		this.size = 0;
+	}
+	
+	/**
+	 * Get the number of entries
+	 * @return the size
+	 */
+	protected int size() {
+		return this.size;
+	}
+}
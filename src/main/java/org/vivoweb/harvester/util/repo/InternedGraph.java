@@ -0,0 +1,541 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.NoSuchElementException;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.impl.GraphBase;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.shared.LockMRSW;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.NiceIterator;
+import com.hp.hpl.jena.util.iterator.NullIterator;
+
+/**
+ * Heap Graph holding its triples as rows of node ids from a shared NodeDictionary instead of Triple objects. Rows are
+ * found by a hash of the whole triple and chained per subject, predicate and object for pattern matching. The graph
+ * is reference counted by the connections using it and releases its nodes when the last one closes.
+ * @author VIVO Harvester Team
+ */
+class InternedGraph extends GraphBase {
+	/**
+	 * Positions of a row
+	 */
+	private static final int S = 0, P = 1, O = 2;
+	/**
+	 * The node dictionary
+	 */
+	private final NodeDictionary dict;
+	/**
+	 * node ids of each row by position, -1 for a free row
+	 */
+	private final int[][] ids;
+	/**
+	 * next row in the chain of each position
+	 */
+	private final int[][] next;
+	/**
+	 * previous row in the chain of each position
+	 */
+	private final int[][] prev;
+	/**
+	 * first row of the chain of each node, per position
+	 */
+	private final ChainHeads[] heads;
+	/**
+	 * rows by whole triple
+	 */
+	private final RowTable rows;
+	/**
+	 * free rows available for reuse
+	 */
+	private int[] free;
+	/**
+	 * number of free rows available
+	 */
+	private int freeCount;
+	/**
+	 * rows ever used
+	 */
+	private int high;
+	/**
+	 * live triples
+	 */
+	private int count;
+	/**
+	 * changes made to the rows, so iterators can tell the graph changed under them
+	 */
+	private int modCount;
+	/**
+	 * the row removed by the last change, if it was a delete
+	 */
+	private int lastDeleted;
+	/**
+	 * connections using this graph
+	 */
+	private int users;
+	/**
+	 * The lock shared by all connections using this graph
+	 */
+	private final Lock lock;
+	
+	/**
+	 * Constructor
+	 * @param dict the node dictionary
+	 */
+	protected InternedGraph(NodeDictionary dict) {
+		this.dict = dict;
+		this.ids = new int[3][64];
+		this.next = new int[3][64];
+		this.prev = new int[3][64];
+		this.heads = new ChainHeads[]{new ChainHeads(S), new ChainHeads(P), new ChainHeads(O)};
+		this.rows = new RowTable();
+		this.free = new int[16];
+		this.freeCount = 0;
+		this.high = 0;
+		this.count = 0;
+		this.modCount = 0;
+		this.lastDeleted = -1;
+		this.users = 0;
+		this.lock = new LockMRSW();
+	}
+	
+	/**
+	 * Add a connection using this graph
+	 */
+	protected synchronized void open() {
+		this.users++;
+	}
+	
+	/**
+	 * Get the lock shared by all connections using this graph
+	 * @return the lock
+	 */
+	protected Lock getLock() {
+		return this.lock;
+	}
+	
+	@Override
+	public synchronized void close() {
+		// only the last connection's model really closes the graph
+		if((this.users > 0) && (--this.users == 0)) {
+			super.close();
+		}
+	}
+	
+	@Override
+	protected synchronized void destroy() {
+		for(int row = 0; row < this.high; row++) {
+			if(this.ids[S][row] != -1) {
+				releaseRow(row);
+			}
+		}
+		this.rows.clear();
+		for(ChainHeads h : this.heads) {
+			h.clear();
+		}
+		this.freeCount = 0;
+		this.high = 0;
+		this.count = 0;
+		this.modCount++;
+		this.lastDeleted = -1;
+	}
+	
+	/**
+	 * Release the nodes of a row
+	 * @param row the row
+	 */
+	private void releaseRow(int row) {
+		for(int pos = S; pos <= O; pos++) {
+			this.dict.release(this.ids[pos][row]);
+		}
+	}
+	
+	@Override
+	public synchronized void performAdd(Triple t) {
+		int[] key = new int[]{this.dict.acquire(t.getSubject()), this.dict.acquire(t.getPredicate()), this.dict.acquire(t.getObject())};
+		if(this.rows.get(key) >= 0) {
+			for(int id : key) {
+				this.dict.release(id);
+			}
+			return;
+		}
+		int row;
+		if(this.freeCount > 0) {
+			row = this.free[--this.freeCount];
+		} else {
+			if(this.high == this.ids[S].length) {
+				int size = this.high * 2;
+				for(int pos = S; pos <= O; pos++) {
+					this.ids[pos] = Arrays.copyOf(this.ids[pos], size);
+					this.next[pos] = Arrays.copyOf(this.next[pos], size);
+					this.prev[pos] = Arrays.copyOf(this.prev[pos], size);
+				}
+			}
+			row = this.high++;
+		}
+		for(int pos = S; pos <= O; pos++) {
+			this.ids[pos][row] = key[pos];
+			int head = this.heads[pos].getHead(key[pos]);
+			this.prev[pos][row] = -1;
+			this.next[pos][row] = head;
+			if(head < 0) {
+				this.heads[pos].add(row);
+			} else {
+				this.prev[pos][head] = row;
+				this.heads[pos].setHead(key[pos], row);
+			}
+		}
+		this.rows.add(row);
+		this.count++;
+		this.modCount++;
+		this.lastDeleted = -1;
+	}
+	
+	@Override
+	public synchronized void performDelete(Triple t) {
+		int[] key = lookup(t.getSubject(), t.getPredicate(), t.getObject());
+		if(key == null) {
+			return;
+		}
+		int row = this.rows.get(key);
+		if(row < 0) {
+			return;
+		}
+		this.rows.remove(row);
+		for(int pos = S; pos <= O; pos++) {
+			int before = this.prev[pos][row];
+			int after = this.next[pos][row];
+			if(after >= 0) {
+				this.prev[pos][after] = before;
+			}
+			if(before >= 0) {
+				this.next[pos][before] = after;
+			} else if(after >= 0) {
+				this.heads[pos].setHead(key[pos], after);
+			} else {
+				this.heads[pos].removeHead(key[pos]);
+			}
+		}
+		releaseRow(row);
+		for(int pos = S; pos <= O; pos++) {
+			this.ids[pos][row] = -1;
+		}
+		if(this.freeCount == this.free.length) {
+			this.free = Arrays.copyOf(this.free, this.freeCount * 2);
+		}
+		this.free[this.freeCount++] = row;
+		this.count--;
+		this.modCount++;
+		this.lastDeleted = row;
+	}
+	
+	/**
+	 * Get the ids of pattern nodes
+	 * @param s the subject, null or not concrete for any
+	 * @param p the predicate, null or not concrete for any
+	 * @param o the object, null or not concrete for any
+	 * @return the ids, -1 for any, or null if a bound node is not interned
+	 */
+	private int[] lookup(Node s, Node p, Node o) {
+		Node[] nodes = new Node[]{s, p, o};
+		int[] key = new int[3];
+		for(int pos = S; pos <= O; pos++) {
+			if((nodes[pos] == null) || !nodes[pos].isConcrete()) {
+				key[pos] = -1;
+			} else {
+				key[pos] = this.dict.lookup(nodes[pos]);
+				if(key[pos] < 0) {
+					return null;
+				}
+			}
+		}
+		return key;
+	}
+	
+	@Override
+	protected synchronized ExtendedIterator<Triple> graphBaseFind(TripleMatch m) {
+		int[] key = lookup(m.getMatchSubject(), m.getMatchPredicate(), m.getMatchObject());
+		if(key == null) {
+			return NullIterator.instance();
+		}
+		if((key[S] >= 0) && (key[P] >= 0) && (key[O] >= 0)) {
+			int row = this.rows.get(key);
+			return (row < 0) ? NullIterator.<Triple>instance() : new MatchIterator(key, -2, row);
+		}
+		// walk the shortest likely chain: subject, then object, then predicate, else every row
+		int pos = (key[S] >= 0) ? S : ((key[O] >= 0) ? O : ((key[P] >= 0) ? P : -1));
+		int row = (pos < 0) ? nextLive(0) : this.heads[pos].getHead(key[pos]);
+		return (row < 0) ? NullIterator.<Triple>instance() : new MatchIterator(key, pos, row);
+	}
+	
+	/**
+	 * Does a row match a pattern
+	 * @param key the ids of the pattern, -1 for any
+	 * @param row the row
+	 * @return true if it matches
+	 */
+	private boolean matches(int[] key, int row) {
+		return ((key[S] < 0) || (this.ids[S][row] == key[S])) && ((key[P] < 0) || (this.ids[P][row] == key[P])) && ((key[O] < 0) || (this.ids[O][row] == key[O]));
+	}
+	
+	/**
+	 * Find the first live row at or after a row
+	 * @param row the row
+	 * @return the live row, or -1 if none
+	 */
+	private int nextLive(int row) {
+		for(int x = row; x < this.high; x++) {
+			if(this.ids[S][x] != -1) {
+				return x;
+			}
+		}
+		return -1;
+	}
+	
+	@Override
+	protected synchronized int graphBaseSize() {
+		return this.count;
+	}
+	
+	/**
+	 * Iterator walking the rows matching a pattern as it is read. The next match is found before the current one is
+	 * returned, so the current triple may be deleted (through the iterator or the graph) while iterating; any other
+	 * change to the graph ends the iteration with a ConcurrentModificationException.
+	 */
+	private class MatchIterator extends NiceIterator<Triple> {
+		/**
+		 * the ids of the pattern, -1 for any
+		 */
+		private final int[] key;
+		/**
+		 * the position whose chain is walked, -1 to walk every row, -2 for a single row
+		 */
+		private final int pos;
+		/**
+		 * the next matching row, -1 if none
+		 */
+		private int nextRow;
+		/**
+		 * the row of the last triple returned, -1 if none
+		 */
+		private int currentRow;
+		/**
+		 * the last triple returned
+		 */
+		private Triple current;
+		/**
+		 * the graph's change count this iterator is valid for
+		 */
+		private int expectedModCount;
+		
+		/**
+		 * Constructor
+		 * @param key the ids of the pattern, -1 for any
+		 * @param pos the position whose chain is walked, -1 to walk every row, -2 for a single row
+		 * @param first the first row to consider
+		 */
+		protected MatchIterator(int[] key, int pos, int first) {
+			this.key = key;
+			this.pos = pos;
+			this.currentRow = -1;
+			this.current = null;
+			this.expectedModCount = InternedGraph.this.modCount;
+			this.nextRow = (pos == -2) ? first : seek(first);
+		}
+		
+		/**
+		 * Find the first matching row from a row on, following the walk
+		 * @param start the row to start at, -1 for none
+		 * @return the matching row, or -1 if none
+		 */
+		private int seek(int start) {
+			int row = start;
+			while((row >= 0) && !matches(this.key, row)) {
+				row = step(row);
+			}
+			return row;
+		}
+		
+		/**
+		 * Get the row after a row in the walk
+		 * @param row the row
+		 * @return the next row, or -1 if none
+		 */
+		private int step(int row) {
+			if(this.pos == -2) {
+				return -1;
+			}
+			return (this.pos < 0) ? nextLive(row + 1) : InternedGraph.this.next[this.pos][row];
+		}
+		
+		/**
+		 * Check the graph has not changed, other than by deleting the current triple
+		 * @throws ConcurrentModificationException the graph changed
+		 */
+		private void checkModCount() throws ConcurrentModificationException {
+			if(InternedGraph.this.modCount == this.expectedModCount) {
+				return;
+			}
+			if((this.currentRow >= 0) && (InternedGraph.this.modCount == (this.expectedModCount + 1)) && (InternedGraph.this.lastDeleted == this.currentRow)) {
+				this.expectedModCount = InternedGraph.this.modCount;
+				this.currentRow = -1;
+				return;
+			}
+			throw new ConcurrentModificationException();
+		}
+		
+		@Override
+		public boolean hasNext() {
+			synchronized(InternedGraph.this) {
+				checkModCount();
+				return this.nextRow >= 0;
+			}
+		}
+		
+		@Override
+		public Triple next() {
+			synchronized(InternedGraph.this) {
+				if(!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				int row = this.nextRow;
+				this.current = Triple.create(InternedGraph.this.dict.getNode(InternedGraph.this.ids[S][row]), InternedGraph.this.dict.getNode(InternedGraph.this.ids[P][row]), InternedGraph.this.dict.getNode(InternedGraph.this.ids[O][row]));
+				this.currentRow = row;
+				// found before the current row can be deleted, which unlinks it from its chains
+				this.nextRow = seek(step(row));
+				return this.current;
+			}
+		}
+		
+		@Override
+		public void remove() {
+			synchronized(InternedGraph.this) {
+				if(this.current == null) {
+					throw new IllegalStateException();
+				}
+				checkModCount();
+				// some bulk removals delete the triple themselves before removing it from the iterator
+				if(this.currentRow >= 0) {
+					InternedGraph.this.delete(this.current);
+					checkModCount();
+				}
+				this.current = null;
+			}
+		}
+	}
+	
+	/**
+	 * Rows by whole triple
+	 */
+	private class RowTable extends IntHashTable {
+		/**
+		 * Constructor
+		 */
+		protected RowTable() {
+			super();
+		}
+		
+		/**
+		 * Hash a triple of ids
+		 * @param s the subject id
+		 * @param p the predicate id
+		 * @param o the object id
+		 * @return the hash
+		 */
+		private int hash(int s, int p, int o) {
+			return (((s * 31) + p) * 31) + o;
+		}
+		
+		@Override
+		protected int hashEntry(int entry) {
+			return hash(InternedGraph.this.ids[S][entry], InternedGraph.this.ids[P][entry], InternedGraph.this.ids[O][entry]);
+		}
+		
+		@Override
+		protected boolean matches(int entry, Object key) {
+			int[] k = (int[])key;
+			return (InternedGraph.this.ids[S][entry] == k[S]) && (InternedGraph.this.ids[P][entry] == k[P]) && (InternedGraph.this.ids[O][entry] == k[O]);
+		}
+		
+		/**
+		 * Get the row holding a triple
+		 * @param key the triple's ids
+		 * @return the row, or -1 if absent
+		 */
+		protected int get(int[] key) {
+			return get(hash(key[S], key[P], key[O]), key);
+		}
+		
+		/**
+		 * Remove a row
+		 * @param row the row
+		 */
+		protected void remove(int row) {
+			int[] key = new int[]{InternedGraph.this.ids[S][row], InternedGraph.this.ids[P][row], InternedGraph.this.ids[O][row]};
+			remove(hashEntry(row), key);
+		}
+	}
+	
+	/**
+	 * First row of the chain of each node at a position
+	 */
+	private class ChainHeads extends IntHashTable {
+		/**
+		 * the position
+		 */
+		private final int pos;
+		
+		/**
+		 * Constructor
+		 * @param pos the position
+		 */
+		protected ChainHeads(int pos) {
+			super();
+			this.pos = pos;
+		}
+		
+		@Override
+		protected int hashEntry(int entry) {
+			return InternedGraph.this.ids[this.pos][entry];
+		}
+		
+		@Override
+		protected boolean matches(int entry, Object key) {
+			return InternedGraph.this.ids[this.pos][entry] == ((Integer)key).intValue();
+		}
+		
+		/**
+		 * Get the first row of a node's chain
+		 * @param id the node id
+		 * @return the row, or -1 if the node has no rows at this position
+		 */
+		protected int getHead(int id) {
+			return get(id, Integer.valueOf(id));
+		}
+		
+		/**
+		 * Set the first row of a node's existing chain
+		 * @param id the node id
+		 * @param row the row
+		 */
+		protected void setHead(int id, int row) {
+			replace(id, Integer.valueOf(id), row);
+		}
+		
+		/**
+		 * Remove a node's chain
+		 * @param id the node id
+		 */
+		protected void removeHead(int id) {
+			remove(id, Integer.valueOf(id));
+		}
+	}
+}
@@ -12,9 +12,12 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.NoSuchElementException;
@@ -75,6 +78,75 @@ public class JDBCRecordHandler extends RecordHandler {
 	 * Field to store data in
 	 */
 	protected String dataField;
+	/**
+	 * Records (and metadata updates) to buffer before writing them in one batch and committing, 0 to write each
+	 * immediately
+	 */
+	private int batchSize;
+	/**
+	 * Ids of the records with rows buffered in the current batch
+	 */
+	private final Set<String> batchIDs = new HashSet<String>();
+	/**
+	 * Records and metadata updates buffered in the current batch
+	 */
+	private int batched;
+	/**
+	 * Upsert statement for the database's dialect, null if it has none
+	 */
+	private String upsertSQL;
+	/**
+	 * Reusable statement writing records: the upsert, or the plain insert when the dialect has none
+	 */
+	private PreparedStatement recordWriter;
+	/**
+	 * Reusable statement inserting records
+	 */
+	private PreparedStatement recordInserter;
+	/**
+	 * Reusable statement updating records
+	 */
+	private PreparedStatement recordUpdater;
+	/**
+	 * Reusable statement inserting metadata
+	 */
+	private PreparedStatement metaInserter;
+	/**
+	 * Reusable statement deleting records
+	 */
+	private PreparedStatement recordDeleter;
+	/**
+	 * Reusable statement deleting the metadata of a record
+	 */
+	private PreparedStatement metaDeleter;
+	/**
+	 * Records have rows buffered in recordWriter
+	 */
+	private boolean recordsBatched;
+	/**
+	 * Rows fetched per round trip when iterating records
+	 */
+	private int fetchSize = 1000;
+	/**
+	 * Records read per query when iterating records in pages, 0 to read each range with one query
+	 */
+	private int pageSize;
+	/**
+	 * The driver keeps the cursors of record iterators open when a batch is committed
+	 */
+	private boolean holdCursors;
+	/**
+	 * The dialect's type to cast metadata timestamps to, which are stored as text, to compare them as numbers
+	 */
+	private String timestampType;
+	/**
+	 * Reusable statement reading the data of a record
+	 */
+	private PreparedStatement recordReader;
+	/**
+	 * Reusable statement reading the metadata of a record
+	 */
+	private PreparedStatement metaReader;
 	
 	/**
 	 * Default Constructor
@@ -167,6 +239,7 @@ public class JDBCRecordHandler extends RecordHandler {
 				createMetaTable();
 			}
 			checkMetaTableConfigured();
+			prepareStatements();
 		} catch(ClassNotFoundException e) {
 			throw new IllegalArgumentException(e);
 		} catch(SQLException e) {
@@ -174,6 +247,143 @@ public class JDBCRecordHandler extends RecordHandler {
 		}
 	}
 	
+	/**
+	 * Prepare the reusable write statements, picking the upsert of the database's dialect
+	 * @throws SQLException error preparing statements
+	 */
+	private void prepareStatements() throws SQLException {
+		String dialect = this.db.getMetaData().getDatabaseProductName();
+		String insertSQL = "insert into " + this.table + " (" + recordIdField + ", " + this.dataField + ") values (?, ?)";
+		this.pageSize = 0;
+		// MySQL only casts to signed or unsigned
+		this.timestampType = "MySQL".equalsIgnoreCase(dialect) ? "signed" : "bigint";
+		if("H2".equalsIgnoreCase(dialect)) {
+			this.upsertSQL = "merge into " + this.table + " (" + recordIdField + ", " + this.dataField + ") key (" + recordIdField + ") values (?, ?)";
+		} else if("MySQL".equalsIgnoreCase(dialect)) {
+			this.upsertSQL = insertSQL + " on duplicate key update " + this.dataField + " = values(" + this.dataField + ")";
+			// Connector/J reads a whole result set into memory, unless streaming, which blocks the connection until the
+			// result set is closed and so any write made while iterating: read the records a page at a time instead
+			this.pageSize = (this.fetchSize > 0) ? this.fetchSize : 1000;
+		} else {
+			log.debug("No upsert known for " + dialect + ": records are written by update then insert, without batching");
+			this.upsertSQL = null;
+		}
+		this.recordInserter = this.db.prepareStatement(insertSQL);
+		this.recordUpdater = this.db.prepareStatement("update " + this.table + " set " + this.dataField + " = ? where " + recordIdField + " = ?");
+		this.recordWriter = (this.upsertSQL == null) ? this.recordInserter : this.db.prepareStatement(this.upsertSQL);
+		this.metaInserter = this.db.prepareStatement("insert into " + this.table + "_rmd (" + rmdRelField + ", " + rmdCalField + ", " + rmdOperationField + ", " + rmdOperatorField + ", " + rmdMD5Field + ") values (?, ?, ?, ?, ?)");
+		this.recordDeleter = this.db.prepareStatement("delete from " + this.table + " where " + recordIdField + " = ?");
+		this.metaDeleter = this.db.prepareStatement("delete from " + this.table + "_rmd where " + rmdRelField + " = ?");
+		this.recordReader = this.db.prepareStatement("select " + this.dataField + " from " + this.table + " where " + recordIdField + " = ?");
+		try {
+			this.holdCursors = this.db.getMetaData().supportsResultSetHoldability(ResultSet.HOLD_CURSORS_OVER_COMMIT);
+		} catch(SQLException e) {
+			this.holdCursors = false;
+		}
+		if(!this.holdCursors) {
+			log.debug(dialect + " closes cursors on commit: writing to the handler ends record iterations in progress");
+		}
+		this.metaReader = this.db.prepareStatement("select " + rmdCalField + ", " + rmdOperationField + ", " + rmdOperatorField + ", " + rmdMD5Field + " from " + this.table + "_rmd where " + rmdRelField + " = ? order by " + rmdCalField + " desc");
+	}
+	
+	/**
+	 * Set the number of rows fetched per round trip when iterating records. This is a hint to the driver (PostgreSQL
+	 * only honors it outside autocommit), except on MySQL, whose driver would hold every row of a query in memory: there
+	 * records are read with one query per this many rows.
+	 * @param fetchSize the fetch size, 0 for the driver's default (1000 rows per query on MySQL)
+	 */
+	public synchronized void setFetchSize(int fetchSize) {
+		this.fetchSize = Math.max(fetchSize, 0);
+		if(this.pageSize > 0) {
+			this.pageSize = (this.fetchSize > 0) ? this.fetchSize : 1000;
+		}
+	}
+	
+	/**
+	 * Set the number of records (and metadata updates) to buffer before writing them in one batch and committing. Reads
+	 * of a buffered record write the batch first. Record iterators hold their cursors over these commits where the
+	 * driver supports it; with drivers that do not, an iteration in progress ends (logging an error) at the next commit,
+	 * so do not write to this handler while iterating it.
+	 * @param batchSize the batch size, 0 to write each record immediately
+	 * @throws IOException error writing buffered rows or changing the commit mode
+	 */
+	public synchronized void setBatchSize(int batchSize) throws IOException {
+		flush();
+		try {
+			this.db.setAutoCommit(batchSize <= 0);
+		} catch(SQLException e) {
+			throw new IOException(e);
+		}
+		this.batchSize = Math.max(batchSize, 0);
+	}
+	
+	/**
+	 * Write the buffered rows, records before their metadata, and commit
+	 * @throws IOException error writing rows
+	 */
+	public synchronized void flush() throws IOException {
+		if(this.batched == 0) {
+			return;
+		}
+		try {
+			if(this.recordsBatched) {
+				this.recordWriter.executeBatch();
+			}
+			this.metaInserter.executeBatch();
+			this.db.commit();
+		} catch(SQLException e) {
+			try {
+				this.recordWriter.clearBatch();
+				this.metaInserter.clearBatch();
+				this.db.rollback();
+			} catch(SQLException e2) {
+				log.debug("Unable to roll back failed batch", e2);
+			}
+			// the digest index was told of these writes as they were buffered
+			for(String recID : this.batchIDs) {
+				forgetDigest(recID);
+			}
+			throw new IOException("Unable to write batch of " + this.batched + " records", e);
+		} finally {
+			this.recordsBatched = false;
+			this.batched = 0;
+			this.batchIDs.clear();
+		}
+	}
+	
+	/**
+	 * Write the buffered rows if the record has some
+	 * @param recID the record id
+	 * @throws IOException error writing rows
+	 */
+	private void flush(String recID) throws IOException {
+		if(this.batchIDs.contains(recID)) {
+			flush();
+		}
+	}
+	
+	/**
+	 * Commit the statements run outside a batch, when batching turned autocommit off
+	 * @throws SQLException error committing
+	 */
+	private void commitUnbatched() throws SQLException {
+		if(this.batchSize > 0) {
+			this.db.commit();
+		}
+	}
+	
+	/**
+	 * Count a buffered record or metadata update, writing the batch once full
+	 * @param recID the record id
+	 * @throws IOException error writing rows
+	 */
+	private void batched(String recID) throws IOException {
+		this.batchIDs.add(recID);
+		if(++this.batched >= this.batchSize) {
+			flush();
+		}
+	}
+	
 	/**
 	 * Create the record table
 	 * @throws IOException error creating table
@@ -249,39 +459,49 @@ public class JDBCRecordHandler extends RecordHandler {
 	}
 	
 	@Override
-	public boolean addRecord(Record rec, Class<?> creator, boolean overwrite) throws IOException {
+	public synchronized boolean addRecord(Record rec, Class<?> creator, boolean overwrite) throws IOException {
 		if(!needsUpdated(rec)) {
 			return false;
 		}
 		try {
-			PreparedStatement ps = this.db.prepareStatement("insert into " + this.table + "(" + recordIdField + ", " + this.dataField + ") values (?, ?)");
-			ps.setString(1, rec.getID());
-			ps.setBytes(2, rec.getData().getBytes());
-			ps.executeUpdate();
-		} catch(SQLException e) {
-			if(overwrite) {
-				log.trace("Unable to add record: atempting to update existing record");
-				try {
-					PreparedStatement ps = this.db.prepareStatement("update " + this.table + " set " + this.dataField + " = ? where " + recordIdField + " = ?");
-					ps.setString(2, rec.getID());
-					ps.setBytes(1, rec.getData().getBytes());
-					ps.executeUpdate();
-				} catch(SQLException e2) {
-					throw new IOException("Unable to update record: " + rec.getID(), e2);
+			if(overwrite && (this.upsertSQL != null)) {
+				this.recordWriter.setString(1, rec.getID());
+				this.recordWriter.setBytes(2, rec.getDataBytes());
+				if(this.batchSize > 0) {
+					this.recordWriter.addBatch();
+					this.recordsBatched = true;
+				} else {
+					this.recordWriter.executeUpdate();
 				}
 			} else {
-				throw new IOException("Unable to add record: " + rec.getID(), e);
+				flush(rec.getID());
+				if(overwrite) {
+					this.recordUpdater.setBytes(1, rec.getDataBytes());
+					this.recordUpdater.setString(2, rec.getID());
+				}
+				if(!overwrite || (this.recordUpdater.executeUpdate() == 0)) {
+					this.recordInserter.setString(1, rec.getID());
+					this.recordInserter.setBytes(2, rec.getDataBytes());
+					this.recordInserter.executeUpdate();
+				}
+				commitUnbatched();
 			}
+		} catch(SQLException e) {
+			throw new IOException("Unable to " + (overwrite ? "write" : "add") + " record: " + rec.getID(), e);
 		}
+		// the written metadata completes the record in the batch
 		addMetaData(rec, creator, RecordMetaDataType.written);
 		return true;
 	}
 	
 	@Override
-	public void delRecord(String recID) throws IOException {
+	public synchronized void delRecord(String recID) throws IOException {
+		flush(recID);
 		delMetaData(recID);
 		try {
-			this.cursor.execute("delete from " + this.table + " where " + recordIdField + " = '" + recID + "'");
+			this.recordDeleter.setString(1, recID);
+			this.recordDeleter.executeUpdate();
+			commitUnbatched();
 		} catch(SQLException e) {
 			throw new IOException("Unable to delete record: " + recID, e);
 		}
@@ -289,25 +509,53 @@ public class JDBCRecordHandler extends RecordHandler {
 	
 	@Override
 	public String getRecordData(String recID) throws IOException {
+		return new String(getRecordDataBytes(recID), Record.DATA_CHARSET);
+	}
+	
+	@Override
+	public Record getRecord(String recID) throws IllegalArgumentException, IOException {
+		// decoded only if the text is asked for
+		return new Record(recID, getRecordDataBytes(recID), this);
+	}
+	
+	@Override
+	public synchronized byte[] getRecordDataBytes(String recID) throws IOException {
+		flush(recID);
 		try {
-			ResultSet existrs = this.cursor.executeQuery("select count(*) from " + this.table + " where " + recordIdField + " = '" + recID + "'");
-			existrs.first();
-			if(existrs.getInt(1) < 1) {
-				throw new IllegalArgumentException("Record " + recID + " does not exist!");
+			this.recordReader.setString(1, recID);
+			ResultSet rs = this.recordReader.executeQuery();
+			try {
+				if(!rs.next()) {
+					throw new IllegalArgumentException("Record " + recID + " does not exist!");
+				}
+				return rs.getBytes(1);
+			} finally {
+				rs.close();
 			}
-			ResultSet rs = this.cursor.executeQuery("select " + this.dataField + " from " + this.table + " where " + recordIdField + " = '" + recID + "'");
-			rs.first();
-			return new String(rs.getBytes(1));
 		} catch(SQLException e) {
 			throw new IOException("Unable to retrieve record: " + recID, e);
 		}
 	}
 	
 	@Override
-	public Iterator<Record> iterator() {
+	public synchronized Iterator<Record> iterator() {
+		return openIterator(null, null);
+	}
+	
+	/**
+	 * Open an iterator over a range of record ids
+	 * @param from the first id of the range, null to start at the first record
+	 * @param to the id after the range, null to end at the last record
+	 * @return the iterator, null if the records could not be read
+	 */
+	private Iterator<Record> openIterator(String from, String to) {
 		JDBCRecordIterator ri = null;
 		try {
-			ri = new JDBCRecordIterator();
+			flush();
+			ri = new JDBCRecordIterator(from, to);
+		} catch(IOException e) {
+			log.error("Unable to write buffered records");
+			log.debug("Stacktrace:",e);
 		} catch(SQLException e) {
 			log.error("Unable to retrieve records");
 			log.debug("Stacktrace:",e);
@@ -316,44 +564,302 @@ public class JDBCRecordHandler extends RecordHandler {
 	}
 	
 	/**
-	 * Iterator for JDBCRecordHandler
+	 * Partitions are ranges of record ids holding about the same number of records, each read with its own query. The
+	 * range bounds are found in one pass over the ids.
+	 * @param n the number of partitions wanted
+	 * @return at least one and at most n partitions
+	 * @throws IOException error reading record ids
+	 */
+	@Override
+	public synchronized List<Iterable<Record>> partitions(int n) throws IOException {
+		checkPartitionCount(n);
+		flush();
+		List<String> bounds = new ArrayList<String>(n);
+		try {
+			ResultSet count = this.cursor.executeQuery("select count(*) from " + this.table);
+			int total = count.next() ? count.getInt(1) : 0;
+			count.close();
+			if(n > 1) {
+				Statement stmt = this.db.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				try {
+					stmt.setFetchSize(this.fetchSize);
+					ResultSet rs = stmt.executeQuery("select " + recordIdField + " from " + this.table + " order by " + recordIdField);
+					int row = 0;
+					while(rs.next() && (bounds.size() < (n - 1))) {
+						// the first id of each partition after the first
+						if((row > 0) && (row >= (((long)total * (bounds.size() + 1)) / n))) {
+							bounds.add(rs.getString(1));
+						}
+						row++;
+					}
+					rs.close();
+				} finally {
+					stmt.close();
+				}
+			}
+		} catch(SQLException e) {
+			throw new IOException("Unable to find record id ranges", e);
+		}
+		List<Iterable<Record>> parts = new ArrayList<Iterable<Record>>(bounds.size() + 1);
+		for(int x = 0; x <= bounds.size(); x++) {
+			final String from = (x == 0) ? null : bounds.get(x - 1);
+			final String to = (x == bounds.size()) ? null : bounds.get(x);
+			parts.add(new Iterable<Record>() {
+				@Override
+				public Iterator<Record> iterator() {
+					synchronized(JDBCRecordHandler.this) {
+						return openIterator(from, to);
+					}
+				}
+			});
+		}
+		return parts;
+	}
+	
+	/**
+	 * Iterator for JDBCRecordHandler, reading ids and data of a range of records in one forward only pass, or in pages
+	 * of pageSize records following on from the last id read
 	 * @author Christopher Haines (hainesc@ctrip.ufl.edu)
 	 */
 	private class JDBCRecordIterator implements Iterator<Record> {
+		/**
+		 * The first id of the range, null to start at the first record
+		 */
+		private final String from;
+		/**
+		 * The id after the range, null to end at the last record
+		 */
+		private final String to;
+		/**
+		 * The statement reading the records
+		 */
+		private PreparedStatement stmt;
 		/**
 		 * The result set for records in a database
 		 */
-		ResultSet rs;
+		private ResultSet rs;
+		/**
+		 * The id of the last record returned, null if none
+		 */
+		private String lastID;
+		/**
+		 * Rows per page of the current query, 0 if it reads the rest of the range
+		 */
+		private int limit;
+		/**
+		 * Rows read from the current page, when reading in pages
+		 */
+		private int pageRows;
+		/**
+		 * The result set is on a row not yet returned
+		 */
+		private boolean ahead;
+		/**
+		 * The result set is exhausted and closed
+		 */
+		private boolean done;
 		
 		/**
-		 * Default Constructor
+		 * Constructor
+		 * @param from the first id of the range, null to start at the first record
+		 * @param to the id after the range, null to end at the last record
 		 * @throws SQLException failed to read records
 		 */
-		protected JDBCRecordIterator() throws SQLException {
-			this.rs = JDBCRecordHandler.this.db.createStatement().executeQuery("select " + JDBCRecordHandler.recordIdField + " from " + JDBCRecordHandler.this.table + " order by " + JDBCRecordHandler.recordIdField);
+		protected JDBCRecordIterator(String from, String to) throws SQLException {
+			this.from = from;
+			this.to = to;
+			this.lastID = null;
+			this.ahead = false;
+			this.done = false;
+			query();
+		}
+		
+		/**
+		 * Run the query for the records after the last one returned: the rest of the range, or the next page of it
+		 * @throws SQLException failed to read records
+		 */
+		private void query() throws SQLException {
+			String where = "";
+			if(this.lastID != null) {
+				where += ((where.length() == 0) ? " where " : " and ") + "r." + JDBCRecordHandler.recordIdField + " > ?";
+			} else if(this.from != null) {
+				where += ((where.length() == 0) ? " where " : " and ") + "r." + JDBCRecordHandler.recordIdField + " >= ?";
+			}
+			if(this.to != null) {
+				where += ((where.length() == 0) ? " where " : " and ") + "r." + JDBCRecordHandler.recordIdField + " < ?";
+			}
+			String sql = "select r." + JDBCRecordHandler.recordIdField + ", r." + JDBCRecordHandler.this.dataField + " from " + JDBCRecordHandler.this.table + " r" + where + " order by r." + JDBCRecordHandler.recordIdField;
+			if(JDBCRecordHandler.this.holdCursors) {
+				// records written while iterating commit, which must not close this cursor
+				this.stmt = JDBCRecordHandler.this.db.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, ResultSet.HOLD_CURSORS_OVER_COMMIT);
+			} else {
+				this.stmt = JDBCRecordHandler.this.db.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			}
+			this.limit = JDBCRecordHandler.this.pageSize;
+			if(this.limit > 0) {
+				this.stmt.setMaxRows(this.limit);
+			} else {
+				this.stmt.setFetchSize(JDBCRecordHandler.this.fetchSize);
+			}
+			int param = 1;
+			if(this.lastID != null) {
+				this.stmt.setString(param++, this.lastID);
+			} else if(this.from != null) {
+				this.stmt.setString(param++, this.from);
+			}
+			if(this.to != null) {
+				this.stmt.setString(param, this.to);
+			}
+			this.rs = this.stmt.executeQuery();
+			this.pageRows = 0;
 		}
 		
 		@Override
 		public boolean hasNext() {
+			synchronized(JDBCRecordHandler.this) {
+				while(!this.ahead && !this.done) {
+					try {
+						this.ahead = this.rs.next();
+						if(this.ahead) {
+							this.pageRows++;
+						} else if((this.limit > 0) && (this.pageRows == this.limit)) {
+							// a full page, there may be more after it
+							this.rs.close();
+							this.stmt.close();
+							query();
+						} else {
+							close();
+						}
+					} catch(SQLException e) {
+						log.error("Unable to retrieve next record");
+						log.debug("Stacktrace:",e);
+						close();
+					}
+				}
+				return this.ahead;
+			}
+		}
+		
+		@Override
+		public Record next() {
+			synchronized(JDBCRecordHandler.this) {
+				if(!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				this.ahead = false;
+				try {
+					this.lastID = this.rs.getString(1);
+					return new Record(this.lastID, this.rs.getBytes(2), JDBCRecordHandler.this);
+				} catch(SQLException e) {
+					log.debug(e.getMessage(), e);
+					throw new NoSuchElementException(e.getMessage());
+				}
+			}
+		}
+		
+		/**
+		 * Close the result set and statement
+		 */
+		private void close() {
+			this.done = true;
 			try {
-				return this.rs.next();
+				this.rs.close();
+				this.stmt.close();
 			} catch(SQLException e) {
-				log.error("Unable to retrieve next record");
-				log.debug("Stacktrace:",e);
-				return false;
+				log.debug("Unable to close record result set", e);
 			}
 		}
 		
 		@Override
-		public Record next() {
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+	
+	/**
+	 * Iterator over a set of records of JDBCRecordHandler, reading the data of a page of ids per query
+	 * @author VIVO Harvester Team
+	 */
+	private class JDBCPendingIterator implements Iterator<Record> {
+		/**
+		 * The ids whose data is not yet read
+		 */
+		private Iterator<String> ids;
+		/**
+		 * The records of the current page not yet returned
+		 */
+		private Iterator<Record> page;
+		
+		/**
+		 * Constructor
+		 * @param ids the ids of the records
+		 */
+		protected JDBCPendingIterator(Iterable<String> ids) {
+			this.ids = ids.iterator();
+			this.page = Collections.<Record>emptyList().iterator();
+		}
+		
+		@Override
+		public boolean hasNext() {
+			synchronized(JDBCRecordHandler.this) {
+				// records deleted since their ids were found are skipped
+				while(!this.page.hasNext() && this.ids.hasNext()) {
+					try {
+						this.page = readPage();
+					} catch(IOException e) {
+						log.error("Unable to retrieve next record");
+						log.debug("Stacktrace:",e);
+						this.ids = Collections.<String>emptyList().iterator();
+					}
+				}
+				return this.page.hasNext();
+			}
+		}
+		
+		/**
+		 * Read the records of the next page of ids
+		 * @return the records
+		 * @throws IOException error reading records
+		 */
+		private Iterator<Record> readPage() throws IOException {
+			// reads of buffered records write the batch first
+			flush();
+			int size = (JDBCRecordHandler.this.pageSize > 0) ? JDBCRecordHandler.this.pageSize : ((JDBCRecordHandler.this.fetchSize > 0) ? JDBCRecordHandler.this.fetchSize : 1000);
+			List<String> pageIDs = new ArrayList<String>(size);
+			StringBuilder sql = new StringBuilder("select " + JDBCRecordHandler.recordIdField + ", " + JDBCRecordHandler.this.dataField + " from " + JDBCRecordHandler.this.table + " where " + JDBCRecordHandler.recordIdField + " in (");
+			while(this.ids.hasNext() && (pageIDs.size() < size)) {
+				sql.append(pageIDs.isEmpty() ? "?" : ", ?");
+				pageIDs.add(this.ids.next());
+			}
+			sql.append(") order by ").append(JDBCRecordHandler.recordIdField);
+			List<Record> records = new ArrayList<Record>(pageIDs.size());
 			try {
-				return getRecord(this.rs.getString(JDBCRecordHandler.recordIdField));
+				PreparedStatement ps = JDBCRecordHandler.this.db.prepareStatement(sql.toString());
+				try {
+					for(int x = 0; x < pageIDs.size(); x++) {
+						ps.setString(x + 1, pageIDs.get(x));
+					}
+					ResultSet rs = ps.executeQuery();
+					while(rs.next()) {
+						records.add(new Record(rs.getString(1), rs.getBytes(2), JDBCRecordHandler.this));
+					}
+					rs.close();
+				} finally {
+					ps.close();
+				}
 			} catch(SQLException e) {
-				log.debug(e.getMessage(), e);
-				throw new NoSuchElementException(e.getMessage());
-			} catch(IOException e) {
-				log.debug(e.getMessage(), e);
-				throw new NoSuchElementException(e.getMessage());
+				throw new IOException("Unable to retrieve records", e);
+			}
+			return records.iterator();
+		}
+		
+		@Override
+		public Record next() {
+			synchronized(JDBCRecordHandler.this) {
+				if(!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return this.page.next();
 			}
 		}
 		
@@ -371,32 +877,58 @@ public class JDBCRecordHandler extends RecordHandler {
 		String dbPass = getParam(params, "dbPass", true);
 		String dbTable = getParam(params, "dbTable", false);
 		String dataFieldName = getParam(params, "dataFieldName", false);
+		String batch = getParam(params, "batchSize", false);
+		String fetch = getParam(params, "fetchSize", false);
 		initAll(dbClass, dbUrl, dbUser, dbPass, dbTable, dataFieldName);
+		if(fetch != null) {
+			setFetchSize(Integer.parseInt(fetch));
+		}
+		if(batch != null) {
+			setBatchSize(Integer.parseInt(batch));
+		}
 	}
 	
 	@Override
-	protected void addMetaData(Record rec, RecordMetaData rmd) throws IOException {
+	protected synchronized void addMetaData(Record rec, RecordMetaData rmd) throws IOException {
 		try {
-			this.cursor.executeUpdate("insert into " + this.table + "_rmd (" + rmdRelField + ", " + rmdCalField + ", " + rmdOperationField + ", " + rmdOperatorField + ", " + rmdMD5Field + ") values ('" + rec.getID() + "', '" + rmd.getDate().getTimeInMillis() + "', '" + rmd.getOperation() + "', '" + rmd.getOperator().getName() + "', '" + rmd.getMD5() + "')");
+			this.metaInserter.setString(1, rec.getID());
+			this.metaInserter.setString(2, rmd.getDate().getTimeInMillis() + "");
+			this.metaInserter.setString(3, rmd.getOperation().toString());
+			this.metaInserter.setString(4, rmd.getOperator().getName());
+			this.metaInserter.setString(5, rmd.getMD5());
+			if(this.batchSize > 0) {
+				this.metaInserter.addBatch();
+			} else {
+				this.metaInserter.executeUpdate();
+			}
 		} catch(SQLException e) {
 			throw new IOException(e);
 		}
+		if(this.batchSize > 0) {
+			batched(rec.getID());
+		}
 	}
 	
 	@Override
-	protected void delMetaData(String recID) throws IOException {
+	protected synchronized void delMetaData(String recID) throws IOException {
+		forgetDigest(recID);
+		flush(recID);
 		try {
-			this.cursor.executeUpdate("delete from " + this.table + "_rmd where " + rmdRelField + "='" + recID + "'");
+			this.metaDeleter.setString(1, recID);
+			this.metaDeleter.executeUpdate();
+			commitUnbatched();
 		} catch(SQLException e) {
 			throw new IOException(e);
 		}
 	}
 	
 	@Override
-	public SortedSet<RecordMetaData> getRecordMetaData(String recID) throws IOException {
+	public synchronized SortedSet<RecordMetaData> getRecordMetaData(String recID) throws IOException {
+		flush(recID);
 		SortedSet<RecordMetaData> retVal = new TreeSet<RecordMetaData>();
 		try {
-			ResultSet rs = this.cursor.executeQuery("select " + rmdCalField + ", " + rmdOperationField + ", " + rmdOperatorField + ", " + rmdMD5Field + " from " + this.table + "_rmd where " + rmdRelField + "='" + recID + "' order by " + rmdCalField + " desc");
+			this.metaReader.setString(1, recID);
+			ResultSet rs = this.metaReader.executeQuery();
 			while(rs.next()) {
 				Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"), Locale.US);
 				cal.setTimeInMillis(Long.parseLong(rs.getString(rmdCalField)));
@@ -405,6 +937,7 @@ public class JDBCRecordHandler extends RecordHandler {
 				String md5 = rs.getString(rmdMD5Field);
 				retVal.add(new RecordMetaData(cal, operator, operation, md5));
 			}
+			rs.close();
 		} catch(SQLException e) {
 			throw new IOException(e);
 		} catch(ClassNotFoundException e) {
@@ -417,8 +950,59 @@ public class JDBCRecordHandler extends RecordHandler {
 	}
 	
 	@Override
-	public void close() throws IOException {
+	public synchronized Iterable<Record> pendingRecords(Class<?> operator) throws IOException {
+		// records with no write after their last processing by operator: last write and last processing per record,
+		// comparing the timestamps as numbers rather than text
+		String lastcal = "max(cast(" + rmdCalField + " as " + this.timestampType + ")) as lastcal";
+		final String clauses = " r left join (select " + rmdRelField + ", " + lastcal + " from " + this.table + "_rmd where " + rmdOperationField + " = ? group by " + rmdRelField + ") w on w." + rmdRelField + " = r." + recordIdField +
+			" left join (select " + rmdRelField + ", " + lastcal + " from " + this.table + "_rmd where " + rmdOperationField + " = ? and " + rmdOperatorField + " = ? group by " + rmdRelField + ") p on p." + rmdRelField + " = r." + recordIdField +
+			" where w.lastcal is null or p.lastcal is null or p.lastcal < w.lastcal";
+		final String[] params = {RecordMetaDataType.written.toString(), RecordMetaDataType.processed.toString(), operator.getName()};
+		return new Iterable<Record>() {
+			@Override
+			public Iterator<Record> iterator() {
+				// the pending ids are found with one aggregation, then their data read a page of ids at a time
+				synchronized(JDBCRecordHandler.this) {
+					try {
+						return new JDBCPendingIterator(selectIDs(clauses, params));
+					} catch(IOException e) {
+						log.error("Unable to find pending records");
+						log.debug("Stacktrace:",e);
+						return null;
+					}
+				}
+			}
+		};
+	}
+	
+	@Override
+	protected synchronized void loadDigests(RecordDigestIndex index) throws IOException {
+		flush();
 		try {
+			// oldest first, so each record ends up with its last written md5
+			ResultSet rs = this.cursor.executeQuery("select " + rmdRelField + ", " + rmdMD5Field + " from " + this.table + "_rmd where " + rmdOperationField + "='" + RecordMetaDataType.written + "' order by " + rmdCalField);
+			while(rs.next()) {
+				index.putMD5(rs.getString(1), rs.getString(2));
+			}
+			rs.close();
+		} catch(SQLException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		flush();
+		closeDigestIndex();
+		try {
+			this.recordInserter.close();
+			this.recordUpdater.close();
+			this.recordWriter.close();
+			this.metaInserter.close();
+			this.recordDeleter.close();
+			this.metaDeleter.close();
+			this.recordReader.close();
+			this.metaReader.close();
 			this.cursor.close();
 			this.db.close();
 		} catch(SQLException e) {
@@ -427,16 +1011,56 @@ public class JDBCRecordHandler extends RecordHandler {
 	}
 	
 	@Override
-	public Set<String> find(String idText) throws IOException {
-		Set<String> retVal = new HashSet<String>();
-		String query = "SELECT " + recordIdField + " FROM " + this.table + " WHERE " + recordIdField + " LIKE '%" + idText + "%' ORDER BY " + recordIdField;
+	public synchronized Set<String> find(String idText) throws IOException {
+		return selectIDs(" where " + recordIdField + " like ? escape '!'", "%" + escapeLike(idText) + "%");
+	}
+	
+	@Override
+	public synchronized SortedSet<String> getRecordIDs() throws IOException {
+		return selectIDs("");
+	}
+	
+	@Override
+	public synchronized SortedSet<String> findByPrefix(String prefix) throws IOException {
+		return selectIDs(" where " + recordIdField + " like ? escape '!'", escapeLike(prefix) + "%");
+	}
+	
+	/**
+	 * Escape the wildcards of a like pattern
+	 * @param text the text to match literally
+	 * @return the escaped text, using '!' as the escape character
+	 */
+	private static String escapeLike(String text) {
+		return text.replace("!", "!!").replace("%", "!%").replace("_", "!_");
+	}
+	
+	/**
+	 * Select record ids without reading their data
+	 * @param where the joins and where clause following the record table
+	 * @param params the values of the parameters of the clauses, in order
+	 * @return the ids, sorted
+	 * @throws IOException error reading ids
+	 */
+	private SortedSet<String> selectIDs(String where, String... params) throws IOException {
+		flush();
+		SortedSet<String> retVal = new TreeSet<String>();
 		try {
-			ResultSet rs = this.cursor.executeQuery(query);
-			while(rs.next()) {
-				retVal.add(rs.getString(1));
+			PreparedStatement ps = this.db.prepareStatement("select " + recordIdField + " from " + this.table + where, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			try {
+				ps.setFetchSize(this.fetchSize);
+				for(int x = 0; x < params.length; x++) {
+					ps.setString(x + 1, params[x]);
+				}
+				ResultSet rs = ps.executeQuery();
+				while(rs.next()) {
+					retVal.add(rs.getString(1));
+				}
+				rs.close();
+			} finally {
+				ps.close();
 			}
 		} catch(SQLException e) {
-			throw new IOException(e);
+			throw new IOException("Unable to read record ids", e);
 		}
 		return retVal;
 	}
@@ -0,0 +1,664 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of jdbc connections, shared by all database backed JenaConnects in the process that use the same connection url
+ * and username. Connections handed out are proxies: closing one returns the physical connection to the pool, and single
+ * argument prepareStatement calls are answered from a per connection statement cache. A closed proxy throws on use.
+ * Idle connections are validated before they are handed out again, and closed when the process exits. The pool is
+ * unbounded unless a maximum size is set (the dbPoolSize model parameter).
+ * @author VIVO Harvester Team
+ */
+public class JdbcConnectionPool {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(JdbcConnectionPool.class);
+	/**
+	 * Default maximum number of physical connections per pool, 0 for no limit (each open JenaConnect holds a connection,
+	 * so a limit makes opening more of them than that wait)
+	 */
+	public static final int DEFAULT_MAX_SIZE = 0;
+	/**
+	 * Number of prepared statements cached per physical connection
+	 */
+	private static final int STATEMENT_CACHE_SIZE = 64;
+	/**
+	 * Seconds to wait for a connection to answer validation
+	 */
+	private static final int VALIDATION_TIMEOUT = 5;
+	/**
+	 * Milliseconds to wait for a connection when the pool is exhausted
+	 */
+	private static final long BORROW_TIMEOUT = 60000;
+	/**
+	 * Pools by url and username
+	 */
+	private static final Map<String, JdbcConnectionPool> pools = new HashMap<String, JdbcConnectionPool>();
+	/**
+	 * JDBC Connection Line
+	 */
+	private final String dbUrl;
+	/**
+	 * JDBC username
+	 */
+	private final String dbUser;
+	/**
+	 * JDBC password
+	 */
+	private final String dbPass;
+	/**
+	 * Idle physical connections, most recently returned first
+	 */
+	private final LinkedList<PooledConnection> idle;
+	/**
+	 * Maximum number of physical connections, 0 for no limit
+	 */
+	private int maxSize;
+	/**
+	 * Number of physical connections currently open (idle or borrowed)
+	 */
+	private int open;
+	/**
+	 * Number of connections handed out
+	 */
+	private long borrows;
+	/**
+	 * Number of physical connections opened
+	 */
+	private long creates;
+	/**
+	 * Number of idle connections discarded because they failed validation
+	 */
+	private long validationFailures;
+	/**
+	 * Number of borrows that had to wait for a connection to be returned
+	 */
+	private long waits;
+	/**
+	 * Number of prepared statements answered from the statement caches
+	 */
+	private long statementHits;
+	/**
+	 * Number of prepared statements that had to be prepared
+	 */
+	private long statementMisses;
+	
+	/**
+	 * Constructor
+	 * @param dbUrl the JDBC Connection Line
+	 * @param dbUser the JDBC username
+	 * @param dbPass the JDBC password
+	 */
+	private JdbcConnectionPool(String dbUrl, String dbUser, String dbPass) {
+		this.dbUrl = dbUrl;
+		this.dbUser = dbUser;
+		this.dbPass = dbPass;
+		this.idle = new LinkedList<PooledConnection>();
+		this.maxSize = DEFAULT_MAX_SIZE;
+		this.open = 0;
+	}
+	
+	/**
+	 * Get the pool for a url and username, creating it if needed
+	 * @param dbClass the JDBC driver class
+	 * @param dbUrl the JDBC Connection Line
+	 * @param dbUser the JDBC username
+	 * @param dbPass the JDBC password
+	 * @return the pool
+	 * @throws ClassNotFoundException the driver class was not found
+	 */
+	public static JdbcConnectionPool getPool(String dbClass, String dbUrl, String dbUser, String dbPass) throws ClassNotFoundException {
+		if(dbClass != null) {
+			Class.forName(dbClass);
+		}
+		String key = dbUrl + "\u0000" + dbUser;
+		synchronized(pools) {
+			JdbcConnectionPool pool = pools.get(key);
+			if(pool == null) {
+				if(pools.isEmpty()) {
+					Runtime.getRuntime().addShutdownHook(new Thread("JdbcConnectionPool shutdown") {
+						@Override
+						public void run() {
+							for(JdbcConnectionPool p : getPools()) {
+								p.closeIdle();
+							}
+						}
+					});
+				}
+				pool = new JdbcConnectionPool(dbUrl, dbUser, dbPass);
+				pools.put(key, pool);
+			}
+			return pool;
+		}
+	}
+	
+	/**
+	 * Get all pools created in this process
+	 * @return the pools
+	 */
+	public static List<JdbcConnectionPool> getPools() {
+		synchronized(pools) {
+			return new ArrayList<JdbcConnectionPool>(pools.values());
+		}
+	}
+	
+	/**
+	 * Borrow a connection. Closing the returned connection gives it back to the pool.
+	 * @return the connection
+	 * @throws SQLException error connecting, or no connection became available in time
+	 */
+	public Connection getConnection() throws SQLException {
+		PooledConnection pc = null;
+		synchronized(this) {
+			long deadline = System.currentTimeMillis() + BORROW_TIMEOUT;
+			boolean waited = false;
+			while(pc == null) {
+				if(!this.idle.isEmpty()) {
+					pc = this.idle.removeFirst();
+					if(!pc.isValid()) {
+						this.validationFailures++;
+						this.open--;
+						pc.closePhysical();
+						pc = null;
+					}
+				} else if((this.maxSize == 0) || (this.open < this.maxSize)) {
+					// reserve the slot, connect outside the lock
+					this.open++;
+					break;
+				} else {
+					long remaining = deadline - System.currentTimeMillis();
+					if(remaining <= 0) {
+						throw new SQLException("No connection to " + this.dbUrl + " available after " + BORROW_TIMEOUT + "ms (pool size " + this.maxSize + ")");
+					}
+					if(!waited) {
+						this.waits++;
+						waited = true;
+					}
+					try {
+						wait(remaining);
+					} catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted waiting for a connection to " + this.dbUrl);
+					}
+				}
+			}
+			this.borrows++;
+		}
+		if(pc == null) {
+			try {
+				pc = new PooledConnection(DriverManager.getConnection(this.dbUrl, this.dbUser, this.dbPass));
+			} catch(SQLException e) {
+				synchronized(this) {
+					this.open--;
+					notifyAll();
+				}
+				throw e;
+			}
+			synchronized(this) {
+				this.creates++;
+			}
+			log.debug("Opened connection " + this.creates + " to " + this.dbUrl);
+		}
+		return pc.lend();
+	}
+	
+	/**
+	 * Take back a physical connection, or discard it if it is no longer usable
+	 * @param pc the connection
+	 */
+	protected void release(PooledConnection pc) {
+		boolean reusable = pc.reset();
+		synchronized(this) {
+			if(reusable && ((this.maxSize == 0) || (this.open <= this.maxSize))) {
+				this.idle.addFirst(pc);
+			} else {
+				this.open--;
+				pc.closePhysical();
+			}
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Close all idle connections
+	 */
+	public synchronized void closeIdle() {
+		for(PooledConnection pc : this.idle) {
+			pc.closePhysical();
+			this.open--;
+		}
+		this.idle.clear();
+	}
+	
+	/**
+	 * Set the maximum number of physical connections
+	 * @param maxSize the maximum, 0 for no limit
+	 */
+	public synchronized void setMaxSize(int maxSize) {
+		if(maxSize < 0) {
+			throw new IllegalArgumentException("Pool size must not be negative");
+		}
+		this.maxSize = maxSize;
+		notifyAll();
+	}
+	
+	/**
+	 * Get the maximum number of physical connections
+	 * @return the maximum, 0 for no limit
+	 */
+	public synchronized int getMaxSize() {
+		return this.maxSize;
+	}
+	
+	/**
+	 * Get the JDBC Connection Line
+	 * @return the url
+	 */
+	public String getUrl() {
+		return this.dbUrl;
+	}
+	
+	/**
+	 * Get the number of connections currently borrowed
+	 * @return the active count
+	 */
+	public synchronized int getActiveCount() {
+		return this.open - this.idle.size();
+	}
+	
+	/**
+	 * Get the number of idle connections
+	 * @return the idle count
+	 */
+	public synchronized int getIdleCount() {
+		return this.idle.size();
+	}
+	
+	/**
+	 * Get the number of connections handed out
+	 * @return the borrow count
+	 */
+	public synchronized long getBorrowCount() {
+		return this.borrows;
+	}
+	
+	/**
+	 * Get the number of physical connections opened
+	 * @return the create count
+	 */
+	public synchronized long getCreateCount() {
+		return this.creates;
+	}
+	
+	/**
+	 * Get the number of idle connections discarded because they failed validation
+	 * @return the validation failure count
+	 */
+	public synchronized long getValidationFailureCount() {
+		return this.validationFailures;
+	}
+	
+	/**
+	 * Get the number of borrows that had to wait for a connection to be returned
+	 * @return the wait count
+	 */
+	public synchronized long getWaitCount() {
+		return this.waits;
+	}
+	
+	/**
+	 * Get the number of prepared statements answered from the statement caches
+	 * @return the hit count
+	 */
+	public synchronized long getStatementCacheHits() {
+		return this.statementHits;
+	}
+	
+	/**
+	 * Get the number of prepared statements that had to be prepared
+	 * @return the miss count
+	 */
+	public synchronized long getStatementCacheMisses() {
+		return this.statementMisses;
+	}
+	
+	/**
+	 * Count a statement cache lookup
+	 * @param hit true if answered from the cache
+	 */
+	protected synchronized void countStatement(boolean hit) {
+		if(hit) {
+			this.statementHits++;
+		} else {
+			this.statementMisses++;
+		}
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return this.dbUrl + " [active: " + getActiveCount() + ", idle: " + getIdleCount() + ", max: " + this.maxSize + ", borrows: " + this.borrows + ", creates: " + this.creates + ", validationFailures: " + this.validationFailures + ", waits: " + this.waits + ", statementHits: " + this.statementHits + ", statementMisses: " + this.statementMisses + "]";
+	}
+	
+	/**
+	 * A physical connection and its statement cache
+	 */
+	private class PooledConnection {
+		/**
+		 * The physical connection
+		 */
+		private final Connection physical;
+		/**
+		 * Cached prepared statements by sql, in access order
+		 */
+		private final LinkedHashMap<String, CachedStatement> statements;
+		/**
+		 * The proxy currently lent out, null while idle
+		 */
+		private Lease lease;
+		
+		/**
+		 * Constructor
+		 * @param physical the physical connection
+		 */
+		protected PooledConnection(Connection physical) {
+			this.physical = physical;
+			this.statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true);
+			this.lease = null;
+		}
+		
+		/**
+		 * Hand out a new proxy for this connection
+		 * @return the proxy
+		 */
+		protected Connection lend() {
+			this.lease = new Lease(this);
+			return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, this.lease);
+		}
+		
+		/**
+		 * Check that an idle connection still works
+		 * @return true if usable
+		 */
+		protected boolean isValid() {
+			try {
+				return this.physical.isValid(VALIDATION_TIMEOUT);
+			} catch(AbstractMethodError e) {
+				// pre JDBC 4 driver
+				try {
+					return !this.physical.isClosed();
+				} catch(SQLException e2) {
+					return false;
+				}
+			} catch(SQLException e) {
+				return false;
+			}
+		}
+		
+		/**
+		 * Put the connection back in its default state after use
+		 * @return true if the connection can be reused
+		 */
+		protected boolean reset() {
+			this.lease = null;
+			try {
+				if(this.physical.isClosed()) {
+					return false;
+				}
+				if(!this.physical.getAutoCommit()) {
+					this.physical.rollback();
+					this.physical.setAutoCommit(true);
+				}
+				// statements the borrower did not close are closed along with the connection
+				for(CachedStatement cs : this.statements.values()) {
+					if(cs.lease != null) {
+						cs.lease.release();
+					}
+				}
+				return true;
+			} catch(SQLException e) {
+				log.debug("Discarding connection to " + JdbcConnectionPool.this.dbUrl + ": " + e.getMessage());
+				return false;
+			}
+		}
+		
+		/**
+		 * Prepare a statement, reusing a cached one if it is not already in use
+		 * @param sql the sql
+		 * @return the statement
+		 * @throws SQLException error preparing statement
+		 */
+		protected PreparedStatement prepare(String sql) throws SQLException {
+			CachedStatement cs = this.statements.get(sql);
+			if((cs != null) && (cs.lease == null)) {
+				countStatement(true);
+			} else {
+				countStatement(false);
+				PreparedStatement ps = this.physical.prepareStatement(sql);
+				if(cs != null) {
+					// same sql prepared twice at once: the second one is not cached
+					return ps;
+				}
+				cs = new CachedStatement(ps);
+				this.statements.put(sql, cs);
+				evictStatements();
+			}
+			cs.lease = new StatementLease(cs);
+			return (PreparedStatement)Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[]{PreparedStatement.class}, cs.lease);
+		}
+		
+		/**
+		 * Close the least recently used idle statements beyond the cache size
+		 */
+		private void evictStatements() {
+			Iterator<CachedStatement> it = this.statements.values().iterator();
+			while((this.statements.size() > STATEMENT_CACHE_SIZE) && it.hasNext()) {
+				CachedStatement cs = it.next();
+				if(cs.lease == null) {
+					cs.closePhysical();
+					it.remove();
+				}
+			}
+		}
+		
+		/**
+		 * Close the physical connection and its statements
+		 */
+		protected void closePhysical() {
+			for(CachedStatement cs : this.statements.values()) {
+				cs.closePhysical();
+			}
+			this.statements.clear();
+			try {
+				this.physical.close();
+			} catch(SQLException e) {
+				// ignore
+			}
+		}
+	}
+	
+	/**
+	 * Proxy handler for a lent connection: close returns the connection to the pool and prepareStatement(sql) uses the
+	 * statement cache
+	 */
+	private class Lease implements InvocationHandler {
+		/**
+		 * The pooled connection, null once closed
+		 */
+		private PooledConnection pc;
+		
+		/**
+		 * Constructor
+		 * @param pc the pooled connection
+		 */
+		protected Lease(PooledConnection pc) {
+			this.pc = pc;
+		}
+		
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			synchronized(this) {
+				if(name.equals("close")) {
+					if(this.pc != null) {
+						PooledConnection returned = this.pc;
+						this.pc = null;
+						release(returned);
+					}
+					return null;
+				} else if(name.equals("isClosed")) {
+					return Boolean.valueOf(this.pc == null);
+				} else if(name.equals("equals")) {
+					return Boolean.valueOf(proxy == args[0]);
+				} else if(name.equals("hashCode")) {
+					return Integer.valueOf(System.identityHashCode(proxy));
+				} else if(name.equals("toString")) {
+					return "Pooled connection to " + JdbcConnectionPool.this.dbUrl;
+				}
+				if(this.pc == null) {
+					throw new SQLException("Connection is closed");
+				}
+				if(name.equals("prepareStatement") && (args != null) && (args.length == 1)) {
+					return this.pc.prepare((String)args[0]);
+				}
+				try {
+					return method.invoke(this.pc.physical, args);
+				} catch(InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A cached prepared statement
+	 */
+	private static class CachedStatement {
+		/**
+		 * The physical statement
+		 */
+		protected final PreparedStatement physical;
+		/**
+		 * The proxy handler of the borrower currently using the statement, null while idle
+		 */
+		protected StatementLease lease;
+		
+		/**
+		 * Constructor
+		 * @param physical the physical statement
+		 */
+		protected CachedStatement(PreparedStatement physical) {
+			this.physical = physical;
+			this.lease = null;
+		}
+		
+		/**
+		 * Close the physical statement
+		 */
+		protected void closePhysical() {
+			try {
+				this.physical.close();
+			} catch(SQLException e) {
+				// ignore
+			}
+		}
+	}
+	
+	/**
+	 * Proxy handler for a lent cached statement: close closes the result sets it opened and clears the statement for
+	 * reuse instead of closing it. Once closed, the proxy throws on use like a closed statement.
+	 */
+	private static class StatementLease implements InvocationHandler {
+		/**
+		 * The cached statement, null once closed
+		 */
+		private CachedStatement cs;
+		/**
+		 * Result sets opened through this proxy
+		 */
+		private final List<ResultSet> results;
+		
+		/**
+		 * Constructor
+		 * @param cs the cached statement
+		 */
+		protected StatementLease(CachedStatement cs) {
+			this.cs = cs;
+			this.results = new ArrayList<ResultSet>(1);
+		}
+		
+		@Override
+		public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if(name.equals("close")) {
+				release();
+				return null;
+			} else if(name.equals("isClosed")) {
+				return Boolean.valueOf(this.cs == null);
+			} else if(name.equals("equals")) {
+				return Boolean.valueOf(proxy == args[0]);
+			} else if(name.equals("hashCode")) {
+				return Integer.valueOf(System.identityHashCode(proxy));
+			}
+			if(this.cs == null) {
+				throw new SQLException("Statement is closed");
+			}
+			Object value;
+			try {
+				value = method.invoke(this.cs.physical, args);
+			} catch(InvocationTargetException e) {
+				throw e.getCause();
+			}
+			if(value instanceof ResultSet) {
+				this.results.add((ResultSet)value);
+			}
+			return value;
+		}
+		
+		/**
+		 * Close the result sets opened through this proxy and give the statement back to the cache
+		 * @throws SQLException error clearing the statement
+		 */
+		protected synchronized void release() throws SQLException {
+			if(this.cs == null) {
+				return;
+			}
+			CachedStatement released = this.cs;
+			this.cs = null;
+			for(ResultSet rs : this.results) {
+				try {
+					rs.close();
+				} catch(SQLException e) {
+					// ignore
+				}
+			}
+			this.results.clear();
+			released.lease = null;
+			released.physical.clearParameters();
+			released.physical.clearBatch();
+		}
+	}
+}
@@ -13,7 +13,11 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.nio.charset.Charset;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.GZIPOutputStream;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -28,13 +32,17 @@ import org.vivoweb.harvester.util.args.UsageException;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
+import com.hp.hpl.jena.graph.Graph;
 import com.hp.hpl.jena.graph.GraphEvents;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.query.Dataset;
 import com.hp.hpl.jena.query.Query;
 import com.hp.hpl.jena.query.QueryExecution;
 import com.hp.hpl.jena.query.QueryExecutionFactory;
 import com.hp.hpl.jena.query.QueryFactory;
 import com.hp.hpl.jena.query.QueryParseException;
+import com.hp.hpl.jena.query.QuerySolution;
 import com.hp.hpl.jena.query.ResultSet;
 import com.hp.hpl.jena.query.ResultSetFactory;
 import com.hp.hpl.jena.query.ResultSetFormatter;
@@ -47,7 +55,8 @@ import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.shared.Lock;
 import com.hp.hpl.jena.sparql.resultset.ResultSetFormat;
 import com.hp.hpl.jena.update.UpdateAction;
-import com.hp.hpl.jena.update.UpdateFactory;
+import com.hp.hpl.jena.update.UpdateRequest;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
 
 /**
  * Connection Helper for Jena Models
@@ -58,6 +67,14 @@ public abstract class JenaConnect {
 	 * SLF4J Logger
 	 */
 	private static Logger log = LoggerFactory.getLogger(JenaConnect.class);
+	/**
+	 * Metrics of JenaConnect operations
+	 */
+	private static final JenaConnectMetrics metrics = JenaConnectMetrics.getInstance();
+	/**
+	 * Runs query timeouts, null until first needed
+	 */
+	private static Timer queryTimer;
 	/**
 	 * Model we are connecting to
 	 */
@@ -66,6 +83,31 @@ public abstract class JenaConnect {
 	 * The modelname
 	 */
 	private String modelName;
+	/**
+	 * Counts modifications made to the model, used to tell whether cached results are current
+	 */
+	private final GraphModificationCounter modCount = new GraphModificationCounter();
+	/**
+	 * Cache of select and ask results, null when disabled
+	 */
+	private ResultCache resultCache;
+	/**
+	 * Statistics of the model, null until first requested
+	 */
+	private GraphStatistics statistics;
+	/**
+	 * Keeps the statistics up to date
+	 */
+	private StatisticsTracker statisticsTracker;
+	/**
+	 * Critical sections entered by the current thread through beginRead/beginWrite, innermost last (true = write)
+	 */
+	private final ThreadLocal<LinkedList<Boolean>> criticalSections = new ThreadLocal<LinkedList<Boolean>>() {
+		@Override
+		protected LinkedList<Boolean> initialValue() {
+			return new LinkedList<Boolean>();
+		}
+	};
 	
 	/**
 	 * Factory (connects to the same jena triple store as another jena connect, but uses a different named model)
@@ -133,24 +175,47 @@ public abstract class JenaConnect {
 			return null;
 		}
 		if(!params.containsKey("type")) {
-			throw new IllegalArgumentException("Must specify 'type' parameter {'rdb','sdb','tdb','file','mem'}");
+			throw new IllegalArgumentException("Must specify 'type' parameter {'rdb','sdb','tdb','file','mem','mmap'}");
 		}
 		String type = params.get("type");
+		if(params.containsKey("dbPoolSize")) {
+			try {
+				JdbcConnectionPool.getPool(params.get("dbClass"), params.get("dbUrl"), params.get("dbUser"), params.get("dbPass")).setMaxSize(Integer.parseInt(params.get("dbPoolSize")));
+			} catch(ClassNotFoundException e) {
+				throw new IOException(e);
+			}
+		}
 		JenaConnect jc;
 		if(type.equalsIgnoreCase("mem")) {
-			jc = new MemJenaConnect(params.get("modelName"));
+			boolean internNodes = params.containsKey("internNodes") && params.get("internNodes").equalsIgnoreCase("true");
+			jc = new MemJenaConnect(params.get("modelName"), internNodes);
 		} else if(type.equalsIgnoreCase("rdb")) {
 			jc = new RDBJenaConnect(params.get("dbUrl"), params.get("dbUser"), params.get("dbPass"), params.get("dbType"), params.get("dbClass"), params.get("modelName"));
 		} else if(type.equalsIgnoreCase("sdb")) {
 			jc = new SDBJenaConnect(params.get("dbUrl"), params.get("dbUser"), params.get("dbPass"), params.get("dbType"), params.get("dbClass"), params.get("dbLayout"), params.get("modelName"));
+			if(params.containsKey("bulkChunkSize")) {
+				((SDBJenaConnect)jc).setBulkChunkSize(Integer.parseInt(params.get("bulkChunkSize")));
+			}
 		} else if(type.equalsIgnoreCase("tdb")) {
 			jc = new TDBJenaConnect(params.get("dbDir"), params.get("modelName"));
 		} else if(type.equalsIgnoreCase("file")) {
-			jc = new FileJenaConnect(params.get("file"), params.get("rdfLang"));
+			boolean journal = params.containsKey("journal") && params.get("journal").equalsIgnoreCase("true");
+			double ratio = params.containsKey("journalRatio") ? Double.parseDouble(params.get("journalRatio")) : FileJenaConnect.DEFAULT_COMPACT_RATIO;
+			jc = new FileJenaConnect(params.get("file"), null, params.get("rdfLang"), journal, ratio);
+		} else if(type.equalsIgnoreCase("mmap")) {
+			jc = new MmapJenaConnect(params.get("file"), params.get("modelName"));
 		} else {
 			throw new IllegalArgumentException("unknown type: " + type);
 		}
-		if((params.containsKey("checkEmpty") && (params.get("checkEmpty").toLowerCase() == "true")) && jc.isEmpty()) {
+		if(params.containsKey("slowQueryThreshold")) {
+			metrics.setSlowQueryThreshold(Long.parseLong(params.get("slowQueryThreshold")));
+		}
+		if(params.containsKey("resultCacheSize")) {
+			int entries = Integer.parseInt(params.get("resultCacheSize"));
+			long rows = params.containsKey("resultCacheRows") ? Long.parseLong(params.get("resultCacheRows")) : 100000;
+			jc.enableResultCache(entries, rows);
+		}
+		if((params.containsKey("checkEmpty") && params.get("checkEmpty").equalsIgnoreCase("true")) && jc.isEmpty()) {
 			StringBuilder emptyWarn = new StringBuilder("jena model empty! ");
 			emptyWarn.append(type);
 			emptyWarn.append(": ");
@@ -178,13 +243,33 @@ public abstract class JenaConnect {
 	 * @throws IOException error connecting
 	 */
 	public int size() throws IOException {
-		ResultSet resultSet = executeSelectQuery("SELECT (count(?s) as ?size) WHERE { ?s ?p ?o }");
-		// read first result
-		if(resultSet.hasNext()) {
-			//Display count
-			return resultSet.next().get("size").asLiteral().getInt();
+		// the graph answers from its own indexes/tables rather than binding every triple through a query
+		return (int)Math.min(getJenaModel().size(), Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Get the statistics of this model: triple count, distinct subject count and per-predicate triple counts. The first
+	 * call computes them with one pass over the model, after which they are kept up to date from changes made through
+	 * this JenaConnect's model (see GraphStatistics for how exact they are).
+	 * @return a snapshot of the statistics
+	 */
+	public synchronized GraphStatistics getStatistics() {
+		if(this.statistics == null) {
+			Graph g = getJenaModel().getGraph();
+			this.statistics = GraphStatistics.compute(g);
+			if(this.statisticsTracker == null) {
+				this.statisticsTracker = new StatisticsTracker();
+				g.getEventManager().register(this.statisticsTracker);
+			}
 		}
-		return 0;
+		return this.statistics.copy();
+	}
+	
+	/**
+	 * Discard the statistics so they are recomputed with a full pass on the next request
+	 */
+	public synchronized void resetStatistics() {
+		this.statistics = null;
 	}
 	
 	/**
@@ -203,7 +288,14 @@ public abstract class JenaConnect {
 	 *        "RDF/XML"
 	 */
 	public void loadRdfFromStream(InputStream in, String namespace, String language) {
-		getJenaModel().read(in, namespace, language);
+		long start = metrics.begin("loadRdfFromStream");
+		startBulkUpdate();
+		try {
+			getJenaModel().read(in, namespace, language);
+		} finally {
+			finishBulkUpdate();
+			metrics.end("loadRdfFromStream", start);
+		}
 	}
 	
 	/**
@@ -236,7 +328,14 @@ public abstract class JenaConnect {
 	 * @param jc the model to load in
 	 */
 	public void loadRdfFromJC(JenaConnect jc) {
-		getJenaModel().add(jc.getJenaModel());
+		long start = metrics.begin("loadRdfFromJC");
+		startBulkUpdate();
+		try {
+			getJenaModel().add(jc.getJenaModel());
+		} finally {
+			finishBulkUpdate();
+			metrics.end("loadRdfFromJC", start);
+		}
 	}
 	
 	/**
@@ -253,11 +352,22 @@ public abstract class JenaConnect {
 	 * @param out output stream to write rdf to
 	 * @param language the language the rdf is in. Predefined values for lang are "RDF/XML", "N-TRIPLE", "TURTLE" (or
 	 *        "TTL") and "N3". null represents the default language, "RDF/XML". "RDF/XML-ABBREV" is a synonym for
-	 *        "RDF/XML"
+	 *        "RDF/XML". "N-TRIPLE", "N-QUADS" and "TURTLE-STREAM" are streamed straight from the graph (see
+	 *        StreamingRdfWriter)
 	 * @throws IOException error writing to stream
 	 */
 	public void exportRdfToStream(OutputStream out, String language) throws IOException {
-		exportRdfToStream(this.jenaModel, out, language);
+		long start = metrics.begin("exportRdfToStream");
+		try {
+			if(StreamingRdfWriter.supports(language)) {
+				metrics.addTriplesRead(StreamingRdfWriter.write(getJenaModel().getGraph(), getModelName(), metrics.meter(out), language));
+			} else {
+				exportRdfToStream(this.jenaModel, metrics.meter(out), language);
+				metrics.addTriplesRead(this.jenaModel.size());
+			}
+		} finally {
+			metrics.end("exportRdfToStream", start);
+		}
 	}
 	
 	/**
@@ -305,7 +415,7 @@ public abstract class JenaConnect {
 	
 	/**
 	 * Export the RDF to a file
-	 * @param fileName the file to write to
+	 * @param fileName the file to write to, gzip compressed if it ends in ".gz"
 	 * @throws IOException error writing to file
 	 */
 	public void exportRdfToFile(String fileName) throws IOException {
@@ -314,7 +424,7 @@ public abstract class JenaConnect {
 	
 	/**
 	 * Export the RDF to a file
-	 * @param fileName the file to write to
+	 * @param fileName the file to write to, gzip compressed if it ends in ".gz"
 	 * @param language the language the rdf is in. Predefined values for lang are "RDF/XML", "N-TRIPLE", "TURTLE" (or
 	 *        "TTL") and "N3". null represents the default language, "RDF/XML". "RDF/XML-ABBREV" is a synonym for
 	 *        "RDF/XML"
@@ -326,7 +436,7 @@ public abstract class JenaConnect {
 	
 	/**
 	 * Export the RDF to a file
-	 * @param fileName the file to write to
+	 * @param fileName the file to write to, gzip compressed if it ends in ".gz"
 	 * @param append append to the file
 	 * @throws IOException error writing to file
 	 */
@@ -336,7 +446,7 @@ public abstract class JenaConnect {
 	
 	/**
 	 * Export the RDF to a file
-	 * @param fileName the file to write to
+	 * @param fileName the file to write to, gzip compressed if it ends in ".gz"
 	 * @param language the language the rdf is in. Predefined values for lang are "RDF/XML", "N-TRIPLE", "TURTLE" (or
 	 *        "TTL") and "N3". null represents the default language, "RDF/XML". "RDF/XML-ABBREV" is a synonym for
 	 *        "RDF/XML"
@@ -344,7 +454,19 @@ public abstract class JenaConnect {
 	 * @throws IOException error writing to file
 	 */
 	public void exportRdfToFile(String fileName, String language, boolean append) throws IOException {
-		exportRdfToStream(FileAide.getOutputStream(fileName, append), language);
+		OutputStream out = FileAide.getOutputStream(fileName, append);
+		try {
+			if(fileName.endsWith(".gz")) {
+				GZIPOutputStream gzip = new GZIPOutputStream(out, 65536);
+				out = gzip;
+				exportRdfToStream(gzip, language);
+				gzip.finish();
+			} else {
+				exportRdfToStream(out, language);
+			}
+		} finally {
+			out.close();
+		}
 	}
 	
 	/**
@@ -352,7 +474,14 @@ public abstract class JenaConnect {
 	 * @param inputJC the Model to read from
 	 */
 	public void removeRdfFromJC(JenaConnect inputJC) {
-		this.jenaModel.remove(inputJC.getJenaModel());
+		long start = metrics.begin("removeRdfFromJC");
+		startBulkUpdate();
+		try {
+			this.jenaModel.remove(inputJC.getJenaModel());
+		} finally {
+			finishBulkUpdate();
+			metrics.end("removeRdfFromJC", start);
+		}
 	}
 	
 	/**
@@ -364,7 +493,25 @@ public abstract class JenaConnect {
 	 *        "RDF/XML"
 	 */
 	public void removeRdfFromStream(InputStream in, String namespace, String language) {
-		removeRdfFromJC(new MemJenaConnect(in, namespace, language));
+		long start = metrics.begin("removeRdfFromStream");
+		TripleRemover remover = new TripleRemover(getJenaModel().getGraph());
+		startBulkUpdate();
+		try {
+			remover.removeParsed(in, namespace, language);
+			remover.flush();
+		} finally {
+			finishBulkUpdate();
+			metrics.end("removeRdfFromStream", start);
+		}
+		logRemoval(remover);
+	}
+	
+	/**
+	 * Report how many of the triples requested for removal were actually removed
+	 * @param remover the remover used
+	 */
+	private static void logRemoval(TripleRemover remover) {
+		log.info("Removed " + remover.getRemovedCount() + " triples, " + remover.getNotFoundCount() + " triples not found");
 	}
 	
 	/**
@@ -388,21 +535,44 @@ public abstract class JenaConnect {
 	 * @return number of records removed
 	 */
 	public int removeRdfFromRH(RecordHandler rh, String namespace, String language) {
+		return removeRdfFromRH(rh, namespace, language, 1);
+	}
+	
+	/**
+	 * Removes all records in a RecordHandler from the model
+	 * @param rh the RecordHandler to pull records from
+	 * @param namespace the base uri to use for imported uris
+	 * @param language the rdf syntax language (RDF/XML, N3, TTL, etc). null = RDF/XML
+	 * @param threads number of threads to parse records with (1 parses on the calling thread)
+	 * @return number of records removed
+	 */
+	public int removeRdfFromRH(RecordHandler rh, String namespace, String language, int threads) {
+		long start = metrics.begin("removeRdfFromRH");
+		TripleRemover remover = new TripleRemover(getJenaModel().getGraph());
 		int processCount = 0;
-		for(Record r : rh) {
-			log.trace("removing record: " + r.getID());
-			if(namespace != null) {
-				// log.trace("using namespace '"+namespace+"'");
-			}
-			ByteArrayInputStream bais = new ByteArrayInputStream(r.getData().getBytes());
-			getJenaModel().remove(new MemJenaConnect(bais, namespace, language).getJenaModel());
-			try {
-				bais.close();
-			} catch(IOException e) {
-				// ignore
+		startBulkUpdate();
+		try {
+			if(threads > 1) {
+				processCount = new RecordTriplePipeline(getJenaModel().getGraph(), namespace, language, threads, remover).run(rh);
+			} else {
+				for(Record r : rh) {
+					log.trace("removing record: " + r.getID());
+					InputStream in = r.openStream();
+					remover.removeParsed(in, namespace, language);
+					try {
+						in.close();
+					} catch(IOException e) {
+						// ignore
+					}
+					processCount++;
+				}
 			}
-			processCount++;
+			remover.flush();
+		} finally {
+			finishBulkUpdate();
+			metrics.end("removeRdfFromRH", start);
 		}
+		logRemoval(remover);
 		return processCount;
 	}
 	
@@ -414,22 +584,59 @@ public abstract class JenaConnect {
 	 * @return number of records added
 	 */
 	public int loadRdfFromRH(RecordHandler rh, String namespace, String language) {
-		int processCount = 0;
-		for(Record r : rh) {
-			log.trace("loading record: " + r.getID());
-			if(namespace != null) {
-				// log.trace("using namespace '"+namespace+"'");
+		return loadRdfFromRH(rh, namespace, language, 1);
+	}
+	
+	/**
+	 * Adds all records in a RecordHandler to the model
+	 * @param rh the RecordHandler to pull records from
+	 * @param namespace the base uri to use for imported uris
+	 * @param language the rdf syntax language (RDF/XML, N3, TTL, etc).  null = RDF/XML
+	 * @param threads number of threads to parse records with (1 parses on the calling thread)
+	 * @return number of records added
+	 */
+	public int loadRdfFromRH(RecordHandler rh, String namespace, String language, int threads) {
+		long start = metrics.begin("loadRdfFromRH");
+		startBulkUpdate();
+		try {
+			if(threads > 1) {
+				return new RecordTriplePipeline(getJenaModel().getGraph(), namespace, language, threads, null).run(rh);
 			}
-			ByteArrayInputStream bais = new ByteArrayInputStream(r.getData().getBytes());
-			getJenaModel().read(bais, namespace, language);
-			try {
-				bais.close();
-			} catch(IOException e) {
-				// ignore
+			int processCount = 0;
+			for(Record r : rh) {
+				log.trace("loading record: " + r.getID());
+				if(namespace != null) {
+					// log.trace("using namespace '"+namespace+"'");
+				}
+				InputStream in = r.openStream();
+				getJenaModel().read(in, namespace, language);
+				try {
+					in.close();
+				} catch(IOException e) {
+					// ignore
+				}
+				processCount++;
 			}
-			processCount++;
+			return processCount;
+		} finally {
+			finishBulkUpdate();
+			metrics.end("loadRdfFromRH", start);
 		}
-		return processCount;
+	}
+	
+	/**
+	 * Start a bulk update. Until the matching finishBulkUpdate, stores that support it may buffer the triples added or
+	 * removed and write them in large batches. Calls may nest.
+	 */
+	protected void startBulkUpdate() {
+		// Nothing to do by default
+	}
+	
+	/**
+	 * Finish a bulk update, writing any buffered changes once the outermost bulk update finishes
+	 */
+	protected void finishBulkUpdate() {
+		// Nothing to do by default
 	}
 	
 	/**
@@ -452,11 +659,24 @@ public abstract class JenaConnect {
 	 * @throws IOException error connecting
 	 */
 	private QueryExecution buildQueryExec(String queryString, boolean datasetMode) throws IOException {
+		return buildQueryExec(queryString, null, datasetMode);
+	}
+	
+	/**
+	 * Build a QueryExecution from a query template, reusing the parsed query if the template has been seen before
+	 * @param queryString the query to build execution for
+	 * @param bindings initial values for variables of the query, null for none
+	 * @param datasetMode execute against dataset
+	 * @return the QueryExecution
+	 * @throws IOException error connecting
+	 */
+	private QueryExecution buildQueryExec(String queryString, QuerySolution bindings, boolean datasetMode) throws IOException {
+		Query query = SparqlQueryCache.getQuery(queryString);
 		QueryExecution qe;
 		if(datasetMode) {
-			qe = QueryExecutionFactory.create(QueryFactory.create(queryString, Syntax.syntaxARQ), getDataset());
+			qe = QueryExecutionFactory.create(query, getDataset(), bindings);
 		} else {
-			qe = QueryExecutionFactory.create(QueryFactory.create(queryString, Syntax.syntaxARQ), getJenaModel());
+			qe = QueryExecutionFactory.create(query, getJenaModel(), bindings);
 		}
 		return qe;
 	}
@@ -491,13 +711,46 @@ public abstract class JenaConnect {
 	 * @throws IOException error connecting
 	 */
 	public ResultSet executeSelectQuery(String queryString, boolean copyResultSet, boolean datasetMode) throws IOException {
-		QueryExecution qexec = buildQueryExec(queryString, datasetMode);
+		return executeSelectQuery(queryString, null, copyResultSet, datasetMode);
+	}
+	
+	/**
+	 * Executes a sparql select query template against the JENA model and returns the selected result set. Values are
+	 * passed as bindings rather than concatenated into the query, so the template is only parsed once and the values
+	 * need no escaping.
+	 * @param queryString the query template to execute against the model
+	 * @param bindings initial values for variables of the query (e.g. a QuerySolutionMap), null for none
+	 * @param copyResultSet copy the resultset
+	 * @param datasetMode execute against dataset
+	 * @return the executed query result set
+	 * @throws IOException error connecting
+	 */
+	public ResultSet executeSelectQuery(String queryString, QuerySolution bindings, boolean copyResultSet, boolean datasetMode) throws IOException {
+		// the query is recorded once its rows have been read, when the (possibly streaming) result is exhausted
+		long start = metrics.begin("executeSelectQuery");
+		// the dataset holds graphs whose modifications are not counted, so its results are never cached
+		ResultCache cache = datasetMode ? null : this.resultCache;
+		if((cache != null) && (bindings == null)) {
+			String key = ResultCache.key(queryString);
+			long version = this.modCount.get();
+			ResultSet cached = cache.getSelect(key, version);
+			if(cached != null) {
+				return metrics.meter(cached, "executeSelectQuery", start, queryString);
+			}
+			QueryExecution qexec = buildQueryExec(queryString, null, datasetMode);
+			try {
+				return metrics.meter(cache.putSelect(key, version, ResultSetFactory.copyResults(qexec.execSelect())), "executeSelectQuery", start, queryString);
+			} finally {
+				qexec.close();
+			}
+		}
+		QueryExecution qexec = buildQueryExec(queryString, bindings, datasetMode);
 		ResultSet rs = qexec.execSelect();
 		if(copyResultSet) {
 			rs = ResultSetFactory.copyResults(rs);
 			qexec.close();
 		}
-		return rs;
+		return metrics.meter(rs, "executeSelectQuery", start, queryString);
 	}
 	
 	/**
@@ -518,8 +771,12 @@ public abstract class JenaConnect {
 	 * @throws IOException error connecting
 	 */
 	public JenaConnect executeConstructQuery(String queryString, boolean datasetMode) throws IOException {
-		JenaConnect jc = new MemJenaConnect();
+		long start = metrics.begin("executeConstructQuery");
+		JenaConnect jc = createResultModel();
 		jc.getJenaModel().add(buildQueryExec(queryString, datasetMode).execConstruct());
+		long size = jc.getJenaModel().size();
+		metrics.addTriplesRead(size);
+		metrics.endQuery("executeConstructQuery", start, queryString, size);
 		return jc;
 	}
 	
@@ -541,8 +798,23 @@ public abstract class JenaConnect {
 	 * @throws IOException error connecting
 	 */
 	public JenaConnect executeDescribeQuery(String queryString, boolean datasetMode) throws IOException {
-		JenaConnect jc = new MemJenaConnect();
+		long start = metrics.begin("executeDescribeQuery");
+		JenaConnect jc = createResultModel();
 		jc.getJenaModel().add(buildQueryExec(queryString, datasetMode).execDescribe());
+		long size = jc.getJenaModel().size();
+		metrics.addTriplesRead(size);
+		metrics.endQuery("executeDescribeQuery", start, queryString, size);
+		return jc;
+	}
+	
+	/**
+	 * Create a model to hold query results. Triples added to it are read from this model, so are not counted as
+	 * written.
+	 * @return the result model
+	 */
+	private static JenaConnect createResultModel() {
+		JenaConnect jc = new MemJenaConnect();
+		jc.getJenaModel().getGraph().getEventManager().unregister(metrics.getWriteCounter());
 		return jc;
 	}
 	
@@ -564,7 +836,41 @@ public abstract class JenaConnect {
 	 * @throws IOException error connecting
 	 */
 	public boolean executeAskQuery(String queryString, boolean datasetMode) throws IOException {
-		return buildQueryExec(queryString, datasetMode).execAsk();
+		return executeAskQuery(queryString, null, datasetMode);
+	}
+	
+	/**
+	 * Executes a sparql ask query template against the JENA model
+	 * @param queryString the query template to execute against the model
+	 * @param bindings initial values for variables of the query (e.g. a QuerySolutionMap), null for none
+	 * @param datasetMode execute against dataset
+	 * @return the result of the ask
+	 * @throws IOException error connecting
+	 */
+	public boolean executeAskQuery(String queryString, QuerySolution bindings, boolean datasetMode) throws IOException {
+		long start = metrics.begin("executeAskQuery");
+		ResultCache cache = ((bindings == null) && !datasetMode) ? this.resultCache : null;
+		String key = null;
+		long version = this.modCount.get();
+		if(cache != null) {
+			key = ResultCache.key(queryString);
+			Boolean cached = cache.getAsk(key, version);
+			if(cached != null) {
+				metrics.endQuery("executeAskQuery", start, queryString, 1);
+				return cached.booleanValue();
+			}
+		}
+		QueryExecution qe = buildQueryExec(queryString, bindings, datasetMode);
+		try {
+			boolean answer = qe.execAsk();
+			if(cache != null) {
+				cache.putAsk(key, version, answer);
+			}
+			return answer;
+		} finally {
+			qe.close();
+			metrics.endQuery("executeAskQuery", start, queryString, 1);
+		}
 	}
 	
 	/**
@@ -583,20 +889,36 @@ public abstract class JenaConnect {
 	 * @throws IOException error connecting
 	 */
 	public void executeUpdateQuery(String queryString, boolean datasetMode) throws IOException {
+		executeUpdateQuery(queryString, null, datasetMode);
+	}
+	
+	/**
+	 * Executes a sparql update template against the JENA model. Bound values are written into the update in sparql
+	 * syntax (quoted and escaped), so they cannot change the structure of the update.
+	 * @param queryString the update template to execute against the model
+	 * @param bindings values for variables of the update (e.g. a QuerySolutionMap), null for none
+	 * @param datasetMode execute against dataset
+	 * @throws IOException error connecting
+	 */
+	public void executeUpdateQuery(String queryString, QuerySolution bindings, boolean datasetMode) throws IOException {
+		long start = metrics.begin("executeUpdateQuery");
+		UpdateRequest update = SparqlQueryCache.getUpdate(SparqlQueryCache.bind(queryString, bindings));
 		this.jenaModel.begin();
 		this.jenaModel.notifyEvent(GraphEvents.startRead);
 		try {
 //			log.debug("query:\n" + queryString);
 			if(datasetMode) {
 //				log.trace("Executing query against dataset");
-				UpdateAction.execute(UpdateFactory.create(queryString), getDataset());
+				UpdateAction.execute(update, getDataset());
 			} else {
 //				log.trace("Executing query against model");
-				UpdateAction.execute(UpdateFactory.create(queryString), getJenaModel());
+				UpdateAction.execute(update, getJenaModel());
 			}
 		} finally {
 			this.jenaModel.notifyEvent(GraphEvents.finishRead);
 			this.jenaModel.commit();
+			markModified();
+			metrics.endQuery("executeUpdateQuery", start, queryString, -1);
 		}
 	}
 	
@@ -635,6 +957,23 @@ public abstract class JenaConnect {
 	 * @throws IOException error writing to output
 	 */
 	public void executeQuery(String queryParam, String resultFormatParam, OutputStream output, boolean datasetMode) throws IOException {
+		executeQuery(queryParam, resultFormatParam, output, datasetMode, false, 0);
+	}
+	
+	/**
+	 * Execute a Query, optionally profiling it and cancelling it after a timeout
+	 * @param queryParam the query
+	 * @param resultFormatParam the format to return the results in ('RS_TEXT' default for select queries / 'RDF/XML'
+	 *        default for construct/describe queries)
+	 * @param output output stream to write to - null uses System.out
+	 * @param datasetMode run against dataset rather than model
+	 * @param profile log the algebra before and after optimization, the wall time of each stage (execute includes
+	 *        writing the results) and the rows produced by each operator; updates only report their wall time
+	 * @param timeout cancel the query if it has not finished after this many milliseconds, 0 for no timeout; updates
+	 *        are not cancelled
+	 * @throws IOException error writing to output or query cancelled
+	 */
+	public void executeQuery(String queryParam, String resultFormatParam, OutputStream output, boolean datasetMode, boolean profile, long timeout) throws IOException {
 		OutputStream out;
 		if(output != null) {
 			out = output;
@@ -642,9 +981,17 @@ public abstract class JenaConnect {
 		} else {
 			out = System.out;
 		}
+		long start = metrics.begin("executeQuery");
+		QueryProfiler profiler = profile ? new QueryProfiler() : null;
+		QueryWatchdog watchdog = null;
 		QueryExecution qe = null;
 		try {
+			long stage = System.nanoTime();
 			Query query = QueryFactory.create(queryParam, Syntax.syntaxARQ);
+			if(profiler != null) {
+				profiler.stage("parse", stage);
+				profiler.compile(query);
+			}
 			if(datasetMode) {
 //				log.trace("Executing query against dataset");
 				qe = QueryExecutionFactory.create(query, getDataset());
@@ -652,6 +999,14 @@ public abstract class JenaConnect {
 //				log.trace("Executing query against model");
 				qe = QueryExecutionFactory.create(query, getJenaModel());
 			}
+			if(profiler != null) {
+				profiler.attach(qe);
+			}
+			if(timeout > 0) {
+				watchdog = new QueryWatchdog(qe);
+				getQueryTimer().schedule(watchdog, timeout);
+			}
+			stage = System.nanoTime();
 			if(query.isSelectType()) {
 				ResultSetFormat rsf = formatSymbols.get(resultFormatParam);
 				if(rsf == null) {
@@ -661,7 +1016,7 @@ public abstract class JenaConnect {
 			} else if(query.isAskType()) {
 				out.write((Boolean.toString(qe.execAsk())+"\n").getBytes());
 			} else {
-				MemJenaConnect resultModel = new MemJenaConnect();
+				JenaConnect resultModel = createResultModel();
 				if(query.isConstructType()) {
 					qe.execConstruct(resultModel.getJenaModel());
 				} else if(query.isDescribeType()) {
@@ -672,19 +1027,92 @@ public abstract class JenaConnect {
 				
 				resultModel.exportRdfToStream(out, resultFormatParam);
 			}
+			if(profiler != null) {
+				profiler.stage("execute", stage);
+			}
+			if((watchdog != null) && watchdog.isFired()) {
+				throw new IOException("Query cancelled after timeout of " + timeout + "ms");
+			}
 		} catch(QueryParseException e1) {
+			if(timeout > 0) {
+				log.warn("Timeout of " + timeout + "ms is not applied to updates, which cannot be cancelled");
+			}
 			try {
+				long stage = System.nanoTime();
 				executeUpdateQuery(queryParam, datasetMode);
+				if(profiler != null) {
+					profiler.stage("update", stage);
+				}
 				log.info("Update Successfully Applied");
 			} catch(QueryParseException e2) {
 				log.error("Invalid Query:\n"+queryParam);
 				log.trace("Attempted Query Exception:",e1);
 				log.trace("Attempted Update Exception:",e2);
 			}
+		} catch(RuntimeException e) {
+			if((watchdog != null) && watchdog.isFired()) {
+				throw new IOException("Query cancelled after timeout of " + timeout + "ms", e);
+			}
+			throw e;
 		} finally {
+			if(watchdog != null) {
+				watchdog.cancel();
+			}
 			if(qe != null) {
 				qe.close();
 			}
+			metrics.endQuery("executeQuery", start, queryParam, -1);
+			if(profiler != null) {
+				log.info("Query profile:\n" + profiler.getReport());
+			}
+		}
+	}
+	
+	/**
+	 * Get the timer running query timeouts, starting it if needed
+	 * @return the timer
+	 */
+	private static synchronized Timer getQueryTimer() {
+		if(queryTimer == null) {
+			queryTimer = new Timer("JenaConnect query timeout", true);
+		}
+		return queryTimer;
+	}
+	
+	/**
+	 * Aborts a query execution when run
+	 */
+	private static class QueryWatchdog extends TimerTask {
+		/**
+		 * the execution to abort
+		 */
+		private final QueryExecution qe;
+		/**
+		 * has the execution been aborted
+		 */
+		private volatile boolean fired;
+		
+		/**
+		 * Constructor
+		 * @param qe the execution to abort
+		 */
+		protected QueryWatchdog(QueryExecution qe) {
+			this.qe = qe;
+			this.fired = false;
+		}
+		
+		@Override
+		public void run() {
+			this.fired = true;
+			this.qe.abort();
+		}
+		
+		/**
+		 * Has the execution been aborted
+		 * @return true if aborted
+		 */
+		protected boolean isFired() {
+			return this.fired;
 		}
 	}
 	
@@ -701,7 +1129,118 @@ public abstract class JenaConnect {
 	 * @param jena the new model
 	 */
 	protected void setJenaModel(Model jena) {
+		if(this.jenaModel != null) {
+			this.jenaModel.getGraph().getEventManager().unregister(this.modCount);
+			this.jenaModel.getGraph().getEventManager().unregister(metrics.getWriteCounter());
+			if(this.statisticsTracker != null) {
+				this.jenaModel.getGraph().getEventManager().unregister(this.statisticsTracker);
+				this.statisticsTracker = null;
+			}
+			resetStatistics();
+		}
 		this.jenaModel = jena;
+		if(this.jenaModel != null) {
+			this.jenaModel.getGraph().getEventManager().register(this.modCount);
+			this.jenaModel.getGraph().getEventManager().register(metrics.getWriteCounter());
+		}
+		this.modCount.increment();
+	}
+	
+	/**
+	 * Cache the results of select and ask queries (without bindings, against the model) until the model is next
+	 * modified. Modifications are seen when they are made through this JenaConnect (its model or its update methods);
+	 * changes made to the underlying store by other connections are not. Select results are read fully into memory
+	 * while the cache is on.
+	 * @param maxEntries maximum number of cached queries
+	 * @param maxRows maximum number of select result rows held across all cached queries
+	 */
+	public void enableResultCache(int maxEntries, long maxRows) {
+		this.resultCache = new ResultCache(maxEntries, maxRows);
+	}
+	
+	/**
+	 * Stop caching query results and drop any cached results
+	 */
+	public void disableResultCache() {
+		this.resultCache = null;
+	}
+	
+	/**
+	 * Get the number of queries answered from the result cache
+	 * @return the hit count, 0 if the cache is disabled
+	 */
+	public long getResultCacheHits() {
+		ResultCache cache = this.resultCache;
+		return (cache == null) ? 0 : cache.getHits();
+	}
+	
+	/**
+	 * Get the number of cacheable queries that had to be executed
+	 * @return the miss count, 0 if the cache is disabled
+	 */
+	public long getResultCacheMisses() {
+		ResultCache cache = this.resultCache;
+		return (cache == null) ? 0 : cache.getMisses();
+	}
+	
+	/**
+	 * Mark the model as modified, invalidating cached results. Writes made through the model are counted
+	 * automatically, this is for writes that bypass it (e.g. dataset level updates).
+	 */
+	protected void markModified() {
+		this.modCount.increment();
+	}
+	
+	/**
+	 * Begin reading. Any number of threads may read at once, but not while a thread is writing; reads wait for the
+	 * writer to finish and writers wait for all readers to finish. Must be paired with end(). Critical sections may
+	 * nest, except that a thread holding only a read cannot begin a write.
+	 */
+	public void beginRead() {
+		getLock().enterCriticalSection(Lock.READ);
+		this.criticalSections.get().addLast(Boolean.FALSE);
+	}
+	
+	/**
+	 * Begin writing, waiting until no other thread is reading or writing. Must be paired with end(); when the outermost
+	 * write ends the changes are committed to the store.
+	 */
+	public void beginWrite() {
+		getLock().enterCriticalSection(Lock.WRITE);
+		this.criticalSections.get().addLast(Boolean.TRUE);
+	}
+	
+	/**
+	 * End the innermost read or write begun by this thread
+	 */
+	public void end() {
+		LinkedList<Boolean> sections = this.criticalSections.get();
+		if(sections.isEmpty()) {
+			throw new IllegalStateException("end() called without beginRead() or beginWrite()");
+		}
+		boolean write = sections.removeLast().booleanValue();
+		try {
+			if(write && !sections.contains(Boolean.TRUE)) {
+				commitWrite();
+			}
+		} finally {
+			getLock().leaveCriticalSection();
+		}
+	}
+	
+	/**
+	 * Get the lock used by beginRead and beginWrite. Stores that share data between JenaConnects lock at that level.
+	 * @return the lock
+	 */
+	protected Lock getLock() {
+		return getJenaModel().getLock();
+	}
+	
+	/**
+	 * Make the changes of a finished write durable. Called while still holding the write lock.
+	 */
+	protected void commitWrite() {
+		// Nothing to do by default
 	}
 	
 	/**
@@ -726,7 +1265,12 @@ public abstract class JenaConnect {
 		parser.addArgument(new ArgDef().setShortOption('Q').setLongOpt("queryResultFormat").withParameter(true, "RESULT_FORMAT").setDescription("the format to return the results in ('RS_RDF',etc for select queries / 'RDF/XML',etc for construct/describe queries)").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('f').setLongOpt("fileOutput").withParameter(true, "OUTPUT_FILE").setDescription("the file to output the results in, if not specified writes to stdout").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('d').setLongOpt("dataset").setDescription("execute query against dataset rather than model").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('p').setLongOpt("profile").setDescription("log the algebra before and after optimization, the time of each stage and the rows produced by each operator of the query").setRequired(false));
+		parser.addArgument(new ArgDef().setLongOpt("timeout").withParameter(true, "MILLISECONDS").setDescription("cancel the query if it has not finished after MILLISECONDS").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('t').setLongOpt("truncate").setDescription("empty the jena model").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('s').setLongOpt("size").setDescription("output the number of triples in the jena model").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('m').setLongOpt("mmapSnapshot").withParameter(true, "SNAPSHOT_FILE").setDescription("write a read-only memory-mapped snapshot of the jena model (open it with type 'mmap')").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('S').setLongOpt("statistics").setDescription("output the triple, distinct subject and per-predicate counts of the jena model").setRequired(false));
 		return parser;
 	}
 	
@@ -811,13 +1355,15 @@ public abstract class JenaConnect {
 	 * Remove all statements from model
 	 */
 	public void truncate() {
+		long start = metrics.begin("truncate");
 		Model sourceModel = getJenaModel();
-		sourceModel.enterCriticalSection(Lock.WRITE);
+		beginWrite();
 		try{
 			// this method is used so that any listeners can see each statement removed
 			sourceModel.removeAll((Resource)null,(Property)null,(RDFNode)null);
 		} finally {
-			sourceModel.leaveCriticalSection();
+			end();
+			metrics.end("truncate", start);
 		}
 	}
 	
@@ -843,7 +1389,37 @@ public abstract class JenaConnect {
 	 * @throws IOException error connecting
 	 */
 	public boolean isEmpty() throws IOException {
-		return !executeAskQuery("ASK { ?s ?p ?o }");
+		ExtendedIterator<Triple> it = getJenaModel().getGraph().find(Node.ANY, Node.ANY, Node.ANY);
+		try {
+			return !it.hasNext();
+		} finally {
+			it.close();
+		}
+	}
+	
+	/**
+	 * Applies changes made to the model graph to the statistics
+	 */
+	private class StatisticsTracker extends TripleChangeListener {
+		/**
+		 * Default Constructor
+		 */
+		protected StatisticsTracker() {
+			// Nothing to do here
+		}
+		
+		@Override
+		protected void changed(Graph g, Triple t, boolean added) {
+			GraphStatistics stats = JenaConnect.this.statistics;
+			if(stats != null) {
+				stats.apply(g, t, added);
+			}
+		}
+		
+		@Override
+		protected void unlistedRemoval(Graph g) {
+			resetStatistics();
+		}
 	}
 	
 	/**
@@ -872,7 +1448,29 @@ public abstract class JenaConnect {
 			log.info("Removing all triples");
 			jc.truncate();
 		} else if(argList.has("q")) {
-			jc.executeQuery(argList.get("q"), argList.get("Q"), FileAide.getOutputStream(argList.get("f")), argList.has("d"));
+			long timeout = argList.has("timeout") ? Long.parseLong(argList.get("timeout")) : 0;
+			jc.executeQuery(argList.get("q"), argList.get("Q"), FileAide.getOutputStream(argList.get("f")), argList.has("d"), argList.has("p"), timeout);
+		} else if(argList.has("m")) {
+			MmapJenaConnect.writeSnapshot(jc, argList.get("m"));
+		} else if(argList.has("s") || argList.has("S")) {
+			StringBuilder sb = new StringBuilder();
+			if(argList.has("S")) {
+				GraphStatistics stats = jc.getStatistics();
+				sb.append("triples\t" + stats.getTripleCount() + "\n");
+				sb.append("subjects\t" + stats.getDistinctSubjectCount() + "\n");
+				for(Map.Entry<String, Long> predicate : stats.getPredicateCounts().entrySet()) {
+					sb.append(predicate.getKey() + "\t" + predicate.getValue() + "\n");
+				}
+			} else {
+				sb.append(jc.size() + "\n");
+			}
+			OutputStream out = FileAide.getOutputStream(argList.get("f"));
+			if(out == null) {
+				System.out.print(sb);
+			} else {
+				out.write(sb.toString().getBytes("UTF-8"));
+				out.close();
+			}
 		} else {
 			throw new IllegalArgumentException("No Operation Specified");
 		}
@@ -903,6 +1501,7 @@ public abstract class JenaConnect {
 			log.debug("Stacktrace:",e);
 			error = e;
 		} finally {
+			JenaConnectMetrics.logSummary();
 			log.info(getParser().getAppName() + ": End");
 			if(error != null) {
 				System.exit(1);
@@ -0,0 +1,611 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.GraphListener;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+
+/**
+ * Process wide metrics of JenaConnect operations: per-method call counts and latency histograms, triples read and
+ * written, select rows read and bytes exported. Published over JMX as org.vivoweb.harvester:type=JenaConnectMetrics and
+ * logged as json at the end of each tool. Queries slower than the slow query threshold are logged with their text,
+ * duration and result size to the org.vivoweb.harvester.util.repo.JenaConnectMetrics.slowQueries logger.
+ * @author VIVO Harvester Team
+ */
+public class JenaConnectMetrics implements JenaConnectMetricsMBean {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(JenaConnectMetrics.class);
+	/**
+	 * SLF4J Logger for the slow query log
+	 */
+	private static Logger slowLog = LoggerFactory.getLogger(JenaConnectMetrics.class.getName() + ".slowQueries");
+	/**
+	 * Default slow query threshold in milliseconds
+	 */
+	public static final long DEFAULT_SLOW_QUERY_THRESHOLD = 10000;
+	/**
+	 * Upper bounds of the latency histogram buckets in milliseconds, the last bucket holds everything slower
+	 */
+	private static final long[] BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000};
+	/**
+	 * The metrics of this process
+	 */
+	private static final JenaConnectMetrics instance = new JenaConnectMetrics();
+	static {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName("org.vivoweb.harvester:type=JenaConnectMetrics"));
+		} catch(Exception e) {
+			log.debug("Unable to register JenaConnectMetrics with JMX", e);
+		}
+	}
+	/**
+	 * Stats by operation name
+	 */
+	private final ConcurrentMap<String, OperationStats> operations;
+	/**
+	 * triples read
+	 */
+	private final AtomicLong triplesRead;
+	/**
+	 * triples added or removed
+	 */
+	private final AtomicLong triplesWritten;
+	/**
+	 * select rows read
+	 */
+	private final AtomicLong rowsRead;
+	/**
+	 * bytes exported
+	 */
+	private final AtomicLong bytesExported;
+	/**
+	 * queries logged as slow
+	 */
+	private final AtomicLong slowQueries;
+	/**
+	 * slow query threshold in milliseconds, negative for off
+	 */
+	private volatile long slowQueryThreshold;
+	/**
+	 * Counts the triples written to the graphs it is registered with
+	 */
+	private final GraphListener writeCounter;
+	
+	/**
+	 * Constructor
+	 */
+	private JenaConnectMetrics() {
+		this.operations = new ConcurrentHashMap<String, OperationStats>();
+		this.triplesRead = new AtomicLong();
+		this.triplesWritten = new AtomicLong();
+		this.rowsRead = new AtomicLong();
+		this.bytesExported = new AtomicLong();
+		this.slowQueries = new AtomicLong();
+		this.slowQueryThreshold = DEFAULT_SLOW_QUERY_THRESHOLD;
+		this.writeCounter = new WriteCounter();
+	}
+	
+	/**
+	 * Get the metrics of this process
+	 * @return the metrics
+	 */
+	public static JenaConnectMetrics getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Log the json summary of the metrics, if any JenaConnect operation was run
+	 */
+	public static void logSummary() {
+		if(instance.getCallCount() > 0) {
+			log.info("JenaConnect metrics: " + instance.getSummary());
+		}
+	}
+	
+	/**
+	 * Get the stats of an operation
+	 * @param operation the operation name
+	 * @return the stats
+	 */
+	private OperationStats getStats(String operation) {
+		OperationStats stats = this.operations.get(operation);
+		if(stats == null) {
+			OperationStats created = new OperationStats();
+			stats = this.operations.putIfAbsent(operation, created);
+			if(stats == null) {
+				stats = created;
+			}
+		}
+		return stats;
+	}
+	
+	/**
+	 * Record the start of an operation
+	 * @param operation the operation name
+	 * @return the start time to pass to end
+	 */
+	protected long begin(String operation) {
+		getStats(operation).calls.incrementAndGet();
+		return System.nanoTime();
+	}
+	
+	/**
+	 * Record the end of an operation
+	 * @param operation the operation name
+	 * @param start the start time returned by begin
+	 * @return the duration in nanoseconds
+	 */
+	protected long end(String operation, long start) {
+		long nanos = System.nanoTime() - start;
+		getStats(operation).completed(nanos);
+		return nanos;
+	}
+	
+	/**
+	 * Record the end of a query, logging it if slow
+	 * @param operation the operation name
+	 * @param start the start time returned by begin
+	 * @param query the query text
+	 * @param resultSize the number of results, negative if unknown
+	 */
+	protected void endQuery(String operation, long start, String query, long resultSize) {
+		long millis = TimeUnit.NANOSECONDS.toMillis(end(operation, start));
+		long threshold = this.slowQueryThreshold;
+		if((threshold >= 0) && (millis > threshold)) {
+			this.slowQueries.incrementAndGet();
+			slowLog.warn("Slow " + operation + " (" + millis + "ms, " + ((resultSize < 0) ? "unknown number of" : String.valueOf(resultSize)) + " results):\n" + query);
+		}
+	}
+	
+	/**
+	 * Wrap a select result so the rows read are counted and the query is recorded once the rows are exhausted
+	 * @param rs the result
+	 * @param operation the operation name
+	 * @param start the start time returned by begin
+	 * @param query the query text
+	 * @return the wrapped result
+	 */
+	protected ResultSet meter(ResultSet rs, String operation, long start, String query) {
+		return new MeteredResultSet(rs, operation, start, query);
+	}
+	
+	/**
+	 * Wrap an output stream so the bytes written are counted as exported
+	 * @param out the stream
+	 * @return the wrapped stream
+	 */
+	protected OutputStream meter(OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				this.out.write(b);
+				JenaConnectMetrics.this.bytesExported.incrementAndGet();
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				this.out.write(b, off, len);
+				JenaConnectMetrics.this.bytesExported.addAndGet(len);
+			}
+		};
+	}
+	
+	/**
+	 * Count triples read
+	 * @param count the number of triples
+	 */
+	protected void addTriplesRead(long count) {
+		this.triplesRead.addAndGet(count);
+	}
+	
+	/**
+	 * Get the listener counting the triples written to the graphs it is registered with
+	 * @return the listener
+	 */
+	protected GraphListener getWriteCounter() {
+		return this.writeCounter;
+	}
+	
+	@Override
+	public long getCallCount() {
+		long count = 0;
+		for(OperationStats stats : this.operations.values()) {
+			count += stats.calls.get();
+		}
+		return count;
+	}
+	
+	/**
+	 * Get the number of calls to an operation
+	 * @param operation the operation name (the JenaConnect method name)
+	 * @return the call count
+	 */
+	public long getCallCount(String operation) {
+		OperationStats stats = this.operations.get(operation);
+		return (stats == null) ? 0 : stats.calls.get();
+	}
+	
+	@Override
+	public long getTriplesRead() {
+		return this.triplesRead.get();
+	}
+	
+	@Override
+	public long getTriplesWritten() {
+		return this.triplesWritten.get();
+	}
+	
+	@Override
+	public long getRowsRead() {
+		return this.rowsRead.get();
+	}
+	
+	@Override
+	public long getBytesExported() {
+		return this.bytesExported.get();
+	}
+	
+	@Override
+	public long getSlowQueryCount() {
+		return this.slowQueries.get();
+	}
+	
+	@Override
+	public long getSlowQueryThreshold() {
+		return this.slowQueryThreshold;
+	}
+	
+	@Override
+	public void setSlowQueryThreshold(long millis) {
+		this.slowQueryThreshold = millis;
+	}
+	
+	@Override
+	public void reset() {
+		this.operations.clear();
+		this.triplesRead.set(0);
+		this.triplesWritten.set(0);
+		this.rowsRead.set(0);
+		this.bytesExported.set(0);
+		this.slowQueries.set(0);
+	}
+	
+	@Override
+	public String getSummary() {
+		StringBuilder sb = new StringBuilder("{\"operations\":{");
+		boolean first = true;
+		for(Map.Entry<String, OperationStats> op : new TreeMap<String, OperationStats>(this.operations).entrySet()) {
+			if(!first) {
+				sb.append(',');
+			}
+			first = false;
+			sb.append(quote(op.getKey())).append(':');
+			op.getValue().appendJson(sb);
+		}
+		sb.append("},\"triplesRead\":").append(getTriplesRead());
+		sb.append(",\"triplesWritten\":").append(getTriplesWritten());
+		sb.append(",\"rowsRead\":").append(getRowsRead());
+		sb.append(",\"bytesExported\":").append(getBytesExported());
+		sb.append(",\"slowQueries\":").append(getSlowQueryCount());
+		sb.append(",\"slowQueryThresholdMs\":").append(getSlowQueryThreshold());
+		sb.append('}');
+		return sb.toString();
+	}
+	
+	/**
+	 * Quote a string for json
+	 * @param s the string
+	 * @return the quoted string
+	 */
+	private static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for(char c : s.toCharArray()) {
+			if((c == '"') || (c == '\\')) {
+				sb.append('\\').append(c);
+			} else if(c < 0x20) {
+				sb.append(String.format("\\u%04x", Integer.valueOf(c)));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+	
+	/**
+	 * Call count and latency histogram of an operation
+	 */
+	private static class OperationStats {
+		/**
+		 * calls started
+		 */
+		protected final AtomicLong calls;
+		/**
+		 * calls completed
+		 */
+		private final AtomicLong completed;
+		/**
+		 * total duration of completed calls in nanoseconds
+		 */
+		private final AtomicLong totalNanos;
+		/**
+		 * longest duration in nanoseconds
+		 */
+		private final AtomicLong maxNanos;
+		/**
+		 * completed calls per latency bucket
+		 */
+		private final AtomicLongArray histogram;
+		
+		/**
+		 * Constructor
+		 */
+		protected OperationStats() {
+			this.calls = new AtomicLong();
+			this.completed = new AtomicLong();
+			this.totalNanos = new AtomicLong();
+			this.maxNanos = new AtomicLong();
+			this.histogram = new AtomicLongArray(BUCKETS.length + 1);
+		}
+		
+		/**
+		 * Record a completed call
+		 * @param nanos the duration in nanoseconds
+		 */
+		protected void completed(long nanos) {
+			this.completed.incrementAndGet();
+			this.totalNanos.addAndGet(nanos);
+			long max = this.maxNanos.get();
+			while((nanos > max) && !this.maxNanos.compareAndSet(max, nanos)) {
+				max = this.maxNanos.get();
+			}
+			long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+			int bucket = 0;
+			while((bucket < BUCKETS.length) && (millis > BUCKETS[bucket])) {
+				bucket++;
+			}
+			this.histogram.incrementAndGet(bucket);
+		}
+		
+		/**
+		 * Append these stats as json
+		 * @param sb the builder to append to
+		 */
+		protected void appendJson(StringBuilder sb) {
+			long done = this.completed.get();
+			long total = TimeUnit.NANOSECONDS.toMillis(this.totalNanos.get());
+			sb.append("{\"calls\":").append(this.calls.get());
+			sb.append(",\"completed\":").append(done);
+			sb.append(",\"totalMs\":").append(total);
+			sb.append(",\"meanMs\":").append((done == 0) ? 0 : (total / done));
+			sb.append(",\"maxMs\":").append(TimeUnit.NANOSECONDS.toMillis(this.maxNanos.get()));
+			sb.append(",\"histogramMs\":{");
+			for(int x = 0; x <= BUCKETS.length; x++) {
+				if(x > 0) {
+					sb.append(',');
+				}
+				sb.append((x < BUCKETS.length) ? ("\"<=" + BUCKETS[x] + "\":") : ("\">" + BUCKETS[x - 1] + "\":"));
+				sb.append(this.histogram.get(x));
+			}
+			sb.append("}}");
+		}
+	}
+	
+	/**
+	 * Select result counting the rows read, recording the query when exhausted
+	 */
+	private class MeteredResultSet implements ResultSet {
+		/**
+		 * the result
+		 */
+		private final ResultSet rs;
+		/**
+		 * the operation name
+		 */
+		private final String operation;
+		/**
+		 * the start time
+		 */
+		private final long start;
+		/**
+		 * the query text
+		 */
+		private final String query;
+		/**
+		 * rows read
+		 */
+		private long rows;
+		/**
+		 * has the query been recorded
+		 */
+		private boolean recorded;
+		
+		/**
+		 * Constructor
+		 * @param rs the result
+		 * @param operation the operation name
+		 * @param start the start time
+		 * @param query the query text
+		 */
+		protected MeteredResultSet(ResultSet rs, String operation, long start, String query) {
+			this.rs = rs;
+			this.operation = operation;
+			this.start = start;
+			this.query = query;
+			this.rows = 0;
+			this.recorded = false;
+		}
+		
+		/**
+		 * Count a row read
+		 */
+		private void read() {
+			this.rows++;
+			JenaConnectMetrics.this.rowsRead.incrementAndGet();
+		}
+		
+		@Override
+		public boolean hasNext() {
+			boolean more = this.rs.hasNext();
+			if(!more && !this.recorded) {
+				this.recorded = true;
+				endQuery(this.operation, this.start, this.query, this.rows);
+			}
+			return more;
+		}
+		
+		@Override
+		public QuerySolution next() {
+			QuerySolution qs = this.rs.next();
+			read();
+			return qs;
+		}
+		
+		@Override
+		public QuerySolution nextSolution() {
+			QuerySolution qs = this.rs.nextSolution();
+			read();
+			return qs;
+		}
+		
+		@Override
+		public Binding nextBinding() {
+			Binding b = this.rs.nextBinding();
+			read();
+			return b;
+		}
+		
+		@Override
+		public int getRowNumber() {
+			return this.rs.getRowNumber();
+		}
+		
+		@Override
+		public List<String> getResultVars() {
+			return this.rs.getResultVars();
+		}
+		
+		@Override
+		public Model getResourceModel() {
+			return this.rs.getResourceModel();
+		}
+		
+		@Override
+		public void remove() {
+			this.rs.remove();
+		}
+	}
+	
+	/**
+	 * Graph listener counting the triples added and removed
+	 */
+	private class WriteCounter implements GraphListener {
+		/**
+		 * Constructor
+		 */
+		protected WriteCounter() {
+			// Nothing to do here
+		}
+		
+		/**
+		 * Count triples written
+		 * @param count the number of triples
+		 */
+		private void written(long count) {
+			JenaConnectMetrics.this.triplesWritten.addAndGet(count);
+		}
+		
+		/**
+		 * Count the triples of an iterator written
+		 * @param it the triples
+		 */
+		private void written(Iterator<Triple> it) {
+			long count = 0;
+			while(it.hasNext()) {
+				it.next();
+				count++;
+			}
+			written(count);
+		}
+		
+		@Override
+		public void notifyAddTriple(Graph g, Triple t) {
+			written(1);
+		}
+		
+		@Override
+		public void notifyAddArray(Graph g, Triple[] triples) {
+			written(triples.length);
+		}
+		
+		@Override
+		public void notifyAddList(Graph g, List<Triple> triples) {
+			written(triples.size());
+		}
+		
+		@Override
+		public void notifyAddIterator(Graph g, Iterator<Triple> it) {
+			written(it);
+		}
+		
+		@Override
+		public void notifyAddGraph(Graph g, Graph added) {
+			written(added.size());
+		}
+		
+		@Override
+		public void notifyDeleteTriple(Graph g, Triple t) {
+			written(1);
+		}
+		
+		@Override
+		public void notifyDeleteList(Graph g, List<Triple> triples) {
+			written(triples.size());
+		}
+		
+		@Override
+		public void notifyDeleteArray(Graph g, Triple[] triples) {
+			written(triples.length);
+		}
+		
+		@Override
+		public void notifyDeleteIterator(Graph g, Iterator<Triple> it) {
+			written(it);
+		}
+		
+		@Override
+		public void notifyDeleteGraph(Graph g, Graph removed) {
+			written(removed.size());
+		}
+		
+		@Override
+		public void notifyEvent(Graph source, Object value) {
+			// bulk removals (removeAll) do not say how many triples they removed
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+/**
+ * JMX management interface of JenaConnectMetrics
+ * @author VIVO Harvester Team
+ */
+public interface JenaConnectMetricsMBean {
+	/**
+	 * Get the number of JenaConnect operations started
+	 * @return the call count
+	 */
+	public long getCallCount();
+	
+	/**
+	 * Get the number of triples read (construct/describe results and exports)
+	 * @return the triple count
+	 */
+	public long getTriplesRead();
+	
+	/**
+	 * Get the number of triples added to or removed from models
+	 * @return the triple count
+	 */
+	public long getTriplesWritten();
+	
+	/**
+	 * Get the number of select result rows read
+	 * @return the row count
+	 */
+	public long getRowsRead();
+	
+	/**
+	 * Get the number of bytes exported
+	 * @return the byte count
+	 */
+	public long getBytesExported();
+	
+	/**
+	 * Get the number of queries logged as slow
+	 * @return the slow query count
+	 */
+	public long getSlowQueryCount();
+	
+	/**
+	 * Get the duration above which queries are logged as slow
+	 * @return the threshold in milliseconds, negative when the slow query log is off
+	 */
+	public long getSlowQueryThreshold();
+	
+	/**
+	 * Set the duration above which queries are logged as slow
+	 * @param millis the threshold in milliseconds, negative to turn the slow query log off
+	 */
+	public void setSlowQueryThreshold(long millis);
+	
+	/**
+	 * Get all metrics as json
+	 * @return the json summary
+	 */
+	public String getSummary();
+	
+	/**
+	 * Reset all metrics to zero
+	 */
+	public void reset();
+}
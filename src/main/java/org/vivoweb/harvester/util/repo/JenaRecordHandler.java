@@ -6,7 +6,9 @@
 package org.vivoweb.harvester.util.repo;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -20,14 +22,14 @@ import java.util.TreeSet;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.vivoweb.harvester.util.IterableAdaptor;
 import org.vivoweb.harvester.util.repo.RecordMetaData.RecordMetaDataType;
-import com.hp.hpl.jena.query.QuerySolution;
-import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.rdf.model.Property;
 import com.hp.hpl.jena.rdf.model.Resource;
-import com.hp.hpl.jena.rdf.model.Statement;
 import com.hp.hpl.jena.shared.PropertyNotFoundException;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
 
 /**
  * RecordHandler that stores data in a Jena Model
@@ -86,6 +88,10 @@ public class JenaRecordHandler extends RecordHandler {
 	 * metadata md5
 	 */
 	protected Property metaMD5;
+	/**
+	 * record resources by id, filled as records are looked up, added and iterated (guarded by itself)
+	 */
+	private final Map<String, Node> recordIndex = new HashMap<String, Node>();
 	
 	/**
 	 * Default Constructor
@@ -139,7 +145,7 @@ public class JenaRecordHandler extends RecordHandler {
 	}
 	
 	@Override
-	public boolean addRecord(Record rec, Class<?> creator, boolean overwrite) throws IOException {
+	public synchronized boolean addRecord(Record rec, Class<?> creator, boolean overwrite) throws IOException {
 		if(!needsUpdated(rec)) {
 			return false;
 		}
@@ -148,115 +154,233 @@ public class JenaRecordHandler extends RecordHandler {
 			throw new IOException("Record '" + rec.getID() + "' already exists!");
 		} else if(record == null) {
 			record = this.model.getJenaModel().createResource();
+		} else {
+			// replace the old data rather than adding a second value next to it
+			record.removeAll(this.dataType);
 		}
 		this.model.getJenaModel().add(this.model.getJenaModel().createStatement(record, this.isA, this.recType));
 		this.model.getJenaModel().add(this.model.getJenaModel().createStatement(record, this.idType, rec.getID()));
 		this.model.getJenaModel().add(this.model.getJenaModel().createStatement(record, this.dataType, rec.getData()));
+		synchronized(this.recordIndex) {
+			this.recordIndex.put(rec.getID(), record.asNode());
+		}
 		this.addMetaData(rec, creator, RecordMetaDataType.written);
 		return true;
 	}
 	
 	@Override
-	public void delRecord(String recID) throws IOException {
+	public synchronized void delRecord(String recID) throws IOException {
 		delMetaData(recID);
 		Resource r = getRecordResource(recID);
 		if(r == null) {
 			throw new IOException("Record '" + recID + "' Does Not Exist");
 		}
 		r.removeProperties();
+		synchronized(this.recordIndex) {
+			this.recordIndex.remove(recID);
+		}
 	}
 	
 	@Override
-	public String getRecordData(String recID) throws IllegalArgumentException, IOException {
-		// create query string
-		String sQuery = "" +
-			"PREFIX rhns: <" + rhNameSpace + "> \n" +
-			"PREFIX lns: <" + this.dataType.getNameSpace() + "> \n" +
-			"PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> \n" +
-			"Select ?dataField \n" +
-			"WHERE { \n" +
-			"  ?record rdf:type rhns:" + this.recType.getLocalName() + " . \n" +
-			"  ?record rhns:" + this.idType.getLocalName() + " \"" + recID + "\" . \n" +
-			"  ?record lns:" + this.dataType.getLocalName() + " ?dataField . \n" +
-			"}";
-		
-		ResultSet resultSet = this.model.executeSelectQuery(sQuery);
-		// read first result
-		String data = null;
-		if(resultSet.hasNext()) {
-			QuerySolution result = resultSet.next();
-			data = result.getLiteral(resultSet.getResultVars().get(0)).getString();
-		} else {
+	public synchronized String getRecordData(String recID) throws IllegalArgumentException, IOException {
+		Resource record = getRecordResource(recID);
+		String data = (record == null) ? null : readData(record.asNode());
+		if(data == null) {
 			throw new IllegalArgumentException("Record " + recID + " does not exist!");
 		}
 		return data;
 	}
 	
 	/**
-	 * Retrieves a record's resource from jena model
+	 * Get the graph underlying the model
+	 * @return the graph
+	 */
+	private Graph getGraph() {
+		return this.model.getJenaModel().getGraph();
+	}
+	
+	/**
+	 * Reads the data of a record straight from the graph
+	 * @param record the record's node
+	 * @return the data, or null if the record has none
+	 */
+	private String readData(Node record) {
+		ExtendedIterator<Triple> it = getGraph().find(record, this.dataType.asNode(), Node.ANY);
+		try {
+			while(it.hasNext()) {
+				Node data = it.next().getObject();
+				if(data.isLiteral()) {
+					return data.getLiteralLexicalForm();
+				}
+			}
+			return null;
+		} finally {
+			it.close();
+		}
+	}
+	
+	/**
+	 * Retrieves a record's resource from jena model. Indexed resources are trusted (records are only added and removed
+	 * through this handler) and ids not indexed are looked up with a single find on the id literal.
 	 * @param recID the record id to retrieve
 	 * @return the resource
 	 */
 	private Resource getRecordResource(String recID) {
-		List<Statement> a = this.model.getJenaModel().listStatements(null, this.idType, recID).toList();
-		if((a == null) || a.isEmpty()) {
-			return null;
+		Node record;
+		synchronized(this.recordIndex) {
+			record = this.recordIndex.get(recID);
 		}
-		return a.get(0).getSubject();
+		if(record == null) {
+			Graph graph = getGraph();
+			ExtendedIterator<Triple> it = graph.find(Node.ANY, this.idType.asNode(), Node.createLiteral(recID));
+			try {
+				while((record == null) && it.hasNext()) {
+					Node subject = it.next().getSubject();
+					if(graph.contains(subject, this.isA.asNode(), this.recType.asNode())) {
+						record = subject;
+					}
+				}
+			} finally {
+				it.close();
+			}
+			if(record == null) {
+				return null;
+			}
+			synchronized(this.recordIndex) {
+				this.recordIndex.put(recID, record);
+			}
+		}
+		return (Resource)this.model.getJenaModel().asRDFNode(record);
 	}
 	
 	@Override
-	public Iterator<Record> iterator() {
+	public synchronized Iterator<Record> iterator() {
+		List<String> ids = new ArrayList<String>();
+		List<Node> nodes = new ArrayList<Node>();
+		scanRecords(ids, nodes);
+		return new JenaRecordIterator(ids, nodes);
+	}
+	
+	/**
+	 * Take the ids and resources of all records of this handler's record type in one scan of the type and one of the id
+	 * property, which also fills the index. The scans are copied out rather than held open: callers write metadata to
+	 * the same model while iterating.
+	 * @param ids list to add the ids to, in graph order
+	 * @param nodes list to add the resources to, in the same order
+	 */
+	private void scanRecords(List<String> ids, List<Node> nodes) {
+		Set<Node> records = new HashSet<Node>();
+		ExtendedIterator<Triple> typed = getGraph().find(Node.ANY, this.isA.asNode(), this.recType.asNode());
 		try {
-			return new JenaRecordIterator();
-		} catch(IOException e) {
-			throw new IllegalArgumentException(e);
+			while(typed.hasNext()) {
+				records.add(typed.next().getSubject());
+			}
+		} finally {
+			typed.close();
+		}
+		ExtendedIterator<Triple> it = getGraph().find(Node.ANY, this.idType.asNode(), Node.ANY);
+		try {
+			synchronized(this.recordIndex) {
+				while(it.hasNext()) {
+					Triple t = it.next();
+					if(t.getObject().isLiteral() && records.contains(t.getSubject())) {
+						String recID = t.getObject().getLiteralLexicalForm();
+						ids.add(recID);
+						nodes.add(t.getSubject());
+						this.recordIndex.put(recID, t.getSubject());
+					}
+				}
+			}
+		} finally {
+			it.close();
 		}
 	}
 	
 	/**
-	 * Iterator for JenaRecordHandler
+	 * Partitions are contiguous runs of one scan of the record ids, each reading its records' data as it is reached
+	 * @param n the number of partitions wanted
+	 * @return at least one and at most n partitions
+	 */
+	@Override
+	public synchronized List<Iterable<Record>> partitions(int n) {
+		checkPartitionCount(n);
+		final List<String> ids = new ArrayList<String>();
+		final List<Node> nodes = new ArrayList<Node>();
+		scanRecords(ids, nodes);
+		int count = Math.max(1, Math.min(n, ids.size()));
+		List<Iterable<Record>> parts = new ArrayList<Iterable<Record>>(count);
+		for(int x = 0; x < count; x++) {
+			final int from = (int)(((long)ids.size() * x) / count);
+			final int to = (int)(((long)ids.size() * (x + 1)) / count);
+			parts.add(new Iterable<Record>() {
+				@Override
+				public Iterator<Record> iterator() {
+					return new JenaRecordIterator(ids.subList(from, to), nodes.subList(from, to));
+				}
+			});
+		}
+		return parts;
+	}
+	
+	/**
+	 * Iterator for JenaRecordHandler over records already scanned, reading each record's data as it is reached. Records
+	 * come in graph order rather than sorted by id.
 	 * @author Christopher Haines (hainesc@ctrip.ufl.edu)
 	 */
 	private class JenaRecordIterator implements Iterator<Record> {
-		
 		/**
-		 * ResultSet from query
+		 * ids of the records, in scan order
 		 */
-		private ResultSet resultSet;
+		private final List<String> ids;
+		/**
+		 * resources of the records, in scan order
+		 */
+		private final List<Node> nodes;
+		/**
+		 * position of the next record to read
+		 */
+		private int pos;
+		/**
+		 * the next record, if already read
+		 */
+		private Record ahead;
 		
 		/**
-		 * Default Constructor
-		 * @throws IOException error connecting
+		 * Constructor
+		 * @param ids ids of the records, in scan order
+		 * @param nodes resources of the records, in the same order
 		 */
-		protected JenaRecordIterator() throws IOException {
-			// create query string
-			String sQuery = "" +
-				"PREFIX rhns: <" + JenaRecordHandler.rhNameSpace + "> \n" +
-				"PREFIX lns: <" + JenaRecordHandler.this.dataType.getNameSpace() + "> \n" +
-				"PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> \n" +
-				"Select ?idField \n" +
-				"WHERE { \n" +
-				"  ?record rdf:type rhns:" + JenaRecordHandler.this.recType.getLocalName() + " . \n" +
-				"  ?record rhns:" + JenaRecordHandler.this.idType.getLocalName() + " ?idField . \n" +
-				"  ?record lns:" + JenaRecordHandler.this.dataType.getLocalName() + " ?dataField . \n" +
-				"} ORDER BY ?idField";
-			
-			this.resultSet = JenaRecordHandler.this.model.executeSelectQuery(sQuery, true, false);
+		protected JenaRecordIterator(List<String> ids, List<Node> nodes) {
+			this.ids = ids;
+			this.nodes = nodes;
+			this.pos = 0;
+			this.ahead = null;
 		}
 		
 		@Override
 		public boolean hasNext() {
-			return this.resultSet.hasNext();
+			while((this.ahead == null) && (this.pos < this.ids.size())) {
+				// records deleted since the scan, or without data, are skipped
+				String data;
+				synchronized(JenaRecordHandler.this) {
+					data = readData(this.nodes.get(this.pos));
+				}
+				if(data != null) {
+					this.ahead = new Record(this.ids.get(this.pos), data, JenaRecordHandler.this);
+				}
+				this.pos++;
+			}
+			return this.ahead != null;
 		}
 		
 		@Override
 		public Record next() {
-			try {
-				return getRecord(this.resultSet.next().getLiteral("idField").getString());
-			} catch(IOException e) {
-				throw new NoSuchElementException(e.getMessage());
+			if(!hasNext()) {
+				throw new NoSuchElementException();
 			}
+			Record rec = this.ahead;
+			this.ahead = null;
+			return rec;
 		}
 		
 		@Override
@@ -274,7 +398,7 @@ public class JenaRecordHandler extends RecordHandler {
 	}
 	
 	@Override
-	protected void addMetaData(Record rec, RecordMetaData rmd) throws IOException {
+	protected synchronized void addMetaData(Record rec, RecordMetaData rmd) throws IOException {
 		Resource record = getRecordResource(rec.getID());
 		if(record == null) {
 			throw new IOException("Record " + rec.getID() + " does not exist!");
@@ -289,7 +413,8 @@ public class JenaRecordHandler extends RecordHandler {
 	}
 	
 	@Override
-	protected void delMetaData(String recID) throws IOException {
+	protected synchronized void delMetaData(String recID) throws IOException {
+		forgetDigest(recID);
 		Resource r = getRecordResource(recID);
 		if(r == null) {
 			throw new IOException("No Matching Record Found For Which To Delete MetaData");
@@ -305,7 +430,7 @@ public class JenaRecordHandler extends RecordHandler {
 	}
 	
 	@Override
-	protected SortedSet<RecordMetaData> getRecordMetaData(String recID) throws IOException {
+	protected synchronized SortedSet<RecordMetaData> getRecordMetaData(String recID) throws IOException {
 		SortedSet<RecordMetaData> retVal = new TreeSet<RecordMetaData>();
 		
 		Resource r = getRecordResource(recID);
@@ -341,25 +466,30 @@ public class JenaRecordHandler extends RecordHandler {
 	}
 	
 	@Override
-	public void close() throws IOException {
+	public synchronized void close() throws IOException {
+		closeDigestIndex();
+		synchronized(this.recordIndex) {
+			this.recordIndex.clear();
+		}
 		this.model.close();
 	}
 	
 	@Override
-	public Set<String> find(String idText) throws IOException {
-		Set<String> retVal = new HashSet<String>();
-		String query = "" +
-			"PREFIX rhns: <" + JenaRecordHandler.rhNameSpace + "> \n" +
-			"PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> \n" +
-			"SELECT ?idField \n" +
-			"WHERE { \n" +
-			"  ?record rdf:type rhns:" + JenaRecordHandler.this.recType.getLocalName() + " . \n" +
-			"  ?record rhns:" + JenaRecordHandler.this.idType.getLocalName() + " ?idField . \n" +
-			"  FILTER regex(?idField, \"" + idText + "\") \n" +
-			"} ORDER BY ?idField";
-		for(QuerySolution record : IterableAdaptor.adapt(this.model.executeSelectQuery(query))) {
-			retVal.add(record.getLiteral("idField").getString());
+	public synchronized Set<String> find(String idText) {
+		Set<String> retVal = new TreeSet<String>();
+		for(String recID : getRecordIDs()) {
+			if(recID.contains(idText)) {
+				retVal.add(recID);
+			}
 		}
 		return retVal;
 	}
+	
+	@Override
+	public synchronized SortedSet<String> getRecordIDs() {
+		// one scan of the id property, no data is read
+		List<String> ids = new ArrayList<String>();
+		scanRecords(ids, new ArrayList<Node>());
+		return new TreeSet<String>(ids);
+	}
 }
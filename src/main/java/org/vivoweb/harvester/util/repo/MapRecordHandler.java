@@ -6,8 +6,10 @@
 package org.vivoweb.harvester.util.repo;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
@@ -37,7 +39,7 @@ public class MapRecordHandler extends RecordHandler {
 	}
 	
 	@Override
-	public boolean addRecord(Record rec, Class<?> creator, boolean overwrite) throws IOException {
+	public synchronized boolean addRecord(Record rec, Class<?> creator, boolean overwrite) throws IOException {
 		if(!needsUpdated(rec)) {
 			return false;
 		}
@@ -50,13 +52,13 @@ public class MapRecordHandler extends RecordHandler {
 	}
 	
 	@Override
-	public void delRecord(String recID) throws IOException {
+	public synchronized void delRecord(String recID) throws IOException {
 		this.map.remove(recID);
 		delMetaData(recID);
 	}
 	
 	@Override
-	public String getRecordData(String recID) throws IllegalArgumentException, IOException {
+	public synchronized String getRecordData(String recID) throws IllegalArgumentException, IOException {
 		if(!this.map.containsKey(recID)) {
 			throw new IllegalArgumentException("Record " + recID + " does not exist!");
 		}
@@ -82,7 +84,9 @@ public class MapRecordHandler extends RecordHandler {
 		 * Default Constructor
 		 */
 		protected MapRecordIterator() {
-			this.keyIter = new TreeSet<String>(MapRecordHandler.this.map.keySet()).iterator();
+			synchronized(MapRecordHandler.this) {
+				this.keyIter = new TreeSet<String>(MapRecordHandler.this.map.keySet()).iterator();
+			}
 		}
 		
 		@Override
@@ -93,7 +97,10 @@ public class MapRecordHandler extends RecordHandler {
 		@Override
 		public Record next() {
 			String key = this.keyIter.next();
-			String data = MapRecordHandler.this.map.get(key);
+			String data;
+			synchronized(MapRecordHandler.this) {
+				data = MapRecordHandler.this.map.get(key);
+			}
 			return new Record(key, data, MapRecordHandler.this);
 		}
 		
@@ -109,7 +116,7 @@ public class MapRecordHandler extends RecordHandler {
 	}
 	
 	@Override
-	protected void addMetaData(Record rec, RecordMetaData rmd) {
+	protected synchronized void addMetaData(Record rec, RecordMetaData rmd) {
 		if(!this.metaDataMap.containsKey(rec.getID())) {
 			this.metaDataMap.put(rec.getID(), new TreeSet<RecordMetaData>());
 		}
@@ -117,27 +124,52 @@ public class MapRecordHandler extends RecordHandler {
 	}
 	
 	@Override
-	protected void delMetaData(String recID) throws IOException {
+	protected synchronized void delMetaData(String recID) throws IOException {
+		forgetDigest(recID);
 		this.metaDataMap.remove(recID);
 	}
 	
 	@Override
-	protected SortedSet<RecordMetaData> getRecordMetaData(String recID) throws IOException {
+	protected synchronized SortedSet<RecordMetaData> getRecordMetaData(String recID) throws IOException {
 		SortedSet<RecordMetaData> x = this.metaDataMap.get(recID);
 		if((x == null) || x.isEmpty()) {
 			throw new IOException("No Matching MetaData Found");
 		}
-		return x;
+		return new TreeSet<RecordMetaData>(x);
+	}
+	
+	@Override
+	public synchronized Iterable<Record> pendingRecords(Class<?> operator) {
+		List<String> ids = new ArrayList<String>();
+		for(String recID : this.map.keySet()) {
+			SortedSet<RecordMetaData> rmdSet = this.metaDataMap.get(recID);
+			if((rmdSet == null) || needsProcessed(rmdSet, operator)) {
+				ids.add(recID);
+			}
+		}
+		return getRecords(ids);
 	}
 	
 	@Override
-	public void close() throws IOException {
+	public synchronized List<Iterable<Record>> partitions(int n) {
+		checkPartitionCount(n);
+		return partitionRecords(new ArrayList<String>(new TreeSet<String>(this.map.keySet())), n);
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		closeDigestIndex();
 		this.map.clear();
 		this.metaDataMap.clear();
 	}
 	
 	@Override
-	public Set<String> find(String idText) {
+	public synchronized SortedSet<String> getRecordIDs() {
+		return new TreeSet<String>(this.map.keySet());
+	}
+	
+	@Override
+	public synchronized Set<String> find(String idText) {
 		Set<String> retVal = new TreeSet<String>();
 		for(String id : this.map.keySet()) {
 			if(id.contains(idText)) {
@@ -9,11 +9,16 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vivoweb.harvester.util.FileAide;
 import org.vivoweb.harvester.util.SpecialEntities;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.sparql.core.DataSourceImpl;
 
 /**
  * Connection Helper for Memory Based Jena Models
@@ -25,9 +30,17 @@ public class MemJenaConnect extends TDBJenaConnect {
 	 */
 	private static Logger log = LoggerFactory.getLogger(MemJenaConnect.class);
 	/**
-	 * Map of already used memory model names to directories
+	 * Map of already used memory model names to directories (guarded by itself)
 	 */
-	private static HashMap<String, String> usedModelNames = new HashMap<String, String>();
+	private static final Map<String, String> usedModelNames = new HashMap<String, String>();
+	/**
+	 * Interned graphs by directory then model name (guarded by itself)
+	 */
+	private static final Map<String, Map<String, InternedGraph>> internedGraphs = new HashMap<String, Map<String, InternedGraph>>();
+	/**
+	 * the interned graph holding this model, null when held in tdb
+	 */
+	private final InternedGraph interned;
 	
 	/**
 	 * Constructor (Memory Default Model)
@@ -41,7 +54,33 @@ public class MemJenaConnect extends TDBJenaConnect {
 	 * @param modelName the model name to use
 	 */
 	public MemJenaConnect(String modelName) {
-		super(getDir(modelName), modelName);
+		this(modelName, false);
+	}
+	
+	/**
+	 * Constructor (Memory Named Model, optionally interned)
+	 * @param modelName the model name to use
+	 * @param internNodes hold the model on the heap as ids into the node dictionary shared by all interned models,
+	 *        instead of in tdb. The model's data is discarded when the last connection to it is closed.
+	 */
+	public MemJenaConnect(String modelName, boolean internNodes) {
+		this(getDir(modelName), modelName, internNodes);
+	}
+	
+	/**
+	 * Constructor (Directory Named Model)
+	 * @param dir the directory in which the model is held
+	 * @param modelName the model name to use
+	 * @param internNodes hold the model as ids into the shared node dictionary
+	 */
+	private MemJenaConnect(String dir, String modelName, boolean internNodes) {
+		super(dir, modelName, !internNodes);
+		if(internNodes) {
+			this.interned = openInternedGraph(dir, getModelName());
+			setJenaModel(ModelFactory.createModelForGraph(this.interned));
+		} else {
+			this.interned = null;
+		}
 	}
 	
 	/**
@@ -65,20 +104,126 @@ public class MemJenaConnect extends TDBJenaConnect {
 	private static String getDir(String modelName) {
 		String mod = (modelName != null) ? modelName : generateUnusedModelName();
 		mod = SpecialEntities.xmlEncode(mod, '/', ':');
-		if(!usedModelNames.containsKey(mod)) {
-			log.trace("attempting to create temp file for: " + mod);
-			File f;
-			try {
-				f = FileAide.createTempFile(mod, ".tdb");
-			} catch(IOException e) {
-				throw new IllegalArgumentException(e);
+		synchronized(usedModelNames) {
+			if(!usedModelNames.containsKey(mod)) {
+				log.trace("attempting to create temp file for: " + mod);
+				File f;
+				try {
+					f = FileAide.createTempFile(mod, ".tdb");
+				} catch(IOException e) {
+					throw new IllegalArgumentException(e);
+				}
+				log.trace("created: " + f.getAbsolutePath());
+				f.delete();
+				f.mkdir();
+				usedModelNames.put(mod, f.getAbsolutePath());
 			}
-			log.trace("created: " + f.getAbsolutePath());
-			f.delete();
-			f.mkdir();
-			usedModelNames.put(mod, f.getAbsolutePath());
+			return usedModelNames.get(mod);
 		}
-		return usedModelNames.get(mod);
+	}
+	
+	/**
+	 * Get an interned graph, creating it if needed, and add a connection using it
+	 * @param dir the directory in which the model is held
+	 * @param modelName the model name
+	 * @return the graph
+	 */
+	private static InternedGraph openInternedGraph(String dir, String modelName) {
+		synchronized(internedGraphs) {
+			Map<String, InternedGraph> graphs = internedGraphs.get(dir);
+			if(graphs == null) {
+				graphs = new HashMap<String, InternedGraph>();
+				internedGraphs.put(dir, graphs);
+			}
+			InternedGraph graph = graphs.get(modelName);
+			if(graph == null) {
+				graph = new InternedGraph(NodeDictionary.getShared());
+				graphs.put(modelName, graph);
+			}
+			graph.open();
+			return graph;
+		}
+	}
+	
+	/**
+	 * Get the number of nodes interned by all interned models
+	 * @return the number of nodes
+	 */
+	public static int getInternedNodeCount() {
+		return NodeDictionary.getShared().getNodeCount();
+	}
+	
+	/**
+	 * Is this model held as ids into the shared node dictionary
+	 * @return true if interned
+	 */
+	public boolean isInterned() {
+		return this.interned != null;
+	}
+	
+	@Override
+	public Dataset getDataset() {
+		if(this.interned == null) {
+			return super.getDataset();
+		}
+		synchronized(internedGraphs) {
+			Map<String, InternedGraph> graphs = internedGraphs.get(getDbDir());
+			InternedGraph defaultGraph = graphs.get("urn:x-arq:DefaultGraph");
+			DataSourceImpl ds = new DataSourceImpl((defaultGraph != null) ? ModelFactory.createModelForGraph(defaultGraph) : ModelFactory.createDefaultModel());
+			for(Map.Entry<String, InternedGraph> graph : graphs.entrySet()) {
+				if(!graph.getKey().equals("urn:x-arq:DefaultGraph")) {
+					ds.addNamedModel(graph.getKey(), ModelFactory.createModelForGraph(graph.getValue()));
+				}
+			}
+			return ds;
+		}
+	}
+	
+	@Override
+	protected Lock getLock() {
+		return (this.interned != null) ? this.interned.getLock() : super.getLock();
+	}
+	
+	@Override
+	protected void commitWrite() {
+		if(this.interned == null) {
+			super.commitWrite();
+		}
+	}
+	
+	@Override
+	public JenaConnect neighborConnectClone(String modelName) {
+		if(this.interned == null) {
+			return super.neighborConnectClone(modelName);
+		}
+		return new MemJenaConnect(getDbDir(), modelName, true);
+	}
+	
+	@Override
+	public void close() {
+		if(this.interned == null) {
+			super.close();
+			return;
+		}
+		synchronized(internedGraphs) {
+			// the graph only really closes with its last connection, then it is forgotten
+			super.close();
+			if(this.interned.isClosed()) {
+				Map<String, InternedGraph> graphs = internedGraphs.get(getDbDir());
+				if((graphs != null) && (graphs.get(getModelName()) == this.interned)) {
+					graphs.remove(getModelName());
+					if(graphs.isEmpty()) {
+						internedGraphs.remove(getDbDir());
+					}
+				}
+			}
+		}
+	}
+	
+	@Override
+	public void printParameters() {
+		super.printParameters();
+		log.trace("internNodes: '" + (this.interned != null) + "'");
 	}
 	
 	/**
@@ -90,8 +235,10 @@ public class MemJenaConnect extends TDBJenaConnect {
 		String name = null;
 		while(name == null) {
 			name = "DEFAULT" + random.nextInt(Integer.MAX_VALUE);
-			if(usedModelNames.containsKey(name)) {
-				name = null;
+			synchronized(usedModelNames) {
+				if(usedModelNames.containsKey(name)) {
+					name = null;
+				}
 			}
 		}
 		return name;
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.impl.GraphBase;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.NullIterator;
+
+/**
+ * Read-only Graph over a memory-mapped triple store snapshot. Adds and deletes are refused. Nodes are matched by term
+ * (so "1"^^xsd:int does not match "01"^^xsd:int), as TDB does.
+ * @author VIVO Harvester Team
+ */
+class MmapGraph extends GraphBase {
+	/**
+	 * The snapshot
+	 */
+	private final MmapTripleStore store;
+	
+	/**
+	 * Constructor
+	 * @param store the snapshot
+	 */
+	protected MmapGraph(MmapTripleStore store) {
+		this.store = store;
+	}
+	
+	@Override
+	protected ExtendedIterator<Triple> graphBaseFind(TripleMatch m) {
+		int s = lookup(m.getMatchSubject());
+		int p = lookup(m.getMatchPredicate());
+		int o = lookup(m.getMatchObject());
+		if((s == -2) || (p == -2) || (o == -2)) {
+			// a bound node that is not in the snapshot matches nothing
+			return NullIterator.instance();
+		}
+		return this.store.find(s, p, o);
+	}
+	
+	/**
+	 * Get the id of a pattern node
+	 * @param n the node, null or not concrete for any
+	 * @return the id, -1 for any, -2 if not in the snapshot
+	 */
+	private int lookup(Node n) {
+		if((n == null) || !n.isConcrete()) {
+			return -1;
+		}
+		int id = this.store.getId(n);
+		return (id < 0) ? -2 : id;
+	}
+	
+	@Override
+	protected int graphBaseSize() {
+		return this.store.getTripleCount();
+	}
+}
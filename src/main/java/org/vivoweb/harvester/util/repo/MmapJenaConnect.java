@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.io.IOException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.DatasetFactory;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+
+/**
+ * Connection Helper for read-only, memory-mapped snapshots of a model. A snapshot is written once from any
+ * JenaConnect with writeSnapshot and then opened in milliseconds, without loading it onto the heap. Attempts to
+ * modify the model are refused.
+ * @author VIVO Harvester Team
+ */
+public class MmapJenaConnect extends JenaConnect {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(MmapJenaConnect.class);
+	/**
+	 * the snapshot file
+	 */
+	private final String file;
+	
+	/**
+	 * Constructor (Default Model)
+	 * @param file the snapshot file
+	 * @throws IOException error opening snapshot
+	 */
+	public MmapJenaConnect(String file) throws IOException {
+		this(file, null);
+	}
+	
+	/**
+	 * Constructor (Named Model)
+	 * @param file the snapshot file
+	 * @param modelName the name to give the model
+	 * @throws IOException error opening snapshot
+	 */
+	public MmapJenaConnect(String file, String modelName) throws IOException {
+		this.file = file;
+		if(modelName != null) {
+			setModelName(modelName);
+		} else {
+			setModelName("urn:x-arq:DefaultGraph");
+		}
+		setJenaModel(ModelFactory.createModelForGraph(new MmapGraph(new MmapTripleStore(file))));
+	}
+	
+	/**
+	 * Write a snapshot of a model, replacing the file once complete
+	 * @param source the model to snapshot
+	 * @param file the snapshot file
+	 * @return the number of triples written
+	 * @throws IOException error writing snapshot
+	 */
+	public static int writeSnapshot(JenaConnect source, String file) throws IOException {
+		long start = System.currentTimeMillis();
+		int count = MmapTripleStore.write(source.getJenaModel().getGraph(), file);
+		log.info("Wrote snapshot of " + count + " triples to " + file + " in " + (System.currentTimeMillis() - start) + "ms");
+		return count;
+	}
+	
+	@Override
+	public Dataset getDataset() {
+		return DatasetFactory.create(getJenaModel());
+	}
+	
+	@Override
+	public JenaConnect neighborConnectClone(String newModelName) throws IOException {
+		throw new IOException("A snapshot holds a single model, cannot connect to '" + newModelName + "' alongside " + this.file);
+	}
+	
+	@Override
+	public void close() {
+		super.close();
+		getJenaModel().close();
+	}
+	
+	@Override
+	public void printParameters() {
+		super.printParameters();
+		log.trace("type: 'mmap'");
+		log.trace("file: '" + this.file + "'");
+	}
+	
+	@Override
+	public void sync() {
+		// Do Nothing
+	}
+}
@@ -0,0 +1,630 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.NiceIterator;
+
+/**
+ * Immutable, memory-mapped triple store file. Every distinct node is written once, as an N-Triples term, in a sorted
+ * front-coded dictionary (blocks of BLOCK_SIZE terms where each term after the first stores only what differs from
+ * its predecessor) and is identified by its position in it. The triples are then three sorted arrays of id triples,
+ * in subject-predicate-object, predicate-object-subject and object-subject-predicate order, so any pattern with
+ * bound nodes is a binary search for a contiguous range in one of them. Opening a file only maps it; pages are read
+ * by the operating system as they are touched.
+ * @author VIVO Harvester Team
+ */
+class MmapTripleStore {
+	/**
+	 * First eight bytes of a snapshot file
+	 */
+	private static final long MAGIC = 0x5648534E41505348L;
+	/**
+	 * File format version
+	 */
+	private static final int VERSION = 1;
+	/**
+	 * Bytes reserved for the header
+	 */
+	private static final int HEADER_SIZE = 64;
+	/**
+	 * Number of terms per front-coded dictionary block
+	 */
+	private static final int BLOCK_SIZE = 16;
+	/**
+	 * Number of decoded nodes remembered (a power of two)
+	 */
+	private static final int CACHE_SIZE = 4096;
+	/**
+	 * Index in subject-predicate-object order
+	 */
+	protected static final int SPO = 0;
+	/**
+	 * Index in predicate-object-subject order
+	 */
+	protected static final int POS = 1;
+	/**
+	 * Index in object-subject-predicate order
+	 */
+	protected static final int OSP = 2;
+	/**
+	 * Positions of subject, predicate and object within a row of each index
+	 */
+	private static final int[][] COLUMNS = {{0, 1, 2}, {2, 0, 1}, {1, 2, 0}};
+	/**
+	 * Dictionary term encoding
+	 */
+	private static final Charset UTF8 = Charset.availableCharsets().get("UTF-8");
+	/**
+	 * number of distinct nodes
+	 */
+	private final int nodeCount;
+	/**
+	 * number of triples
+	 */
+	private final int tripleCount;
+	/**
+	 * front-coded dictionary blocks
+	 */
+	private final ByteBuffer dictionary;
+	/**
+	 * offset of each dictionary block
+	 */
+	private final IntBuffer blocks;
+	/**
+	 * the three triple indexes, each tripleCount rows of three ids
+	 */
+	private final IntBuffer[] indexes;
+	/**
+	 * recently decoded nodes, by id modulo the cache size
+	 */
+	private final CachedNode[] cache;
+	
+	/**
+	 * Constructor
+	 * @param path the snapshot file
+	 * @throws IOException error reading file, or not a snapshot
+	 */
+	protected MmapTripleStore(String path) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(path, "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			if(ch.size() < HEADER_SIZE) {
+				throw new IOException(path + " is not a triple store snapshot");
+			}
+			ByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if(header.getLong(0) != MAGIC) {
+				throw new IOException(path + " is not a triple store snapshot");
+			}
+			if(header.getInt(8) != VERSION) {
+				throw new IOException(path + " is snapshot version " + header.getInt(8) + ", expected " + VERSION);
+			}
+			this.nodeCount = header.getInt(12);
+			this.tripleCount = header.getInt(16);
+			long dictOffset = header.getLong(24);
+			long dictLength = header.getLong(32);
+			long blocksOffset = header.getLong(40);
+			long indexOffset = header.getLong(48);
+			// the mappings stay valid after the channel is closed
+			this.dictionary = ch.map(FileChannel.MapMode.READ_ONLY, dictOffset, dictLength);
+			this.blocks = ch.map(FileChannel.MapMode.READ_ONLY, blocksOffset, 4L * blockCount(this.nodeCount)).asIntBuffer();
+			long indexLength = 12L * this.tripleCount;
+			this.indexes = new IntBuffer[3];
+			for(int x = 0; x < 3; x++) {
+				this.indexes[x] = ch.map(FileChannel.MapMode.READ_ONLY, indexOffset + (x * indexLength), indexLength).asIntBuffer();
+			}
+		} finally {
+			raf.close();
+		}
+		this.cache = new CachedNode[CACHE_SIZE];
+	}
+	
+	/**
+	 * Get the number of dictionary blocks needed for a number of nodes
+	 * @param nodes the node count
+	 * @return the block count
+	 */
+	private static int blockCount(int nodes) {
+		return (nodes + BLOCK_SIZE - 1) / BLOCK_SIZE;
+	}
+	
+	/**
+	 * Get the number of triples
+	 * @return the triple count
+	 */
+	protected int getTripleCount() {
+		return this.tripleCount;
+	}
+	
+	/**
+	 * Get the number of distinct nodes
+	 * @return the node count
+	 */
+	protected int getNodeCount() {
+		return this.nodeCount;
+	}
+	
+	/**
+	 * Get the node with an id
+	 * @param id the id
+	 * @return the node
+	 */
+	protected Node getNode(int id) {
+		int slot = id & (CACHE_SIZE - 1);
+		CachedNode cached = this.cache[slot];
+		if((cached != null) && (cached.id == id)) {
+			return cached.node;
+		}
+		Node n = NTriplesCodec.parseNode(new String(readTerm(id), UTF8));
+		// a racing reader may overwrite the slot, which only costs a decode
+		this.cache[slot] = new CachedNode(id, n);
+		return n;
+	}
+	
+	/**
+	 * Get the id of a node
+	 * @param n the node
+	 * @return the id, or -1 if the node is not in the store
+	 */
+	protected int getId(Node n) {
+		if(this.nodeCount == 0) {
+			return -1;
+		}
+		byte[] key = NTriplesCodec.formatNode(n).getBytes(UTF8);
+		// last block whose first term is not after the key
+		int lo = 0;
+		int hi = blockCount(this.nodeCount) - 1;
+		while(lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if(compare(readTerm(mid * BLOCK_SIZE), key) <= 0) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		int[] pos = {this.blocks.get(lo)};
+		byte[] term = null;
+		int last = Math.min(this.nodeCount, (lo + 1) * BLOCK_SIZE);
+		for(int id = lo * BLOCK_SIZE; id < last; id++) {
+			term = nextTerm(pos, term);
+			int cmp = compare(term, key);
+			if(cmp == 0) {
+				return id;
+			}
+			if(cmp > 0) {
+				break;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Decode the dictionary term with an id
+	 * @param id the id
+	 * @return the term bytes
+	 */
+	private byte[] readTerm(int id) {
+		int[] pos = {this.blocks.get(id / BLOCK_SIZE)};
+		byte[] term = null;
+		for(int x = id % BLOCK_SIZE; x >= 0; x--) {
+			term = nextTerm(pos, term);
+		}
+		return term;
+	}
+	
+	/**
+	 * Decode the next term of a dictionary block
+	 * @param pos the read position, advanced past the term
+	 * @param previous the previous term of the block, null at the start of a block
+	 * @return the term bytes
+	 */
+	private byte[] nextTerm(int[] pos, byte[] previous) {
+		int prefix = (previous == null) ? 0 : readVarInt(pos);
+		int suffix = readVarInt(pos);
+		byte[] term = new byte[prefix + suffix];
+		if(prefix > 0) {
+			System.arraycopy(previous, 0, term, 0, prefix);
+		}
+		for(int x = prefix; x < term.length; x++) {
+			term[x] = this.dictionary.get(pos[0]++);
+		}
+		return term;
+	}
+	
+	/**
+	 * Read a variable length int (seven bits per byte, high bit set on all but the last byte)
+	 * @param pos the read position, advanced past the value
+	 * @return the value
+	 */
+	private int readVarInt(int[] pos) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = this.dictionary.get(pos[0]++);
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while((b & 0x80) != 0);
+		return value;
+	}
+	
+	/**
+	 * Compare byte strings as unsigned bytes
+	 * @param a the first
+	 * @param b the second
+	 * @return negative, zero or positive as a sorts before, with or after b
+	 */
+	protected static int compare(byte[] a, byte[] b) {
+		int len = Math.min(a.length, b.length);
+		for(int x = 0; x < len; x++) {
+			int cmp = (a[x] & 0xFF) - (b[x] & 0xFF);
+			if(cmp != 0) {
+				return cmp;
+			}
+		}
+		return a.length - b.length;
+	}
+	
+	/**
+	 * Find the triples matching a pattern
+	 * @param s the subject id, -1 for any
+	 * @param p the predicate id, -1 for any
+	 * @param o the object id, -1 for any
+	 * @return the matching triples
+	 */
+	protected ExtendedIterator<Triple> find(int s, int p, int o) {
+		// pick the index in which the bound positions are a prefix of the row
+		int order;
+		if(s >= 0) {
+			order = ((o >= 0) && (p < 0)) ? OSP : SPO;
+		} else if(p >= 0) {
+			order = POS;
+		} else if(o >= 0) {
+			order = OSP;
+		} else {
+			order = SPO;
+		}
+		int[] spo = {s, p, o};
+		int[] columns = COLUMNS[order];
+		int[] key = new int[3];
+		int keyLength = 0;
+		for(int col = 0; col < 3; col++) {
+			// which of s, p, o sits in this column of the index
+			int field = (columns[0] == col) ? 0 : ((columns[1] == col) ? 1 : 2);
+			if(spo[field] < 0) {
+				break;
+			}
+			key[keyLength++] = spo[field];
+		}
+		IntBuffer index = this.indexes[order];
+		int from = bound(index, key, keyLength, false);
+		int to = bound(index, key, keyLength, true);
+		return new RowIterator(index, columns, from, to);
+	}
+	
+	/**
+	 * Binary search for the edge of the rows starting with a key
+	 * @param index the index
+	 * @param key the key
+	 * @param keyLength the number of key columns
+	 * @param upper true for the first row after the key, false for the first row at or after it
+	 * @return the row number
+	 */
+	private int bound(IntBuffer index, int[] key, int keyLength, boolean upper) {
+		int lo = 0;
+		int hi = this.tripleCount;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = 0;
+			for(int x = 0; (x < keyLength) && (cmp == 0); x++) {
+				int value = index.get((mid * 3) + x);
+				cmp = (value < key[x]) ? -1 : ((value == key[x]) ? 0 : 1);
+			}
+			if((cmp < 0) || (upper && (cmp == 0))) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+	
+	/**
+	 * Write a snapshot of a graph
+	 * @param g the graph
+	 * @param path the snapshot file, replaced once complete
+	 * @return the number of triples written
+	 * @throws IOException error writing file
+	 */
+	protected static int write(Graph g, String path) throws IOException {
+		// pass one: the dictionary
+		Set<String> termSet = new HashSet<String>();
+		long triples = 0;
+		ExtendedIterator<Triple> it = g.find(Node.ANY, Node.ANY, Node.ANY);
+		try {
+			while(it.hasNext()) {
+				Triple t = it.next();
+				termSet.add(NTriplesCodec.formatNode(t.getSubject()));
+				termSet.add(NTriplesCodec.formatNode(t.getPredicate()));
+				termSet.add(NTriplesCodec.formatNode(t.getObject()));
+				triples++;
+			}
+		} finally {
+			it.close();
+		}
+		if((12 * triples) > Integer.MAX_VALUE) {
+			throw new IOException("Too many triples for a snapshot: " + triples);
+		}
+		int tripleCount = (int)triples;
+		byte[][] terms = new byte[termSet.size()][];
+		int n = 0;
+		for(String term : termSet) {
+			terms[n++] = term.getBytes(UTF8);
+		}
+		termSet = null;
+		Arrays.sort(terms, new Comparator<byte[]>() {
+			@Override
+			public int compare(byte[] a, byte[] b) {
+				return MmapTripleStore.compare(a, b);
+			}
+		});
+		int nodeCount = terms.length;
+		Map<String, Integer> ids = new HashMap<String, Integer>(nodeCount * 2);
+		for(int x = 0; x < nodeCount; x++) {
+			ids.put(new String(terms[x], UTF8), Integer.valueOf(x));
+		}
+		ByteArrayOutputStream dict = new ByteArrayOutputStream();
+		int[] blockOffsets = new int[blockCount(nodeCount)];
+		for(int x = 0; x < nodeCount; x++) {
+			if((x % BLOCK_SIZE) == 0) {
+				blockOffsets[x / BLOCK_SIZE] = dict.size();
+				writeVarInt(dict, terms[x].length);
+				dict.write(terms[x], 0, terms[x].length);
+			} else {
+				int prefix = 0;
+				int max = Math.min(terms[x].length, terms[x - 1].length);
+				while((prefix < max) && (terms[x][prefix] == terms[x - 1][prefix])) {
+					prefix++;
+				}
+				writeVarInt(dict, prefix);
+				writeVarInt(dict, terms[x].length - prefix);
+				dict.write(terms[x], prefix, terms[x].length - prefix);
+			}
+		}
+		terms = null;
+		while((dict.size() % 4) != 0) {
+			dict.write(0);
+		}
+		// pass two: the triples as ids
+		int[][] spo = new int[3][tripleCount];
+		int row = 0;
+		it = g.find(Node.ANY, Node.ANY, Node.ANY);
+		try {
+			while(it.hasNext() && (row < tripleCount)) {
+				Triple t = it.next();
+				spo[0][row] = ids.get(NTriplesCodec.formatNode(t.getSubject())).intValue();
+				spo[1][row] = ids.get(NTriplesCodec.formatNode(t.getPredicate())).intValue();
+				spo[2][row] = ids.get(NTriplesCodec.formatNode(t.getObject())).intValue();
+				row++;
+			}
+		} finally {
+			it.close();
+		}
+		if(row != tripleCount) {
+			throw new IOException("Graph changed while writing snapshot");
+		}
+		ids = null;
+		long dictOffset = HEADER_SIZE;
+		long blocksOffset = dictOffset + dict.size();
+		long indexOffset = blocksOffset + (4L * blockOffsets.length);
+		File target = new File(path);
+		File tmp = new File(path + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 20));
+		try {
+			out.writeLong(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(nodeCount);
+			out.writeInt(tripleCount);
+			out.writeInt(BLOCK_SIZE);
+			out.writeLong(dictOffset);
+			out.writeLong(dict.size());
+			out.writeLong(blocksOffset);
+			out.writeLong(indexOffset);
+			out.write(new byte[HEADER_SIZE - out.size()]);
+			dict.writeTo(out);
+			dict = null;
+			for(int offset : blockOffsets) {
+				out.writeInt(offset);
+			}
+			int[] rows = new int[tripleCount];
+			int[] tmpRows = new int[tripleCount];
+			for(int order = 0; order < 3; order++) {
+				// the columns of this index, as s/p/o arrays
+				int[][] cols = new int[3][];
+				for(int field = 0; field < 3; field++) {
+					cols[COLUMNS[order][field]] = spo[field];
+				}
+				for(int x = 0; x < tripleCount; x++) {
+					rows[x] = x;
+				}
+				sortRows(rows, tmpRows, 0, tripleCount, cols);
+				for(int x = 0; x < tripleCount; x++) {
+					out.writeInt(cols[0][rows[x]]);
+					out.writeInt(cols[1][rows[x]]);
+					out.writeInt(cols[2][rows[x]]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		if(target.exists() && !target.delete()) {
+			throw new IOException("Unable to replace " + path);
+		}
+		if(!tmp.renameTo(target)) {
+			throw new IOException("Unable to rename " + tmp.getPath() + " to " + path);
+		}
+		return tripleCount;
+	}
+	
+	/**
+	 * Merge sort row numbers by the values of the rows in three columns
+	 * @param rows the row numbers to sort
+	 * @param tmp scratch space the size of rows
+	 * @param from first position to sort
+	 * @param to position after the last to sort
+	 * @param cols the column values by row number
+	 */
+	private static void sortRows(int[] rows, int[] tmp, int from, int to, int[][] cols) {
+		if((to - from) < 2) {
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		sortRows(rows, tmp, from, mid, cols);
+		sortRows(rows, tmp, mid, to, cols);
+		if(compareRows(rows[mid - 1], rows[mid], cols) <= 0) {
+			return;
+		}
+		System.arraycopy(rows, from, tmp, from, to - from);
+		int a = from;
+		int b = mid;
+		for(int x = from; x < to; x++) {
+			if((b >= to) || ((a < mid) && (compareRows(tmp[a], tmp[b], cols) <= 0))) {
+				rows[x] = tmp[a++];
+			} else {
+				rows[x] = tmp[b++];
+			}
+		}
+	}
+	
+	/**
+	 * Compare two rows by their values in three columns
+	 * @param a the first row number
+	 * @param b the second row number
+	 * @param cols the column values by row number
+	 * @return negative, zero or positive as a sorts before, with or after b
+	 */
+	private static int compareRows(int a, int b, int[][] cols) {
+		for(int[] col : cols) {
+			if(col[a] != col[b]) {
+				return (col[a] < col[b]) ? -1 : 1;
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * Write a variable length int (seven bits per byte, high bit set on all but the last byte)
+	 * @param out the output
+	 * @param value the value, not negative
+	 */
+	private static void writeVarInt(ByteArrayOutputStream out, int value) {
+		int v = value;
+		while(v >= 0x80) {
+			out.write((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+	
+	/**
+	 * Iterates a range of index rows as triples
+	 */
+	private class RowIterator extends NiceIterator<Triple> {
+		/**
+		 * the index
+		 */
+		private final IntBuffer index;
+		/**
+		 * positions of subject, predicate and object within a row
+		 */
+		private final int[] columns;
+		/**
+		 * next row
+		 */
+		private int row;
+		/**
+		 * row after the last
+		 */
+		private final int end;
+		
+		/**
+		 * Constructor
+		 * @param index the index
+		 * @param columns positions of subject, predicate and object within a row
+		 * @param from first row
+		 * @param to row after the last
+		 */
+		protected RowIterator(IntBuffer index, int[] columns, int from, int to) {
+			this.index = index;
+			this.columns = columns;
+			this.row = from;
+			this.end = to;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return this.row < this.end;
+		}
+		
+		@Override
+		public Triple next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			int base = this.row * 3;
+			this.row++;
+			Node s = getNode(this.index.get(base + this.columns[0]));
+			Node p = getNode(this.index.get(base + this.columns[1]));
+			Node o = getNode(this.index.get(base + this.columns[2]));
+			return Triple.create(s, p, o);
+		}
+	}
+	
+	/**
+	 * A decoded node and its id
+	 */
+	private static class CachedNode {
+		/**
+		 * the id
+		 */
+		protected final int id;
+		/**
+		 * the node
+		 */
+		protected final Node node;
+		
+		/**
+		 * Constructor
+		 * @param id the id
+		 * @param node the node
+		 */
+		protected CachedNode(int id, Node node) {
+			this.id = id;
+			this.node = node;
+		}
+	}
+}
@@ -0,0 +1,408 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.io.IOException;
+import com.hp.hpl.jena.datatypes.RDFDatatype;
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.AnonId;
+
+/**
+ * Formats Jena nodes and triples as N-Triples terms and parses them back. Blank node labels are written so that parsing
+ * recreates the same Jena blank node, which lets separately written files (e.g. a snapshot and a journal) refer to the
+ * same blank nodes.
+ * @author VIVO Harvester Team
+ */
+class NTriplesCodec {
+	/**
+	 * Hex digits for escapes
+	 */
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	/**
+	 * Marks blank node labels written by writeBlankLabel. 'Z' followed by anything but a hex digit never occurs inside
+	 * an encoded label.
+	 */
+	private static final String BLANK_PREFIX = "Zjena";
+	
+	/**
+	 * Utility class
+	 */
+	private NTriplesCodec() {
+		// Nothing to do here
+	}
+	
+	/**
+	 * Write a triple as an N-Triples statement (without the terminating " .")
+	 * @param t the triple
+	 * @param out the output to write to
+	 * @throws IOException error writing
+	 */
+	protected static void writeTriple(Triple t, Appendable out) throws IOException {
+		writeNode(t.getSubject(), out);
+		out.append(' ');
+		writeNode(t.getPredicate(), out);
+		out.append(' ');
+		writeNode(t.getObject(), out);
+	}
+	
+	/**
+	 * Write a node as an N-Triples term
+	 * @param n the node
+	 * @param out the output to write to
+	 * @throws IOException error writing
+	 */
+	protected static void writeNode(Node n, Appendable out) throws IOException {
+		if(n.isURI()) {
+			out.append('<');
+			escape(n.getURI(), out);
+			out.append('>');
+		} else if(n.isBlank()) {
+			out.append("_:");
+			writeBlankLabel(n.getBlankNodeLabel(), out);
+		} else if(n.isLiteral()) {
+			out.append('"');
+			escape(n.getLiteralLexicalForm(), out);
+			out.append('"');
+			String lang = n.getLiteralLanguage();
+			String dt = n.getLiteralDatatypeURI();
+			if((lang != null) && (lang.length() > 0)) {
+				out.append('@');
+				out.append(lang);
+			} else if(dt != null) {
+				out.append("^^<");
+				escape(dt, out);
+				out.append('>');
+			}
+		} else {
+			throw new IllegalArgumentException("Cannot write variable node: " + n);
+		}
+	}
+	
+	/**
+	 * Write a Jena blank node label using only the characters N-Triples allows in a label ([A-Za-z0-9]). Every other
+	 * character, and 'Z' itself, is written as 'Z' followed by four hex digits, so the original label can be recovered.
+	 * The label is prefixed with BLANK_PREFIX so that labels written by other tools are not decoded.
+	 * @param label the jena blank node label
+	 * @param out the output to write to
+	 * @throws IOException error writing
+	 */
+	private static void writeBlankLabel(String label, Appendable out) throws IOException {
+		out.append(BLANK_PREFIX);
+		for(int x = 0; x < label.length(); x++) {
+			char c = label.charAt(x);
+			if(((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c < 'Z')) || ((c >= '0') && (c <= '9'))) {
+				out.append(c);
+			} else {
+				out.append('Z');
+				appendHex(c, 4, out);
+			}
+		}
+	}
+	
+	/**
+	 * Write a string escaped for use inside an N-Triples uri or literal
+	 * @param s the string
+	 * @param out the output to write to
+	 * @throws IOException error writing
+	 */
+	private static void escape(String s, Appendable out) throws IOException {
+		int len = s.length();
+		for(int x = 0; x < len; x++) {
+			char c = s.charAt(x);
+			if((c >= 0x20) && (c < 0x7F) && (c != '"') && (c != '\\')) {
+				out.append(c);
+			} else if(c == '"') {
+				out.append("\\\"");
+			} else if(c == '\\') {
+				out.append("\\\\");
+			} else if(c == '\n') {
+				out.append("\\n");
+			} else if(c == '\r') {
+				out.append("\\r");
+			} else if(c == '\t') {
+				out.append("\\t");
+			} else if(Character.isHighSurrogate(c) && ((x + 1) < len) && Character.isLowSurrogate(s.charAt(x + 1))) {
+				out.append("\\U");
+				appendHex(Character.toCodePoint(c, s.charAt(x + 1)), 8, out);
+				x++;
+			} else {
+				out.append("\\u");
+				appendHex(c, 4, out);
+			}
+		}
+	}
+	
+	/**
+	 * Write a value as fixed width uppercase hex
+	 * @param value the value
+	 * @param digits the number of digits
+	 * @param out the output to write to
+	 * @throws IOException error writing
+	 */
+	private static void appendHex(int value, int digits, Appendable out) throws IOException {
+		for(int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+			out.append(HEX[(value >> shift) & 0xF]);
+		}
+	}
+	
+	/**
+	 * Parse an N-Triples statement
+	 * @param line the line to parse
+	 * @param start the index in the line at which the statement starts
+	 * @return the triple, or null if the line is blank or a comment
+	 * @throws IllegalArgumentException the line is not a valid statement
+	 */
+	protected static Triple parseTriple(String line, int start) {
+		Cursor c = new Cursor(line, start);
+		c.skipSpace();
+		if(c.atEnd() || (c.peek() == '#')) {
+			return null;
+		}
+		Node s = c.readNode();
+		Node p = c.readNode();
+		Node o = c.readNode();
+		c.skipSpace();
+		c.expect('.');
+		return Triple.create(s, p, o);
+	}
+	
+	/**
+	 * Format a node as an N-Triples term
+	 * @param n the node
+	 * @return the term
+	 */
+	protected static String formatNode(Node n) {
+		StringBuilder sb = new StringBuilder();
+		try {
+			writeNode(n, sb);
+		} catch(IOException e) {
+			// StringBuilder does not throw
+			throw new IllegalStateException(e);
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Parse a single N-Triples term, as written by formatNode
+	 * @param term the term
+	 * @return the node
+	 * @throws IllegalArgumentException the term is not valid
+	 */
+	protected static Node parseNode(String term) {
+		return new Cursor(term, 0).readNode();
+	}
+	
+	/**
+	 * Position within a line being parsed
+	 */
+	private static class Cursor {
+		/**
+		 * the line
+		 */
+		private final String line;
+		/**
+		 * current index
+		 */
+		private int pos;
+		
+		/**
+		 * Constructor
+		 * @param line the line
+		 * @param pos starting index
+		 */
+		protected Cursor(String line, int pos) {
+			this.line = line;
+			this.pos = pos;
+		}
+		
+		/**
+		 * Is the cursor at the end of the line
+		 * @return true if no characters remain
+		 */
+		protected boolean atEnd() {
+			return this.pos >= this.line.length();
+		}
+		
+		/**
+		 * Get the current character
+		 * @return the character
+		 */
+		protected char peek() {
+			if(atEnd()) {
+				throw error("Unexpected end of line");
+			}
+			return this.line.charAt(this.pos);
+		}
+		
+		/**
+		 * Skip spaces and tabs
+		 */
+		protected void skipSpace() {
+			while(!atEnd() && ((this.line.charAt(this.pos) == ' ') || (this.line.charAt(this.pos) == '\t'))) {
+				this.pos++;
+			}
+		}
+		
+		/**
+		 * Consume the given character
+		 * @param ch the expected character
+		 */
+		protected void expect(char ch) {
+			if(peek() != ch) {
+				throw error("Expected '" + ch + "'");
+			}
+			this.pos++;
+		}
+		
+		/**
+		 * Read a uri, blank node or literal term
+		 * @return the node
+		 */
+		protected Node readNode() {
+			skipSpace();
+			char ch = peek();
+			if(ch == '<') {
+				return Node.createURI(readUri());
+			}
+			if(ch == '_') {
+				expect('_');
+				expect(':');
+				int begin = this.pos;
+				while(!atEnd() && Character.isLetterOrDigit(this.line.charAt(this.pos))) {
+					this.pos++;
+				}
+				return Node.createAnon(new AnonId(decodeBlankLabel(this.line.substring(begin, this.pos))));
+			}
+			if(ch == '"') {
+				this.pos++;
+				String lex = readEscaped('"');
+				if(!atEnd() && (this.line.charAt(this.pos) == '@')) {
+					this.pos++;
+					int begin = this.pos;
+					while(!atEnd() && (Character.isLetterOrDigit(this.line.charAt(this.pos)) || (this.line.charAt(this.pos) == '-'))) {
+						this.pos++;
+					}
+					return Node.createLiteral(lex, this.line.substring(begin, this.pos), false);
+				}
+				if(this.line.startsWith("^^", this.pos)) {
+					this.pos += 2;
+					RDFDatatype dt = TypeMapper.getInstance().getSafeTypeByName(readUri());
+					return Node.createLiteral(lex, null, dt);
+				}
+				return Node.createLiteral(lex);
+			}
+			throw error("Unexpected character '" + ch + "'");
+		}
+		
+		/**
+		 * Read a bracketed uri
+		 * @return the uri
+		 */
+		private String readUri() {
+			expect('<');
+			return readEscaped('>');
+		}
+		
+		/**
+		 * Read and unescape characters up to (and consuming) the given terminator
+		 * @param end the terminating character
+		 * @return the unescaped string
+		 */
+		private String readEscaped(char end) {
+			StringBuilder sb = new StringBuilder();
+			char ch;
+			while((ch = peek()) != end) {
+				this.pos++;
+				if(ch != '\\') {
+					sb.append(ch);
+					continue;
+				}
+				char esc = peek();
+				this.pos++;
+				if(esc == 'u') {
+					sb.append((char)readHex(4));
+				} else if(esc == 'U') {
+					sb.appendCodePoint(readHex(8));
+				} else if(esc == 'n') {
+					sb.append('\n');
+				} else if(esc == 'r') {
+					sb.append('\r');
+				} else if(esc == 't') {
+					sb.append('\t');
+				} else if((esc == '"') || (esc == '\\') || (esc == '>')) {
+					sb.append(esc);
+				} else {
+					throw error("Invalid escape '\\" + esc + "'");
+				}
+			}
+			this.pos++;
+			return sb.toString();
+		}
+		
+		/**
+		 * Read fixed width hex digits
+		 * @param digits the number of digits
+		 * @return the value
+		 */
+		private int readHex(int digits) {
+			if((this.pos + digits) > this.line.length()) {
+				throw error("Truncated escape");
+			}
+			try {
+				int value = Integer.parseInt(this.line.substring(this.pos, this.pos + digits), 16);
+				this.pos += digits;
+				return value;
+			} catch(NumberFormatException e) {
+				throw error("Invalid hex escape");
+			}
+		}
+		
+		/**
+		 * Build a parse error for the current position
+		 * @param message the problem
+		 * @return the exception
+		 */
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " at column " + this.pos + " of: " + this.line);
+		}
+	}
+	
+	/**
+	 * Recover a Jena blank node label written by writeBlankLabel. Labels without the prefix, or that are not a valid
+	 * encoding, were written by other tools and are used as they are.
+	 * @param label the N-Triples label
+	 * @return the jena label
+	 */
+	private static String decodeBlankLabel(String label) {
+		if(!label.startsWith(BLANK_PREFIX)) {
+			return label;
+		}
+		StringBuilder sb = new StringBuilder(label.length());
+		for(int x = BLANK_PREFIX.length(); x < label.length(); x++) {
+			char c = label.charAt(x);
+			if(c == 'Z') {
+				if((x + 5) > label.length()) {
+					return label;
+				}
+				int code = 0;
+				for(int y = x + 1; y < (x + 5); y++) {
+					int digit = Character.digit(label.charAt(y), 16);
+					if(digit < 0) {
+						return label;
+					}
+					code = (code << 4) | digit;
+				}
+				sb.append((char)code);
+				x += 4;
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
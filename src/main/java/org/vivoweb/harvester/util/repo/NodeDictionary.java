@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.util.Arrays;
+import com.hp.hpl.jena.graph.Node;
+
+/**
+ * Process wide dictionary interning URIs, literals and blank nodes to int ids, so every interned model holding the
+ * same node shares one Node instance. Entries are reference counted by the graphs holding them (the graphs keep ids,
+ * not Nodes, so a weak reference would be collected at once) and their ids are reused once released.
+ * @author VIVO Harvester Team
+ */
+class NodeDictionary extends IntHashTable {
+	/**
+	 * The dictionary shared by all interned models
+	 */
+	private static final NodeDictionary shared = new NodeDictionary();
+	/**
+	 * nodes by id
+	 */
+	private Node[] nodes;
+	/**
+	 * reference counts by id
+	 */
+	private int[] refs;
+	/**
+	 * released ids available for reuse
+	 */
+	private int[] free;
+	/**
+	 * number of released ids available
+	 */
+	private int freeCount;
+	/**
+	 * highest id ever handed out plus one
+	 */
+	private int high;
+	
+	/**
+	 * Constructor
+	 */
+	protected NodeDictionary() {
+		this.nodes = new Node[64];
+		this.refs = new int[64];
+		this.free = new int[16];
+		this.freeCount = 0;
+		this.high = 0;
+	}
+	
+	/**
+	 * Get the dictionary shared by all interned models
+	 * @return the shared dictionary
+	 */
+	protected static NodeDictionary getShared() {
+		return shared;
+	}
+	
+	@Override
+	protected int hashEntry(int entry) {
+		return this.nodes[entry].hashCode();
+	}
+	
+	@Override
+	protected boolean matches(int entry, Object key) {
+		return this.nodes[entry].equals(key);
+	}
+	
+	/**
+	 * Intern a node and add a reference to it
+	 * @param n the node
+	 * @return the node's id
+	 */
+	protected synchronized int acquire(Node n) {
+		int id = get(n.hashCode(), n);
+		if(id < 0) {
+			if(this.freeCount > 0) {
+				id = this.free[--this.freeCount];
+			} else {
+				if(this.high == this.nodes.length) {
+					this.nodes = Arrays.copyOf(this.nodes, this.high * 2);
+					this.refs = Arrays.copyOf(this.refs, this.high * 2);
+				}
+				id = this.high++;
+			}
+			this.nodes[id] = n;
+			add(id);
+		}
+		this.refs[id]++;
+		return id;
+	}
+	
+	/**
+	 * Drop a reference to a node, releasing its id when none are left
+	 * @param id the node's id
+	 */
+	protected synchronized void release(int id) {
+		if(--this.refs[id] == 0) {
+			Node n = this.nodes[id];
+			remove(n.hashCode(), n);
+			this.nodes[id] = null;
+			if(this.freeCount == this.free.length) {
+				this.free = Arrays.copyOf(this.free, this.freeCount * 2);
+			}
+			this.free[this.freeCount++] = id;
+		}
+	}
+	
+	/**
+	 * Get the id of a node without adding a reference
+	 * @param n the node
+	 * @return the id, or -1 if the node is not interned
+	 */
+	protected synchronized int lookup(Node n) {
+		return get(n.hashCode(), n);
+	}
+	
+	/**
+	 * Get the node with an id
+	 * @param id the id
+	 * @return the node
+	 */
+	protected synchronized Node getNode(int id) {
+		return this.nodes[id];
+	}
+	
+	/**
+	 * Get the number of interned nodes
+	 * @return the number of nodes
+	 */
+	protected synchronized int getNodeCount() {
+		return size();
+	}
+}
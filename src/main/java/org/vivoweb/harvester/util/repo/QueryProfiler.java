@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.sparql.algebra.Algebra;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.algebra.op.Op1;
+import com.hp.hpl.jena.sparql.algebra.op.Op2;
+import com.hp.hpl.jena.sparql.algebra.op.OpN;
+import com.hp.hpl.jena.sparql.engine.ExecutionContext;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.sparql.engine.iterator.QueryIteratorWrapper;
+import com.hp.hpl.jena.sparql.engine.main.OpExecutor;
+import com.hp.hpl.jena.sparql.engine.main.OpExecutorFactory;
+import com.hp.hpl.jena.sparql.engine.main.QC;
+
+/**
+ * Profiles one query execution: the algebra before and after optimization, the wall time of each stage and the number
+ * of rows each operator (bgp, filter, join, ...) produced. Operators run more than once (e.g. the right side of an
+ * optional, once per row on the left) report the total rows and the number of executions.
+ * @author VIVO Harvester Team
+ */
+class QueryProfiler implements OpExecutorFactory {
+	/**
+	 * The algebra of the query
+	 */
+	private Op algebra;
+	/**
+	 * The optimized algebra of the query
+	 */
+	private Op optimized;
+	/**
+	 * The first operator run, the root of the plan actually executed (the engine may have transformed the optimized
+	 * algebra further, e.g. into quads for datasets)
+	 */
+	private Op executedRoot;
+	/**
+	 * Wall time of each stage in nanoseconds, in order
+	 */
+	private final Map<String, Long> stages;
+	/**
+	 * Rows produced and executions of each operator run (guarded by itself)
+	 */
+	private final Map<Op, long[]> operators;
+	
+	/**
+	 * Constructor
+	 */
+	protected QueryProfiler() {
+		this.stages = new LinkedHashMap<String, Long>();
+		this.operators = new IdentityHashMap<Op, long[]>();
+	}
+	
+	/**
+	 * Record the wall time of a stage
+	 * @param stage the stage name
+	 * @param start the System.nanoTime() the stage started at
+	 * @return the System.nanoTime() the stage ended at
+	 */
+	protected long stage(String stage, long start) {
+		long now = System.nanoTime();
+		this.stages.put(stage, Long.valueOf(now - start));
+		return now;
+	}
+	
+	/**
+	 * Compile and optimize a query as the query engine will, recording the algebra and the time taken
+	 * @param query the query
+	 */
+	protected void compile(Query query) {
+		long start = System.nanoTime();
+		this.algebra = Algebra.compile(query);
+		start = stage("compile", start);
+		this.optimized = Algebra.optimize(this.algebra);
+		stage("optimize", start);
+	}
+	
+	/**
+	 * Count the rows of every operator run by an execution
+	 * @param qe the execution, not yet started
+	 */
+	protected void attach(QueryExecution qe) {
+		QC.setFactory(qe.getContext(), this);
+	}
+	
+	@Override
+	public OpExecutor create(ExecutionContext execCxt) {
+		return new ProfilingOpExecutor(execCxt);
+	}
+	
+	/**
+	 * Get the report of the profile
+	 * @return the report
+	 */
+	protected String getReport() {
+		StringBuilder sb = new StringBuilder();
+		if(this.algebra != null) {
+			sb.append("Algebra:\n").append(this.algebra);
+			sb.append("Optimized algebra:\n").append(this.optimized);
+		}
+		sb.append("Stage times:\n");
+		for(Map.Entry<String, Long> stage : this.stages.entrySet()) {
+			sb.append("  ").append(stage.getKey()).append(": ").append(TimeUnit.NANOSECONDS.toMillis(stage.getValue().longValue())).append("ms\n");
+		}
+		sb.append("Operator rows:\n");
+		synchronized(this.operators) {
+			appendOperator(sb, this.executedRoot, 1);
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Append an operator and the operators below it to the report
+	 * @param sb the report
+	 * @param op the operator
+	 * @param depth the depth of the operator
+	 */
+	private void appendOperator(StringBuilder sb, Op op, int depth) {
+		if(op == null) {
+			return;
+		}
+		for(int x = 0; x < depth; x++) {
+			sb.append("  ");
+		}
+		long[] counts = this.operators.get(op);
+		if(counts == null) {
+			sb.append("not run");
+		} else {
+			sb.append(counts[0]).append(" rows");
+			if(counts[1] > 1) {
+				sb.append(" in ").append(counts[1]).append(" executions");
+			}
+		}
+		String text = op.toString().replaceAll("\\s+", " ").trim();
+		if(text.length() > 120) {
+			text = text.substring(0, 117) + "...";
+		}
+		sb.append(": ").append(text).append("\n");
+		if(op instanceof Op1) {
+			appendOperator(sb, ((Op1)op).getSubOp(), depth + 1);
+		} else if(op instanceof Op2) {
+			appendOperator(sb, ((Op2)op).getLeft(), depth + 1);
+			appendOperator(sb, ((Op2)op).getRight(), depth + 1);
+		} else if(op instanceof OpN) {
+			for(Op sub : ((OpN)op).getElements()) {
+				appendOperator(sb, sub, depth + 1);
+			}
+		}
+	}
+	
+	/**
+	 * Get the counts of an operator, recording an execution
+	 * @param op the operator
+	 * @return the counts: rows and executions
+	 */
+	protected long[] executed(Op op) {
+		synchronized(this.operators) {
+			if(this.executedRoot == null) {
+				this.executedRoot = op;
+			}
+			long[] counts = this.operators.get(op);
+			if(counts == null) {
+				counts = new long[2];
+				this.operators.put(op, counts);
+			}
+			counts[1]++;
+			return counts;
+		}
+	}
+	
+	/**
+	 * Executor wrapping the iterator of every operator it runs to count its rows
+	 */
+	private class ProfilingOpExecutor extends OpExecutor {
+		/**
+		 * Constructor
+		 * @param execCxt the execution context
+		 */
+		protected ProfilingOpExecutor(ExecutionContext execCxt) {
+			super(execCxt);
+		}
+		
+		@Override
+		protected QueryIterator executeOp(Op op, QueryIterator input) {
+			return new CountingIterator(super.executeOp(op, input), executed(op));
+		}
+	}
+	
+	/**
+	 * Iterator counting the rows passing through it
+	 */
+	private class CountingIterator extends QueryIteratorWrapper {
+		/**
+		 * the counts to add rows to
+		 */
+		private final long[] counts;
+		
+		/**
+		 * Constructor
+		 * @param it the iterator
+		 * @param counts the counts to add rows to
+		 */
+		protected CountingIterator(QueryIterator it, long[] counts) {
+			super(it);
+			this.counts = counts;
+		}
+		
+		@Override
+		protected Binding moveToNextBinding() {
+			Binding b = super.moveToNextBinding();
+			synchronized(QueryProfiler.this.operators) {
+				this.counts[0]++;
+			}
+			return b;
+		}
+	}
+}
@@ -7,6 +7,7 @@ package org.vivoweb.harvester.util.repo;
 
 import java.io.IOException;
 import java.sql.Connection;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vivoweb.harvester.util.IterableAdaptor;
@@ -31,6 +32,14 @@ public class RDBJenaConnect extends DBJenaConnect {
 	 * The jdbc connection
 	 */
 	private IDBConnection conn;
+	/**
+	 * number of open RDBJenaConnects using the connection (this one and its neighbor clones)
+	 */
+	private final AtomicInteger connUsers;
+	/**
+	 * this connection has been closed
+	 */
+	private boolean closed;
 	
 	/**
 	 * Constructor (Default Model)
@@ -58,6 +67,7 @@ public class RDBJenaConnect extends DBJenaConnect {
 	public RDBJenaConnect(String dbUrl, String dbUser, String dbPass, String dbType, String dbClass, String modelName) throws IOException {
 		super(dbUrl, dbUser, dbPass, dbType, dbClass);
 		this.conn = initDB(buildConnection(), getDbType());
+		this.connUsers = new AtomicInteger(1);
 		init(modelName);
 	}
 	
@@ -69,7 +79,17 @@ public class RDBJenaConnect extends DBJenaConnect {
 	 */
 	private RDBJenaConnect(RDBJenaConnect original, String modelName) throws IOException {
 		super(original);
-		this.conn = initDB(buildConnection(), getDbType());
+		synchronized(original.connUsers) {
+			if(original.connUsers.get() > 0) {
+				// share the original's connection rather than opening another
+				this.conn = original.conn;
+				this.connUsers = original.connUsers;
+				this.connUsers.incrementAndGet();
+			} else {
+				this.conn = initDB(buildConnection(), getDbType());
+				this.connUsers = new AtomicInteger(1);
+			}
+		}
 		init(modelName);
 	}
 	
@@ -91,7 +111,17 @@ public class RDBJenaConnect extends DBJenaConnect {
 	public void close() {
 		super.close();
 		getJenaModel().close();
+		synchronized(this.connUsers) {
+			if(this.closed) {
+				return;
+			}
+			this.closed = true;
+			if(this.connUsers.decrementAndGet() > 0) {
+				return;
+			}
+		}
 		try {
+			// returns the connection to the pool
 			this.conn.close();
 		} catch(Exception e) {
 			// ignore
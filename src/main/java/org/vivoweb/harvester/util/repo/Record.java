@@ -5,21 +5,38 @@
  ******************************************************************************/
 package org.vivoweb.harvester.util.repo;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 
 /**
- * Individual record
+ * Individual record. The data is held as text, as bytes, or both: a record read from storage as bytes is only decoded
+ * when its text is asked for, and text is only encoded once when its bytes are asked for.
  * @author Christopher Haines (hainesc@ctrip.ufl.edu)
  */
 public class Record {
+	/**
+	 * Character set of record data as bytes
+	 */
+	public static final Charset DATA_CHARSET = Charset.forName("UTF-8");
 	/**
 	 * ID of this record
 	 */
 	private String id;
 	/**
-	 * Data for this record
+	 * Data for this record, null until decoded if created from bytes
 	 */
 	private String data;
+	/**
+	 * Data for this record as bytes in DATA_CHARSET, null until encoded if created from text
+	 */
+	private byte[] bytes;
+	/**
+	 * md5 of the data, null until computed
+	 */
+	private String md5;
 	/**
 	 * the recordhandler this record came from
 	 */
@@ -34,6 +51,20 @@ public class Record {
 	protected Record(String recID, String recData, RecordHandler recordhandler) {
 		this.id = recID;
 		this.data = recData;
+		this.bytes = null;
+		this.rh = recordhandler;
+	}
+	
+	/**
+	 * Constructor
+	 * @param recID records id
+	 * @param recData records data as bytes in DATA_CHARSET, not copied
+	 * @param recordhandler the recordhandler this record came from
+	 */
+	protected Record(String recID, byte[] recData, RecordHandler recordhandler) {
+		this.id = recID;
+		this.data = null;
+		this.bytes = recData;
 		this.rh = recordhandler;
 	}
 	
@@ -53,6 +84,21 @@ public class Record {
 	 */
 	public void setData(String newData, Class<?> operator) throws IOException {
 		this.data = newData;
+		this.bytes = null;
+		this.md5 = null;
+		this.rh.addRecord(this, operator, true);
+	}
+	
+	/**
+	 * Setter for Data as bytes
+	 * @param newData data to be used, as bytes in DATA_CHARSET, not copied
+	 * @param operator the class setting the data
+	 * @throws IOException error writing data to recordhandler
+	 */
+	public void setDataBytes(byte[] newData, Class<?> operator) throws IOException {
+		this.data = null;
+		this.bytes = newData;
+		this.md5 = null;
 		this.rh.addRecord(this, operator, true);
 	}
 	
@@ -61,9 +107,63 @@ public class Record {
 	 * @return the records data
 	 */
 	public String getData() {
+		if((this.data == null) && (this.bytes != null)) {
+			this.data = new String(this.bytes, DATA_CHARSET);
+		}
 		return this.data;
 	}
 	
+	/**
+	 * Getter for Data as bytes in DATA_CHARSET. The array is shared with the record and must not be modified.
+	 * @return the records data as bytes
+	 */
+	public byte[] getDataBytes() {
+		if((this.bytes == null) && (this.data != null)) {
+			this.bytes = this.data.getBytes(DATA_CHARSET);
+		}
+		return this.bytes;
+	}
+	
+	/**
+	 * Open a stream reading the records data as bytes in DATA_CHARSET
+	 * @return the stream
+	 */
+	public InputStream openStream() {
+		return new ByteArrayInputStream(getDataBytes());
+	}
+	
+	/**
+	 * Get the md5 of the records data, as stored in its metadata, computed from whichever form the data is held in
+	 * @return the md5 as hex digits
+	 */
+	protected String getMD5() {
+		if(this.md5 == null) {
+			this.md5 = (this.data != null) ? RecordMetaData.md5hex(this.data) : RecordMetaData.md5hex(this.bytes);
+		}
+		return this.md5;
+	}
+	
+	/**
+	 * Remove leading and trailing whitespace from text held as bytes in DATA_CHARSET, as String.trim() does on the text
+	 * (the characters trimmed are all single bytes)
+	 * @param data the bytes
+	 * @return the trimmed bytes, the same array if there was nothing to trim
+	 */
+	protected static byte[] trim(byte[] data) {
+		int start = 0;
+		int end = data.length;
+		while((start < end) && ((data[start] & 0xff) <= ' ')) {
+			start++;
+		}
+		while((end > start) && ((data[end - 1] & 0xff) <= ' ')) {
+			end--;
+		}
+		if((start == 0) && (end == data.length)) {
+			return data;
+		}
+		return Arrays.copyOfRange(data, start, end);
+	}
+	
 	/**
 	 * Set this record as processed by the given operator
 	 * @param operator the operator that processed this record
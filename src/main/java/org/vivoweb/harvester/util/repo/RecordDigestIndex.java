@@ -0,0 +1,321 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.util.FileAide;
+
+/**
+ * Index of record id to the digest of the record's data when last written, so a RecordHandler can tell an unchanged
+ * record without reading its metadata from storage. Digests are either the md5 stored in the record metadata (so the
+ * index can be loaded from storage) or a faster 64 bit FNV-1a hash (which can only be learned as records are seen, or
+ * loaded from a sidecar file). Ids and digests are kept in flat arrays indexed by an open addressing table.
+ * @author VIVO Harvester Team
+ */
+class RecordDigestIndex extends IntHashTable {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(RecordDigestIndex.class);
+	/**
+	 * Name of the md5 digest algorithm
+	 */
+	protected static final String MD5 = "md5";
+	/**
+	 * Name of the fast digest algorithm
+	 */
+	protected static final String FAST = "fast";
+	/**
+	 * First int of a sidecar file
+	 */
+	private static final int SIDECAR_MAGIC = 0x52444931;
+	/**
+	 * use the fast digest rather than md5
+	 */
+	private final boolean fast;
+	/**
+	 * record ids by entry
+	 */
+	private String[] ids;
+	/**
+	 * digests by entry, two longs each
+	 */
+	private long[] digests;
+	/**
+	 * removed entries available for reuse
+	 */
+	private int[] free;
+	/**
+	 * number of removed entries available
+	 */
+	private int freeCount;
+	/**
+	 * highest entry ever used plus one
+	 */
+	private int high;
+	
+	/**
+	 * Constructor
+	 * @param algorithm the digest algorithm: "md5" or "fast"
+	 * @throws IllegalArgumentException unknown algorithm
+	 */
+	protected RecordDigestIndex(String algorithm) throws IllegalArgumentException {
+		if(MD5.equalsIgnoreCase(algorithm)) {
+			this.fast = false;
+		} else if(FAST.equalsIgnoreCase(algorithm)) {
+			this.fast = true;
+		} else {
+			throw new IllegalArgumentException("Unknown digest algorithm: " + algorithm);
+		}
+		this.ids = new String[64];
+		this.digests = new long[128];
+		this.free = new int[16];
+		this.freeCount = 0;
+		this.high = 0;
+	}
+	
+	/**
+	 * Does this index hold fast digests rather than md5s
+	 * @return true if fast digests
+	 */
+	protected boolean isFast() {
+		return this.fast;
+	}
+	
+	/**
+	 * Get the name of the digest algorithm
+	 * @return "md5" or "fast"
+	 */
+	protected String getAlgorithm() {
+		return this.fast ? FAST : MD5;
+	}
+	
+	@Override
+	protected int hashEntry(int entry) {
+		return this.ids[entry].hashCode();
+	}
+	
+	@Override
+	protected boolean matches(int entry, Object key) {
+		return this.ids[entry].equals(key);
+	}
+	
+	/**
+	 * Compute the digest of a record's data
+	 * @param rec the record
+	 * @return the digest
+	 */
+	protected long[] digest(Record rec) {
+		if(this.fast) {
+			return fastDigest(rec.getData());
+		}
+		return parseMD5(rec.getMD5());
+	}
+	
+	/**
+	 * Compute the fast digest of record data: 64 bit FNV-1a over the chars of the trimmed data, plus its length
+	 * @param data the record data
+	 * @return the digest
+	 */
+	protected static long[] fastDigest(String data) {
+		String text = data.trim();
+		long h = 0xcbf29ce484222325L;
+		for(int x = 0; x < text.length(); x++) {
+			h = (h ^ text.charAt(x)) * 0x100000001b3L;
+		}
+		return new long[]{text.length(), h};
+	}
+	
+	/**
+	 * Convert an md5 hex string to a digest
+	 * @param md5 the md5 as 32 hex digits
+	 * @return the digest
+	 * @throws IllegalArgumentException not an md5 hex string
+	 */
+	protected static long[] parseMD5(String md5) throws IllegalArgumentException {
+		if((md5 == null) || (md5.length() != 32)) {
+			throw new IllegalArgumentException("Not an md5: " + md5);
+		}
+		return new long[]{parseHex(md5, 0), parseHex(md5, 16)};
+	}
+	
+	/**
+	 * Is an md5 hex string the given digest, without parsing it into a new digest
+	 * @param md5 the md5 as hex digits, may be null or malformed
+	 * @param digest the digest
+	 * @return true if the md5 is well formed and equal to the digest
+	 */
+	protected static boolean matchesMD5(String md5, long[] digest) {
+		if((md5 == null) || (md5.length() != 32)) {
+			return false;
+		}
+		try {
+			return (parseHex(md5, 0) == digest[0]) && (parseHex(md5, 16) == digest[1]);
+		} catch(IllegalArgumentException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Parse 16 hex digits into a long
+	 * @param hex the hex string
+	 * @param start the index of the first digit
+	 * @return the value
+	 * @throws IllegalArgumentException not a hex digit
+	 */
+	private static long parseHex(String hex, int start) throws IllegalArgumentException {
+		long value = 0;
+		for(int x = start; x < (start + 16); x++) {
+			int digit = Character.digit(hex.charAt(x), 16);
+			if(digit < 0) {
+				throw new IllegalArgumentException("Not an md5: " + hex);
+			}
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+	
+	/**
+	 * Is the record's last written digest the given one
+	 * @param recID the record id
+	 * @param digest the digest of the data being written
+	 * @return true if the record is indexed with that digest
+	 */
+	protected synchronized boolean isUnchanged(String recID, long[] digest) {
+		int entry = get(recID.hashCode(), recID);
+		return (entry >= 0) && (this.digests[2 * entry] == digest[0]) && (this.digests[(2 * entry) + 1] == digest[1]);
+	}
+	
+	/**
+	 * Set the last written digest of a record
+	 * @param recID the record id
+	 * @param digest the digest
+	 */
+	protected synchronized void put(String recID, long[] digest) {
+		int entry = get(recID.hashCode(), recID);
+		if(entry < 0) {
+			if(this.freeCount > 0) {
+				entry = this.free[--this.freeCount];
+			} else {
+				if(this.high == this.ids.length) {
+					this.ids = Arrays.copyOf(this.ids, this.high * 2);
+					this.digests = Arrays.copyOf(this.digests, this.high * 4);
+				}
+				entry = this.high++;
+			}
+			this.ids[entry] = recID;
+			add(entry);
+		}
+		this.digests[2 * entry] = digest[0];
+		this.digests[(2 * entry) + 1] = digest[1];
+	}
+	
+	/**
+	 * Set the last written md5 of a record, as stored in its metadata
+	 * @param recID the record id
+	 * @param md5 the md5 as hex digits
+	 * @return true if set, false if the md5 is malformed (the record is then left out of the index)
+	 */
+	protected boolean putMD5(String recID, String md5) {
+		long[] digest;
+		try {
+			digest = parseMD5(md5);
+		} catch(IllegalArgumentException e) {
+			return false;
+		}
+		put(recID, digest);
+		return true;
+	}
+	
+	/**
+	 * Forget a record
+	 * @param recID the record id
+	 */
+	protected synchronized void remove(String recID) {
+		int entry = get(recID.hashCode(), recID);
+		if(entry >= 0) {
+			remove(recID.hashCode(), recID);
+			this.ids[entry] = null;
+			if(this.freeCount == this.free.length) {
+				this.free = Arrays.copyOf(this.free, this.freeCount * 2);
+			}
+			this.free[this.freeCount++] = entry;
+		}
+	}
+	
+	/**
+	 * Get the number of records indexed
+	 * @return the number of records
+	 */
+	protected synchronized int getRecordCount() {
+		return size();
+	}
+	
+	/**
+	 * Write the index to a sidecar file
+	 * @param path the path of the file
+	 * @throws IOException error writing file
+	 */
+	protected synchronized void save(String path) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(FileAide.getOutputStream(path), 65536));
+		try {
+			out.writeInt(SIDECAR_MAGIC);
+			out.writeUTF(getAlgorithm());
+			out.writeInt(size());
+			for(int entry = 0; entry < this.high; entry++) {
+				if(this.ids[entry] != null) {
+					out.writeUTF(this.ids[entry]);
+					out.writeLong(this.digests[2 * entry]);
+					out.writeLong(this.digests[(2 * entry) + 1]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		log.debug("Saved digests of " + size() + " records to " + path);
+	}
+	
+	/**
+	 * Read a sidecar file into the index. The file is deleted once read, so a process that dies before saving the index
+	 * again does not leave an outdated sidecar behind.
+	 * @param path the path of the file
+	 * @return true if read, false if there is no sidecar or it holds another algorithm's digests
+	 * @throws IOException error reading file
+	 */
+	protected synchronized boolean load(String path) throws IOException {
+		if(!FileAide.exists(path)) {
+			return false;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(FileAide.getInputStream(path), 65536));
+		try {
+			if(in.readInt() != SIDECAR_MAGIC) {
+				throw new IOException("Not a record digest index: " + path);
+			}
+			String algorithm = in.readUTF();
+			if(!algorithm.equals(getAlgorithm())) {
+				log.info("Ignoring record digest index " + path + " holding " + algorithm + " digests");
+				return false;
+			}
+			int count = in.readInt();
+			for(int x = 0; x < count; x++) {
+				String recID = in.readUTF();
+				put(recID, new long[]{in.readLong(), in.readLong()});
+			}
+		} finally {
+			in.close();
+		}
+		FileAide.delete(path);
+		log.debug("Loaded digests of " + size() + " records from " + path);
+		return true;
+	}
+}
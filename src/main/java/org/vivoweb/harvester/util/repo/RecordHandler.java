@@ -8,11 +8,17 @@ package org.vivoweb.harvester.util.repo;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.SortedSet;
+import java.util.TreeSet;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -42,6 +48,22 @@ public abstract class RecordHandler implements Iterable<Record> {
 	 * Do we overwrite existing records by default
 	 */
 	private boolean overwriteDefault = true;
+	/**
+	 * Keep an index of the digest each record was last written with
+	 */
+	private boolean useDigestIndex = false;
+	/**
+	 * The digest algorithm of the index: "md5" or "fast"
+	 */
+	private String digestAlgorithm = RecordDigestIndex.MD5;
+	/**
+	 * The file the index is saved to at close and loaded from when first needed, null for none
+	 */
+	private String digestSidecar;
+	/**
+	 * Index of the digest each record was last written with, null until first needed
+	 */
+	private RecordDigestIndex digestIndex;
 	
 	/**
 	 * Sets parameters from param list
@@ -74,6 +96,19 @@ public abstract class RecordHandler implements Iterable<Record> {
 		return addRecord(new Record(recID, recData, this), creator, overwrite);
 	}
 	
+	/**
+	 * Adds a record to the RecordHandler
+	 * @param recID record id to add
+	 * @param recData record data to add, as bytes in Record.DATA_CHARSET
+	 * @param creator the creator
+	 * @param overwrite when set to true, will automatically overwrite existing records
+	 * @return true if added, false if not needed (aka record already existed and was the same)
+	 * @throws IOException error adding
+	 */
+	public boolean addRecord(String recID, byte[] recData, Class<?> creator, boolean overwrite) throws IOException {
+		return addRecord(new Record(recID, recData, this), creator, overwrite);
+	}
+	
 	/**
 	 * Adds a record to the RecordHandler If overwriteDefault is set to true, will automatically overwrite existing
 	 * records
@@ -99,6 +134,19 @@ public abstract class RecordHandler implements Iterable<Record> {
 		return addRecord(new Record(recID, recData, this), creator);
 	}
 	
+	/**
+	 * Adds a record to the RecordHandler If overwriteDefault is set to true, will automatically overwrite existing
+	 * records
+	 * @param recID record id to add
+	 * @param recData record data to add, as bytes in Record.DATA_CHARSET
+	 * @param creator the creator
+	 * @return true if added, false if not needed (aka record already existed and was the same)
+	 * @throws IOException error adding
+	 */
+	public boolean addRecord(String recID, byte[] recData, Class<?> creator) throws IOException {
+		return addRecord(new Record(recID, recData, this), creator);
+	}
+	
 	/**
 	 * Get a record
 	 * @param recID record id to get
@@ -119,6 +167,18 @@ public abstract class RecordHandler implements Iterable<Record> {
 	 */
 	public abstract String getRecordData(String recID) throws IllegalArgumentException, IOException;
 	
+	/**
+	 * Retrieve the data for a given record as bytes in Record.DATA_CHARSET. Handlers storing bytes override this (and
+	 * getRecord) to skip decoding the data; by default the text data is encoded.
+	 * @param recID id of record to retrieve
+	 * @return data from record
+	 * @throws IllegalArgumentException id not found
+	 * @throws IOException error reading
+	 */
+	public byte[] getRecordDataBytes(String recID) throws IllegalArgumentException, IOException {
+		return getRecordData(recID).getBytes(Record.DATA_CHARSET);
+	}
+	
 	/**
 	 * Retrieves all metadata for a given record
 	 * @param recID id of record to retrieve metadata for
@@ -172,7 +232,94 @@ public abstract class RecordHandler implements Iterable<Record> {
 	 * @throws IOException error adding meta data
 	 */
 	protected void addMetaData(Record rec, Class<?> operator, RecordMetaDataType type) throws IOException {
-		addMetaData(rec, new RecordMetaData(operator, type, RecordMetaData.md5hex(rec.getData())));
+		String md5 = rec.getMD5();
+		addMetaData(rec, new RecordMetaData(operator, type, md5));
+		if(type == RecordMetaDataType.written) {
+			RecordDigestIndex index = getDigestIndex();
+			if(index != null) {
+				if(index.isFast()) {
+					index.put(rec.getID(), index.digest(rec));
+				} else {
+					index.putMD5(rec.getID(), md5);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Configure the index of the digest each record was last written with, which lets needsUpdated tell an unchanged
+	 * record without reading its metadata from storage. The index trusts its cached digests, so only turn it on when
+	 * this handler is the only writer of its storage while open: a record changed or deleted by another writer would
+	 * be skipped as unchanged.
+	 * @param enabled keep the index (off by default)
+	 * @param algorithm "md5" (default) to index the md5 stored in the metadata, so the index can be loaded from
+	 * storage, or "fast" for a cheaper non-cryptographic hash learned as records are seen
+	 * @param sidecar file to save the index to at close and load it from when first needed, null for none
+	 * @throws IllegalArgumentException unknown algorithm
+	 */
+	public synchronized void setDigestIndex(boolean enabled, String algorithm, String sidecar) throws IllegalArgumentException {
+		if(!RecordDigestIndex.MD5.equalsIgnoreCase(algorithm) && !RecordDigestIndex.FAST.equalsIgnoreCase(algorithm)) {
+			throw new IllegalArgumentException("Unknown digest algorithm: " + algorithm);
+		}
+		this.useDigestIndex = enabled;
+		this.digestAlgorithm = algorithm;
+		this.digestSidecar = sidecar;
+		this.digestIndex = null;
+	}
+	
+	/**
+	 * Get the digest index, loading it when first needed
+	 * @return the index, or null if turned off
+	 */
+	private synchronized RecordDigestIndex getDigestIndex() {
+		if(!this.useDigestIndex) {
+			return null;
+		}
+		if(this.digestIndex == null) {
+			this.digestIndex = new RecordDigestIndex(this.digestAlgorithm);
+			try {
+				if(((this.digestSidecar == null) || !this.digestIndex.load(this.digestSidecar)) && !this.digestIndex.isFast()) {
+					loadDigests(this.digestIndex);
+				}
+				log.debug("Record digest index holds " + this.digestIndex.getRecordCount() + " records");
+			} catch(IOException e) {
+				// whatever was loaded is still correct, the rest is learned as records are seen
+				log.warn("Unable to load record digest index: " + e.getMessage());
+				log.debug("Stacktrace:",e);
+			}
+		}
+		return this.digestIndex;
+	}
+	
+	/**
+	 * Load the md5 each record was last written with into the digest index. Does nothing by default, so the index
+	 * only learns records as they are seen; handlers that can read all metadata cheaply override this.
+	 * @param index the index to load
+	 * @throws IOException error reading metadata
+	 */
+	protected void loadDigests(RecordDigestIndex index) throws IOException {
+		// Nothing to load by default
+	}
+	
+	/**
+	 * Drop a record from the digest index, called when its metadata is deleted
+	 * @param recID the record id
+	 */
+	protected synchronized void forgetDigest(String recID) {
+		if(this.digestIndex != null) {
+			this.digestIndex.remove(recID);
+		}
+	}
+	
+	/**
+	 * Save the digest index to its sidecar, if any, and drop it; called when the handler is closed
+	 * @throws IOException error writing sidecar
+	 */
+	protected synchronized void closeDigestIndex() throws IOException {
+		if((this.digestIndex != null) && (this.digestSidecar != null)) {
+			this.digestIndex.save(this.digestSidecar);
+		}
+		this.digestIndex = null;
 	}
 	
 	/**
@@ -285,6 +432,10 @@ public abstract class RecordHandler implements Iterable<Record> {
 				throw new IllegalArgumentException("Class must extend RecordHandler");
 			}
 			rh = (RecordHandler)tempRH;
+			String digestIndex = rh.getParam(params, "digestIndex", false);
+			String digestAlgorithm = rh.getParam(params, "digestAlgorithm", false);
+			String digestSidecar = rh.getParam(params, "digestSidecar", false);
+			rh.setDigestIndex(Boolean.parseBoolean(digestIndex), (digestAlgorithm == null) ? RecordDigestIndex.MD5 : digestAlgorithm, digestSidecar);
 			rh.setParams(params);
 		} catch(ClassNotFoundException e) {
 			throw new IllegalArgumentException(e);
@@ -420,6 +571,155 @@ public abstract class RecordHandler implements Iterable<Record> {
 		}
 	}
 	
+	/**
+	 * Has a record been written since last processed by operator, judged from its metadata
+	 * @param rmdSet the record's metadata, newest first
+	 * @param operator the class to check for
+	 * @return true if written since last processed by operator, if never processed by operator or if never written
+	 */
+	protected static boolean needsProcessed(SortedSet<RecordMetaData> rmdSet, Class<?> operator) {
+		RecordMetaData rmdProcess = null;
+		for(RecordMetaData rmd : rmdSet) {
+			if(rmd.getOperation() == RecordMetaDataType.written) {
+				// the last write, after any later processing seen so far
+				return (rmdProcess == null) || (rmdProcess.getDate().compareTo(rmd.getDate()) < 0);
+			}
+			if((rmdProcess == null) && (rmd.getOperation() == RecordMetaDataType.processed) && rmd.getOperator().equals(operator)) {
+				rmdProcess = rmd;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Get the records written since last processed by operator (or never processed by it). Handlers answer this in
+	 * bulk from their metadata where they can; by default every record is read and checked with needsProcessed.
+	 * @param operator the class to check for
+	 * @return the records needing processing, read as they are iterated
+	 * @throws IOException error reading metadata
+	 */
+	public Iterable<Record> pendingRecords(final Class<?> operator) throws IOException {
+		return new Iterable<Record>() {
+			@Override
+			public Iterator<Record> iterator() {
+				final Iterator<Record> recIter = RecordHandler.this.iterator();
+				return new Iterator<Record>() {
+					/**
+					 * The next pending record, null if not yet found
+					 */
+					private Record nextRec;
+					
+					@Override
+					public boolean hasNext() {
+						while((this.nextRec == null) && recIter.hasNext()) {
+							Record r = recIter.next();
+							if(needsProcessed(r.getID(), operator)) {
+								this.nextRec = r;
+							}
+						}
+						return this.nextRec != null;
+					}
+					
+					@Override
+					public Record next() {
+						if(!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						Record r = this.nextRec;
+						this.nextRec = null;
+						return r;
+					}
+					
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+	
+	/**
+	 * Get the records with the given ids, each read as it is iterated
+	 * @param ids the record ids
+	 * @return the records
+	 */
+	protected Iterable<Record> getRecords(final Iterable<String> ids) {
+		return new Iterable<Record>() {
+			@Override
+			public Iterator<Record> iterator() {
+				final Iterator<String> idIter = ids.iterator();
+				return new Iterator<Record>() {
+					@Override
+					public boolean hasNext() {
+						return idIter.hasNext();
+					}
+					
+					@Override
+					public Record next() {
+						try {
+							return getRecord(idIter.next());
+						} catch(IOException e) {
+							throw new NoSuchElementException(e.getMessage());
+						}
+					}
+					
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+	
+	/**
+	 * Split the records into partitions to be iterated in parallel, each by its own thread. Together the partitions
+	 * hold every record once; records written while they are iterated may or may not be seen. Handlers split along
+	 * their storage where they can; by default there is a single partition holding every record.
+	 * @param n the number of partitions wanted
+	 * @return at least one and at most n partitions
+	 * @throws IllegalArgumentException n is less than one
+	 * @throws IOException error listing records
+	 */
+	public List<Iterable<Record>> partitions(int n) throws IllegalArgumentException, IOException {
+		checkPartitionCount(n);
+		return Collections.<Iterable<Record>>singletonList(this);
+	}
+	
+	/**
+	 * Check a requested number of partitions
+	 * @param n the number of partitions
+	 * @throws IllegalArgumentException n is less than one
+	 */
+	protected static void checkPartitionCount(int n) throws IllegalArgumentException {
+		if(n < 1) {
+			throw new IllegalArgumentException("Number of partitions must be at least 1: " + n);
+		}
+	}
+	
+	/**
+	 * Split a list of record ids into partitions of consecutive ids, each record read as it is iterated
+	 * @param ids the record ids
+	 * @param n the number of partitions wanted
+	 * @return at least one and at most n partitions
+	 */
+	protected List<Iterable<Record>> partitionRecords(List<String> ids, int n) {
+		List<Iterable<Record>> parts = new ArrayList<Iterable<Record>>(n);
+		int size = ids.size();
+		for(int x = 0; x < n; x++) {
+			int from = (int)(((long)size * x) / n);
+			int to = (int)(((long)size * (x + 1)) / n);
+			if(to > from) {
+				parts.add(getRecords(ids.subList(from, to)));
+			}
+		}
+		if(parts.isEmpty()) {
+			parts.add(getRecords(Collections.<String>emptyList()));
+		}
+		return parts;
+	}
+	
 	/**
 	 * Does the given record contain updated information compared to existing record data
 	 * @param rec the record
@@ -427,15 +727,31 @@ public abstract class RecordHandler implements Iterable<Record> {
 	 */
 	protected boolean needsUpdated(Record rec) {
 		// log.debug("Checking if Record "+rec.getID()+" needs updated");
+		RecordDigestIndex index = getDigestIndex();
+		long[] digest = null;
+		if(index != null) {
+			digest = index.digest(rec);
+			if(index.isUnchanged(rec.getID(), digest)) {
+				return false;
+			}
+		}
 		try {
 			RecordMetaData rmd = getLastMetaData(rec.getID(), RecordMetaDataType.written, null);
 			// Check if previous written record meta data exists
 			if(rmd != null) {
 				// Get previous record meta data md5
 				String oldMD5 = rmd.getMD5();
-				// If md5s same
-				String newMD5 = RecordMetaData.md5hex(rec.getData());
-				if(newMD5.equals(oldMD5)) {
+				// If md5s same (an md5 index already parsed the record's md5, so compare digests instead of hashing again)
+				boolean same;
+				if((index != null) && !index.isFast()) {
+					same = RecordDigestIndex.matchesMD5(oldMD5, digest);
+				} else {
+					same = rec.getMD5().equals(oldMD5);
+				}
+				if(same) {
+					if(index != null) {
+						index.put(rec.getID(), digest);
+					}
 					// do nothing more
 					// log.debug("Record "+rec.getID()+" has not changed... no need to update.");
 					return false;
@@ -454,12 +770,43 @@ public abstract class RecordHandler implements Iterable<Record> {
 	
 	/**
 	 * Find records with idText in their id
-	 * @param idText the text to find
+	 * @param idText the text to find (plain text, not a pattern)
 	 * @return list of ids that match
 	 * @throws IOException error searching
 	 */
 	public abstract Set<String> find(String idText) throws IOException;
 	
+	/**
+	 * Get the ids of all records without reading their data. Handlers list the ids from their storage; by default every
+	 * record is read.
+	 * @return the record ids, sorted
+	 * @throws IOException error listing records
+	 */
+	public SortedSet<String> getRecordIDs() throws IOException {
+		SortedSet<String> ids = new TreeSet<String>();
+		for(Record r : this) {
+			ids.add(r.getID());
+		}
+		return ids;
+	}
+	
+	/**
+	 * Find records whose id starts with a prefix
+	 * @param prefix the prefix
+	 * @return the ids that match, sorted
+	 * @throws IOException error searching
+	 */
+	public SortedSet<String> findByPrefix(String prefix) throws IOException {
+		SortedSet<String> retVal = new TreeSet<String>();
+		for(String id : getRecordIDs().tailSet(prefix)) {
+			if(!id.startsWith(prefix)) {
+				break;
+			}
+			retVal.add(id);
+		}
+		return retVal;
+	}
+	
 	/**
 	 * Run from commandline
 	 * @param args the commandline args
@@ -489,8 +836,8 @@ public abstract class RecordHandler implements Iterable<Record> {
 			throw new IllegalArgumentException("Cannot list contents when specifying a record id");
 		}
 		if(list) {
-			for(Record r : rh) {
-				os.println(r.getID());
+			for(String id : rh.getRecordIDs()) {
+				os.println(id);
 			}
 		}
 		if(recordId != null) {
@@ -516,6 +863,7 @@ public abstract class RecordHandler implements Iterable<Record> {
 		ArgParser parser = new ArgParser("RecordHandler");
 		parser.addArgument(new ArgDef().setShortOption('i').setLongOpt("input-config").setDescription("CONFIG_FILE configuration filename for input recordhandler").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('I').setLongOpt("inputOverride").withParameterValueMap("RH_PARAM", "VALUE").setDescription("override the RH_PARAM of input recordhanlder config using VALUE").setRequired(false));
+		parser.addArgument(new ArgDef().setShortOption('l').setLongOpt("list").setDescription("list the ids of all records").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('r').setLongOpt("recordId").withParameter(true, "RECORD_ID").setDescription("the record id to use").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('v').setLongOpt("value").withParameter(true, "RECORD_VALUE").setDescription("set the value of RECORD_ID to be RECORD_VALUE").setRequired(false));
 		parser.addArgument(new ArgDef().setShortOption('o').setLongOpt("output-file").withParameter(true, "FILE_PATH").setDescription("output to this file rather than stdout").setRequired(false));
@@ -546,6 +894,7 @@ public abstract class RecordHandler implements Iterable<Record> {
 			log.debug("Stacktrace:",e);
 			error = e;
 		} finally {
+			JenaConnectMetrics.logSummary();
 			log.info(getParser().getAppName() + ": End");
 			if(error != null) {
 				System.exit(1);
@@ -126,6 +126,15 @@ public class RecordMetaData implements Comparable<RecordMetaData> {
 		return DigestUtils.md5Hex(text.trim());
 	}
 	
+	/**
+	 * Make a md5hash of text held as bytes in Record.DATA_CHARSET, the same as the md5hash of the decoded text
+	 * @param data the bytes to md5
+	 * @return the md5 hash
+	 */
+	public static String md5hex(byte[] data) {
+		return DigestUtils.md5Hex(Record.trim(data));
+	}
+	
 	@Override
 	public String toString() {
 		return "<Date='" + this.date.getTimeInMillis() + "'><Operator='" + this.operator.getName() + "'><Operation='" + this.operation + "'><MD5='" + this.md5hash + "'>";
@@ -0,0 +1,401 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.util.FileAide;
+import org.vivoweb.harvester.util.repo.RecordMetaData.RecordMetaDataType;
+
+/**
+ * Append-only binary log of record metadata, with an in memory index of the live entries loaded at open. Each entry
+ * is either an addition (record id, timestamp, operation, operator, md5) or the deletion of all metadata of a record.
+ * Deletions and the metadata they drop stay in the file until it is compacted, which happens at open once they
+ * outnumber the live entries. Handlers opening the same log share one instance.
+ * @author VIVO Harvester Team
+ */
+class RecordMetaDataLog {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(RecordMetaDataLog.class);
+	/**
+	 * Entry marker for an addition
+	 */
+	private static final byte ADD = 1;
+	/**
+	 * Entry marker for a deletion
+	 */
+	private static final byte DELETE = 2;
+	/**
+	 * Open logs by canonical path (guarded by itself)
+	 */
+	private static final Map<String, RecordMetaDataLog> openLogs = new HashMap<String, RecordMetaDataLog>();
+	/**
+	 * The path of the log file
+	 */
+	private final String path;
+	/**
+	 * The URI of the log file, its key in openLogs
+	 */
+	private final String key;
+	/**
+	 * The metadata of each record
+	 */
+	private final Map<String, SortedSet<RecordMetaData>> index;
+	/**
+	 * Number of entries in the file
+	 */
+	private long entries;
+	/**
+	 * Number of entries in the file that are in the index
+	 */
+	private long liveEntries;
+	/**
+	 * Stream appending to the file
+	 */
+	private DataOutputStream out;
+	/**
+	 * Number of handlers using this log
+	 */
+	private int openCount;
+	
+	/**
+	 * Constructor
+	 * @param path the path of the log file
+	 * @param key the URI of the log file
+	 */
+	private RecordMetaDataLog(String path, String key) {
+		this.path = path;
+		this.key = key;
+		this.index = new HashMap<String, SortedSet<RecordMetaData>>();
+		this.entries = 0;
+		this.liveEntries = 0;
+		this.openCount = 0;
+	}
+	
+	/**
+	 * Open a log, loading it if no other handler has it open. Different paths to the same file share one log.
+	 * @param path the path of the log file
+	 * @return the log
+	 * @throws IOException error reading log
+	 */
+	protected static RecordMetaDataLog open(String path) throws IOException {
+		String key = FileAide.getURI(path);
+		synchronized(openLogs) {
+			RecordMetaDataLog rmdLog = openLogs.get(key);
+			if(rmdLog == null) {
+				rmdLog = new RecordMetaDataLog(path, key);
+				rmdLog.load();
+				openLogs.put(key, rmdLog);
+			}
+			rmdLog.openCount++;
+			return rmdLog;
+		}
+	}
+	
+	/**
+	 * Load the index from the file, compacting it if it holds more dead entries than live ones
+	 * @throws IOException error reading log
+	 */
+	private synchronized void load() throws IOException {
+		boolean torn = false;
+		if(FileAide.exists(this.path)) {
+			Map<String, Class<?>> operators = new HashMap<String, Class<?>>();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(FileAide.getInputStream(this.path), 65536));
+			RecordMetaDataType[] operations = RecordMetaDataType.values();
+			try {
+				// an entry that could not be decoded is only fine if nothing follows it
+				String malformed = null;
+				while(true) {
+					int marker = in.read();
+					if(malformed != null) {
+						if(marker >= 0) {
+							throw new IOException("Corrupt metadata log " + this.path + ": " + malformed + " in entry " + (this.entries + 1));
+						}
+						log.warn("Ignoring malformed last entry of metadata log " + this.path + ": " + malformed);
+						torn = true;
+						break;
+					}
+					if(marker < 0) {
+						break;
+					}
+					try {
+						String recID = readString(in);
+						if(marker == DELETE) {
+							if(recID == null) {
+								malformed = "bad record id";
+								continue;
+							}
+							drop(recID);
+						} else if(marker == ADD) {
+							long time = in.readLong();
+							int ordinal = in.readByte();
+							String operatorName = readString(in);
+							String md5 = readString(in);
+							if((recID == null) || (operatorName == null) || (md5 == null)) {
+								malformed = "bad string";
+								continue;
+							}
+							if((ordinal < 0) || (ordinal >= operations.length)) {
+								malformed = "unknown operation " + ordinal;
+								continue;
+							}
+							Class<?> operator = operators.get(operatorName);
+							if(operator == null) {
+								operator = Class.forName(operatorName);
+								operators.put(operatorName, operator);
+							}
+							index(recID, new RecordMetaData(toCalendar(time), operator, operations[ordinal], md5));
+						} else {
+							throw new IOException("Corrupt metadata log " + this.path + ": unknown entry type " + marker + " after " + this.entries + " entries");
+						}
+					} catch(EOFException e) {
+						// a write that died midway leaves a partial last entry
+						log.warn("Ignoring partial last entry of metadata log " + this.path);
+						torn = true;
+						break;
+					} catch(ClassNotFoundException e) {
+						throw new IOException("Unknown operator class in metadata log " + this.path + ": " + e.getMessage(), e);
+					}
+					this.entries++;
+				}
+			} finally {
+				in.close();
+			}
+			log.debug("Loaded metadata of " + this.index.size() + " records from " + this.path);
+		}
+		if(torn || ((this.entries - this.liveEntries) > this.liveEntries)) {
+			compact();
+		} else {
+			openOutput();
+		}
+	}
+	
+	/**
+	 * Read a string written with writeUTF. The whole string is consumed even when its bytes are not valid modified
+	 * UTF-8, so the rest of the entry can still be read.
+	 * @param in the stream to read from
+	 * @return the string, or null if it could not be decoded
+	 * @throws IOException error reading, including EOFException at the end of the file
+	 */
+	private static String readString(DataInputStream in) throws IOException {
+		try {
+			return in.readUTF();
+		} catch(UTFDataFormatException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Convert a timestamp to a Calendar
+	 * @param time the timestamp in milliseconds
+	 * @return the calendar
+	 */
+	private static Calendar toCalendar(long time) {
+		Calendar date = Calendar.getInstance(TimeZone.getTimeZone("GMT"), Locale.US);
+		date.setTimeInMillis(time);
+		return date;
+	}
+	
+	/**
+	 * Open the stream appending to the file
+	 * @throws IOException error opening file
+	 */
+	private void openOutput() throws IOException {
+		this.out = new DataOutputStream(new BufferedOutputStream(FileAide.getOutputStream(this.path, true), 4096));
+	}
+	
+	/**
+	 * Add metadata to the index
+	 * @param recID the record id
+	 * @param rmd the metadata
+	 */
+	private void index(String recID, RecordMetaData rmd) {
+		SortedSet<RecordMetaData> rmdSet = this.index.get(recID);
+		if(rmdSet == null) {
+			rmdSet = new TreeSet<RecordMetaData>();
+			this.index.put(recID, rmdSet);
+		}
+		if(rmdSet.add(rmd)) {
+			this.liveEntries++;
+		}
+	}
+	
+	/**
+	 * Remove the metadata of a record from the index
+	 * @param recID the record id
+	 * @return true if the record had metadata
+	 */
+	private boolean drop(String recID) {
+		SortedSet<RecordMetaData> rmdSet = this.index.remove(recID);
+		if(rmdSet == null) {
+			return false;
+		}
+		this.liveEntries -= rmdSet.size();
+		return true;
+	}
+	
+	/**
+	 * Write an addition entry
+	 * @param dos the stream to write to
+	 * @param recID the record id
+	 * @param rmd the metadata
+	 * @throws IOException error writing
+	 */
+	private static void writeAdd(DataOutputStream dos, String recID, RecordMetaData rmd) throws IOException {
+		dos.writeByte(ADD);
+		dos.writeUTF(recID);
+		dos.writeLong(rmd.getDate().getTimeInMillis());
+		dos.writeByte(rmd.getOperation().ordinal());
+		dos.writeUTF(rmd.getOperator().getName());
+		dos.writeUTF(rmd.getMD5());
+	}
+	
+	/**
+	 * Append metadata for a record
+	 * @param recID the record id
+	 * @param rmd the metadata
+	 * @throws IOException error writing log
+	 */
+	protected synchronized void add(String recID, RecordMetaData rmd) throws IOException {
+		writeAdd(this.out, recID, rmd);
+		this.out.flush();
+		this.entries++;
+		index(recID, rmd);
+	}
+	
+	/**
+	 * Append the deletion of all metadata for a record
+	 * @param recID the record id
+	 * @return true if the record had metadata
+	 * @throws IOException error writing log
+	 */
+	protected synchronized boolean delete(String recID) throws IOException {
+		if(!drop(recID)) {
+			return false;
+		}
+		this.out.writeByte(DELETE);
+		this.out.writeUTF(recID);
+		this.out.flush();
+		this.entries++;
+		return true;
+	}
+	
+	/**
+	 * Get the metadata of a record
+	 * @param recID the record id
+	 * @return the metadata, newest first, or null if the record has none
+	 */
+	protected synchronized SortedSet<RecordMetaData> get(String recID) {
+		SortedSet<RecordMetaData> rmdSet = this.index.get(recID);
+		if(rmdSet == null) {
+			return null;
+		}
+		return new TreeSet<RecordMetaData>(rmdSet);
+	}
+	
+	/**
+	 * Load the md5 each record was last written with into a digest index
+	 * @param digests the index
+	 */
+	protected synchronized void loadDigests(RecordDigestIndex digests) {
+		for(Map.Entry<String, SortedSet<RecordMetaData>> rec : this.index.entrySet()) {
+			// newest first
+			for(RecordMetaData rmd : rec.getValue()) {
+				if(rmd.getOperation() == RecordMetaDataType.written) {
+					digests.putMD5(rec.getKey(), rmd.getMD5());
+					break;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Has a record been written since last processed by operator
+	 * @param recID the record id
+	 * @param operator the class to check for
+	 * @return true if written since last processed by operator, or if the record has no metadata
+	 */
+	protected synchronized boolean needsProcessed(String recID, Class<?> operator) {
+		SortedSet<RecordMetaData> rmdSet = this.index.get(recID);
+		return (rmdSet == null) || RecordHandler.needsProcessed(rmdSet, operator);
+	}
+	
+	/**
+	 * Get the number of records with metadata
+	 * @return the number of records
+	 */
+	protected synchronized int getRecordCount() {
+		return this.index.size();
+	}
+	
+	/**
+	 * Get the number of entries in the file that compaction would drop
+	 * @return the number of dead entries
+	 */
+	protected synchronized long getDeadEntryCount() {
+		return this.entries - this.liveEntries;
+	}
+	
+	/**
+	 * Rewrite the file with only the live entries
+	 * @throws IOException error writing log
+	 */
+	protected synchronized void compact() throws IOException {
+		if(this.out != null) {
+			this.out.close();
+			this.out = null;
+		}
+		String tmp = this.path + ".compact";
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(FileAide.getOutputStream(tmp), 65536));
+		try {
+			for(Map.Entry<String, SortedSet<RecordMetaData>> rec : this.index.entrySet()) {
+				for(RecordMetaData rmd : rec.getValue()) {
+					writeAdd(dos, rec.getKey(), rmd);
+				}
+			}
+		} finally {
+			dos.close();
+		}
+		FileAide.move(tmp, this.path);
+		log.debug("Compacted metadata log " + this.path + ", dropped " + (this.entries - this.liveEntries) + " entries");
+		this.entries = this.liveEntries;
+		openOutput();
+	}
+	
+	/**
+	 * Close the log, the file is only really closed by the last handler using it
+	 * @throws IOException error closing file
+	 */
+	protected void close() throws IOException {
+		synchronized(openLogs) {
+			if(this.openCount == 0) {
+				return;
+			}
+			if(--this.openCount == 0) {
+				openLogs.remove(this.key);
+				synchronized(this) {
+					this.out.close();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,342 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * Producer/consumer pipeline that parses the records of a RecordHandler on a pool of parser threads and applies the
+ * parsed triples to a graph from a single writer thread
+ * @author VIVO Harvester Team
+ */
+class RecordTriplePipeline {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(RecordTriplePipeline.class);
+	/**
+	 * Marker record placed on the record queue to stop a parser thread
+	 */
+	private static final Record END_OF_RECORDS = new Record(null, (String)null, null);
+	/**
+	 * Marker batch placed on the batch queue to stop the writer thread
+	 */
+	private static final ParsedRecord END_OF_BATCHES = new ParsedRecord(null, null);
+	/**
+	 * Number of queued items allowed per parser thread before producers block
+	 */
+	private static final int QUEUE_FACTOR = 4;
+	/**
+	 * The graph to apply triples to
+	 */
+	private final Graph target;
+	/**
+	 * the base uri to use for imported uris
+	 */
+	private final String namespace;
+	/**
+	 * the rdf syntax language (RDF/XML, N3, TTL, etc). null = RDF/XML
+	 */
+	private final String language;
+	/**
+	 * number of parser threads
+	 */
+	private final int threads;
+	/**
+	 * removes the parsed triples rather than adding them, null to add
+	 */
+	private final TripleRemover remover;
+	/**
+	 * Records waiting to be parsed
+	 */
+	private final BlockingQueue<Record> recordQueue;
+	/**
+	 * Parsed records waiting to be applied
+	 */
+	private final BlockingQueue<ParsedRecord> batchQueue;
+	/**
+	 * First error raised by a parser or writer thread
+	 */
+	private volatile Throwable error;
+	
+	/**
+	 * Constructor
+	 * @param target the graph to apply triples to
+	 * @param namespace the base uri to use for imported uris
+	 * @param language the rdf syntax language (RDF/XML, N3, TTL, etc). null = RDF/XML
+	 * @param threads number of parser threads
+	 * @param remover removes the parsed triples rather than adding them, null to add
+	 */
+	protected RecordTriplePipeline(Graph target, String namespace, String language, int threads, TripleRemover remover) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("Must use at least one parser thread");
+		}
+		this.target = target;
+		this.namespace = namespace;
+		this.language = language;
+		this.threads = threads;
+		this.remover = remover;
+		this.recordQueue = new ArrayBlockingQueue<Record>(threads * QUEUE_FACTOR);
+		this.batchQueue = new ArrayBlockingQueue<ParsedRecord>(threads * QUEUE_FACTOR);
+	}
+	
+	/**
+	 * Run all records in the RecordHandler through the pipeline
+	 * @param rh the RecordHandler to pull records from
+	 * @return number of records processed
+	 */
+	protected int run(RecordHandler rh) {
+		List<Thread> parsers = new ArrayList<Thread>(this.threads);
+		for(int x = 0; x < this.threads; x++) {
+			Thread t = new Thread(new Parser(), "RecordTriplePipeline-parser-" + x);
+			t.setDaemon(true);
+			parsers.add(t);
+			t.start();
+		}
+		Writer writer = new Writer();
+		Thread writerThread = new Thread(writer, "RecordTriplePipeline-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+		int queued = 0;
+		try {
+			for(Record r : rh) {
+				if(this.error != null) {
+					break;
+				}
+				put(this.recordQueue, r);
+				queued++;
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			fail(e);
+		} catch(RuntimeException e) {
+			fail(e);
+			throw e;
+		} catch(Error e) {
+			fail(e);
+			throw e;
+		} finally {
+			// every way out waits for the workers, so none is still changing the graph once this returns
+			awaitWorkers(parsers, writerThread);
+		}
+		if(this.error instanceof RuntimeException) {
+			throw (RuntimeException)this.error;
+		} else if(this.error instanceof InterruptedException) {
+			throw new IllegalStateException("Interrupted while processing records", this.error);
+		} else if(this.error != null) {
+			throw new IllegalStateException("Pipeline worker failed", this.error);
+		}
+		log.debug("Pipeline processed " + queued + " records using " + this.threads + " parser threads");
+		return writer.getCount();
+	}
+	
+	/**
+	 * Stop the parser threads and then the writer thread, waiting for each to finish
+	 * @param parsers the parser threads
+	 * @param writerThread the writer thread
+	 */
+	private void awaitWorkers(List<Thread> parsers, Thread writerThread) {
+		boolean interrupted = false;
+		for(int x = 0; x < this.threads; x++) {
+			while(true) {
+				try {
+					put(this.recordQueue, END_OF_RECORDS);
+					break;
+				} catch(InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		for(Thread t : parsers) {
+			interrupted |= join(t);
+		}
+		while(true) {
+			try {
+				put(this.batchQueue, END_OF_BATCHES);
+				break;
+			} catch(InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		interrupted |= join(writerThread);
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Wait for a thread to finish, even if interrupted while waiting
+	 * @param t the thread
+	 * @return true if interrupted while waiting
+	 */
+	private static boolean join(Thread t) {
+		boolean interrupted = false;
+		while(true) {
+			try {
+				t.join();
+				return interrupted;
+			} catch(InterruptedException e) {
+				interrupted = true;
+			}
+		}
+	}
+	
+	/**
+	 * Put an item on a queue, giving up once another thread has failed
+	 * @param <T> the item type
+	 * @param queue the queue
+	 * @param item the item
+	 * @throws InterruptedException interrupted while waiting
+	 */
+	private <T> void put(BlockingQueue<T> queue, T item) throws InterruptedException {
+		while(!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+			if((this.error != null) && (item != END_OF_RECORDS) && (item != END_OF_BATCHES)) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Record the first error raised by a worker thread
+	 * @param e the error
+	 */
+	private synchronized void fail(Throwable e) {
+		if(this.error == null) {
+			this.error = e;
+		}
+	}
+	
+	/**
+	 * A record's triples, ready to be applied
+	 */
+	private static class ParsedRecord {
+		/**
+		 * The record id
+		 */
+		protected final String id;
+		/**
+		 * The parsed triples
+		 */
+		protected final List<Triple> triples;
+		
+		/**
+		 * Constructor
+		 * @param id the record id
+		 * @param triples the parsed triples
+		 */
+		protected ParsedRecord(String id, List<Triple> triples) {
+			this.id = id;
+			this.triples = triples;
+		}
+	}
+	
+	/**
+	 * Takes records off the record queue and parses them into triples
+	 */
+	private class Parser implements Runnable {
+		/**
+		 * Default Constructor
+		 */
+		protected Parser() {
+			// Nothing to do here
+		}
+		
+		@Override
+		public void run() {
+			try {
+				Record r;
+				while((r = RecordTriplePipeline.this.recordQueue.take()) != END_OF_RECORDS) {
+					if(RecordTriplePipeline.this.error != null) {
+						continue;
+					}
+					try {
+						List<Triple> triples;
+						InputStream in = r.openStream();
+						try {
+							triples = TripleCollectorGraph.parse(in, RecordTriplePipeline.this.namespace, RecordTriplePipeline.this.language);
+						} finally {
+							try {
+								in.close();
+							} catch(IOException e) {
+								// ignore
+							}
+						}
+						put(RecordTriplePipeline.this.batchQueue, new ParsedRecord(r.getID(), triples));
+					} catch(InterruptedException e) {
+						throw e;
+					} catch(Throwable e) {
+						log.error("Failed to parse record: " + r.getID());
+						fail(e);
+					}
+				}
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * Takes parsed records off the batch queue and applies them to the target graph
+	 */
+	private class Writer implements Runnable {
+		/**
+		 * Number of records applied
+		 */
+		private int count;
+		
+		/**
+		 * Default Constructor
+		 */
+		protected Writer() {
+			this.count = 0;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				ParsedRecord pr;
+				while((pr = RecordTriplePipeline.this.batchQueue.take()) != END_OF_BATCHES) {
+					if(RecordTriplePipeline.this.error != null) {
+						continue;
+					}
+					try {
+						if(RecordTriplePipeline.this.remover != null) {
+							log.trace("removing record: " + pr.id);
+							RecordTriplePipeline.this.remover.remove(pr.triples);
+						} else {
+							log.trace("loading record: " + pr.id);
+							RecordTriplePipeline.this.target.getBulkUpdateHandler().add(pr.triples);
+						}
+						this.count++;
+					} catch(Throwable e) {
+						log.error("Failed to apply record: " + pr.id);
+						fail(e);
+					}
+				}
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		/**
+		 * Get the number of records applied
+		 * @return the count
+		 */
+		protected int getCount() {
+			return this.count;
+		}
+	}
+}
@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.ResultSetFactory;
+import com.hp.hpl.jena.query.ResultSetRewindable;
+
+/**
+ * Bounded least recently used cache of select and ask results, keyed by normalized query text. Each entry remembers
+ * the model modification count it was computed at, and is only used while the model is unchanged.
+ * @author VIVO Harvester Team
+ */
+class ResultCache {
+	/**
+	 * Maximum number of entries
+	 */
+	private final int maxEntries;
+	/**
+	 * Maximum number of select rows held across all entries
+	 */
+	private final long maxRows;
+	/**
+	 * Cached results by key, in access order
+	 */
+	private final LinkedHashMap<String, Entry> entries;
+	/**
+	 * Number of select rows currently held
+	 */
+	private long rows;
+	/**
+	 * Number of lookups answered from the cache
+	 */
+	private long hits;
+	/**
+	 * Number of lookups not answered from the cache
+	 */
+	private long misses;
+	
+	/**
+	 * Constructor
+	 * @param maxEntries maximum number of entries
+	 * @param maxRows maximum number of select rows held across all entries
+	 */
+	protected ResultCache(int maxEntries, long maxRows) {
+		if((maxEntries < 1) || (maxRows < 1)) {
+			throw new IllegalArgumentException("Result cache limits must be positive");
+		}
+		this.maxEntries = maxEntries;
+		this.maxRows = maxRows;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		this.rows = 0;
+		this.hits = 0;
+		this.misses = 0;
+	}
+	
+	/**
+	 * Build the cache key for a query. Comments are dropped and runs of whitespace are collapsed outside of strings and
+	 * IRIs, so formatting differences do not defeat the cache.
+	 * @param queryString the query
+	 * @return the key
+	 */
+	protected static String key(String queryString) {
+		StringBuilder sb = new StringBuilder(queryString.length());
+		boolean space = true;
+		int x = 0;
+		while(x < queryString.length()) {
+			char c = queryString.charAt(x);
+			int end;
+			if((c == '"') || (c == '\'')) {
+				end = SparqlQueryCache.stringEnd(queryString, x);
+			} else if(c == '<') {
+				end = SparqlQueryCache.iriEnd(queryString, x);
+			} else if(c == '#') {
+				// comment to end of line, read as whitespace
+				while((x < queryString.length()) && (queryString.charAt(x) != '\n') && (queryString.charAt(x) != '\r')) {
+					x++;
+				}
+				c = ' ';
+				end = x;
+			} else {
+				end = x + 1;
+			}
+			if(Character.isWhitespace(c)) {
+				if(!space) {
+					sb.append(' ');
+					space = true;
+				}
+				x = Math.max(end, x + 1);
+			} else {
+				sb.append(queryString, x, end);
+				space = false;
+				x = end;
+			}
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Get a cached select result
+	 * @param key the query key
+	 * @param version the current model modification count
+	 * @return a fresh copy of the result, or null if not cached for this version
+	 */
+	protected synchronized ResultSet getSelect(String key, long version) {
+		Entry e = lookup(key, version);
+		if((e == null) || (e.results == null)) {
+			return null;
+		}
+		return copy(e.results);
+	}
+	
+	/**
+	 * Cache a select result
+	 * @param key the query key
+	 * @param version the model modification count the query ran at
+	 * @param results the results, fully read into memory
+	 * @return a fresh copy of the result for the caller
+	 */
+	protected synchronized ResultSet putSelect(String key, long version, ResultSetRewindable results) {
+		if(results.size() <= this.maxRows) {
+			store(key, new Entry(version, results, null));
+		}
+		return copy(results);
+	}
+	
+	/**
+	 * Get a cached ask result
+	 * @param key the query key
+	 * @param version the current model modification count
+	 * @return the result, or null if not cached for this version
+	 */
+	protected synchronized Boolean getAsk(String key, long version) {
+		Entry e = lookup(key, version);
+		if(e == null) {
+			return null;
+		}
+		return e.answer;
+	}
+	
+	/**
+	 * Cache an ask result
+	 * @param key the query key
+	 * @param version the model modification count the query ran at
+	 * @param answer the result
+	 */
+	protected synchronized void putAsk(String key, long version, boolean answer) {
+		store(key, new Entry(version, null, Boolean.valueOf(answer)));
+	}
+	
+	/**
+	 * Find an entry, counting the hit or miss and discarding it if stale
+	 * @param key the query key
+	 * @param version the current model modification count
+	 * @return the entry or null
+	 */
+	private Entry lookup(String key, long version) {
+		Entry e = this.entries.get(key);
+		if((e != null) && (e.version != version)) {
+			remove(key);
+			e = null;
+		}
+		if(e == null) {
+			this.misses++;
+		} else {
+			this.hits++;
+		}
+		return e;
+	}
+	
+	/**
+	 * Store an entry, evicting the least recently used entries to stay within the limits
+	 * @param key the query key
+	 * @param e the entry
+	 */
+	private void store(String key, Entry e) {
+		remove(key);
+		this.entries.put(key, e);
+		this.rows += e.size();
+		Iterator<Map.Entry<String, Entry>> it = this.entries.entrySet().iterator();
+		while(((this.entries.size() > this.maxEntries) || (this.rows > this.maxRows)) && it.hasNext()) {
+			Map.Entry<String, Entry> eldest = it.next();
+			if(eldest.getValue() == e) {
+				continue;
+			}
+			this.rows -= eldest.getValue().size();
+			it.remove();
+		}
+	}
+	
+	/**
+	 * Remove an entry
+	 * @param key the query key
+	 */
+	private void remove(String key) {
+		Entry old = this.entries.remove(key);
+		if(old != null) {
+			this.rows -= old.size();
+		}
+	}
+	
+	/**
+	 * Copy a cached result so each caller can iterate independently
+	 * @param results the cached result
+	 * @return the copy
+	 */
+	private static ResultSet copy(ResultSetRewindable results) {
+		results.reset();
+		ResultSet copy = ResultSetFactory.copyResults(results);
+		results.reset();
+		return copy;
+	}
+	
+	/**
+	 * Get the number of lookups answered from the cache
+	 * @return the hit count
+	 */
+	protected synchronized long getHits() {
+		return this.hits;
+	}
+	
+	/**
+	 * Get the number of lookups not answered from the cache
+	 * @return the miss count
+	 */
+	protected synchronized long getMisses() {
+		return this.misses;
+	}
+	
+	/**
+	 * A cached result
+	 */
+	private static class Entry {
+		/**
+		 * model modification count the result was computed at
+		 */
+		protected final long version;
+		/**
+		 * select results, null for ask
+		 */
+		protected final ResultSetRewindable results;
+		/**
+		 * ask result, null for select
+		 */
+		protected final Boolean answer;
+		
+		/**
+		 * Constructor
+		 * @param version model modification count the result was computed at
+		 * @param results select results, null for ask
+		 * @param answer ask result, null for select
+		 */
+		protected Entry(long version, ResultSetRewindable results, Boolean answer) {
+			this.version = version;
+			this.results = results;
+			this.answer = answer;
+		}
+		
+		/**
+		 * Get the number of rows this entry holds
+		 * @return the row count
+		 */
+		protected long size() {
+			return (this.results == null) ? 1 : Math.max(1, this.results.size());
+		}
+	}
+}
@@ -8,12 +8,16 @@ package org.vivoweb.harvester.util.repo;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.query.Dataset;
 import com.hp.hpl.jena.sdb.SDBFactory;
 import com.hp.hpl.jena.sdb.Store;
 import com.hp.hpl.jena.sdb.StoreDesc;
+import com.hp.hpl.jena.sdb.graph.GraphSDB;
 import com.hp.hpl.jena.sdb.sql.SDBConnectionFactory;
 import com.hp.hpl.jena.sdb.util.StoreUtils;
 import com.hp.hpl.jena.sparql.core.Quad;
@@ -27,6 +31,10 @@ public class SDBJenaConnect extends DBJenaConnect {
 	 * SLF4J Logger
 	 */
 	private static Logger log = LoggerFactory.getLogger(SDBJenaConnect.class);
+	/**
+	 * Default number of triples the sdb bulk loader buffers before writing them as one jdbc batch
+	 */
+	public static final int DEFAULT_BULK_CHUNK_SIZE = 20000;
 	/**
 	 * The sdb store
 	 */
@@ -35,6 +43,18 @@ public class SDBJenaConnect extends DBJenaConnect {
 	 * the SDB layout scheme
 	 */
 	private final String dbLayout;
+	/**
+	 * number of triples the sdb bulk loader buffers before writing them as one jdbc batch
+	 */
+	private int bulkChunkSize;
+	/**
+	 * number of open SDBJenaConnects using the store (this one and its neighbor clones)
+	 */
+	private final AtomicInteger storeUsers;
+	/**
+	 * this connection has been closed
+	 */
+	private boolean closed;
 	
 	/**
 	 * Clone Constructor
@@ -45,7 +65,18 @@ public class SDBJenaConnect extends DBJenaConnect {
 	private SDBJenaConnect(SDBJenaConnect original, String modelName) throws IOException {
 		super(original);
 		this.dbLayout = original.dbLayout;
-		this.store = connectStore(original.buildConnection(), original.getDbType(), this.dbLayout);
+		this.bulkChunkSize = original.bulkChunkSize;
+		synchronized(original.storeUsers) {
+			if(original.storeUsers.get() > 0) {
+				// share the original's store and connection rather than opening another
+				this.store = original.store;
+				this.storeUsers = original.storeUsers;
+				this.storeUsers.incrementAndGet();
+			} else {
+				this.store = connectStore(buildConnection(), getDbType(), this.dbLayout);
+				this.storeUsers = new AtomicInteger(1);
+			}
+		}
 		init(modelName);
 	}
 	
@@ -78,6 +109,8 @@ public class SDBJenaConnect extends DBJenaConnect {
 		super(dbUrl, dbUser, dbPass, dbType, dbClass);
 		this.dbLayout = dbLayout;
 		this.store = connectStore(buildConnection(), getDbType(), this.dbLayout);
+		this.storeUsers = new AtomicInteger(1);
+		this.bulkChunkSize = DEFAULT_BULK_CHUNK_SIZE;
 		init(modelName);
 	}
 	
@@ -108,6 +141,61 @@ public class SDBJenaConnect extends DBJenaConnect {
 		}
 	}
 	
+	@Override
+	public int size() {
+		// row count of the store's triple/quad table
+		long size;
+		if(getModelName().equals(Quad.defaultGraphIRI.getURI())) {
+			size = this.store.getSize();
+		} else {
+			size = this.store.getSize(Node.createURI(getModelName()));
+		}
+		return (int)Math.min(size, Integer.MAX_VALUE);
+	}
+	
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+	
+	/**
+	 * Set the number of triples the sdb bulk loader buffers before writing them as one jdbc batch (in its own
+	 * transaction) during bulk loads and removals
+	 * @param bulkChunkSize the chunk size
+	 */
+	public void setBulkChunkSize(int bulkChunkSize) {
+		if(bulkChunkSize < 1) {
+			throw new IllegalArgumentException("Bulk chunk size must be positive");
+		}
+		this.bulkChunkSize = bulkChunkSize;
+	}
+	
+	/**
+	 * Get the number of triples the sdb bulk loader buffers before writing them as one jdbc batch
+	 * @return the chunk size
+	 */
+	public int getBulkChunkSize() {
+		return this.bulkChunkSize;
+	}
+	
+	@Override
+	protected void startBulkUpdate() {
+		Graph g = getJenaModel().getGraph();
+		if(g instanceof GraphSDB) {
+			// one bulk update spans the whole load, so per-read and per-record updates nested in it do not flush
+			((GraphSDB)g).getBulkLoader().setChunkSize(this.bulkChunkSize);
+			((GraphSDB)g).startBulkUpdate();
+		}
+	}
+	
+	@Override
+	protected void finishBulkUpdate() {
+		Graph g = getJenaModel().getGraph();
+		if(g instanceof GraphSDB) {
+			((GraphSDB)g).finishBulkUpdate();
+		}
+	}
+	
 	@Override
 	public Dataset getDataset() {
 		return SDBFactory.connectDataset(this.store);
@@ -136,8 +224,17 @@ public class SDBJenaConnect extends DBJenaConnect {
 	public void close() {
 		super.close();
 		getJenaModel().close();
-		this.store.close();
-		this.store.getConnection().close();
+		synchronized(this.storeUsers) {
+			if(this.closed) {
+				return;
+			}
+			this.closed = true;
+			if(this.storeUsers.decrementAndGet() == 0) {
+				this.store.close();
+				// returns the connection to the pool
+				this.store.getConnection().close();
+			}
+		}
 	}
 	
 	@Override
@@ -145,5 +242,6 @@ public class SDBJenaConnect extends DBJenaConnect {
 		super.printParameters();
 		log.trace("type: 'sdb'");
 		log.trace("dbLayout: '" + this.dbLayout + "'");
+		log.trace("bulkChunkSize: '" + this.bulkChunkSize + "'");
 	}
 }
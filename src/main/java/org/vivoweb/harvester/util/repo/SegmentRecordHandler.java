@@ -0,0 +1,1759 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.util.repo.RecordMetaData.RecordMetaDataType;
+
+/**
+ * Record Handler that appends records to large segment files, for stores of millions of records. Every record write,
+ * metadata change and deletion is one checksummed frame appended to the active segment, and record data is
+ * compressed with Deflate whenever that makes it smaller. An in memory hash index maps each record id to the frames
+ * holding its data and metadata (segment, offset, length); it is saved to "index.dat" at close, so opening only
+ * replays the frames written since. Appends are fsynced in batches: a crash loses at most the frames written since
+ * the last sync, and a torn last frame is cut off at the next open. Segments holding mostly overwritten frames are
+ * compacted in the background by copying their live frames to the active segment. Iteration scans the segments in
+ * order through memory maps.
+ * @author VIVO Harvester Team
+ */
+public class SegmentRecordHandler extends RecordHandler {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(SegmentRecordHandler.class);
+	/**
+	 * Frame holding the data of a record
+	 */
+	private static final byte RECORD = 1;
+	/**
+	 * Frame holding all metadata of a record
+	 */
+	private static final byte META = 2;
+	/**
+	 * Frame marking a record deleted
+	 */
+	private static final byte DELETE = 3;
+	/**
+	 * Record data stored as is
+	 */
+	private static final byte STORED = 0;
+	/**
+	 * Record data compressed with Deflate
+	 */
+	private static final byte DEFLATED = 1;
+	/**
+	 * Index slot of the data frame
+	 */
+	private static final int DATA = 0;
+	/**
+	 * Index slot of the metadata frame
+	 */
+	private static final int METADATA = 1;
+	/**
+	 * Index slot of the deletion frame
+	 */
+	private static final int TOMBSTONE = 2;
+	/**
+	 * Bytes before the body of a frame: body length and CRC32 of the body
+	 */
+	private static final int FRAME_HEADER = 8;
+	/**
+	 * Bits of a location holding the offset in the segment, the segment number is above them
+	 */
+	private static final int OFFSET_BITS = 40;
+	/**
+	 * First int of the index file (version 2: entries carry the digest of the last written md5)
+	 */
+	private static final int INDEX_MAGIC = 0x53524832;
+	/**
+	 * Name of the index file
+	 */
+	private static final String INDEX_FILE = "index.dat";
+	/**
+	 * Name suffix of segment files
+	 */
+	private static final String SEGMENT_SUFFIX = ".seg";
+	/**
+	 * Largest segment size allowed, so a whole segment can be memory mapped
+	 */
+	private static final long MAX_SEGMENT_SIZE = 1L << 30;
+	/**
+	 * Fraction of a sealed segment that must be overwritten before it is compacted
+	 */
+	private static final double COMPACT_RATIO = 0.5;
+	/**
+	 * The directory holding the segments
+	 */
+	private File dir;
+	/**
+	 * Compress record data with Deflate
+	 */
+	private boolean compress = true;
+	/**
+	 * Size at which the active segment is sealed and a new one started
+	 */
+	private long segmentSize = 64L << 20;
+	/**
+	 * Number of frames appended between fsyncs
+	 */
+	private int syncInterval = 1000;
+	/**
+	 * Frames of each record
+	 */
+	private SegmentIndex index;
+	/**
+	 * Segments by number
+	 */
+	private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+	/**
+	 * The segment being appended to
+	 */
+	private Segment active;
+	/**
+	 * File stream of the active segment
+	 */
+	private FileOutputStream activeFile;
+	/**
+	 * Buffered stream appending to the active segment
+	 */
+	private BufferedOutputStream out;
+	/**
+	 * Frames appended since the last fsync
+	 */
+	private int unsynced;
+	/**
+	 * Compresses record data (guarded by this)
+	 */
+	private Deflater deflater;
+	/**
+	 * Decompresses record data (guarded by this)
+	 */
+	private Inflater inflater;
+	/**
+	 * Number of partitions not yet iterated to the end (an unopened partition or an open iterator), compaction waits
+	 * for them to finish
+	 */
+	private int openIterators;
+	/**
+	 * Numbers of segments waiting to be compacted
+	 */
+	private final LinkedList<Integer> compactQueue = new LinkedList<Integer>();
+	/**
+	 * Background thread compacting segments, null when not running
+	 */
+	private Thread compactor;
+	/**
+	 * Has this handler been closed
+	 */
+	private boolean closed;
+	
+	/**
+	 * Default Constructor
+	 */
+	protected SegmentRecordHandler() {
+		// Nothing to do here
+		// Used by config construction
+		// Should only be used in conjuction with setParams()
+	}
+	
+	/**
+	 * Constructor
+	 * @param segmentDir directory to store segments in
+	 * @throws IOException error opening segments
+	 */
+	public SegmentRecordHandler(String segmentDir) throws IOException {
+		open(segmentDir);
+	}
+	
+	/**
+	 * Constructor
+	 * @param segmentDir directory to store segments in
+	 * @param segmentSize size in bytes at which a segment is sealed and a new one started
+	 * @param compress compress record data with Deflate
+	 * @param syncInterval number of frames appended between fsyncs
+	 * @throws IOException error opening segments
+	 */
+	public SegmentRecordHandler(String segmentDir, long segmentSize, boolean compress, int syncInterval) throws IOException {
+		setOptions(segmentSize, compress, syncInterval);
+		open(segmentDir);
+	}
+	
+	/**
+	 * Set the storage options
+	 * @param size size in bytes at which a segment is sealed and a new one started
+	 * @param deflate compress record data with Deflate
+	 * @param interval number of frames appended between fsyncs
+	 * @throws IllegalArgumentException invalid option
+	 */
+	private void setOptions(long size, boolean deflate, int interval) throws IllegalArgumentException {
+		if((size <= 0) || (size > MAX_SEGMENT_SIZE)) {
+			throw new IllegalArgumentException("segmentSize must be between 1 and " + MAX_SEGMENT_SIZE + ": " + size);
+		}
+		this.segmentSize = size;
+		this.compress = deflate;
+		this.syncInterval = Math.max(interval, 1);
+	}
+	
+	@Override
+	public void setParams(Map<String, String> params) throws IllegalArgumentException, IOException {
+		String size = getParam(params, "segmentSize", false);
+		String compression = getParam(params, "compression", false);
+		String interval = getParam(params, "syncInterval", false);
+		boolean deflate = true;
+		if(compression != null) {
+			if(compression.equalsIgnoreCase("none")) {
+				deflate = false;
+			} else if(!compression.equalsIgnoreCase("deflate")) {
+				throw new IllegalArgumentException("Unknown compression: " + compression);
+			}
+		}
+		setOptions((size == null) ? this.segmentSize : Long.parseLong(size), deflate, (interval == null) ? this.syncInterval : Integer.parseInt(interval));
+		open(getParam(params, "segmentDir", true));
+	}
+	
+	/**
+	 * Open the segments in a directory: load the saved index, replay the frames written after it and open the active
+	 * segment for appending
+	 * @param segmentDir the directory
+	 * @throws IOException error reading segments
+	 */
+	private void open(String segmentDir) throws IOException {
+		this.dir = new File(segmentDir);
+		if(!this.dir.isDirectory() && !this.dir.mkdirs()) {
+			throw new IOException("Unable to create segment directory " + segmentDir);
+		}
+		this.deflater = new Deflater(Deflater.BEST_SPEED);
+		this.inflater = new Inflater();
+		File[] files = this.dir.listFiles();
+		if(files != null) {
+			for(File f : files) {
+				String name = f.getName();
+				if(name.matches("[0-9]{8}\\" + SEGMENT_SUFFIX)) {
+					int number = Integer.parseInt(name.substring(0, 8));
+					this.segments.put(Integer.valueOf(number), new Segment(number, f, f.length()));
+				}
+			}
+		}
+		long checkpoint = loadIndex();
+		for(Segment seg : this.segments.values()) {
+			if(seg.number >= segmentOf(checkpoint)) {
+				replay(seg, (seg.number == segmentOf(checkpoint)) ? offsetOf(checkpoint) : 0);
+			}
+		}
+		if(this.segments.isEmpty() || (this.segments.lastEntry().getValue().length >= this.segmentSize)) {
+			int number = this.segments.isEmpty() ? 1 : (this.segments.lastKey().intValue() + 1);
+			this.segments.put(Integer.valueOf(number), new Segment(number, new File(this.dir, segmentName(number)), 0));
+		}
+		this.active = this.segments.lastEntry().getValue();
+		openActive();
+		for(Segment seg : this.segments.values()) {
+			queueCompaction(seg);
+		}
+		log.debug("Opened " + this.segments.size() + " segments holding " + this.index.getRecordCount() + " records in " + segmentDir);
+	}
+	
+	/**
+	 * Get the file name of a segment
+	 * @param number the segment number
+	 * @return the file name
+	 */
+	private static String segmentName(int number) {
+		return String.format("%08d", Integer.valueOf(number)) + SEGMENT_SUFFIX;
+	}
+	
+	/**
+	 * Get the location of a frame
+	 * @param segment the segment number
+	 * @param offset the offset of the frame in the segment
+	 * @return the location
+	 */
+	private static long location(int segment, long offset) {
+		return (((long)segment) << OFFSET_BITS) | offset;
+	}
+	
+	/**
+	 * Get the segment number of a location
+	 * @param loc the location
+	 * @return the segment number
+	 */
+	private static int segmentOf(long loc) {
+		return (int)(loc >>> OFFSET_BITS);
+	}
+	
+	/**
+	 * Get the offset in its segment of a location
+	 * @param loc the location
+	 * @return the offset
+	 */
+	private static long offsetOf(long loc) {
+		return loc & ((1L << OFFSET_BITS) - 1);
+	}
+	
+	/**
+	 * Open the stream appending to the active segment
+	 * @throws IOException error opening file
+	 */
+	private void openActive() throws IOException {
+		this.activeFile = new FileOutputStream(this.active.file, true);
+		this.out = new BufferedOutputStream(this.activeFile, 65536);
+		this.unsynced = 0;
+	}
+	
+	/**
+	 * Load the index saved at the last close. The file is deleted once read, so a process that dies before saving the
+	 * index again has its segments replayed in full at the next open rather than trusting an outdated index. An index
+	 * that cannot be read to its end (e.g. torn by a crash while it was saved) is not usable either.
+	 * @return the location up to which the index covers the segments, 0 if there is no usable index
+	 * @throws IOException error deleting index
+	 */
+	private long loadIndex() throws IOException {
+		this.index = new SegmentIndex();
+		File f = new File(this.dir, INDEX_FILE);
+		if(!f.exists()) {
+			return 0;
+		}
+		long checkpoint = 0;
+		boolean valid = false;
+		boolean readable = true;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 65536));
+		try {
+			// an index of an older version is not used, the segments are replayed instead
+			valid = (in.readInt() == INDEX_MAGIC);
+			long saved = valid ? in.readLong() : 0;
+			int count = valid ? in.readInt() : 0;
+			valid = valid && this.segments.containsKey(Integer.valueOf(segmentOf(saved))) && (offsetOf(saved) <= this.segments.get(Integer.valueOf(segmentOf(saved))).length);
+			for(int x = 0; valid && (x < count); x++) {
+				int entry = this.index.create(in.readUTF());
+				for(int slot = DATA; slot <= TOMBSTONE; slot++) {
+					long loc = in.readLong();
+					int len = in.readInt();
+					if(loc >= 0) {
+						Segment seg = this.segments.get(Integer.valueOf(segmentOf(loc)));
+						if((seg == null) || ((offsetOf(loc) + len) > seg.length)) {
+							valid = false;
+							break;
+						}
+						setSlot(entry, slot, loc, len);
+					}
+				}
+				if(!valid) {
+					break;
+				}
+				if(in.readBoolean()) {
+					this.index.setDigest(entry, new long[]{in.readLong(), in.readLong()});
+				}
+			}
+			if(valid) {
+				checkpoint = saved;
+			}
+		} catch(IOException e) {
+			log.warn("Segment index " + f.getPath() + " is truncated or unreadable (" + e + "), replaying all segments");
+			readable = false;
+			valid = false;
+		} finally {
+			in.close();
+		}
+		if(!valid) {
+			if(readable) {
+				log.warn("Segment index " + f.getPath() + " does not match the segments, replaying all segments");
+			}
+			this.index = new SegmentIndex();
+			for(Segment seg : this.segments.values()) {
+				seg.liveBytes = 0;
+			}
+		}
+		if(!f.delete()) {
+			throw new IOException("Unable to delete segment index " + f.getPath());
+		}
+		return checkpoint;
+	}
+	
+	/**
+	 * Save the index, with the location up to which it covers the segments and the digest of each record's last
+	 * written md5
+	 * @throws IOException error writing index
+	 */
+	private void saveIndex() throws IOException {
+		File target = new File(this.dir, INDEX_FILE);
+		File tmp = new File(this.dir, INDEX_FILE + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos, 65536));
+		try {
+			dos.writeInt(INDEX_MAGIC);
+			dos.writeLong(location(this.active.number, this.active.length));
+			dos.writeInt(this.index.getRecordCount());
+			for(int entry = 0; entry < this.index.high; entry++) {
+				if(this.index.ids[entry] != null) {
+					dos.writeUTF(this.index.ids[entry]);
+					for(int slot = DATA; slot <= TOMBSTONE; slot++) {
+						dos.writeLong(this.index.getLocation(entry, slot));
+						dos.writeInt(this.index.getLength(entry, slot));
+					}
+					long[] digest = this.index.getDigest(entry);
+					dos.writeBoolean(digest != null);
+					if(digest != null) {
+						dos.writeLong(digest[0]);
+						dos.writeLong(digest[1]);
+					}
+				}
+			}
+			// on disk before it replaces the old index, so a crash cannot leave a renamed but partial index
+			dos.flush();
+			fos.getFD().sync();
+		} finally {
+			dos.close();
+		}
+		if(target.exists() && !target.delete()) {
+			throw new IOException("Unable to replace " + target.getPath());
+		}
+		if(!tmp.renameTo(target)) {
+			throw new IOException("Unable to rename " + tmp.getPath() + " to " + target.getPath());
+		}
+	}
+	
+	/**
+	 * Map part of a segment into memory
+	 * @param seg the segment
+	 * @param end the offset to map up to
+	 * @return the mapped bytes
+	 * @throws IOException error mapping file
+	 */
+	private static ByteBuffer map(Segment seg, long end) throws IOException {
+		return seg.getReader().getChannel().map(FileChannel.MapMode.READ_ONLY, 0, end);
+	}
+	
+	/**
+	 * Read the frame at the position of a buffer, advancing past it
+	 * @param buf the buffer
+	 * @return the body of the frame, or null (leaving the position alone) if the rest of the buffer is not a whole
+	 * frame with a matching checksum
+	 */
+	private static byte[] nextFrame(ByteBuffer buf) {
+		if(buf.remaining() < FRAME_HEADER) {
+			return null;
+		}
+		int start = buf.position();
+		int length = buf.getInt();
+		int crc = buf.getInt();
+		if((length < 0) || (length > buf.remaining())) {
+			buf.position(start);
+			return null;
+		}
+		byte[] body = new byte[length];
+		buf.get(body);
+		if(checksum(body) != crc) {
+			buf.position(start);
+			return null;
+		}
+		return body;
+	}
+	
+	/**
+	 * Compute the checksum of a frame body
+	 * @param body the body
+	 * @return the CRC32 of the body
+	 */
+	private static int checksum(byte[] body) {
+		CRC32 crc = new CRC32();
+		crc.update(body, 0, body.length);
+		return (int)crc.getValue();
+	}
+	
+	/**
+	 * Replay the frames of a segment into the index. A frame that is torn or fails its checksum ends the last segment
+	 * (it is what a crash midway through an append leaves) and the segment is truncated there; anywhere else it is
+	 * corruption.
+	 * @param seg the segment
+	 * @param start the offset of the first frame to replay
+	 * @throws IOException error reading segment or segment corrupt
+	 */
+	private void replay(Segment seg, long start) throws IOException {
+		ByteBuffer buf = map(seg, seg.length);
+		buf.position((int)start);
+		byte[] body;
+		int frames = 0;
+		while((body = nextFrame(buf)) != null) {
+			long offset = buf.position() - FRAME_HEADER - body.length;
+			String recID = readID(body);
+			apply(body[0], recID, location(seg.number, offset), FRAME_HEADER + body.length);
+			if(body[0] == META) {
+				indexDigest(recID, body, 0);
+			}
+			frames++;
+		}
+		if(buf.hasRemaining()) {
+			if(seg.number != this.segments.lastKey().intValue()) {
+				throw new IOException("Corrupt segment " + seg.file.getPath() + " at offset " + buf.position());
+			}
+			int intact = countIntactFrames(buf.duplicate());
+			String dropped = (seg.length - buf.position()) + " bytes of segment " + seg.file.getPath() + " from offset " + buf.position();
+			if(intact == 0) {
+				log.warn("Truncating partial last frame: dropping " + dropped);
+			} else {
+				log.error("Truncating corrupt frame followed by " + intact + " intact frames: dropping " + dropped + ", those " + intact + " frames are lost");
+			}
+			seg.closeReader();
+			RandomAccessFile raf = new RandomAccessFile(seg.file, "rw");
+			try {
+				raf.setLength(buf.position());
+			} finally {
+				raf.close();
+			}
+			seg.length = buf.position();
+		}
+		log.debug("Replayed " + frames + " frames of segment " + seg.file.getPath());
+	}
+	
+	/**
+	 * Count the frames that still check out after a frame that does not, skipping it by its length if that is possible,
+	 * so truncation can tell a torn last frame from corruption ahead of good frames
+	 * @param buf the buffer, positioned at the bad frame
+	 * @return the number of intact frames after the bad one
+	 */
+	private static int countIntactFrames(ByteBuffer buf) {
+		if(buf.remaining() < FRAME_HEADER) {
+			return 0;
+		}
+		int length = buf.getInt();
+		if((length < 0) || ((length + 4) > buf.remaining())) {
+			return 0;
+		}
+		buf.position(buf.position() + 4 + length);
+		int intact = 0;
+		while(nextFrame(buf) != null) {
+			intact++;
+		}
+		return intact;
+	}
+	
+	/**
+	 * Read the record id of a frame
+	 * @param body the frame body
+	 * @return the record id
+	 * @throws IOException error reading frame
+	 */
+	private static String readID(byte[] body) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body, 1, body.length - 1));
+		return in.readUTF();
+	}
+	
+	/**
+	 * Apply a frame to the index. The slot a frame fills only ever holds the latest such frame of the record, and
+	 * frames copied by compaction are still the latest of their kind when appended, so replaying all segments in order
+	 * gives the same index as the writes did.
+	 * @param type the frame type
+	 * @param recID the record id
+	 * @param loc the location of the frame
+	 * @param len the length of the frame
+	 */
+	private void apply(byte type, String recID, long loc, int len) {
+		int entry = this.index.find(recID);
+		if(entry < 0) {
+			if(type == DELETE) {
+				// nothing older left to delete
+				return;
+			}
+			entry = this.index.create(recID);
+		}
+		if(type == RECORD) {
+			releaseSlot(entry, TOMBSTONE);
+			releaseSlot(entry, DATA);
+			setSlot(entry, DATA, loc, len);
+		} else if(type == META) {
+			releaseSlot(entry, METADATA);
+			setSlot(entry, METADATA, loc, len);
+		} else {
+			releaseSlot(entry, DATA);
+			releaseSlot(entry, METADATA);
+			releaseSlot(entry, TOMBSTONE);
+			setSlot(entry, TOMBSTONE, loc, len);
+			this.index.setDigest(entry, null);
+		}
+	}
+	
+	/**
+	 * Keep the digest of the last written md5 in a metadata frame in the index, so the record digest index can be
+	 * loaded without reading every metadata frame
+	 * @param recID the record id
+	 * @param buf the bytes holding the frame body
+	 * @param start the offset of the frame body in buf
+	 * @throws IOException error reading frame
+	 */
+	private void indexDigest(String recID, byte[] buf, int start) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf, start + 1, buf.length - start - 1));
+		in.readUTF();
+		long last = Long.MIN_VALUE;
+		String md5 = null;
+		int count = in.readInt();
+		for(int x = 0; x < count; x++) {
+			long date = in.readLong();
+			byte operation = in.readByte();
+			in.readUTF();
+			String rmdMD5 = in.readUTF();
+			// the latest write, as getLastMetaData finds it
+			if((operation == RecordMetaDataType.written.ordinal()) && (date > last)) {
+				last = date;
+				md5 = rmdMD5;
+			}
+		}
+		long[] digest = null;
+		if(md5 != null) {
+			try {
+				digest = RecordDigestIndex.parseMD5(md5);
+			} catch(IllegalArgumentException e) {
+				// left out of the index
+			}
+		}
+		this.index.setDigest(this.index.find(recID), digest);
+	}
+	
+	/**
+	 * Point a slot of an index entry at a frame, counting the frame live
+	 * @param entry the index entry
+	 * @param slot the slot
+	 * @param loc the location of the frame
+	 * @param len the length of the frame
+	 */
+	private void setSlot(int entry, int slot, long loc, int len) {
+		this.index.set(entry, slot, loc, len);
+		this.segments.get(Integer.valueOf(segmentOf(loc))).liveBytes += len;
+	}
+	
+	/**
+	 * Empty a slot of an index entry, counting its frame dead
+	 * @param entry the index entry
+	 * @param slot the slot
+	 */
+	private void releaseSlot(int entry, int slot) {
+		long loc = this.index.getLocation(entry, slot);
+		if(loc < 0) {
+			return;
+		}
+		Segment seg = this.segments.get(Integer.valueOf(segmentOf(loc)));
+		seg.liveBytes -= this.index.getLength(entry, slot);
+		this.index.set(entry, slot, -1, 0);
+		// segments are only queued once open has finished replaying them
+		if(this.active != null) {
+			queueCompaction(seg);
+		}
+	}
+	
+	/**
+	 * Build a frame
+	 * @param type the frame type
+	 * @param recID the record id
+	 * @param payload the rest of the body, null for none
+	 * @return the frame
+	 * @throws IOException error building frame
+	 */
+	private static byte[] buildFrame(byte type, String recID, byte[] payload) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(64 + ((payload == null) ? 0 : payload.length));
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeByte(type);
+		dos.writeUTF(recID);
+		if(payload != null) {
+			dos.write(payload);
+		}
+		dos.flush();
+		byte[] body = baos.toByteArray();
+		ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + body.length);
+		frame.putInt(body.length);
+		frame.putInt(checksum(body));
+		frame.put(body);
+		return frame.array();
+	}
+	
+	/**
+	 * Append a frame to the active segment and apply it to the index, starting a new segment first if the active one
+	 * is full
+	 * @param type the frame type
+	 * @param recID the record id
+	 * @param frame the frame
+	 * @throws IOException error writing frame
+	 */
+	private void append(byte type, String recID, byte[] frame) throws IOException {
+		if((this.active.length > 0) && ((this.active.length + frame.length) > this.segmentSize)) {
+			roll();
+		}
+		long loc = location(this.active.number, this.active.length);
+		this.out.write(frame);
+		this.active.length += frame.length;
+		apply(type, recID, loc, frame.length);
+		if(type == META) {
+			indexDigest(recID, frame, FRAME_HEADER);
+		}
+		if(++this.unsynced >= this.syncInterval) {
+			sync();
+		}
+	}
+	
+	/**
+	 * Flush the active segment to disk
+	 * @throws IOException error writing
+	 */
+	private void sync() throws IOException {
+		this.out.flush();
+		this.activeFile.getFD().sync();
+		this.unsynced = 0;
+	}
+	
+	/**
+	 * Seal the active segment and start a new one
+	 * @throws IOException error writing
+	 */
+	private void roll() throws IOException {
+		sync();
+		this.out.close();
+		Segment sealed = this.active;
+		int number = sealed.number + 1;
+		this.active = new Segment(number, new File(this.dir, segmentName(number)), 0);
+		this.segments.put(Integer.valueOf(number), this.active);
+		openActive();
+		queueCompaction(sealed);
+	}
+	
+	/**
+	 * Read the body of a frame
+	 * @param entry the index entry pointing at the frame
+	 * @param slot the slot pointing at the frame
+	 * @return the body
+	 * @throws IOException error reading frame
+	 */
+	private byte[] readFrame(int entry, int slot) throws IOException {
+		long loc = this.index.getLocation(entry, slot);
+		Segment seg = this.segments.get(Integer.valueOf(segmentOf(loc)));
+		if(seg == this.active) {
+			this.out.flush();
+		}
+		byte[] frame = new byte[this.index.getLength(entry, slot)];
+		RandomAccessFile raf = seg.getReader();
+		raf.seek(offsetOf(loc));
+		raf.readFully(frame);
+		ByteBuffer buf = ByteBuffer.wrap(frame);
+		byte[] body = nextFrame(buf);
+		if(body == null) {
+			throw new IOException("Corrupt frame in segment " + seg.file.getPath() + " at offset " + offsetOf(loc));
+		}
+		return body;
+	}
+	
+	/**
+	 * Encode record data as the payload of a data frame
+	 * @param raw the record data as bytes
+	 * @return the payload
+	 * @throws IOException error encoding
+	 */
+	private byte[] encodeData(byte[] raw) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(5 + raw.length);
+		DataOutputStream dos = new DataOutputStream(baos);
+		byte[] packed = new byte[raw.length];
+		int packedLength = -1;
+		if(this.compress) {
+			this.deflater.reset();
+			this.deflater.setInput(raw);
+			this.deflater.finish();
+			int n = 0;
+			while(!this.deflater.finished() && (n < packed.length)) {
+				n += this.deflater.deflate(packed, n, packed.length - n);
+			}
+			if(this.deflater.finished() && (n < raw.length)) {
+				packedLength = n;
+			}
+		}
+		if(packedLength < 0) {
+			dos.writeByte(STORED);
+			dos.writeInt(raw.length);
+			dos.write(raw);
+		} else {
+			dos.writeByte(DEFLATED);
+			dos.writeInt(raw.length);
+			dos.write(packed, 0, packedLength);
+		}
+		dos.flush();
+		return baos.toByteArray();
+	}
+	
+	/**
+	 * Decode the record data of a data frame
+	 * @param body the frame body
+	 * @return the record data as bytes
+	 * @throws IOException error decoding
+	 */
+	private byte[] decodeData(byte[] body) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(body);
+		buf.position(3 + (buf.getShort(1) & 0xffff));
+		byte codec = buf.get();
+		byte[] raw = new byte[buf.getInt()];
+		if(codec == STORED) {
+			buf.get(raw);
+		} else if(codec == DEFLATED) {
+			this.inflater.reset();
+			this.inflater.setInput(body, buf.position(), buf.remaining());
+			try {
+				int n = 0;
+				while(n < raw.length) {
+					int read = this.inflater.inflate(raw, n, raw.length - n);
+					if((read == 0) && (this.inflater.finished() || this.inflater.needsInput())) {
+						throw new IOException("Truncated compressed record data");
+					}
+					n += read;
+				}
+			} catch(DataFormatException e) {
+				throw new IOException("Corrupt compressed record data: " + e.getMessage(), e);
+			}
+		} else {
+			throw new IOException("Unknown record data codec: " + codec);
+		}
+		return raw;
+	}
+	
+	/**
+	 * Encode record metadata as the payload of a metadata frame
+	 * @param rmdSet the metadata
+	 * @return the payload
+	 * @throws IOException error encoding
+	 */
+	private static byte[] encodeMetaData(SortedSet<RecordMetaData> rmdSet) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(64 * (rmdSet.size() + 1));
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(rmdSet.size());
+		for(RecordMetaData rmd : rmdSet) {
+			dos.writeLong(rmd.getDate().getTimeInMillis());
+			dos.writeByte(rmd.getOperation().ordinal());
+			dos.writeUTF(rmd.getOperator().getName());
+			dos.writeUTF(rmd.getMD5());
+		}
+		dos.flush();
+		return baos.toByteArray();
+	}
+	
+	/**
+	 * Decode the record metadata of a metadata frame
+	 * @param body the frame body
+	 * @return the metadata
+	 * @throws IOException error decoding
+	 */
+	private static SortedSet<RecordMetaData> decodeMetaData(byte[] body) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body, 1, body.length - 1));
+		in.readUTF();
+		SortedSet<RecordMetaData> rmdSet = new TreeSet<RecordMetaData>();
+		int count = in.readInt();
+		for(int x = 0; x < count; x++) {
+			Calendar date = Calendar.getInstance(TimeZone.getTimeZone("GMT"), Locale.US);
+			date.setTimeInMillis(in.readLong());
+			RecordMetaDataType operation = RecordMetaDataType.values()[in.readByte()];
+			String operator = in.readUTF();
+			String md5 = in.readUTF();
+			try {
+				rmdSet.add(new RecordMetaData(date, Class.forName(operator), operation, md5));
+			} catch(ClassNotFoundException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+		return rmdSet;
+	}
+	
+	@Override
+	public synchronized boolean addRecord(Record rec, Class<?> creator, boolean overwrite) throws IOException {
+		if(!needsUpdated(rec)) {
+			return false;
+		}
+		if(!overwrite && hasRecord(rec.getID())) {
+			throw new IOException("Record '" + rec.getID() + "' already exists!");
+		}
+		append(RECORD, rec.getID(), buildFrame(RECORD, rec.getID(), encodeData(rec.getDataBytes())));
+		setWritten(rec, creator);
+		return true;
+	}
+	
+	/**
+	 * Does a record exist
+	 * @param recID the record id
+	 * @return true if the record exists
+	 */
+	private boolean hasRecord(String recID) {
+		int entry = this.index.find(recID);
+		return (entry >= 0) && (this.index.getLocation(entry, DATA) >= 0);
+	}
+	
+	@Override
+	public synchronized void delRecord(String recID) throws IOException {
+		forgetDigest(recID);
+		if(!hasRecord(recID)) {
+			throw new IOException("Record '" + recID + "' Does Not Exist");
+		}
+		append(DELETE, recID, buildFrame(DELETE, recID, null));
+	}
+	
+	@Override
+	public String getRecordData(String recID) throws IllegalArgumentException, IOException {
+		return new String(getRecordDataBytes(recID), Record.DATA_CHARSET);
+	}
+	
+	@Override
+	public Record getRecord(String recID) throws IllegalArgumentException, IOException {
+		// decoded only if the text is asked for
+		return new Record(recID, getRecordDataBytes(recID), this);
+	}
+	
+	@Override
+	public synchronized byte[] getRecordDataBytes(String recID) throws IllegalArgumentException, IOException {
+		if(!hasRecord(recID)) {
+			throw new IllegalArgumentException("Record " + recID + " does not exist!");
+		}
+		return decodeData(readFrame(this.index.find(recID), DATA));
+	}
+	
+	@Override
+	protected synchronized void addMetaData(Record rec, RecordMetaData rmd) throws IOException {
+		if(!hasRecord(rec.getID())) {
+			throw new IOException("Record " + rec.getID() + " does not exist!");
+		}
+		int entry = this.index.find(rec.getID());
+		SortedSet<RecordMetaData> rmdSet;
+		if(this.index.getLocation(entry, METADATA) >= 0) {
+			rmdSet = decodeMetaData(readFrame(entry, METADATA));
+		} else {
+			rmdSet = new TreeSet<RecordMetaData>();
+		}
+		rmdSet.add(rmd);
+		append(META, rec.getID(), buildFrame(META, rec.getID(), encodeMetaData(rmdSet)));
+	}
+	
+	@Override
+	protected synchronized void delMetaData(String recID) throws IOException {
+		forgetDigest(recID);
+		int entry = this.index.find(recID);
+		if((entry < 0) || (this.index.getLocation(entry, METADATA) < 0)) {
+			log.debug("No Metadata to delete");
+			return;
+		}
+		append(META, recID, buildFrame(META, recID, encodeMetaData(new TreeSet<RecordMetaData>())));
+	}
+	
+	@Override
+	protected synchronized SortedSet<RecordMetaData> getRecordMetaData(String recID) throws IOException {
+		int entry = this.index.find(recID);
+		if((entry < 0) || (this.index.getLocation(entry, METADATA) < 0)) {
+			throw new IOException("No Matching MetaData Found");
+		}
+		return decodeMetaData(readFrame(entry, METADATA));
+	}
+	
+	@Override
+	protected synchronized void loadDigests(RecordDigestIndex digests) {
+		// kept in the segment index, no metadata frame is read
+		for(int entry = 0; entry < this.index.high; entry++) {
+			if((this.index.ids[entry] != null) && (this.index.getLocation(entry, DATA) >= 0)) {
+				long[] digest = this.index.getDigest(entry);
+				if(digest != null) {
+					digests.put(this.index.ids[entry], digest);
+				}
+			}
+		}
+	}
+	
+	@Override
+	public synchronized SortedSet<String> getRecordIDs() {
+		// straight from the index
+		SortedSet<String> ids = new TreeSet<String>();
+		for(int entry = 0; entry < this.index.high; entry++) {
+			if((this.index.ids[entry] != null) && (this.index.getLocation(entry, DATA) >= 0)) {
+				ids.add(this.index.ids[entry]);
+			}
+		}
+		return ids;
+	}
+	
+	/**
+	 * Pending records come from one scan of the segments, like iterator(). Each live record's metadata frame is checked
+	 * before its data is decoded, so records that need no processing are skipped without decoding them.
+	 * @param operator the class to check for
+	 * @return the records needing processing, read as they are iterated
+	 */
+	@Override
+	public Iterable<Record> pendingRecords(final Class<?> operator) {
+		return new Iterable<Record>() {
+			@Override
+			public Iterator<Record> iterator() {
+				synchronized(SegmentRecordHandler.this) {
+					try {
+						return scan(1, operator).get(0).iterator();
+					} catch(IOException e) {
+						throw new IllegalArgumentException(e);
+					}
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Is a record pending for an operator, judged from its latest metadata frame
+	 * @param entry the record's index entry
+	 * @param operator the class to check for
+	 * @return true if written since last processed by operator, or if the record has no metadata
+	 * @throws IOException error reading metadata frame
+	 */
+	private boolean isPending(int entry, Class<?> operator) throws IOException {
+		if(this.index.getLocation(entry, METADATA) < 0) {
+			return true;
+		}
+		return needsProcessed(decodeMetaData(readFrame(entry, METADATA)), operator);
+	}
+	
+	@Override
+	public Set<String> find(String idText) {
+		Set<String> retVal = new TreeSet<String>();
+		for(String recID : getRecordIDs()) {
+			if(recID.contains(idText)) {
+				retVal.add(recID);
+			}
+		}
+		return retVal;
+	}
+	
+	@Override
+	public synchronized Iterator<Record> iterator() {
+		try {
+			return partitions(1).get(0).iterator();
+		} catch(IOException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+	
+	/**
+	 * Partitions are runs of consecutive segments holding about the same number of bytes, scanned as they were when
+	 * partitioned. Compaction waits while any partition is unopened or its iterator open: an iterator stops holding it
+	 * once iterated to the end, on error, or when garbage collected, and a partition never iterated when it is garbage
+	 * collected. Each partition can only be iterated once.
+	 * @param n the number of partitions wanted
+	 * @return at least one and at most n partitions
+	 * @throws IOException error flushing active segment
+	 */
+	@Override
+	public synchronized List<Iterable<Record>> partitions(int n) throws IOException {
+		return scan(n, null);
+	}
+	
+	/**
+	 * Split the segments into partitions, as for partitions(n)
+	 * @param n the number of partitions wanted
+	 * @param operator only return records pending for this class, null for every record
+	 * @return at least one and at most n partitions
+	 * @throws IOException error flushing active segment
+	 */
+	private synchronized List<Iterable<Record>> scan(int n, Class<?> operator) throws IOException {
+		checkPartitionCount(n);
+		this.out.flush();
+		List<Segment> segs = new ArrayList<Segment>(this.segments.values());
+		List<Long> ends = new ArrayList<Long>(segs.size());
+		long total = 0;
+		for(Segment seg : segs) {
+			ends.add(Long.valueOf(seg.length));
+			total += seg.length;
+		}
+		List<Iterable<Record>> parts = new ArrayList<Iterable<Record>>(n);
+		if(segs.isEmpty()) {
+			parts.add(new SegmentPartition(segs, ends, operator));
+		}
+		int count = Math.min(n, segs.size());
+		int start = 0;
+		long seen = 0;
+		for(int x = 0; x < count; x++) {
+			boolean last = (x == (count - 1));
+			long share = (total * (x + 1)) / count;
+			// at least one segment each, leaving one for each partition after this one
+			int end = start;
+			do {
+				seen += ends.get(end).longValue();
+				end++;
+			} while((end < (segs.size() - (count - x - 1))) && (last || ((seen + ends.get(end).longValue()) <= share)));
+			parts.add(new SegmentPartition(segs.subList(start, end), ends.subList(start, end), operator));
+			start = end;
+		}
+		this.openIterators += parts.size();
+		return parts;
+	}
+	
+	/**
+	 * Queue a sealed segment for compaction if enough of it has been overwritten, starting the compactor if needed
+	 * @param seg the segment
+	 */
+	private synchronized void queueCompaction(Segment seg) {
+		if((seg == this.active) || seg.compacting || this.closed || (seg.length == 0) || ((seg.length - seg.liveBytes) < (seg.length * COMPACT_RATIO))) {
+			return;
+		}
+		seg.compacting = true;
+		this.compactQueue.add(Integer.valueOf(seg.number));
+		if(this.compactor == null) {
+			this.compactor = new Thread(new Compactor(), "SegmentRecordHandler-compactor");
+			this.compactor.setDaemon(true);
+			this.compactor.start();
+		}
+		notifyAll();
+	}
+	
+	/**
+	 * Wait until no iterator is scanning the segments
+	 * @return false if the handler was closed meanwhile
+	 * @throws InterruptedException interrupted while waiting
+	 */
+	private synchronized boolean awaitNoIterators() throws InterruptedException {
+		while((this.openIterators > 0) && !this.closed) {
+			wait();
+		}
+		return !this.closed;
+	}
+	
+	/**
+	 * Compact a sealed segment: copy its live frames as they are to the active segment, then delete it. Iterators
+	 * scan by location, so frames are only moved while none is open. A deletion is dropped rather than copied when the
+	 * segment is the oldest, as no older data of the record is left for it to hide.
+	 * @param seg the segment
+	 * @throws IOException error copying frames
+	 * @throws InterruptedException interrupted while waiting for iterators
+	 */
+	private void compact(Segment seg) throws IOException, InterruptedException {
+		try {
+			ByteBuffer buf;
+			synchronized(this) {
+				buf = map(seg, seg.length);
+			}
+			int moved = 0;
+			byte[] body;
+			while(buf.hasRemaining()) {
+				int offset = buf.position();
+				body = nextFrame(buf);
+				if(body == null) {
+					throw new IOException("Corrupt segment " + seg.file.getPath() + " at offset " + offset);
+				}
+				synchronized(this) {
+					if(!awaitNoIterators()) {
+						return;
+					}
+					String recID = readID(body);
+					int entry = this.index.find(recID);
+					if(entry < 0) {
+						continue;
+					}
+					long loc = location(seg.number, offset);
+					int slot = (body[0] == RECORD) ? DATA : ((body[0] == META) ? METADATA : TOMBSTONE);
+					if(this.index.getLocation(entry, slot) != loc) {
+						continue;
+					}
+					releaseSlot(entry, slot);
+					if((slot == TOMBSTONE) && (seg.number == this.segments.firstKey().intValue())) {
+						this.index.remove(entry);
+					} else {
+						byte[] frame = new byte[FRAME_HEADER + body.length];
+						buf.position(offset);
+						buf.get(frame);
+						append(body[0], recID, frame);
+						moved++;
+					}
+				}
+			}
+			synchronized(this) {
+				if(!awaitNoIterators()) {
+					return;
+				}
+				if(seg.liveBytes != 0) {
+					log.warn("Segment " + seg.file.getPath() + " still holds " + seg.liveBytes + " live bytes after compaction, keeping it");
+					return;
+				}
+				sync();
+				seg.closeReader();
+				this.segments.remove(Integer.valueOf(seg.number));
+				if(!seg.file.delete()) {
+					log.warn("Unable to delete compacted segment " + seg.file.getPath());
+				}
+				log.debug("Compacted segment " + seg.file.getPath() + ", moved " + moved + " live frames");
+			}
+		} finally {
+			synchronized(this) {
+				seg.compacting = false;
+				notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Compact the sealed segments queued for compaction, returning once none is queued or being compacted in the
+	 * background. Must not be called while an iterator of this handler is open.
+	 * @throws IOException error compacting
+	 */
+	public void compact() throws IOException {
+		try {
+			while(true) {
+				Segment seg;
+				synchronized(this) {
+					while(this.compactQueue.isEmpty()) {
+						if(!isCompacting()) {
+							return;
+						}
+						wait();
+					}
+					seg = this.segments.get(this.compactQueue.removeFirst());
+				}
+				if(seg != null) {
+					compact(seg);
+				}
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compacting segments", e);
+		}
+	}
+	
+	/**
+	 * Is a segment being compacted
+	 * @return true if a segment is being compacted
+	 */
+	private synchronized boolean isCompacting() {
+		for(Segment seg : this.segments.values()) {
+			if(seg.compacting && !this.compactQueue.contains(Integer.valueOf(seg.number))) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		Thread t;
+		synchronized(this) {
+			if(this.closed) {
+				return;
+			}
+			this.closed = true;
+			t = this.compactor;
+			notifyAll();
+		}
+		if(t != null) {
+			try {
+				t.join();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized(this) {
+			closeDigestIndex();
+			sync();
+			this.out.close();
+			saveIndex();
+			for(Segment seg : this.segments.values()) {
+				seg.closeReader();
+			}
+			this.deflater.end();
+			this.inflater.end();
+		}
+	}
+	
+	/**
+	 * Background compaction, one queued segment at a time
+	 */
+	private class Compactor implements Runnable {
+		/**
+		 * Default Constructor
+		 */
+		protected Compactor() {
+			// Nothing to do here
+		}
+		
+		@Override
+		public void run() {
+			try {
+				while(true) {
+					Segment seg;
+					synchronized(SegmentRecordHandler.this) {
+						while(!SegmentRecordHandler.this.closed && SegmentRecordHandler.this.compactQueue.isEmpty()) {
+							SegmentRecordHandler.this.wait();
+						}
+						if(SegmentRecordHandler.this.closed) {
+							return;
+						}
+						seg = SegmentRecordHandler.this.segments.get(SegmentRecordHandler.this.compactQueue.removeFirst());
+					}
+					if(seg != null) {
+						compact(seg);
+					}
+				}
+			} catch(InterruptedException e) {
+				// stop compacting
+			} catch(IOException e) {
+				log.error("Segment compaction failed: " + e.getMessage());
+				log.debug("Stacktrace:",e);
+			} finally {
+				synchronized(SegmentRecordHandler.this) {
+					SegmentRecordHandler.this.compactor = null;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Stop counting a partition or iterator in openIterators, letting compaction resume
+	 */
+	private synchronized void releaseIterator() {
+		this.openIterators--;
+		notifyAll();
+	}
+	
+	/**
+	 * A run of segments to scan, holding off compaction until its iterator is done with it
+	 */
+	private class SegmentPartition implements Iterable<Record> {
+		/**
+		 * The segments to scan
+		 */
+		private final List<Segment> toScan;
+		/**
+		 * The length of each segment to scan
+		 */
+		private final List<Long> ends;
+		/**
+		 * Only return records pending for this class, null for every record
+		 */
+		private final Class<?> operator;
+		/**
+		 * Has the partition been iterated, handing its count in openIterators to the iterator
+		 */
+		private boolean used;
+		
+		/**
+		 * Constructor
+		 * @param toScan the segments to scan
+		 * @param ends the length of each segment to scan
+		 * @param operator only return records pending for this class, null for every record
+		 */
+		protected SegmentPartition(List<Segment> toScan, List<Long> ends, Class<?> operator) {
+			this.toScan = toScan;
+			this.ends = ends;
+			this.operator = operator;
+			this.used = false;
+		}
+		
+		@Override
+		public Iterator<Record> iterator() {
+			synchronized(SegmentRecordHandler.this) {
+				if(this.used) {
+					throw new IllegalStateException("A partition of segments can only be iterated once");
+				}
+				this.used = true;
+			}
+			return new SegmentRecordIterator(this.toScan, this.ends, this.operator);
+		}
+		
+		@Override
+		protected void finalize() throws Throwable {
+			// a partition that was never iterated
+			synchronized(SegmentRecordHandler.this) {
+				if(!this.used) {
+					this.used = true;
+					releaseIterator();
+				}
+			}
+			super.finalize();
+		}
+	}
+	
+	/**
+	 * Iterator for SegmentRecordHandler: scans segments as they were when partitioned, in order, through memory maps,
+	 * returning each data frame that is still the record's latest
+	 */
+	private class SegmentRecordIterator implements Iterator<Record> {
+		/**
+		 * The segments to scan
+		 */
+		private final List<Segment> toScan;
+		/**
+		 * The length of each segment to scan
+		 */
+		private final List<Long> ends;
+		/**
+		 * Only return records pending for this class, null for every record
+		 */
+		private final Class<?> operator;
+		/**
+		 * Position in toScan of the segment being scanned
+		 */
+		private int pos;
+		/**
+		 * The mapped segment being scanned, null before the first
+		 */
+		private ByteBuffer buf;
+		/**
+		 * The next record, if already read
+		 */
+		private Record ahead;
+		/**
+		 * Has the scan finished
+		 */
+		private boolean done;
+		
+		/**
+		 * Constructor, the scan having already been counted in openIterators
+		 * @param toScan the segments to scan
+		 * @param ends the length of each segment to scan
+		 * @param operator only return records pending for this class, null for every record
+		 */
+		protected SegmentRecordIterator(List<Segment> toScan, List<Long> ends, Class<?> operator) {
+			this.toScan = toScan;
+			this.ends = ends;
+			this.operator = operator;
+			this.pos = -1;
+			this.done = false;
+		}
+		
+		/**
+		 * Stop scanning, letting compaction resume
+		 */
+		private void finish() {
+			synchronized(SegmentRecordHandler.this) {
+				if(this.done) {
+					return;
+				}
+				this.done = true;
+				this.buf = null;
+				releaseIterator();
+			}
+		}
+		
+		@Override
+		protected void finalize() throws Throwable {
+			// abandoned before the end
+			finish();
+			super.finalize();
+		}
+		
+		@Override
+		public boolean hasNext() {
+			try {
+				while((this.ahead == null) && !this.done) {
+					if((this.buf == null) || !this.buf.hasRemaining()) {
+						if(++this.pos >= this.toScan.size()) {
+							finish();
+							break;
+						}
+						synchronized(SegmentRecordHandler.this) {
+							this.buf = map(this.toScan.get(this.pos), this.ends.get(this.pos).longValue());
+						}
+						continue;
+					}
+					Segment seg = this.toScan.get(this.pos);
+					int offset = this.buf.position();
+					byte[] body = nextFrame(this.buf);
+					if(body == null) {
+						throw new IOException("Corrupt segment " + seg.file.getPath() + " at offset " + offset);
+					}
+					if(body[0] == RECORD) {
+						synchronized(SegmentRecordHandler.this) {
+							String recID = readID(body);
+							int entry = SegmentRecordHandler.this.index.find(recID);
+							if((entry >= 0) && (SegmentRecordHandler.this.index.getLocation(entry, DATA) == location(seg.number, offset)) && ((this.operator == null) || isPending(entry, this.operator))) {
+								this.ahead = new Record(recID, decodeData(body), SegmentRecordHandler.this);
+							}
+						}
+					}
+				}
+			} catch(IOException e) {
+				finish();
+				throw new IllegalStateException(e);
+			}
+			return this.ahead != null;
+		}
+		
+		@Override
+		public Record next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Record rec = this.ahead;
+			this.ahead = null;
+			return rec;
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+	
+	/**
+	 * A segment file
+	 */
+	private static class Segment {
+		/**
+		 * the segment number
+		 */
+		protected final int number;
+		/**
+		 * the segment file
+		 */
+		protected final File file;
+		/**
+		 * bytes written to the segment
+		 */
+		protected long length;
+		/**
+		 * bytes of frames the index points at
+		 */
+		protected long liveBytes;
+		/**
+		 * is the segment queued for or undergoing compaction
+		 */
+		protected boolean compacting;
+		/**
+		 * file used to read frames, null until first needed
+		 */
+		private RandomAccessFile reader;
+		
+		/**
+		 * Constructor
+		 * @param number the segment number
+		 * @param file the segment file
+		 * @param length bytes written to the segment
+		 */
+		protected Segment(int number, File file, long length) {
+			this.number = number;
+			this.file = file;
+			this.length = length;
+			this.liveBytes = 0;
+			this.compacting = false;
+		}
+		
+		/**
+		 * Get the file used to read frames
+		 * @return the file
+		 * @throws IOException error opening file
+		 */
+		protected RandomAccessFile getReader() throws IOException {
+			if(this.reader == null) {
+				this.reader = new RandomAccessFile(this.file, "r");
+			}
+			return this.reader;
+		}
+		
+		/**
+		 * Close the file used to read frames
+		 * @throws IOException error closing file
+		 */
+		protected void closeReader() throws IOException {
+			if(this.reader != null) {
+				this.reader.close();
+				this.reader = null;
+			}
+		}
+	}
+	
+	/**
+	 * Index of record id to the location and length of its data, metadata and deletion frames. Ids, locations and
+	 * lengths are kept in flat arrays indexed by an open addressing table.
+	 */
+	private static class SegmentIndex extends IntHashTable {
+		/**
+		 * record ids by entry
+		 */
+		protected String[] ids;
+		/**
+		 * frame locations by entry, one per slot, -1 for none
+		 */
+		private long[] locations;
+		/**
+		 * frame lengths by entry, one per slot
+		 */
+		private int[] lengths;
+		/**
+		 * digest of the last written md5 by entry, two per entry
+		 */
+		private long[] digests;
+		/**
+		 * does the entry have a digest
+		 */
+		private boolean[] hasDigest;
+		/**
+		 * removed entries available for reuse
+		 */
+		private int[] free;
+		/**
+		 * number of removed entries available
+		 */
+		private int freeCount;
+		/**
+		 * highest entry ever used plus one
+		 */
+		protected int high;
+		
+		/**
+		 * Default Constructor
+		 */
+		protected SegmentIndex() {
+			this.ids = new String[64];
+			this.locations = new long[3 * 64];
+			this.lengths = new int[3 * 64];
+			this.digests = new long[2 * 64];
+			this.hasDigest = new boolean[64];
+			this.free = new int[16];
+			this.freeCount = 0;
+			this.high = 0;
+		}
+		
+		@Override
+		protected int hashEntry(int entry) {
+			return this.ids[entry].hashCode();
+		}
+		
+		@Override
+		protected boolean matches(int entry, Object key) {
+			return this.ids[entry].equals(key);
+		}
+		
+		/**
+		 * Find the entry of a record
+		 * @param recID the record id
+		 * @return the entry, -1 if none
+		 */
+		protected int find(String recID) {
+			return get(recID.hashCode(), recID);
+		}
+		
+		/**
+		 * Create an entry for a record, with empty slots
+		 * @param recID the record id
+		 * @return the entry
+		 */
+		protected int create(String recID) {
+			int entry;
+			if(this.freeCount > 0) {
+				entry = this.free[--this.freeCount];
+			} else {
+				if(this.high == this.ids.length) {
+					this.ids = Arrays.copyOf(this.ids, this.high * 2);
+					this.locations = Arrays.copyOf(this.locations, this.high * 6);
+					this.lengths = Arrays.copyOf(this.lengths, this.high * 6);
+					this.digests = Arrays.copyOf(this.digests, this.high * 4);
+					this.hasDigest = Arrays.copyOf(this.hasDigest, this.high * 2);
+				}
+				entry = this.high++;
+			}
+			this.ids[entry] = recID;
+			Arrays.fill(this.locations, 3 * entry, (3 * entry) + 3, -1L);
+			this.hasDigest[entry] = false;
+			add(entry);
+			return entry;
+		}
+		
+		/**
+		 * Remove an entry
+		 * @param entry the entry
+		 */
+		protected void remove(int entry) {
+			remove(this.ids[entry].hashCode(), this.ids[entry]);
+			this.ids[entry] = null;
+			if(this.freeCount == this.free.length) {
+				this.free = Arrays.copyOf(this.free, this.freeCount * 2);
+			}
+			this.free[this.freeCount++] = entry;
+		}
+		
+		/**
+		 * Get the frame location in a slot
+		 * @param entry the entry
+		 * @param slot the slot
+		 * @return the location, -1 if none
+		 */
+		protected long getLocation(int entry, int slot) {
+			return this.locations[(3 * entry) + slot];
+		}
+		
+		/**
+		 * Get the frame length in a slot
+		 * @param entry the entry
+		 * @param slot the slot
+		 * @return the length
+		 */
+		protected int getLength(int entry, int slot) {
+			return this.lengths[(3 * entry) + slot];
+		}
+		
+		/**
+		 * Set the frame in a slot
+		 * @param entry the entry
+		 * @param slot the slot
+		 * @param loc the location, -1 for none
+		 * @param len the length
+		 */
+		protected void set(int entry, int slot, long loc, int len) {
+			this.locations[(3 * entry) + slot] = loc;
+			this.lengths[(3 * entry) + slot] = len;
+		}
+		
+		/**
+		 * Get the digest of the last written md5 of an entry
+		 * @param entry the entry
+		 * @return the digest, null if none
+		 */
+		protected long[] getDigest(int entry) {
+			if(!this.hasDigest[entry]) {
+				return null;
+			}
+			return new long[]{this.digests[2 * entry], this.digests[(2 * entry) + 1]};
+		}
+		
+		/**
+		 * Set the digest of the last written md5 of an entry
+		 * @param entry the entry
+		 * @param digest the digest, null for none
+		 */
+		protected void setDigest(int entry, long[] digest) {
+			this.hasDigest[entry] = (digest != null);
+			if(digest != null) {
+				this.digests[2 * entry] = digest[0];
+				this.digests[(2 * entry) + 1] = digest[1];
+			}
+		}
+		
+		/**
+		 * Get the number of entries
+		 * @return the number of entries
+		 */
+		protected int getRecordCount() {
+			return size();
+		}
+	}
+}
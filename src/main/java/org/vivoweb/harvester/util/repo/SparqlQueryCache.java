@@ -0,0 +1,236 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.Syntax;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.sparql.util.FmtUtils;
+import com.hp.hpl.jena.update.UpdateFactory;
+import com.hp.hpl.jena.update.UpdateRequest;
+
+/**
+ * Least recently used cache of parsed sparql queries and updates, so that a query string executed many times is only
+ * parsed once. The parsed objects are only read when executed, so they are shared by all JenaConnects.
+ * @author VIVO Harvester Team
+ */
+class SparqlQueryCache {
+	/**
+	 * Maximum number of queries (and separately updates) to hold
+	 */
+	private static final int CAPACITY = 256;
+	/**
+	 * Parsed queries by query string
+	 */
+	private static final Map<String, Query> queries = new LruMap<Query>();
+	/**
+	 * Parsed updates by update string
+	 */
+	private static final Map<String, UpdateRequest> updates = new LruMap<UpdateRequest>();
+	/**
+	 * Number of lookups answered from the cache
+	 */
+	private static final AtomicLong hits = new AtomicLong();
+	/**
+	 * Number of lookups that had to parse
+	 */
+	private static final AtomicLong misses = new AtomicLong();
+	
+	/**
+	 * Utility class
+	 */
+	private SparqlQueryCache() {
+		// Nothing to do here
+	}
+	
+	/**
+	 * Get the parsed form of a query
+	 * @param queryString the query
+	 * @return the parsed query
+	 */
+	protected static Query getQuery(String queryString) {
+		synchronized(queries) {
+			Query q = queries.get(queryString);
+			if(q != null) {
+				hits.incrementAndGet();
+				return q;
+			}
+			misses.incrementAndGet();
+		}
+		Query q = QueryFactory.create(queryString, Syntax.syntaxARQ);
+		// result vars are otherwise computed lazily on first execution
+		q.setResultVars();
+		synchronized(queries) {
+			queries.put(queryString, q);
+		}
+		return q;
+	}
+	
+	/**
+	 * Get the parsed form of an update
+	 * @param updateString the update
+	 * @return the parsed update
+	 */
+	protected static UpdateRequest getUpdate(String updateString) {
+		synchronized(updates) {
+			UpdateRequest u = updates.get(updateString);
+			if(u != null) {
+				hits.incrementAndGet();
+				return u;
+			}
+			misses.incrementAndGet();
+		}
+		UpdateRequest u = UpdateFactory.create(updateString);
+		synchronized(updates) {
+			updates.put(updateString, u);
+		}
+		return u;
+	}
+	
+	/**
+	 * Substitute bound values for the variables of a template. Values are written in sparql syntax (uris in angle
+	 * brackets, literals quoted and escaped), so they cannot change the structure of the query. Only variable tokens
+	 * are replaced: string literals (short or long), IRIs and comments in the template are left alone.
+	 * @param template the query template
+	 * @param bindings the values to substitute, by variable name
+	 * @return the query with values substituted
+	 */
+	protected static String bind(String template, QuerySolution bindings) {
+		if(bindings == null) {
+			return template;
+		}
+		StringBuilder sb = new StringBuilder(template.length() + 64);
+		int len = template.length();
+		int x = 0;
+		while(x < len) {
+			char c = template.charAt(x);
+			int end;
+			if((c == '"') || (c == '\'')) {
+				end = stringEnd(template, x);
+			} else if(c == '<') {
+				end = iriEnd(template, x);
+			} else if(c == '#') {
+				end = x;
+				while((end < len) && (template.charAt(end) != '\n') && (template.charAt(end) != '\r')) {
+					end++;
+				}
+			} else if((c == '?') || (c == '$')) {
+				end = x + 1;
+				while((end < len) && (Character.isLetterOrDigit(template.charAt(end)) || (template.charAt(end) == '_'))) {
+					end++;
+				}
+				String var = template.substring(x + 1, end);
+				RDFNode value = (var.length() > 0) ? bindings.get(var) : null;
+				if(value != null) {
+					sb.append(FmtUtils.stringForNode(value.asNode()));
+					x = end;
+					continue;
+				}
+			} else {
+				end = x + 1;
+			}
+			sb.append(template, x, end);
+			x = end;
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Find the end of the string literal starting at the given quote, short ('...') or long ('''...''')
+	 * @param query the query
+	 * @param start the index of the opening quote
+	 * @return the index after the closing quote, or the query length if unterminated
+	 */
+	protected static int stringEnd(String query, int start) {
+		char quote = query.charAt(start);
+		boolean isLong = query.startsWith(new String(new char[]{quote, quote, quote}), start);
+		int x = start + (isLong ? 3 : 1);
+		while(x < query.length()) {
+			char c = query.charAt(x);
+			if(c == '\\') {
+				x += 2;
+			} else if(c != quote) {
+				x++;
+			} else if(!isLong) {
+				return x + 1;
+			} else if(query.startsWith(new String(new char[]{quote, quote, quote}), x)) {
+				// a long string may end with up to two more quotes before its closing three
+				x += 3;
+				while((x < query.length()) && (query.charAt(x) == quote)) {
+					x++;
+				}
+				return x;
+			} else {
+				x++;
+			}
+		}
+		return query.length();
+	}
+	
+	/**
+	 * Find the end of the IRI starting at the given '<'. As in the SPARQL grammar, it is an IRI only if a '>' closes it
+	 * before any character an IRI cannot hold; otherwise the '<' is an operator.
+	 * @param query the query
+	 * @param start the index of the '<'
+	 * @return the index after the closing '>', or start + 1 if not an IRI
+	 */
+	protected static int iriEnd(String query, int start) {
+		for(int x = start + 1; x < query.length(); x++) {
+			char c = query.charAt(x);
+			if(c == '>') {
+				return x + 1;
+			}
+			if((c <= ' ') || ("<\"{}|^`\\".indexOf(c) >= 0)) {
+				break;
+			}
+		}
+		return start + 1;
+	}
+	
+	/**
+	 * Get the number of lookups answered from the cache
+	 * @return the hit count
+	 */
+	protected static long getHits() {
+		return hits.get();
+	}
+	
+	/**
+	 * Get the number of lookups that had to parse
+	 * @return the miss count
+	 */
+	protected static long getMisses() {
+		return misses.get();
+	}
+	
+	/**
+	 * LinkedHashMap in access order that drops the eldest entry once over capacity
+	 * @param <V> the value type
+	 */
+	private static class LruMap<V> extends LinkedHashMap<String, V> {
+		/**
+		 * Serialization version
+		 */
+		private static final long serialVersionUID = 1L;
+		
+		/**
+		 * Default Constructor
+		 */
+		protected LruMap() {
+			super(16, 0.75f, true);
+		}
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+			return size() > CAPACITY;
+		}
+	}
+}
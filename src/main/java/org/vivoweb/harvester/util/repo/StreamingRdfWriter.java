@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Writes a graph as N-Triples, N-Quads or simple Turtle straight from a graph iterator, one statement at a time, so
+ * memory use does not grow with the size of the graph
+ * @author VIVO Harvester Team
+ */
+public class StreamingRdfWriter {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(StreamingRdfWriter.class);
+	/**
+	 * Size of the character buffer in front of the output stream
+	 */
+	private static final int BUFFER_SIZE = 1 << 20;
+	/**
+	 * Streamed N-Triples language name
+	 */
+	public static final String NTRIPLES = "N-TRIPLE";
+	/**
+	 * Streamed N-Quads language name
+	 */
+	public static final String NQUADS = "N-QUADS";
+	/**
+	 * Streamed Turtle language name (statements grouped by consecutive subject, no prefixes)
+	 */
+	public static final String TURTLE = "TURTLE-STREAM";
+	
+	/**
+	 * Utility class
+	 */
+	private StreamingRdfWriter() {
+		// Nothing to do here
+	}
+	
+	/**
+	 * Get the canonical streamed language name for a language
+	 * @param language the language name
+	 * @return NTRIPLES, NQUADS, TURTLE or null if the language cannot be streamed
+	 */
+	private static String canonical(String language) {
+		if(language == null) {
+			return null;
+		}
+		String lang = language.trim().toUpperCase();
+		if(lang.equals("N-TRIPLE") || lang.equals("N-TRIPLES") || lang.equals("NTRIPLE") || lang.equals("NTRIPLES") || lang.equals("NT")) {
+			return NTRIPLES;
+		}
+		if(lang.equals("N-QUADS") || lang.equals("NQUADS") || lang.equals("NQ")) {
+			return NQUADS;
+		}
+		if(lang.equals("TURTLE-STREAM") || lang.equals("TTL-STREAM")) {
+			return TURTLE;
+		}
+		return null;
+	}
+	
+	/**
+	 * Can the given language be written by this writer
+	 * @param language the language name
+	 * @return true if supported
+	 */
+	public static boolean supports(String language) {
+		return canonical(language) != null;
+	}
+	
+	/**
+	 * Write all triples of a graph
+	 * @param g the graph to write
+	 * @param graphName the name written as the fourth element of each N-Quads statement, null for the default graph
+	 * @param out the stream to write to (flushed, not closed)
+	 * @param language one of the languages accepted by supports()
+	 * @return number of triples written
+	 * @throws IOException error writing to stream
+	 */
+	public static long write(Graph g, String graphName, OutputStream out, String language) throws IOException {
+		String lang = canonical(language);
+		if(lang == null) {
+			throw new IllegalArgumentException("Language cannot be streamed: " + language);
+		}
+		Node graphNode = ((graphName != null) && lang.equals(NQUADS)) ? Node.createURI(graphName) : null;
+		Writer w = new BufferedWriter(new OutputStreamWriter(out, Charset.availableCharsets().get("UTF-8")), BUFFER_SIZE);
+		long count = 0;
+		Node lastSubject = null;
+		ExtendedIterator<Triple> it = g.find(Node.ANY, Node.ANY, Node.ANY);
+		try {
+			while(it.hasNext()) {
+				Triple t = it.next();
+				if(lang.equals(TURTLE)) {
+					if(t.getSubject().equals(lastSubject)) {
+						w.write(" ;\n\t");
+					} else {
+						if(lastSubject != null) {
+							w.write(" .\n");
+						}
+						NTriplesCodec.writeNode(t.getSubject(), w);
+						w.write(' ');
+						lastSubject = t.getSubject();
+					}
+					NTriplesCodec.writeNode(t.getPredicate(), w);
+					w.write(' ');
+					NTriplesCodec.writeNode(t.getObject(), w);
+				} else {
+					NTriplesCodec.writeTriple(t, w);
+					if(graphNode != null) {
+						w.write(' ');
+						NTriplesCodec.writeNode(graphNode, w);
+					}
+					w.write(" .\n");
+				}
+				count++;
+			}
+			if(lastSubject != null) {
+				w.write(" .\n");
+			}
+		} finally {
+			it.close();
+		}
+		w.flush();
+		out.flush();
+		log.debug("Streamed " + count + " triples as " + lang);
+		return count;
+	}
+}
@@ -5,12 +5,16 @@
  ******************************************************************************/
 package org.vivoweb.harvester.util.repo;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vivoweb.harvester.util.FileAide;
 import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.tdb.TDB;
 import com.hp.hpl.jena.tdb.TDBFactory;
 
 /**
@@ -23,9 +27,9 @@ public class TDBJenaConnect extends JenaConnect {
 	 */
 	private static Logger log = LoggerFactory.getLogger(TDBJenaConnect.class);
 	/**
-	 * Mapping of directory to Dataset
+	 * Mapping of directory to Dataset, shared by every TDBJenaConnect in the process (guarded by itself)
 	 */
-	private static HashMap<String, Dataset> dirDatasets = new HashMap<String, Dataset>();
+	private static final Map<String, Dataset> dirDatasets = new HashMap<String, Dataset>();
 	/**
 	 * the TDB directory name
 	 */
@@ -54,6 +58,16 @@ public class TDBJenaConnect extends JenaConnect {
 	 * @param modelName the model to connect to
 	 */
 	public TDBJenaConnect(String dbDir, String modelName) {
+		this(dbDir, modelName, true);
+	}
+	
+	/**
+	 * Constructor (TDB Named Model, optionally leaving the model for a subclass to set)
+	 * @param dbDir tdb directory name
+	 * @param modelName the model to connect to
+	 * @param connect connect to the named model in the tdb dataset
+	 */
+	protected TDBJenaConnect(String dbDir, String modelName, boolean connect) {
 		this.dbDir = dbDir;
 		try {
 			FileAide.createFolder(this.dbDir);
@@ -65,15 +79,42 @@ public class TDBJenaConnect extends JenaConnect {
 		} else {
 			setModelName("urn:x-arq:DefaultGraph");
 		}
-		setJenaModel(getDataset().getNamedModel(getModelName()));
+		if(connect) {
+			setJenaModel(getDataset().getNamedModel(getModelName()));
+		}
+	}
+	
+	/**
+	 * Get the TDB directory name
+	 * @return the directory name
+	 */
+	protected String getDbDir() {
+		return this.dbDir;
 	}
 	
 	@Override
 	public Dataset getDataset() {
-		if(!dirDatasets.containsKey(this.dbDir)) {
-			dirDatasets.put(this.dbDir, TDBFactory.createDataset(this.dbDir));
+		// one dataset per directory however it is spelled, so all models in it share caches and the lock
+		String key = new File(this.dbDir).getAbsolutePath();
+		synchronized(dirDatasets) {
+			Dataset ds = dirDatasets.get(key);
+			if(ds == null) {
+				ds = TDBFactory.createDataset(this.dbDir);
+				dirDatasets.put(key, ds);
+			}
+			return ds;
 		}
-		return dirDatasets.get(this.dbDir);
+	}
+	
+	@Override
+	protected Lock getLock() {
+		// named models of a dataset share its indexes, so readers and writers of any of them exclude each other
+		return getDataset().getLock();
+	}
+	
+	@Override
+	protected void commitWrite() {
+		TDB.sync(getDataset());
 	}
 	
 	@Override
@@ -5,16 +5,13 @@
  ******************************************************************************/
 package org.vivoweb.harvester.util.repo;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.NoSuchElementException;
@@ -22,28 +19,27 @@ import java.util.Set;
 import java.util.SortedSet;
 import java.util.TimeZone;
 import java.util.TreeSet;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vivoweb.harvester.util.FileAide;
+import org.vivoweb.harvester.util.InitLog;
+import org.vivoweb.harvester.util.args.ArgDef;
+import org.vivoweb.harvester.util.args.ArgList;
+import org.vivoweb.harvester.util.args.ArgParser;
+import org.vivoweb.harvester.util.args.UsageException;
 import org.vivoweb.harvester.util.repo.RecordMetaData.RecordMetaDataType;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
 /**
- * Record Handler that stores each record as a file in a directory
+ * Record Handler that stores each record as a file in a directory, and the metadata of all records in one append-only
+ * log ("&lt;fileDir&gt;/.metadata.log"). Record files are sharded by the md5 of their id into
+ * "&lt;fileDir&gt;/ab/cd/&lt;id&gt;" so no directory grows too large. Flat record files and per record xml metadata files
+ * written by older versions are moved into place when the directory is opened.
  * @author Christopher Haines (hainesc@ctrip.ufl.edu)
  */
 public class TextFileRecordHandler extends RecordHandler {
@@ -56,9 +52,13 @@ public class TextFileRecordHandler extends RecordHandler {
 	 */
 	protected String fileDir;
 	/**
-	 * The directory to store record metadata files in
+	 * The log of record metadata
 	 */
-	private String metaDir;
+	private RecordMetaDataLog metaLog;
+	/**
+	 * Iterate records ordered by id, rather than in directory order
+	 */
+	private boolean ordered;
 	
 	/**
 	 * Default Constructor
@@ -75,6 +75,18 @@ public class TextFileRecordHandler extends RecordHandler {
 	 * @throws IOException error accessing directory
 	 */
 	public TextFileRecordHandler(String fileDir) throws IOException {
+		this(fileDir, false);
+	}
+	
+	/**
+	 * Constructor
+	 * @param fileDir directory to store records in
+	 * @param ordered iterate records ordered by id (this lists every id before returning the first record), rather than
+	 * in directory order
+	 * @throws IOException error accessing directory
+	 */
+	public TextFileRecordHandler(String fileDir, boolean ordered) throws IOException {
+		this.ordered = ordered;
 		setFileDirObj(fileDir);
 	}
 	
@@ -89,15 +101,97 @@ public class TextFileRecordHandler extends RecordHandler {
 			FileAide.createFolder(fileDir);
 		}
 		this.fileDir = fileDir;
-		this.metaDir = fileDir+"/.metadata";
-		if(!FileAide.exists(this.metaDir)) {
-			log.debug("Directory '" + fileDir + "/.metadata' Does Not Exist, attempting to create");
-			FileAide.createFolder(this.metaDir);
+		this.metaLog = RecordMetaDataLog.open(fileDir+"/.metadata.log");
+		migrateMetaData();
+		migrateLayout();
+	}
+	
+	/**
+	 * Move the record files of older versions, kept directly in fileDir, into their shard directories
+	 * @throws IOException error moving record files
+	 */
+	private void migrateLayout() throws IOException {
+		Set<String> flatIDs = FileAide.getNonHiddenChildren(this.fileDir);
+		if(flatIDs.isEmpty()) {
+			return;
+		}
+		log.info("Moving " + flatIDs.size() + " record files in " + this.fileDir + " into shard directories");
+		for(String recID : flatIDs) {
+			FileAide.createFolder(getShardDir(recID));
+			FileAide.move(this.fileDir+"/"+recID, getRecordPath(recID));
+		}
+		log.info("Moved " + flatIDs.size() + " record files");
+	}
+	
+	/**
+	 * Get the shard directory of a record
+	 * @param recID the record id
+	 * @return the path of the directory
+	 */
+	private String getShardDir(String recID) {
+		String hash = RecordMetaData.md5hex(recID);
+		return this.fileDir+"/"+hash.substring(0, 2)+"/"+hash.substring(2, 4);
+	}
+	
+	/**
+	 * Get the path of a record file
+	 * @param recID the record id
+	 * @return the path of the file
+	 */
+	private String getRecordPath(String recID) {
+		return getShardDir(recID)+"/"+recID;
+	}
+	
+	/**
+	 * Move the metadata files of older versions into the metadata log. Each file is deleted once moved, so an
+	 * interrupted migration picks up where it stopped on the next open.
+	 * @throws IOException error reading metadata files or writing log
+	 */
+	private void migrateMetaData() throws IOException {
+		String metaDir = this.fileDir+"/.metadata";
+		if(!FileAide.exists(metaDir)) {
+			return;
+		}
+		log.info("Migrating record metadata files in " + metaDir + " to the metadata log");
+		int count = 0;
+		int failed = 0;
+		for(String recID : FileAide.getNonHiddenChildren(metaDir)) {
+			String fmo = metaDir+"/"+recID;
+			SortedSet<RecordMetaData> rmdSet;
+			try {
+				rmdSet = new TextFileMetaDataParser().parseMetaData(fmo);
+			} catch(ParserConfigurationException e) {
+				throw new IOException(e);
+			} catch(SAXException e) {
+				log.warn("Skipping unreadable metadata file " + fmo + ": " + e.getMessage());
+				failed++;
+				continue;
+			}
+			// metadata already logged for the record means a migration was interrupted after logging this file
+			this.metaLog.delete(recID);
+			for(RecordMetaData rmd : rmdSet) {
+				this.metaLog.add(recID, rmd);
+			}
+			FileAide.delete(fmo);
+			count++;
 		}
+		if(failed == 0) {
+			FileAide.delete(metaDir);
+		}
+		log.info("Migrated metadata of " + count + " records" + ((failed == 0) ? "" : (", " + failed + " unreadable files left in " + metaDir)));
+	}
+	
+	/**
+	 * Rewrite the metadata log without the metadata of deleted records
+	 * @throws IOException error writing log
+	 */
+	public void compactMetaData() throws IOException {
+		this.metaLog.compact();
 	}
 	
 	@Override
 	public void setParams(Map<String, String> params) throws IllegalArgumentException, IOException {
+		this.ordered = Boolean.parseBoolean(getParam(params, "orderedIteration", false));
 		setFileDirObj(getParam(params, "fileDir", true));
 	}
 	
@@ -116,70 +210,28 @@ public class TextFileRecordHandler extends RecordHandler {
 	}
 	
 	@Override
-	public boolean addRecord(Record rec, Class<?> operator, boolean overwrite) throws IOException {
+	public synchronized boolean addRecord(Record rec, Class<?> operator, boolean overwrite) throws IOException {
 		String newID = sanitizeID(rec.getID());
 		Record cleanRec;
 		if(newID == null) {
 			cleanRec = rec;
 		} else {
-			cleanRec = new Record(newID, rec.getData(), this);
+			cleanRec = new Record(newID, rec.getDataBytes(), this);
 		}
 		if(!needsUpdated(cleanRec)) {
 			return false;
 		}
 		// log.debug("Resolving file for record: " + cleanRec.getID());
-		String fo = this.fileDir+"/"+cleanRec.getID();
-		FileAide.setTextContent(fo, cleanRec.getData(), overwrite);
-		createMetaDataFile(cleanRec.getID());
+		String fo = getRecordPath(cleanRec.getID());
+		FileAide.setContent(fo, cleanRec.getDataBytes(), overwrite);
 		setWritten(cleanRec, operator);
 		return true;
 	}
 	
-	/**
-	 * Creates the metadata file for a given record
-	 * @param recID the record id
-	 * @throws IOException error writing metadata file
-	 */
-	private void createMetaDataFile(String recID) throws IOException {
-		String fmo = null;
-		BufferedWriter bw = null;
-		try {
-			fmo = this.metaDir+"/"+recID;
-			FileAide.createFile(fmo);
-			
-			bw = new BufferedWriter(new OutputStreamWriter(FileAide.getOutputStream(fmo)));
-			bw.append("<MetaDataRecordList>\n");
-			// bw.append("  <Date>"+rmd.getDate().getTimeInMillis()+"</Date>\n");
-			// bw.append("  <Operation>"+rmd.getOperation()+"</Operation>\n");
-			// bw.append("  <Operator>"+rmd.getOperator().getName()+"</Operator>\n");
-			// bw.append("  <MD5>"+rmd.getMD5()+"</MD5>\n");
-			bw.append("</MetaDataRecordList>\n");
-			bw.close();
-		} catch(IOException e) {
-			String error = "Error creating metadata for record " + recID + " at file " + fmo;
-			if(bw != null) {
-				try {
-					bw.close();
-				} catch(Exception ignore) {
-					// Ignore
-				}
-			}
-			throw new IOException(error, e);
-		} finally {
-			if(bw != null) {
-				try {
-					bw.close();
-				} catch(Exception ignore) {
-					// Ignore
-				}
-			}
-		}
-	}
-	
 	@Override
-	public void delRecord(String recID) throws IOException {
+	public synchronized void delRecord(String recID) throws IOException {
 		String fo = null;
-		fo = this.fileDir+"/"+recID;
+		fo = getRecordPath(recID);
 		if(!FileAide.exists(fo)) {
 			log.warn("Attempted to delete record " + recID + ", but file " + fo + " did not exist.");
 		} else if(!FileAide.isWriteable(fo)) {
@@ -192,153 +244,210 @@ public class TextFileRecordHandler extends RecordHandler {
 	
 	@Override
 	public String getRecordData(String recID) throws IllegalArgumentException, IOException {
-		String fo = null;
-		BufferedReader br = null;
-		try {
-			StringBuilder sb = new StringBuilder();
-			fo = this.fileDir+"/"+recID;
-			if(!FileAide.exists(fo)) {
-				throw new IllegalArgumentException("Record " + recID + " does not exist!");
-			}
-			br = new BufferedReader(new InputStreamReader(FileAide.getInputStream(fo)));
-			String line;
-			while((line = br.readLine()) != null) {
-				sb.append(line);
-				sb.append("\n");
-			}
-			br.close();
-			return sb.toString().trim();
-		} catch(IOException e) {
-			if(br != null) {
-				try {
-					br.close();
-				} catch(Exception ignore) {
-					// Ignore
-				}
-			}
-			throw e;
-		} finally {
-			if(br != null) {
-				try {
-					br.close();
-				} catch(Exception ignore) {
-					// Ignore
-				}
-			}
+		return new String(getRecordDataBytes(recID), Record.DATA_CHARSET);
+	}
+	
+	@Override
+	public byte[] getRecordDataBytes(String recID) throws IllegalArgumentException, IOException {
+		String fo = getRecordPath(recID);
+		if(!FileAide.exists(fo)) {
+			throw new IllegalArgumentException("Record " + recID + " does not exist!");
 		}
+		return Record.trim(FileAide.getContent(fo));
+	}
+	
+	@Override
+	public Record getRecord(String recID) throws IllegalArgumentException, IOException {
+		// decoded only if the text is asked for
+		return new Record(recID, getRecordDataBytes(recID), this);
 	}
 	
 	@Override
 	protected void delMetaData(String recID) throws IOException {
-		String fmo = this.metaDir+"/"+recID;
-		if(!FileAide.exists(fmo)) {
-			log.warn("Attempted to delete record " + recID + " metadata, but file " + fmo + " did not exist.");
-		} else if(!FileAide.isWriteable(fmo)) {
-			throw new IOException("Insufficient file system privileges to delete record " + recID + " metadata from file " + fmo);
-		} else if(!FileAide.delete(fmo)) {
-			throw new IOException("Failed to delete record " + recID + " metadata from file " + fmo);
+		forgetDigest(recID);
+		if(!this.metaLog.delete(recID)) {
+			log.warn("Attempted to delete record " + recID + " metadata, but it had none.");
 		}
 	}
 	
 	@Override
 	protected void addMetaData(Record rec, RecordMetaData rmd) throws IOException {
-		String fmo = this.metaDir+"/"+rec.getID();
-		if(!FileAide.exists(fmo)) {
-			log.debug("Attempted to add record " + rec.getID() + " metadata, but file " + fmo + " did not exist. Initializing record metadata.");
-			createMetaDataFile(rec.getID());
-		} else if(!FileAide.isWriteable(fmo)) {
-			throw new IOException("Insufficient file system privileges to modify record " + rec.getID() + " metadata from file " + fmo);
+		this.metaLog.add(rec.getID(), rmd);
+	}
+	
+	@Override
+	protected SortedSet<RecordMetaData> getRecordMetaData(String recID) throws IOException {
+		SortedSet<RecordMetaData> rmdSet = this.metaLog.get(recID);
+		if(rmdSet == null) {
+			throw new IOException("Attempted to retrieve record " + recID + " metadata, but it has none");
 		}
-		
-		DocumentBuilder db;
-		Document doc;
-		InputStream is = null;
-		try {
-			db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-			is = FileAide.getInputStream(fmo);
-			doc = db.parse(is);
-			is.close();
-		} catch(Exception e) {
-			if(is != null) {
-				is.close();
-			}
-			throw new IOException(e);
-		} finally {
-			if(is != null) {
-				is.close();
+		return rmdSet;
+	}
+	
+	@Override
+	protected void loadDigests(RecordDigestIndex index) {
+		this.metaLog.loadDigests(index);
+	}
+	
+	@Override
+	public Iterable<Record> pendingRecords(final Class<?> operator) {
+		// walk the record ids, checking each against the in memory metadata, so only pending records are read
+		return getRecords(new Iterable<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				final Iterator<String> idIter = new RecordIDIterator();
+				return new Iterator<String>() {
+					/**
+					 * The next pending record id, null if not yet found
+					 */
+					private String nextID;
+					
+					@Override
+					public boolean hasNext() {
+						while((this.nextID == null) && idIter.hasNext()) {
+							String recID = idIter.next();
+							if(TextFileRecordHandler.this.metaLog.needsProcessed(recID, operator)) {
+								this.nextID = recID;
+							}
+						}
+						return this.nextID != null;
+					}
+					
+					@Override
+					public String next() {
+						if(!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						String recID = this.nextID;
+						this.nextID = null;
+						return recID;
+					}
+					
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
 			}
-		}
-		Element rootNode = doc.getDocumentElement();
-		Element newNode = doc.createElement("MetaDataRecord");
-		Element dateNode = doc.createElement("Date");
-		dateNode.appendChild(doc.createTextNode(rmd.getDate().getTimeInMillis() + ""));
-		newNode.appendChild(dateNode);
-		// Start Remove Here
-		Element dateNodeReadable = doc.createElement("DateReadable");
-		dateNodeReadable.appendChild(doc.createTextNode(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.S").format(rmd.getDate().getTime())));
-		newNode.appendChild(dateNodeReadable);
-		// Stop Remove Here
-		Element operationNode = doc.createElement("Operation");
-		operationNode.appendChild(doc.createTextNode(rmd.getOperation().toString()));
-		newNode.appendChild(operationNode);
-		Element operatorNode = doc.createElement("Operator");
-		operatorNode.appendChild(doc.createTextNode(rmd.getOperator().getName()));
-		newNode.appendChild(operatorNode);
-		Element md5Node = doc.createElement("MD5");
-		md5Node.appendChild(doc.createTextNode(rmd.getMD5()));
-		newNode.appendChild(md5Node);
-		rootNode.appendChild(newNode);
-		
-		OutputStream os = null;
+		});
+	}
+	
+	@Override
+	public Iterator<Record> iterator() {
+		return new TextFileRecordIterator();
+	}
+	
+	/**
+	 * List the shard directories in a directory
+	 * @param dir the directory
+	 * @return the names of the shard directories
+	 */
+	private static Set<String> listShards(String dir) {
+		Set<String> shards = new TreeSet<String>();
 		try {
-			Transformer trans = TransformerFactory.newInstance().newTransformer();
-			trans.setOutputProperty(OutputKeys.INDENT, "yes");
-			trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
-			os = FileAide.getOutputStream(fmo);
-			trans.transform(new DOMSource(doc), new StreamResult(os));
-		} catch(Exception e) {
-			if(os != null) {
-				os.close();
-			}
-			throw new IOException(e);
-		} finally {
-			if(os != null) {
-				os.close();
+			for(String name : FileAide.getNonHiddenChildFolders(dir)) {
+				if(name.matches("[0-9a-f]{2}")) {
+					shards.add(name);
+				}
 			}
+		} catch(IOException e) {
+			log.error(e.getMessage());
+			log.debug("Stacktrace:",e);
 		}
-		
-		// OutputStream os = FileAide.getOutputStream(fmo);
-		// BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(os));
-		// bw.append("<MetaDataRecord>\n");
-		// bw.append("  <Date>"+rmd.getDate().getTimeInMillis()+"</Date>\n");
-		// bw.append("  <Operation>"+rmd.getOperation()+"</Operation>\n");
-		// bw.append("  <Operator>"+rmd.getOperator().getName()+"</Operator>\n");
-		// bw.append("  <MD5>"+rmd.getMD5()+"</MD5>\n");
-		// bw.append("</MetaDataRecord>\n");
-		// bw.close();
-		// os.close();
+		return shards;
 	}
 	
 	@Override
-	protected SortedSet<RecordMetaData> getRecordMetaData(String recID) throws IOException {
-		try {
-			String fmo = this.metaDir+"/"+recID;
-			if(!FileAide.exists(fmo)) {
-				throw new IOException("Attempted to retrieve record " + recID + " metadata, but file " + fmo + " does not exist");
-			} else if(!FileAide.isReadable(fmo)) {
-				throw new IOException("Insufficient file system privileges to read record " + recID + " metadata from file " + fmo);
+	public List<Iterable<Record>> partitions(int n) {
+		checkPartitionCount(n);
+		// runs of top level shard directories, each partition walks its own part of the tree in directory order
+		List<String> shards = new ArrayList<String>(listShards(this.fileDir));
+		List<Iterable<Record>> parts = new ArrayList<Iterable<Record>>(n);
+		for(int x = 0; x < n; x++) {
+			final List<String> group = shards.subList((shards.size() * x) / n, (shards.size() * (x + 1)) / n);
+			if(!group.isEmpty() || ((x == (n - 1)) && parts.isEmpty())) {
+				parts.add(getRecords(new Iterable<String>() {
+					@Override
+					public Iterator<String> iterator() {
+						return new RecordIDIterator(group);
+					}
+				}));
 			}
-			return new TextFileMetaDataParser().parseMetaData(fmo);
-		} catch(ParserConfigurationException e) {
-			throw new IOException(e);
-		} catch(SAXException e) {
-			throw new IOException(e);
 		}
+		return parts;
 	}
 	
-	@Override
-	public Iterator<Record> iterator() {
-		return new TextFileRecordIterator();
+	/**
+	 * Iterator over the ids of the records, walking one shard directory at a time
+	 */
+	private class RecordIDIterator implements Iterator<String> {
+		/**
+		 * Iterator over the top level shard directories
+		 */
+		private final Iterator<String> outerIter;
+		/**
+		 * The current top level shard directory
+		 */
+		private String outerDir;
+		/**
+		 * Iterator over the shard directories in the current top level shard directory
+		 */
+		private Iterator<String> innerIter;
+		/**
+		 * Iterator over the record files in the current shard directory
+		 */
+		private Iterator<String> fileNameIter;
+		
+		/**
+		 * Default Constructor
+		 */
+		protected RecordIDIterator() {
+			this(listShards(TextFileRecordHandler.this.fileDir));
+		}
+		
+		/**
+		 * Constructor
+		 * @param outerShards the names of the top level shard directories to walk
+		 */
+		protected RecordIDIterator(Collection<String> outerShards) {
+			this.outerIter = outerShards.iterator();
+			this.innerIter = Collections.<String>emptySet().iterator();
+			this.fileNameIter = Collections.<String>emptySet().iterator();
+		}
+		
+		@Override
+		public boolean hasNext() {
+			while(!this.fileNameIter.hasNext()) {
+				while(!this.innerIter.hasNext()) {
+					if(!this.outerIter.hasNext()) {
+						return false;
+					}
+					this.outerDir = TextFileRecordHandler.this.fileDir+"/"+this.outerIter.next();
+					this.innerIter = listShards(this.outerDir).iterator();
+				}
+				String innerDir = this.outerDir+"/"+this.innerIter.next();
+				try {
+					this.fileNameIter = FileAide.getNonHiddenChildren(innerDir).iterator();
+				} catch(IOException e) {
+					log.error(e.getMessage());
+					log.debug("Stacktrace:",e);
+				}
+			}
+			return true;
+		}
+		
+		@Override
+		public String next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return this.fileNameIter.next();
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
 	}
 	
 	/**
@@ -347,7 +456,7 @@ public class TextFileRecordHandler extends RecordHandler {
 	 */
 	private class TextFileRecordIterator implements Iterator<Record> {
 		/**
-		 * Iterator over the files
+		 * Iterator over the record ids
 		 */
 		Iterator<String> fileNameIter;
 		
@@ -355,16 +464,17 @@ public class TextFileRecordHandler extends RecordHandler {
 		 * Default Constructor
 		 */
 		protected TextFileRecordIterator() {
-			Set<String> allFileListing = new TreeSet<String>();
-			log.debug("Compiling list of records");
-			try {
-				allFileListing.addAll(FileAide.getNonHiddenChildren(TextFileRecordHandler.this.fileDir));
-			} catch(IOException e) {
-				log.error(e.getMessage());
-				log.debug("Stacktrace:",e);
+			Iterator<String> idIter = new RecordIDIterator();
+			if(TextFileRecordHandler.this.ordered) {
+				Set<String> allFileListing = new TreeSet<String>();
+				log.debug("Compiling list of records");
+				while(idIter.hasNext()) {
+					allFileListing.add(idIter.next());
+				}
+				idIter = allFileListing.iterator();
+				log.debug("List compiled");
 			}
-			this.fileNameIter = allFileListing.iterator();
-			log.debug("List compiled");
+			this.fileNameIter = idIter;
 		}
 		
 		@Override
@@ -503,17 +613,94 @@ public class TextFileRecordHandler extends RecordHandler {
 	
 	@Override
 	public void close() throws IOException {
-		// Do nothing
+		closeDigestIndex();
+		this.metaLog.close();
+	}
+	
+	@Override
+	public SortedSet<String> getRecordIDs() {
+		// the ids are the file names, no need to read the records
+		SortedSet<String> ids = new TreeSet<String>();
+		Iterator<String> idIter = new RecordIDIterator();
+		while(idIter.hasNext()) {
+			ids.add(idIter.next());
+		}
+		return ids;
 	}
 	
 	@Override
 	public Set<String> find(String idText) {
 		Set<String> retVal = new TreeSet<String>();
-		for(Record r : this) {
-			if(r.getID().contains(idText)) {
-				retVal.add(r.getID());
+		// the ids are the file names, no need to read the records
+		Iterator<String> idIter = new RecordIDIterator();
+		while(idIter.hasNext()) {
+			String recID = idIter.next();
+			if(recID.contains(idText)) {
+				retVal.add(recID);
 			}
 		}
 		return retVal;
 	}
+	
+	/**
+	 * Run from commandline: migrates the metadata files of older versions into the metadata log and optionally compacts
+	 * the log
+	 * @param args the commandline args
+	 * @throws IOException error migrating
+	 * @throws UsageException user requested usage message
+	 */
+	public static void run(String... args) throws IOException, UsageException {
+		ArgList argList = getParser().parse(args);
+		TextFileRecordHandler rh = new TextFileRecordHandler(argList.get("d"));
+		try {
+			if(argList.has("c")) {
+				rh.compactMetaData();
+			}
+		} finally {
+			rh.close();
+		}
+	}
+	
+	/**
+	 * Get the OptionParser
+	 * @return the OptionParser
+	 */
+	private static ArgParser getParser() {
+		ArgParser parser = new ArgParser("TextFileRecordHandler");
+		parser.addArgument(new ArgDef().setShortOption('d').setLongOpt("fileDir").withParameter(true, "DIRECTORY").setDescription("the record directory to migrate").setRequired(true));
+		parser.addArgument(new ArgDef().setShortOption('c').setLongOpt("compact").setDescription("compact the metadata log").setRequired(false));
+		return parser;
+	}
+	
+	/**
+	 * Main method
+	 * @param args commandline args
+	 */
+	public static void main(String... args) {
+		Exception error = null;
+		try {
+			InitLog.initLogger(args, getParser());
+			log.info(getParser().getAppName() + ": Start");
+			run(args);
+		} catch(IllegalArgumentException e) {
+			log.error(e.getMessage());
+			log.debug("Stacktrace:",e);
+			System.out.println(getParser().getUsage());
+			error = e;
+		} catch(UsageException e) {
+			log.info("Printing Usage:");
+			System.out.println(getParser().getUsage());
+			error = e;
+		} catch(Exception e) {
+			log.error(e.getMessage());
+			log.debug("Stacktrace:",e);
+			error = e;
+		} finally {
+			JenaConnectMetrics.logSummary();
+			log.info(getParser().getAppName() + ": End");
+			if(error != null) {
+				System.exit(1);
+			}
+		}
+	}
 }
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.util.Iterator;
+import java.util.List;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.GraphEvents;
+import com.hp.hpl.jena.graph.GraphListener;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Graph listener that reports every added or removed triple individually, whichever form the notification came in
+ * @author VIVO Harvester Team
+ */
+abstract class TripleChangeListener implements GraphListener {
+	/**
+	 * A triple was added to or removed from the graph
+	 * @param g the graph
+	 * @param t the triple
+	 * @param added true if added, false if removed
+	 */
+	protected abstract void changed(Graph g, Triple t, boolean added);
+	
+	/**
+	 * Triples were removed without being listed (removeAll and similar bulk removals)
+	 * @param g the graph
+	 */
+	protected abstract void unlistedRemoval(Graph g);
+	
+	/**
+	 * Report changes
+	 * @param g the graph
+	 * @param it the triples
+	 * @param added true if added, false if removed
+	 */
+	private void changed(Graph g, Iterator<Triple> it, boolean added) {
+		while(it.hasNext()) {
+			changed(g, it.next(), added);
+		}
+	}
+	
+	/**
+	 * Report changes
+	 * @param g the graph
+	 * @param other the graph of triples
+	 * @param added true if added, false if removed
+	 */
+	private void changed(Graph g, Graph other, boolean added) {
+		ExtendedIterator<Triple> it = other.find(Node.ANY, Node.ANY, Node.ANY);
+		try {
+			changed(g, it.toList().iterator(), added);
+		} finally {
+			it.close();
+		}
+	}
+	
+	@Override
+	public void notifyAddTriple(Graph g, Triple t) {
+		changed(g, t, true);
+	}
+	
+	@Override
+	public void notifyAddArray(Graph g, Triple[] triples) {
+		for(Triple t : triples) {
+			changed(g, t, true);
+		}
+	}
+	
+	@Override
+	public void notifyAddList(Graph g, List<Triple> triples) {
+		changed(g, triples.iterator(), true);
+	}
+	
+	@Override
+	public void notifyAddIterator(Graph g, Iterator<Triple> it) {
+		changed(g, it, true);
+	}
+	
+	@Override
+	public void notifyAddGraph(Graph g, Graph added) {
+		changed(g, added, true);
+	}
+	
+	@Override
+	public void notifyDeleteTriple(Graph g, Triple t) {
+		changed(g, t, false);
+	}
+	
+	@Override
+	public void notifyDeleteList(Graph g, List<Triple> triples) {
+		changed(g, triples.iterator(), false);
+	}
+	
+	@Override
+	public void notifyDeleteArray(Graph g, Triple[] triples) {
+		for(Triple t : triples) {
+			changed(g, t, false);
+		}
+	}
+	
+	@Override
+	public void notifyDeleteIterator(Graph g, Iterator<Triple> it) {
+		changed(g, it, false);
+	}
+	
+	@Override
+	public void notifyDeleteGraph(Graph g, Graph removed) {
+		changed(g, removed, false);
+	}
+	
+	@Override
+	public void notifyEvent(Graph source, Object value) {
+		if((value instanceof GraphEvents) && (value != GraphEvents.startRead) && (value != GraphEvents.finishRead)) {
+			unlistedRemoval(source);
+		}
+	}
+}
@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.impl.GraphBase;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.NullIterator;
+
+/**
+ * Write-only Graph that just collects the triples added to it, used as a parse target when the triples are to be
+ * applied elsewhere
+ * @author VIVO Harvester Team
+ */
+class TripleCollectorGraph extends GraphBase {
+	/**
+	 * The triples added so far
+	 */
+	private List<Triple> triples;
+	
+	/**
+	 * Default Constructor
+	 */
+	protected TripleCollectorGraph() {
+		this.triples = new ArrayList<Triple>();
+	}
+	
+	/**
+	 * Parse rdf into a list of triples
+	 * @param in input stream to read rdf from
+	 * @param namespace the base uri to use for imported uris
+	 * @param language the language the rdf is in. Predefined values for lang are "RDF/XML", "N-TRIPLE", "TURTLE" (or
+	 *        "TTL") and "N3". null represents the default language, "RDF/XML". "RDF/XML-ABBREV" is a synonym for
+	 *        "RDF/XML"
+	 * @return the parsed triples
+	 */
+	protected static List<Triple> parse(InputStream in, String namespace, String language) {
+		TripleCollectorGraph g = new TripleCollectorGraph();
+		ModelFactory.createModelForGraph(g).read(in, namespace, language);
+		return g.getTriples();
+	}
+	
+	@Override
+	public void performAdd(Triple t) {
+		this.triples.add(t);
+	}
+	
+	@Override
+	protected ExtendedIterator<Triple> graphBaseFind(TripleMatch m) {
+		return NullIterator.instance();
+	}
+	
+	/**
+	 * Get the triples collected so far
+	 * @return the triples
+	 */
+	protected List<Triple> getTriples() {
+		return this.triples;
+	}
+}
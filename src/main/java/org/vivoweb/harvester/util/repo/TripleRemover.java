@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.harvester.util.repo;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.impl.GraphBase;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.NullIterator;
+
+/**
+ * Buffers triples to be removed from a graph and deletes them in batches, counting how many were actually present.
+ * Repeats are merged within a batch; nothing is kept once a batch is deleted, so a triple requested again in a later
+ * batch is counted as not found.
+ * @author VIVO Harvester Team
+ */
+public class TripleRemover {
+	/**
+	 * Default number of triples to buffer before deleting
+	 */
+	protected static final int DEFAULT_BATCH_SIZE = 10000;
+	/**
+	 * The graph to remove from
+	 */
+	private final Graph target;
+	/**
+	 * number of triples to buffer before deleting
+	 */
+	private final int batchSize;
+	/**
+	 * Triples waiting to be removed
+	 */
+	private final Set<Triple> batch;
+	/**
+	 * Number of triples removed
+	 */
+	private long removed;
+	/**
+	 * Number of triples that were not in the graph
+	 */
+	private long notFound;
+	
+	/**
+	 * Constructor
+	 * @param target the graph to remove from
+	 */
+	public TripleRemover(Graph target) {
+		this(target, DEFAULT_BATCH_SIZE);
+	}
+	
+	/**
+	 * Constructor
+	 * @param target the graph to remove from
+	 * @param batchSize number of triples to buffer before deleting
+	 */
+	public TripleRemover(Graph target, int batchSize) {
+		this.target = target;
+		this.batchSize = batchSize;
+		this.batch = new LinkedHashSet<Triple>();
+		this.removed = 0;
+		this.notFound = 0;
+	}
+	
+	/**
+	 * Queue triples for removal, deleting a batch once enough are buffered
+	 * @param triples the triples to remove
+	 */
+	public void remove(Collection<Triple> triples) {
+		for(Triple t : triples) {
+			remove(t);
+		}
+	}
+	
+	/**
+	 * Queue a triple for removal, deleting a batch once enough are buffered
+	 * @param t the triple to remove
+	 */
+	public void remove(Triple t) {
+		this.batch.add(t);
+		if(this.batch.size() >= this.batchSize) {
+			flush();
+		}
+	}
+	
+	/**
+	 * Parse rdf and queue each triple for removal as it is read
+	 * @param in input stream to read rdf from
+	 * @param namespace the base uri to use for imported uris
+	 * @param language the language the rdf is in. Predefined values for lang are "RDF/XML", "N-TRIPLE", "TURTLE" (or
+	 *        "TTL") and "N3". null represents the default language, "RDF/XML". "RDF/XML-ABBREV" is a synonym for
+	 *        "RDF/XML"
+	 */
+	public void removeParsed(InputStream in, String namespace, String language) {
+		ModelFactory.createModelForGraph(new RemovalSink()).read(in, namespace, language);
+	}
+	
+	/**
+	 * Delete all buffered triples. Presence is checked with one find per distinct subject in the batch rather than one
+	 * contains per triple.
+	 */
+	public void flush() {
+		if(this.batch.isEmpty()) {
+			return;
+		}
+		Map<Node, Set<Triple>> bySubject = new LinkedHashMap<Node, Set<Triple>>();
+		for(Triple t : this.batch) {
+			Set<Triple> wanted = bySubject.get(t.getSubject());
+			if(wanted == null) {
+				wanted = new HashSet<Triple>();
+				bySubject.put(t.getSubject(), wanted);
+			}
+			wanted.add(t);
+		}
+		List<Triple> found = new ArrayList<Triple>(this.batch.size());
+		for(Map.Entry<Node, Set<Triple>> entry : bySubject.entrySet()) {
+			Set<Triple> wanted = entry.getValue();
+			ExtendedIterator<Triple> it = this.target.find(entry.getKey(), Node.ANY, Node.ANY);
+			try {
+				while(!wanted.isEmpty() && it.hasNext()) {
+					Triple t = it.next();
+					if(wanted.remove(t)) {
+						found.add(t);
+					}
+				}
+			} finally {
+				it.close();
+			}
+		}
+		this.notFound += this.batch.size() - found.size();
+		this.batch.clear();
+		if(!found.isEmpty()) {
+			this.target.getBulkUpdateHandler().delete(found);
+			this.removed += found.size();
+		}
+	}
+	
+	/**
+	 * Get the number of triples removed so far
+	 * @return the number removed
+	 */
+	public long getRemovedCount() {
+		return this.removed;
+	}
+	
+	/**
+	 * Get the number of triples requested for removal that were not in the graph
+	 * @return the number not found
+	 */
+	public long getNotFoundCount() {
+		return this.notFound;
+	}
+	
+	/**
+	 * Write-only Graph that hands every triple added to it to the enclosing TripleRemover
+	 */
+	private class RemovalSink extends GraphBase {
+		/**
+		 * Default Constructor
+		 */
+		protected RemovalSink() {
+			// Nothing to do here
+		}
+		
+		@Override
+		public void performAdd(Triple t) {
+			TripleRemover.this.remove(t);
+		}
+		
+		@Override
+		protected ExtendedIterator<Triple> graphBaseFind(TripleMatch m) {
+			return NullIterator.instance();
+		}
+	}
+}
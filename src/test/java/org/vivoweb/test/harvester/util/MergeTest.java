@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Copyright (c) 2010-2011 VIVO Harvester Team. For full list of contributors, please see the AUTHORS file provided.
+ * All rights reserved.
+ * This program and the accompanying materials are made available under the terms of the new BSD license which accompanies this distribution, and is available at http://www.opensource.org/licenses/bsd-license.html
+ ******************************************************************************/
+package org.vivoweb.test.harvester.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import junit.framework.TestCase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vivoweb.harvester.util.InitLog;
+import org.vivoweb.harvester.util.Merge;
+import org.vivoweb.harvester.util.repo.JenaConnect;
+import org.vivoweb.harvester.util.repo.MapRecordHandler;
+import org.vivoweb.harvester.util.repo.MemJenaConnect;
+import org.vivoweb.harvester.util.repo.RecordHandler;
+
+/**
+ * @author VIVO Harvester Team
+ */
+public class MergeTest extends TestCase {
+	/**
+	 * SLF4J Logger
+	 */
+	private static Logger log = LoggerFactory.getLogger(MergeTest.class);
+	/** */
+	private static final String regex = "(pub\\d+)_main";
+	/** */
+	private RecordHandler input;
+	
+	@Override
+	protected void setUp() throws Exception {
+		InitLog.initLogger(null, null);
+		this.input = new MapRecordHandler();
+		// pub1 is contained in every pub12 id, so pub12's records also belong to pub1's group
+		for(String id : Arrays.asList("pub1_main", "pub12_main", "pub1_author", "pub12_author", "pub1_venue", "other")) {
+			this.input.addRecord(id, "<?xml version=\"1.0\"?>\n<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\" xmlns:ex=\"http://example.org/\">\n  <rdf:Description rdf:about=\"http://example.org/" + id + "\">\n    <ex:id>" + id + "</ex:id>\n  </rdf:Description>\n</rdf:RDF>\n", MergeTest.class);
+		}
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		this.input.close();
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.Merge#merge(org.vivoweb.harvester.util.repo.RecordHandler, org.vivoweb.harvester.util.repo.RecordHandler, java.util.regex.Pattern, int)
+	 * merge(RecordHandler input, RecordHandler output, Pattern regex, int threads)} on one thread.
+	 * @throws IOException error
+	 */
+	public final void testMerge() throws IOException {
+		log.info("BEGIN testMerge");
+		RecordHandler output = new MapRecordHandler();
+		Merge.merge(this.input, output, Pattern.compile(regex), 1);
+		assertMatchesFind(output);
+		assertEquals(5, mergedSize(output, "pub1"));
+		assertEquals(2, mergedSize(output, "pub12"));
+		output.close();
+		log.info("END testMerge");
+	}
+	
+	/**
+	 * Test the -t/--threads option of {@link org.vivoweb.harvester.util.Merge Merge}, merging groups in parallel
+	 * @throws IOException error
+	 */
+	public final void testMergeThreads() throws IOException {
+		log.info("BEGIN testMergeThreads");
+		RecordHandler output = new MapRecordHandler();
+		new Merge(this.input, output, regex, 3).execute();
+		assertMatchesFind(output);
+		output.close();
+		log.info("END testMergeThreads");
+	}
+	
+	/**
+	 * Check the output holds one record per primary record, each the merge of the records find(key) returns, as Merge
+	 * did before grouping the ids itself
+	 * @param output the merged records
+	 * @throws IOException error
+	 */
+	private void assertMatchesFind(RecordHandler output) throws IOException {
+		Set<String> keys = new TreeSet<String>();
+		for(String id : this.input.getRecordIDs()) {
+			Matcher m = Pattern.compile(regex).matcher(id);
+			if(m.matches()) {
+				keys.add(m.group(1));
+			}
+		}
+		assertEquals(keys, output.getRecordIDs());
+		for(String key : keys) {
+			JenaConnect expected = new MemJenaConnect();
+			for(String id : this.input.find(key)) {
+				expected.loadRdfFromStream(this.input.getRecord(id).openStream(), null, null);
+			}
+			JenaConnect merged = new MemJenaConnect(new ByteArrayInputStream(output.getRecordDataBytes(key)), null, null);
+			assertTrue("group '" + key + "' differs from find()", merged.getJenaModel().isIsomorphicWith(expected.getJenaModel()));
+			expected.close();
+			merged.close();
+		}
+	}
+	
+	/**
+	 * Get the number of triples in a merged record
+	 * @param output the merged records
+	 * @param key the primary record's key
+	 * @return the number of triples
+	 * @throws IOException error
+	 */
+	private static long mergedSize(RecordHandler output, String key) throws IOException {
+		JenaConnect merged = new MemJenaConnect(new ByteArrayInputStream(output.getRecordDataBytes(key)), null, null);
+		try {
+			return merged.getJenaModel().size();
+		} finally {
+			merged.close();
+		}
+	}
+}
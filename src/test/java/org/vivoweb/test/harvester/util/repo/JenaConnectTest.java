@@ -7,22 +7,44 @@ package org.vivoweb.test.harvester.util.repo;
 
 import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.List;
 import junit.framework.TestCase;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vivoweb.harvester.util.FileAide;
 import org.vivoweb.harvester.util.InitLog;
+import org.vivoweb.harvester.util.repo.FileJenaConnect;
+import org.vivoweb.harvester.util.repo.GraphStatistics;
 import org.vivoweb.harvester.util.repo.JDBCRecordHandler;
+import org.vivoweb.harvester.util.repo.JdbcConnectionPool;
 import org.vivoweb.harvester.util.repo.JenaConnect;
+import org.vivoweb.harvester.util.repo.JenaConnectMetrics;
+import org.vivoweb.harvester.util.repo.MapRecordHandler;
 import org.vivoweb.harvester.util.repo.MemJenaConnect;
+import org.vivoweb.harvester.util.repo.MmapJenaConnect;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 import org.vivoweb.harvester.util.repo.SDBJenaConnect;
+import org.vivoweb.harvester.util.repo.TripleRemover;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.QuerySolutionMap;
+import com.hp.hpl.jena.query.ResultSet;
 import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
 import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.shared.AddDeniedException;
 
 /**
  * @author Christopher Haines (hainesc@ctrip.ufl.edu)
@@ -136,6 +158,78 @@ public class JenaConnectTest extends TestCase {
 		log.info("END testJenaConnectConstSibling");
 	}
 	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.JenaConnect#neighborConnectClone(java.lang.String)
+	 * connect(String modelName)} when the original is closed before the clone is used.
+	 * @throws IOException error
+	 */
+	public void testJenaConnectConstSiblingCloseOriginal() throws IOException {
+		log.info("BEGIN testJenaConnectConstSiblingCloseOriginal");
+		JenaConnect original = new SDBJenaConnect(dbUrl, dbUser, dbPass, dbType, dbClass, dbLayout, modelName);
+		this.jc = original.neighborConnectClone(modelName2);
+		// the clone shares the original's store, which must stay open until both are closed
+		original.close();
+		runWriteTest();
+		log.info("END testJenaConnectConstSiblingCloseOriginal");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.JdbcConnectionPool JdbcConnectionPool}.
+	 * @throws Exception error
+	 */
+	public void testConnectionPool() throws Exception {
+		log.info("BEGIN testConnectionPool");
+		SDBJenaConnect sdb = new SDBJenaConnect(dbUrl, dbUser, dbPass, dbType, dbClass, dbLayout, modelName);
+		this.jc = sdb;
+		JdbcConnectionPool pool = sdb.getConnectionPool();
+		assertSame(pool, JdbcConnectionPool.getPool(dbClass, dbUrl, dbUser, dbPass));
+		long creates = pool.getCreateCount();
+		int active = pool.getActiveCount();
+		JenaConnect clone = sdb.neighborConnectClone(modelName2);
+		assertEquals(creates, pool.getCreateCount());
+		assertEquals(active, pool.getActiveCount());
+		clone.close();
+		runWriteTest();
+		assertFalse(this.jc.isEmpty());
+		
+		// a returned connection is reused, along with its prepared statements
+		Connection conn = pool.getConnection();
+		PreparedStatement ps = conn.prepareStatement("SELECT 1");
+		ps.executeQuery().close();
+		ps.close();
+		conn.close();
+		assertTrue(conn.isClosed());
+		long hits = pool.getStatementCacheHits();
+		creates = pool.getCreateCount();
+		conn = pool.getConnection();
+		ps = conn.prepareStatement("SELECT 1");
+		java.sql.ResultSet rs = ps.executeQuery();
+		ps.close();
+		// closing a statement closes its result sets, and closed proxies cannot be used
+		assertTrue(rs.isClosed());
+		try {
+			ps.executeQuery();
+			fail("A closed statement should throw SQLException");
+		} catch(SQLException e) {
+			// expected
+		}
+		conn.close();
+		try {
+			conn.prepareStatement("SELECT 1");
+			fail("A closed connection should throw SQLException");
+		} catch(SQLException e) {
+			// expected
+		}
+		assertEquals(creates, pool.getCreateCount());
+		assertEquals(hits + 1, pool.getStatementCacheHits());
+		assertEquals(0, JdbcConnectionPool.DEFAULT_MAX_SIZE);
+		assertTrue(pool.getIdleCount() > 0);
+		pool.closeIdle();
+		assertEquals(0, pool.getIdleCount());
+		log.info("pool: " + pool);
+		log.info("END testConnectionPool");
+	}
+	
 	/**
 	 * Test method for
 	 * {@link org.vivoweb.harvester.util.repo.MemJenaConnect#MemJenaConnect(java.io.InputStream, java.lang.String, java.lang.String)
@@ -200,6 +294,29 @@ public class JenaConnectTest extends TestCase {
 		log.info("END testExportRDF");
 	}
 	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.JenaConnect#exportRdfToString(java.lang.String)
+	 * exportRdfToString(String language)} using the streamed languages.
+	 * @throws IOException error
+	 */
+	public final void testExportRDFStreaming() throws IOException {
+		log.info("BEGIN testExportRDFStreaming");
+		this.jc = new MemJenaConnect(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+		Resource bnode = this.jc.getJenaModel().createResource();
+		bnode.addProperty(this.jc.getJenaModel().createProperty("http://www.w3schools.com/rdf/note"), "quote \" tab\t caf\u00e9", "fr");
+		String nt = this.jc.exportRdfToString("N-TRIPLE");
+		assertTrue(nt.contains("<http://www.w3schools.com> <http://www.w3schools.com/rdf/title> \"W3Schools\" .\n"));
+		assertTrue(nt.contains("\"quote \\\" tab\\t caf\\u00E9\"@fr .\n"));
+		JenaConnect ntIn = new MemJenaConnect(new ByteArrayInputStream(nt.getBytes()), null, "N-TRIPLE");
+		assertTrue(ntIn.getJenaModel().isIsomorphicWith(this.jc.getJenaModel()));
+		ntIn.close();
+		String ttl = this.jc.exportRdfToString("TURTLE-STREAM");
+		JenaConnect ttlIn = new MemJenaConnect(new ByteArrayInputStream(ttl.getBytes()), null, "TTL");
+		assertTrue(ttlIn.getJenaModel().isIsomorphicWith(this.jc.getJenaModel()));
+		ttlIn.close();
+		log.info("END testExportRDFStreaming");
+	}
+	
 	/**
 	 * Test method for
 	 * {@link org.vivoweb.harvester.util.repo.JenaConnect#loadRdfFromRH(org.vivoweb.harvester.util.repo.RecordHandler, java.lang.String, java.lang.String)
@@ -221,6 +338,436 @@ public class JenaConnectTest extends TestCase {
 		log.info("END testImportRDF");
 	}
 	
+	/**
+	 * Test method for
+	 * {@link org.vivoweb.harvester.util.repo.JenaConnect#loadRdfFromRH(org.vivoweb.harvester.util.repo.RecordHandler, java.lang.String, java.lang.String, int)
+	 * loadRdfFromRH(RecordHandler rh, String namespace, String language, int threads)}.
+	 * @throws IOException error
+	 */
+	public final void testImportRDFParallel() throws IOException {
+		log.info("BEGIN testImportRDFParallel");
+		RecordHandler rh = new MapRecordHandler();
+		for(int x = 0; x < 50; x++) {
+			rh.addRecord("record" + x, rdfIn.replace("W3Schools", "W3Schools " + x), getClass());
+		}
+		JenaConnect serial = new MemJenaConnect();
+		assertEquals(50, serial.loadRdfFromRH(rh, null, null));
+		this.jc = new MemJenaConnect();
+		assertEquals(50, this.jc.loadRdfFromRH(rh, null, null, 4));
+		assertTrue(serial.getJenaModel().isIsomorphicWith(this.jc.getJenaModel()));
+		assertEquals(50, this.jc.removeRdfFromRH(rh, null, null, 4));
+		assertTrue(this.jc.isEmpty());
+		serial.close();
+		log.info("END testImportRDFParallel");
+	}
+	
+	/**
+	 * Test bulk loading and removal of records into an
+	 * {@link org.vivoweb.harvester.util.repo.SDBJenaConnect SDBJenaConnect} with chunks smaller than the load
+	 * @throws IOException error
+	 */
+	public final void testSDBBulkLoad() throws IOException {
+		log.info("BEGIN testSDBBulkLoad");
+		RecordHandler rh = new MapRecordHandler();
+		for(int x = 0; x < 50; x++) {
+			rh.addRecord("record" + x, rdfIn.replace("W3Schools", "W3Schools " + x), getClass());
+		}
+		SDBJenaConnect sdb = new SDBJenaConnect(dbUrl, dbUser, dbPass, dbType, dbClass, dbLayout, modelName);
+		this.jc = sdb;
+		sdb.setBulkChunkSize(7);
+		assertEquals(50, sdb.loadRdfFromRH(rh, null, null));
+		// one author triple shared by every record, plus a title per record
+		assertEquals(51, sdb.size());
+		assertEquals(50, sdb.removeRdfFromRH(rh, null, null));
+		assertTrue(sdb.isEmpty());
+		log.info("END testSDBBulkLoad");
+	}
+	
+	/**
+	 * Test {@link org.vivoweb.harvester.util.repo.TripleRemover TripleRemover} counts with triples repeated within a
+	 * batch and across batches, and triples missing from the graph
+	 */
+	public final void testTripleRemover() {
+		log.info("BEGIN testTripleRemover");
+		this.jc = new MemJenaConnect();
+		Graph graph = this.jc.getJenaModel().getGraph();
+		Node p = Node.createURI("http://www.w3schools.com/rdf/title");
+		Triple a = Triple.create(Node.createURI("http://example.org/s1"), p, Node.createLiteral("a"));
+		Triple b = Triple.create(Node.createURI("http://example.org/s1"), p, Node.createLiteral("b"));
+		Triple c = Triple.create(Node.createURI("http://example.org/s2"), p, Node.createLiteral("c"));
+		Triple d = Triple.create(Node.createURI("http://example.org/s3"), p, Node.createLiteral("d"));
+		Triple missing = Triple.create(Node.createURI("http://example.org/s1"), p, Node.createLiteral("z"));
+		graph.add(a);
+		graph.add(b);
+		graph.add(c);
+		graph.add(d);
+		TripleRemover remover = new TripleRemover(graph, 2);
+		// repeats within a batch count once
+		remover.remove(a);
+		remover.remove(a);
+		remover.remove(c);
+		assertEquals(2, remover.getRemovedCount());
+		assertEquals(0, remover.getNotFoundCount());
+		// a was removed by the first batch, so it is no longer in the graph
+		remover.remove(a);
+		remover.remove(missing);
+		remover.remove(b);
+		remover.flush();
+		assertEquals(3, remover.getRemovedCount());
+		assertEquals(2, remover.getNotFoundCount());
+		assertEquals(1, graph.size());
+		assertTrue(graph.contains(d));
+		log.info("END testTripleRemover");
+	}
+	
+	/**
+	 * Test {@link org.vivoweb.harvester.util.repo.JenaConnect#beginRead() beginRead()} and
+	 * {@link org.vivoweb.harvester.util.repo.JenaConnect#beginWrite() beginWrite()} with concurrent readers and a
+	 * writer on one TDB dataset
+	 * @throws Exception error
+	 */
+	public final void testConcurrentReadWrite() throws Exception {
+		log.info("BEGIN testConcurrentReadWrite");
+		this.jc = new MemJenaConnect(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+		final JenaConnect reader = this.jc.neighborConnectClone("http://vivoweb.org/harvester/test/concurrent#other");
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int x = 0; x < 4; x++) {
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						for(int y = 0; y < 25; y++) {
+							JenaConnectTest.this.jc.beginRead();
+							try {
+								assertTrue(JenaConnectTest.this.jc.executeAskQuery("ASK { <http://www.w3schools.com> ?p ?o }"));
+								reader.executeAskQuery("ASK { ?s ?p ?o }");
+							} finally {
+								JenaConnectTest.this.jc.end();
+							}
+						}
+					} catch(Throwable e) {
+						errors.add(e);
+					}
+				}
+			});
+		}
+		threads.add(new Thread() {
+			@Override
+			public void run() {
+				try {
+					Property prop = reader.getJenaModel().createProperty(namespace, "testProperty");
+					for(int y = 0; y < 25; y++) {
+						reader.beginWrite();
+						try {
+							reader.getJenaModel().createResource().addProperty(prop, "value " + y);
+						} finally {
+							reader.end();
+						}
+					}
+				} catch(Throwable e) {
+					errors.add(e);
+				}
+			}
+		});
+		for(Thread t : threads) {
+			t.start();
+		}
+		for(Thread t : threads) {
+			t.join();
+		}
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertEquals(25, reader.size());
+		try {
+			this.jc.end();
+			fail("end() without begin must fail");
+		} catch(IllegalStateException e) {
+			// expected
+		}
+		reader.close();
+		log.info("END testConcurrentReadWrite");
+	}
+	
+	/**
+	 * Test writing and querying an {@link org.vivoweb.harvester.util.repo.MmapJenaConnect MmapJenaConnect} snapshot
+	 * @throws IOException error
+	 */
+	public final void testMmapSnapshot() throws IOException {
+		log.info("BEGIN testMmapSnapshot");
+		JenaConnect source = new MemJenaConnect(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+		Property prop = source.getJenaModel().createProperty(namespace, "testProperty");
+		Resource w3 = source.getJenaModel().getResource("http://www.w3schools.com");
+		source.getJenaModel().add(w3, prop, "caf\u00e9 \"quoted\"\n", "fr");
+		source.getJenaModel().add(w3, prop, source.getJenaModel().createTypedLiteral(Integer.valueOf(42)));
+		for(int x = 0; x < 40; x++) {
+			source.getJenaModel().createResource().addProperty(prop, "value " + x).addProperty(prop, w3);
+		}
+		File f = FileAide.createTempFile("testMmapSnapshot", ".snapshot");
+		assertEquals(source.size(), MmapJenaConnect.writeSnapshot(source, f.getAbsolutePath()));
+		this.jc = new MmapJenaConnect(f.getAbsolutePath());
+		assertEquals(source.size(), this.jc.size());
+		assertTrue(this.jc.getJenaModel().isIsomorphicWith(source.getJenaModel()));
+		assertEquals(40, this.jc.getJenaModel().listStatements(null, prop, w3).toList().size());
+		assertEquals(4, this.jc.getJenaModel().listStatements(w3, null, (RDFNode)null).toList().size());
+		assertTrue(this.jc.executeAskQuery("ASK { ?s <" + namespace + "testProperty> \"value 39\" }"));
+		assertFalse(this.jc.executeAskQuery("ASK { ?s <" + namespace + "missing> ?o }"));
+		try {
+			this.jc.getJenaModel().add(w3, prop, "not allowed");
+			fail("snapshot must be read-only");
+		} catch(AddDeniedException e) {
+			// expected
+		}
+		source.close();
+		log.info("END testMmapSnapshot");
+	}
+	
+	/**
+	 * Test interned {@link org.vivoweb.harvester.util.repo.MemJenaConnect MemJenaConnect} models sharing nodes
+	 * @throws IOException error
+	 */
+	public final void testInternedMem() throws IOException {
+		log.info("BEGIN testInternedMem");
+		int before = MemJenaConnect.getInternedNodeCount();
+		JenaConnect first = new MemJenaConnect(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+		this.jc = new MemJenaConnect(null, true);
+		assertTrue(((MemJenaConnect)this.jc).isInterned());
+		this.jc.loadRdfFromStream(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+		int loaded = MemJenaConnect.getInternedNodeCount() - before;
+		assertEquals(5, loaded);
+		JenaConnect second = this.jc.neighborConnectClone(modelName2);
+		second.loadRdfFromJC(this.jc);
+		second.loadRdfFromStream(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+		assertEquals(loaded, MemJenaConnect.getInternedNodeCount() - before);
+		assertTrue(second.getJenaModel().isIsomorphicWith(first.getJenaModel()));
+		assertEquals(2, second.size());
+		Property prop = this.jc.getJenaModel().createProperty(namespace, "testProperty");
+		Resource w3 = this.jc.getJenaModel().getResource("http://www.w3schools.com");
+		for(int x = 0; x < 100; x++) {
+			this.jc.getJenaModel().add(w3, prop, "value " + x);
+		}
+		assertEquals(102, this.jc.size());
+		assertEquals(102, this.jc.getJenaModel().listStatements(w3, null, (RDFNode)null).toList().size());
+		assertEquals(100, this.jc.getJenaModel().listStatements(null, prop, (RDFNode)null).toList().size());
+		assertTrue(this.jc.executeAskQuery("ASK { GRAPH <" + modelName2 + "> { <http://www.w3schools.com> ?p \"W3Schools\" } }", true));
+		// matches are read as the iterator advances: removing through it is allowed, other changes are not
+		StmtIterator it = this.jc.getJenaModel().listStatements(null, prop, (RDFNode)null);
+		for(int x = 0; x < 50; x++) {
+			it.nextStatement();
+			it.remove();
+		}
+		it.close();
+		assertEquals(52, this.jc.size());
+		it = this.jc.getJenaModel().listStatements(w3, prop, (RDFNode)null);
+		it.nextStatement();
+		this.jc.getJenaModel().add(w3, prop, "added while iterating");
+		try {
+			it.hasNext();
+			fail("Changing the graph while iterating should throw ConcurrentModificationException");
+		} catch(ConcurrentModificationException e) {
+			// expected
+		}
+		it.close();
+		this.jc.getJenaModel().removeAll(w3, prop, null);
+		assertEquals(2, this.jc.size());
+		assertEquals(loaded, MemJenaConnect.getInternedNodeCount() - before);
+		JenaConnect again = new MemJenaConnect(null, true);
+		again.close();
+		second.close();
+		this.jc.close();
+		this.jc = null;
+		assertEquals(before, MemJenaConnect.getInternedNodeCount());
+		first.close();
+		log.info("END testInternedMem");
+	}
+	
+	/**
+	 * Test the {@link org.vivoweb.harvester.util.repo.JenaConnectMetrics JenaConnectMetrics} of JenaConnect operations
+	 * @throws IOException error
+	 */
+	public final void testMetrics() throws IOException {
+		log.info("BEGIN testMetrics");
+		JenaConnectMetrics metrics = JenaConnectMetrics.getInstance();
+		metrics.reset();
+		this.jc = new MemJenaConnect();
+		this.jc.loadRdfFromStream(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+		assertEquals(1, metrics.getCallCount("loadRdfFromStream"));
+		assertEquals(2, metrics.getTriplesWritten());
+		assertEquals(2, countRows(this.jc.executeSelectQuery("SELECT ?p ?o WHERE { <http://www.w3schools.com> ?p ?o }")));
+		assertEquals(2, metrics.getRowsRead());
+		JenaConnect construct = this.jc.executeConstructQuery("CONSTRUCT { ?s ?p ?o } WHERE { ?s ?p ?o }");
+		assertEquals(2, metrics.getTriplesRead());
+		assertEquals(2, metrics.getTriplesWritten());
+		construct.close();
+		String out = this.jc.exportRdfToString("N-TRIPLE");
+		assertEquals(out.getBytes("UTF-8").length, metrics.getBytesExported());
+		assertEquals(4, metrics.getTriplesRead());
+		assertEquals(4, metrics.getCallCount());
+		String summary = metrics.getSummary();
+		assertTrue(summary.contains("\"executeSelectQuery\":{\"calls\":1,\"completed\":1,"));
+		assertTrue(summary.contains("\"triplesWritten\":2"));
+		metrics.reset();
+		assertEquals(0, metrics.getCallCount());
+		log.info("END testMetrics");
+	}
+	
+	/**
+	 * Test method for
+	 * {@link org.vivoweb.harvester.util.repo.JenaConnect#executeQuery(String, String, java.io.OutputStream, boolean, boolean, long)
+	 * executeQuery(String queryParam, String resultFormatParam, OutputStream output, boolean datasetMode, boolean profile, long timeout)}.
+	 * @throws IOException error
+	 */
+	public final void testExecuteQueryProfile() throws IOException {
+		log.info("BEGIN testExecuteQueryProfile");
+		this.jc = new MemJenaConnect(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+		String query = "SELECT ?p ?o WHERE { <http://www.w3schools.com> ?p ?o OPTIONAL { ?o ?p2 ?o2 } FILTER(isLiteral(?o)) } ORDER BY ?o";
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		this.jc.executeQuery(query, "RS_TEXT", plain, false);
+		ByteArrayOutputStream profiled = new ByteArrayOutputStream();
+		this.jc.executeQuery(query, "RS_TEXT", profiled, false, true, 60000);
+		assertEquals(plain.toString(), profiled.toString());
+		assertTrue(profiled.toString().contains("W3Schools"));
+		log.info("END testExecuteQueryProfile");
+	}
+	
+	/**
+	 * Test journal mode {@link org.vivoweb.harvester.util.repo.FileJenaConnect FileJenaConnect} sync and reload
+	 * @throws IOException error
+	 */
+	public final void testFileJournal() throws IOException {
+		log.info("BEGIN testFileJournal");
+		File f = FileAide.createTempFile("testFileJournal", ".rdf");
+		FileAide.setTextContent(f.getAbsolutePath(), rdfIn);
+		String journal = f.getAbsolutePath() + ".journal";
+		FileJenaConnect fjc = new FileJenaConnect(f.getAbsolutePath(), null, null, true, 1000);
+		fjc.sync();
+		assertTrue(FileAide.getTextContent(f.getAbsolutePath()).startsWith("#"));
+		Resource w3 = fjc.getJenaModel().getResource("http://www.w3schools.com");
+		Property title = fjc.getJenaModel().createProperty("http://www.w3schools.com/rdf/title");
+		fjc.getJenaModel().remove(w3, title, fjc.getJenaModel().createLiteral("W3Schools"));
+		fjc.getJenaModel().add(w3, title, "New \"Title\"");
+		fjc.getJenaModel().createResource().addProperty(title, "anonymous");
+		fjc.sync();
+		assertTrue(FileAide.exists(journal));
+		fjc.getJenaModel().createResource().addProperty(title, "second");
+		fjc.sync();
+		this.jc = new FileJenaConnect(f.getAbsolutePath(), null, null, true, 1000);
+		assertTrue(this.jc.getJenaModel().isIsomorphicWith(fjc.getJenaModel()));
+		assertFalse(this.jc.getJenaModel().contains(w3, title, "W3Schools"));
+		fjc.close();
+		log.info("END testFileJournal");
+	}
+	
+	/**
+	 * Test method for query templates with bound values
+	 * {@link org.vivoweb.harvester.util.repo.JenaConnect#executeSelectQuery(String, com.hp.hpl.jena.query.QuerySolution, boolean, boolean)
+	 * executeSelectQuery(String queryString, QuerySolution bindings, boolean copyResultSet, boolean datasetMode)}.
+	 * @throws IOException error
+	 */
+	public final void testQueryTemplates() throws IOException {
+		log.info("BEGIN testQueryTemplates");
+		this.jc = new MemJenaConnect(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+		String select = "SELECT ?s WHERE { ?s <http://www.w3schools.com/rdf/title> ?title }";
+		for(int x = 0; x < 3; x++) {
+			QuerySolutionMap bindings = new QuerySolutionMap();
+			bindings.add("title", this.jc.getJenaModel().createLiteral("W3Schools"));
+			ResultSet rs = this.jc.executeSelectQuery(select, bindings, true, false);
+			assertTrue(rs.hasNext());
+			assertEquals("http://www.w3schools.com", rs.next().getResource("s").getURI());
+		}
+		QuerySolutionMap bindings = new QuerySolutionMap();
+		bindings.add("s", this.jc.getJenaModel().getResource("http://www.w3schools.com"));
+		bindings.add("title", this.jc.getJenaModel().createLiteral("evil\" } ; DELETE WHERE { ?a ?b ?c } #"));
+		this.jc.executeUpdateQuery("INSERT DATA { ?s <http://www.w3schools.com/rdf/note> ?title }", bindings, false);
+		assertTrue(this.jc.executeAskQuery("ASK { ?s <http://www.w3schools.com/rdf/author> ?o }", bindings, false));
+		assertTrue(this.jc.executeAskQuery("ASK { ?s <http://www.w3schools.com/rdf/note> ?title }", bindings, false));
+		// variables are only bound outside of IRIs, long strings and comments
+		this.jc.executeUpdateQuery("INSERT DATA { ?s <http://www.w3schools.com/rdf/note?title> \"\"\"?title \" ?s\"\"\" } # ?title", bindings, false);
+		assertTrue(this.jc.executeAskQuery("ASK { <http://www.w3schools.com> <http://www.w3schools.com/rdf/note?title> \"?title \\\" ?s\" }"));
+		log.info("END testQueryTemplates");
+	}
+	
+	/**
+	 * Test the select and ask result cache is used until the model changes
+	 * @throws IOException error
+	 */
+	public final void testResultCache() throws IOException {
+		log.info("BEGIN testResultCache");
+		this.jc = new MemJenaConnect(new ByteArrayInputStream(rdfIn.getBytes()), null, null);
+		this.jc.enableResultCache(16, 1000);
+		String select = "SELECT ?o WHERE { <http://www.w3schools.com> ?p ?o }";
+		assertTrue(this.jc.containsURI("http://www.w3schools.com"));
+		assertTrue(this.jc.containsURI("http://www.w3schools.com"));
+		assertEquals(2, countRows(this.jc.executeSelectQuery(select)));
+		assertEquals(2, countRows(this.jc.executeSelectQuery("SELECT ?o\n  WHERE {  <http://www.w3schools.com> ?p ?o }")));
+		assertEquals(2, this.jc.getResultCacheHits());
+		this.jc.getJenaModel().getResource("http://www.w3schools.com").addProperty(this.jc.getJenaModel().createProperty(namespace, "testProperty"), "testValue");
+		assertEquals(3, countRows(this.jc.executeSelectQuery(select)));
+		this.jc.executeUpdateQuery("DELETE DATA { <http://www.w3schools.com> <" + namespace + "testProperty> \"testValue\" }");
+		assertEquals(2, countRows(this.jc.executeSelectQuery(select)));
+		assertEquals(2, this.jc.getResultCacheHits());
+		assertEquals(4, this.jc.getResultCacheMisses());
+		// a comment runs to the end of its line only, and never inside an IRI
+		assertEquals(0, countRows(this.jc.executeSelectQuery("SELECT ?o WHERE { <http://www.w3schools.com> ?p ?o # don't match\n FILTER(false) }")));
+		assertEquals(2, countRows(this.jc.executeSelectQuery("SELECT ?o WHERE { <http://www.w3schools.com> ?p ?o # don't match FILTER(false)\n }")));
+		assertEquals(0, countRows(this.jc.executeSelectQuery("SELECT ?o WHERE { <http://www.w3schools.com> ?p ?o # no rows\n FILTER(false) }")));
+		assertEquals(0, countRows(this.jc.executeSelectQuery("SELECT ?o WHERE { <http://www.w3schools.com#x> ?p ?o }")));
+		assertEquals(3, this.jc.getResultCacheHits());
+		assertEquals(7, this.jc.getResultCacheMisses());
+		// queries against the dataset bypass the cache
+		assertEquals(2, countRows(this.jc.executeSelectQuery(select, null, true, true)));
+		assertEquals(2, countRows(this.jc.executeSelectQuery(select, null, true, true)));
+		assertEquals(3, this.jc.getResultCacheHits());
+		assertEquals(7, this.jc.getResultCacheMisses());
+		log.info("END testResultCache");
+	}
+	
+	/**
+	 * Count the rows of a result set
+	 * @param rs the result set
+	 * @return the number of rows
+	 */
+	private static int countRows(ResultSet rs) {
+		int count = 0;
+		while(rs.hasNext()) {
+			rs.next();
+			count++;
+		}
+		return count;
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.JenaConnect#getStatistics() getStatistics()},
+	 * {@link org.vivoweb.harvester.util.repo.JenaConnect#size() size()} and
+	 * {@link org.vivoweb.harvester.util.repo.JenaConnect#isEmpty() isEmpty()}.
+	 * @throws IOException error
+	 */
+	public final void testStatistics() throws IOException {
+		log.info("BEGIN testStatistics");
+		this.jc = new MemJenaConnect();
+		assertTrue(this.jc.isEmpty());
+		assertEquals(0, this.jc.size());
+		this.jc.loadRdfFromString(rdfIn, null, null);
+		assertFalse(this.jc.isEmpty());
+		assertEquals(2, this.jc.size());
+		GraphStatistics stats = this.jc.getStatistics();
+		assertEquals(2, stats.getTripleCount());
+		assertEquals(1, stats.getDistinctSubjectCount());
+		assertEquals(1, stats.getPredicateCount("http://www.w3schools.com/rdf/title"));
+		Property prop = this.jc.getJenaModel().createProperty(namespace, "testProperty");
+		this.jc.getJenaModel().createResource("http://www.example.com").addProperty(prop, "testValue");
+		this.jc.getJenaModel().getResource("http://www.w3schools.com").addProperty(prop, "testValue");
+		stats = this.jc.getStatistics();
+		assertEquals(4, stats.getTripleCount());
+		assertEquals(2, stats.getDistinctSubjectCount());
+		assertEquals(2, stats.getPredicateCount(namespace + "testProperty"));
+		this.jc.getJenaModel().getResource("http://www.example.com").removeProperties();
+		stats = this.jc.getStatistics();
+		assertEquals(3, stats.getTripleCount());
+		assertEquals(1, stats.getDistinctSubjectCount());
+		assertEquals(3, stats.getPredicateCounts().size());
+		log.info("END testStatistics");
+	}
+	
 	/**
 	 * @throws IOException error
 	 */
@@ -5,9 +5,20 @@
  ******************************************************************************/
 package org.vivoweb.test.harvester.util.repo;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import junit.framework.TestCase;
 import org.slf4j.Logger;
@@ -21,6 +32,7 @@ import org.vivoweb.harvester.util.repo.Record;
 import org.vivoweb.harvester.util.repo.RecordHandler;
 import org.vivoweb.harvester.util.repo.RecordMetaData;
 import org.vivoweb.harvester.util.repo.SDBJenaConnect;
+import org.vivoweb.harvester.util.repo.SegmentRecordHandler;
 import org.vivoweb.harvester.util.repo.TextFileRecordHandler;
 
 /**
@@ -144,6 +156,32 @@ public class RecordHandlerTest extends TestCase {
 		log.info("END testJDBCAddRecord");
 	}
 	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.JDBCRecordHandler#setBatchSize(int) setBatchSize(int
+	 * batchSize)}.
+	 * @throws IOException error
+	 */
+	public void testJDBCBatchAddRecord() throws IOException {
+		log.info("BEGIN testJDBCBatchAddRecord");
+		JDBCRecordHandler jrh = new JDBCRecordHandler("org.h2.Driver", "jdbc:h2:mem:TestRH-JDBCBatch", "sa", "", "testdb", "data");
+		jrh.setBatchSize(3);
+		jrh.setFetchSize(4);
+		this.rh = jrh;
+		runBattery();
+		for(int x = 0; x < 10; x++) {
+			this.rh.addRecord("test" + x, "data of record 'test" + x + "'", RecordHandlerTest.class);
+		}
+		this.rh.addRecord("test4", "new data of record 'test4'", RecordHandlerTest.class);
+		assertEquals("new data of record 'test4'", this.rh.getRecord("test4").getData());
+		int count = 0;
+		for(Record r : this.rh) {
+			assertNotNull(r.getData());
+			count++;
+		}
+		assertEquals(10, count);
+		log.info("END testJDBCBatchAddRecord");
+	}
+	
 	/**
 	 * Test method for
 	 * {@link org.vivoweb.harvester.util.repo.TextFileRecordHandler#TextFileRecordHandler(java.lang.String)
@@ -170,13 +208,436 @@ public class RecordHandlerTest extends TestCase {
 		this.rh.addRecord("test456", "data test on record 'test456'", RecordHandlerTest.class);
 		this.rh.addRecord("funABC", "data in record 'funABC'", RecordHandlerTest.class);
 		this.rh.addRecord("wooDEF", "blah data of record 'wooDEF'", RecordHandlerTest.class);
-		FileAide.delete(tfrhDir+"/.metadata");
+		FileAide.delete(tfrhDir+"/.metadata.log");
 		for(Record r : this.rh) {
 			log.debug("Record '" + r.getID() + "': " + r.getData());
 		}
 		log.info("END testNoMetaTextFileIterate");
 	}
 	
+	/**
+	 * Test the metadata log of {@link org.vivoweb.harvester.util.repo.TextFileRecordHandler TextFileRecordHandler}
+	 * survives reopening and compaction, and that older per record metadata files are migrated into it
+	 * @throws IOException error
+	 */
+	public void testTextFileMetaDataLog() throws IOException {
+		log.info("BEGIN testTextFileMetaDataLog");
+		String tfrhDir = "tmp://testTFRHMetaLog";
+		TextFileRecordHandler tfrh = new TextFileRecordHandler(tfrhDir);
+		assertTrue(tfrh.addRecord("test1", "data of record 'test1'", RecordHandlerTest.class));
+		assertTrue(tfrh.addRecord("test2", "data of record 'test2'", RecordHandlerTest.class));
+		tfrh.delRecord("test2");
+		tfrh.close();
+		tfrh = new TextFileRecordHandler(tfrhDir);
+		assertFalse(tfrh.addRecord("test1", "data of record 'test1'", RecordHandlerTest.class));
+		assertTrue(tfrh.addRecord("test2", "data of record 'test2'", RecordHandlerTest.class));
+		tfrh.compactMetaData();
+		tfrh.close();
+		// a record as written by older versions, with its metadata in its own xml file
+		FileAide.setTextContent(tfrhDir+"/test3", "data of record 'test3'");
+		FileAide.setTextContent(tfrhDir+"/.metadata/test3", "<MetaDataRecordList>\n<MetaDataRecord>\n<Date>" + System.currentTimeMillis() + "</Date>\n<Operation>written</Operation>\n<Operator>" + RecordHandlerTest.class.getName() + "</Operator>\n<MD5>" + RecordMetaData.md5hex("data of record 'test3'") + "</MD5>\n</MetaDataRecord>\n</MetaDataRecordList>\n");
+		this.rh = new TextFileRecordHandler(tfrhDir);
+		assertFalse(FileAide.exists(tfrhDir+"/.metadata"));
+		assertFalse(this.rh.addRecord("test1", "data of record 'test1'", RecordHandlerTest.class));
+		assertFalse(this.rh.addRecord("test2", "data of record 'test2'", RecordHandlerTest.class));
+		assertFalse(this.rh.addRecord("test3", "data of record 'test3'", RecordHandlerTest.class));
+		assertTrue(this.rh.addRecord("test3", "new data of record 'test3'", RecordHandlerTest.class));
+		log.info("END testTextFileMetaDataLog");
+	}
+	
+	/**
+	 * Test the metadata log of {@link org.vivoweb.harvester.util.repo.TextFileRecordHandler TextFileRecordHandler}
+	 * drops a last entry that cannot be decoded, but refuses to open when such an entry is followed by others
+	 * @throws IOException error
+	 */
+	public void testTextFileMetaDataLogMalformedEntry() throws IOException {
+		log.info("BEGIN testTextFileMetaDataLogMalformedEntry");
+		String tfrhDir = "tmp://testTFRHMetaLogMalformed";
+		TextFileRecordHandler tfrh = new TextFileRecordHandler(tfrhDir);
+		assertTrue(tfrh.addRecord("test1", "data of record 'test1'", RecordHandlerTest.class));
+		tfrh.close();
+		// an addition with an operation that does not exist
+		ByteArrayOutputStream bad = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bad);
+		dos.writeByte(1);
+		dos.writeUTF("test2");
+		dos.writeLong(System.currentTimeMillis());
+		dos.writeByte(99);
+		dos.writeUTF(RecordHandlerTest.class.getName());
+		dos.writeUTF(RecordMetaData.md5hex("data of record 'test2'"));
+		dos.close();
+		OutputStream out = FileAide.getOutputStream(tfrhDir+"/.metadata.log", true);
+		out.write(bad.toByteArray());
+		out.close();
+		tfrh = new TextFileRecordHandler(tfrhDir);
+		assertFalse(tfrh.addRecord("test1", "data of record 'test1'", RecordHandlerTest.class));
+		tfrh.close();
+		// the same entry followed by a deletion
+		out = FileAide.getOutputStream(tfrhDir+"/.metadata.log", true);
+		out.write(bad.toByteArray());
+		dos = new DataOutputStream(out);
+		dos.writeByte(2);
+		dos.writeUTF("test1");
+		dos.close();
+		try {
+			new TextFileRecordHandler(tfrhDir);
+			fail("opened a metadata log with a malformed entry in the middle");
+		} catch(IOException e) {
+			// expected behavior
+		}
+		log.info("END testTextFileMetaDataLogMalformedEntry");
+	}
+	
+	/**
+	 * Test the sharded layout of {@link org.vivoweb.harvester.util.repo.TextFileRecordHandler TextFileRecordHandler}:
+	 * flat record files are moved into shard directories, and iteration and find see every record
+	 * @throws IOException error
+	 */
+	public void testTextFileShardedLayout() throws IOException {
+		log.info("BEGIN testTextFileShardedLayout");
+		String tfrhDir = "tmp://testTFRHSharded";
+		// a record as written by older versions, directly in the record directory
+		FileAide.setTextContent(tfrhDir+"/flat1", "data of record 'flat1'");
+		this.rh = new TextFileRecordHandler(tfrhDir, true);
+		assertFalse(FileAide.exists(tfrhDir+"/flat1"));
+		assertEquals("data of record 'flat1'", this.rh.getRecord("flat1").getData());
+		for(int x = 0; x < 20; x++) {
+			this.rh.addRecord("test" + (100 + x), "data of record 'test" + (100 + x) + "'", RecordHandlerTest.class);
+		}
+		ArrayList<String> ids = new ArrayList<String>();
+		for(Record r : this.rh) {
+			ids.add(r.getID());
+		}
+		assertEquals(21, ids.size());
+		assertEquals("flat1", ids.get(0));
+		assertEquals("test100", ids.get(1));
+		assertEquals(20, this.rh.find("test1").size());
+		log.info("END testTextFileShardedLayout");
+	}
+	
+	/**
+	 * Test method for
+	 * {@link org.vivoweb.harvester.util.repo.RecordHandler#setDigestIndex(boolean, java.lang.String, java.lang.String)
+	 * setDigestIndex(boolean enabled, String algorithm, String sidecar)}.
+	 * @throws IOException error
+	 */
+	public void testDigestIndex() throws IOException {
+		log.info("BEGIN testDigestIndex");
+		String tfrhDir = "tmp://testTFRHDigests";
+		String sidecar = "tmp://testTFRHDigests.idx";
+		TextFileRecordHandler tfrh = new TextFileRecordHandler(tfrhDir);
+		tfrh.setDigestIndex(true, "fast", sidecar);
+		assertTrue(tfrh.addRecord("test1", "data of record 'test1'", RecordHandlerTest.class));
+		assertTrue(tfrh.addRecord("test2", "data of record 'test2'", RecordHandlerTest.class));
+		assertFalse(tfrh.addRecord("test1", "data of record 'test1'", RecordHandlerTest.class));
+		tfrh.delRecord("test2");
+		tfrh.close();
+		assertTrue(FileAide.exists(sidecar));
+		this.rh = new TextFileRecordHandler(tfrhDir);
+		this.rh.setDigestIndex(true, "fast", sidecar);
+		assertFalse(this.rh.addRecord("test1", "data of record 'test1'", RecordHandlerTest.class));
+		assertFalse(FileAide.exists(sidecar));
+		assertTrue(this.rh.addRecord("test2", "data of record 'test2'", RecordHandlerTest.class));
+		assertTrue(this.rh.addRecord("test1", "new data of record 'test1'", RecordHandlerTest.class));
+		try {
+			this.rh.setDigestIndex(true, "sha1", null);
+			fail("Unknown digest algorithm should throw IllegalArgumentException");
+		} catch(IllegalArgumentException e) {
+			// expected
+		}
+		log.info("END testDigestIndex");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.RecordHandler#pendingRecords(java.lang.Class)
+	 * pendingRecords(Class operator)} on each kind of record handler.
+	 * @throws Exception error
+	 */
+	public void testPendingRecords() throws Exception {
+		log.info("BEGIN testPendingRecords");
+		forEachHandler("Pending", false, new HandlerCheck() {
+			@Override
+			public void run(final RecordHandler handler) throws Exception {
+				for(int x = 0; x < 5; x++) {
+					handler.addRecord("test" + x, "data of record 'test" + x + "'", RecordHandlerTest.class);
+				}
+				// metadata is ordered by millisecond timestamps, keep writes and processing apart
+				pause();
+				int pending = 0;
+				for(Record r : handler.pendingRecords(RecordHandlerTest.class)) {
+					if(!r.getID().equals("test2")) {
+						r.setProcessed(RecordHandlerTest.class);
+					}
+					pending++;
+				}
+				assertEquals(5, pending);
+				pause();
+				handler.addRecord("test3", "new data of record 'test3'", RecordHandlerTest.class);
+				ArrayList<String> ids = new ArrayList<String>();
+				for(Record r : handler.pendingRecords(RecordHandlerTest.class)) {
+					ids.add(r.getID());
+				}
+				assertEquals(2, ids.size());
+				assertTrue(ids.contains("test2"));
+				assertTrue(ids.contains("test3"));
+				for(int x = 0; x < 5; x++) {
+					handler.delRecord("test" + x);
+				}
+			}
+		});
+		log.info("END testPendingRecords");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.RecordHandler#partitions(int) partitions(int n)} on each
+	 * kind of record handler.
+	 * @throws Exception error
+	 */
+	public void testPartitions() throws Exception {
+		log.info("BEGIN testPartitions");
+		forEachHandler("Partitions", true, new HandlerCheck() {
+			@Override
+			public void run(final RecordHandler handler) throws Exception {
+				for(int x = 0; x < 30; x++) {
+					handler.addRecord("part" + x, "data of record 'part" + x + "' padded to fill more than one segment of the segment record handler", RecordHandlerTest.class);
+				}
+				List<Iterable<Record>> parts = handler.partitions(3);
+				assertTrue(!parts.isEmpty() && (parts.size() <= 3));
+				final List<String> ids = Collections.synchronizedList(new ArrayList<String>());
+				final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+				List<Thread> threads = new ArrayList<Thread>();
+				for(int x = 0; x < parts.size(); x++) {
+					final Iterable<Record> part = parts.get(x);
+					final String newID = "added" + x;
+					Thread t = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								for(Record r : part) {
+									ids.add(r.getID());
+								}
+								handler.addRecord(newID, "data of record '" + newID + "'", RecordHandlerTest.class);
+							} catch(Throwable e) {
+								errors.add(e);
+							}
+						}
+					});
+					threads.add(t);
+					t.start();
+				}
+				for(Thread t : threads) {
+					t.join();
+				}
+				assertTrue(errors.toString(), errors.isEmpty());
+				// records added while iterating may or may not be seen
+				int seen = 0;
+				for(String id : ids) {
+					if(id.startsWith("part")) {
+						seen++;
+					}
+				}
+				assertEquals(30, seen);
+				assertEquals(ids.size(), new HashSet<String>(ids).size());
+				for(int x = 0; x < threads.size(); x++) {
+					assertEquals("data of record 'added" + x + "'", handler.getRecordData("added" + x));
+					handler.delRecord("added" + x);
+				}
+				for(int x = 0; x < 30; x++) {
+					handler.delRecord("part" + x);
+				}
+			}
+		});
+		log.info("END testPartitions");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.Record#getDataBytes() getDataBytes()} and records added as
+	 * bytes on each kind of record handler.
+	 * @throws Exception error
+	 */
+	public void testRecordBytes() throws Exception {
+		log.info("BEGIN testRecordBytes");
+		forEachHandler("Bytes", false, new HandlerCheck() {
+			@Override
+			public void run(final RecordHandler handler) throws Exception {
+				String data = "<record name='M\u00fcller \u00e9t\u00e9 \u6f22\u5b57'>data</record>";
+				byte[] bytes = ("\n  " + data + "\n").getBytes("UTF-8");
+				assertTrue(handler.addRecord("bytes1", bytes, RecordHandlerTest.class));
+				// the same text added as a String is unchanged
+				assertFalse(handler.addRecord("bytes1", data, RecordHandlerTest.class));
+				Record r = handler.getRecord("bytes1");
+				assertEquals(data, r.getData().trim());
+				assertEquals(RecordMetaData.md5hex(data), RecordMetaData.md5hex(r.getDataBytes()));
+				assertEquals(data, new String(handler.getRecordDataBytes("bytes1"), "UTF-8").trim());
+				InputStream in = r.openStream();
+				try {
+					assertEquals(r.getDataBytes().length, in.available());
+				} finally {
+					in.close();
+				}
+				for(Record rec : handler) {
+					assertEquals(data, rec.getData().trim());
+				}
+				handler.delRecord("bytes1");
+			}
+		});
+		log.info("END testRecordBytes");
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.RecordHandler#getRecordIDs() getRecordIDs()},
+	 * {@link org.vivoweb.harvester.util.repo.RecordHandler#findByPrefix(java.lang.String) findByPrefix(String prefix)}
+	 * and {@link org.vivoweb.harvester.util.repo.RecordHandler#find(java.lang.String) find(String idText)} on each kind
+	 * of record handler.
+	 * @throws Exception error
+	 */
+	public void testRecordIDs() throws Exception {
+		log.info("BEGIN testRecordIDs");
+		forEachHandler("IDs", true, new HandlerCheck() {
+			@Override
+			public void run(final RecordHandler handler) throws Exception {
+				String[] ids = {"pub_1_pubmed", "pub_1_scopus", "pub_12_pubmed", "pubX1Xwos", "person_1"};
+				for(String id : ids) {
+					handler.addRecord(id, "data of record '" + id + "'", RecordHandlerTest.class);
+				}
+				assertEquals(Arrays.asList("person_1", "pubX1Xwos", "pub_12_pubmed", "pub_1_pubmed", "pub_1_scopus"), new ArrayList<String>(handler.getRecordIDs()));
+				// wildcards of the backend are matched literally
+				assertEquals(Arrays.asList("pub_12_pubmed", "pub_1_pubmed", "pub_1_scopus"), new ArrayList<String>(handler.findByPrefix("pub_1")));
+				assertEquals(new HashSet<String>(Arrays.asList("pub_1_pubmed", "pub_1_scopus")), new HashSet<String>(handler.find("_1_")));
+				assertTrue(handler.findByPrefix("none").isEmpty());
+				for(String id : ids) {
+					handler.delRecord(id);
+				}
+				assertTrue(handler.getRecordIDs().isEmpty());
+			}
+		});
+		log.info("END testRecordIDs");
+	}
+	
+	/**
+	 * A check run against each kind of record handler in turn
+	 */
+	private interface HandlerCheck {
+		/**
+		 * Run the check
+		 * @param handler a new, empty record handler
+		 * @throws Exception error
+		 */
+		void run(RecordHandler handler) throws Exception;
+	}
+	
+	/**
+	 * Run a check against each kind of record handler, each new and empty. The handler under test is kept in rh, so
+	 * the last one (or the one that failed) is cleaned up by tearDown.
+	 * @param name name for the handlers' storage, unique to the test
+	 * @param withJena also run the check against a JenaRecordHandler
+	 * @param check the check
+	 * @throws Exception error
+	 */
+	private void forEachHandler(String name, boolean withJena, HandlerCheck check) throws Exception {
+		this.rh = new TextFileRecordHandler("tmp://testTFRH" + name);
+		check.run(this.rh);
+		this.rh.close();
+		this.rh = new JDBCRecordHandler("org.h2.Driver", "jdbc:h2:mem:TestRH-" + name, "sa", "", "testdb", "data");
+		check.run(this.rh);
+		this.rh.close();
+		if(withJena) {
+			this.rh = new JenaRecordHandler(new SDBJenaConnect("jdbc:h2:mem:TestRH-Jena" + name, "sa", "", "H2", "org.h2.Driver", "layout2"), "http://localhost/jenarecordhandlerdemo#data");
+			check.run(this.rh);
+			this.rh.close();
+		}
+		// small segments, so records span several of them
+		this.rh = new SegmentRecordHandler(tempDir("testSegRH" + name), 4096, false, 1);
+		check.run(this.rh);
+		this.rh.close();
+		this.rh = new MapRecordHandler();
+		check.run(this.rh);
+	}
+	
+	/**
+	 * Wait a few milliseconds
+	 */
+	private static void pause() {
+		try {
+			Thread.sleep(10);
+		} catch(InterruptedException e) {
+			// ignore
+		}
+	}
+	
+	/**
+	 * Get the path of a new, empty temporary directory
+	 * @param prefix the directory name prefix
+	 * @return the path
+	 * @throws IOException error creating temporary file
+	 */
+	private static String tempDir(String prefix) throws IOException {
+		File f = FileAide.createTempFile(prefix, "");
+		f.delete();
+		return f.getAbsolutePath();
+	}
+	
+	/**
+	 * Test method for {@link org.vivoweb.harvester.util.repo.SegmentRecordHandler#SegmentRecordHandler(java.lang.String)
+	 * SegmentRecordHandler(String segmentDir)}.
+	 * @throws IOException error
+	 */
+	public void testSegmentAddRecord() throws IOException {
+		log.info("BEGIN testSegmentAddRecord");
+		this.rh = new SegmentRecordHandler(tempDir("testSegRH"));
+		runBattery();
+		log.info("END testSegmentAddRecord");
+	}
+	
+	/**
+	 * Test that a {@link org.vivoweb.harvester.util.repo.SegmentRecordHandler SegmentRecordHandler} keeps its records
+	 * through compaction, reopening, a torn index and a torn last frame
+	 * @throws IOException error
+	 */
+	public void testSegmentCompactAndReopen() throws IOException {
+		log.info("BEGIN testSegmentCompactAndReopen");
+		String segDir = tempDir("testSegRHCompact");
+		SegmentRecordHandler srh = new SegmentRecordHandler(segDir, 4096, true, 1);
+		for(int round = 0; round < 3; round++) {
+			for(int x = 0; x < 100; x++) {
+				assertTrue(srh.addRecord("test" + x, "<record id='test" + x + "'>round " + round + " of the data of record 'test" + x + "'</record>", RecordHandlerTest.class));
+			}
+		}
+		for(int x = 0; x < 100; x += 10) {
+			srh.delRecord("test" + x);
+		}
+		// the first segment holds only overwritten records
+		srh.compact();
+		assertFalse(new File(segDir, "00000001.seg").exists());
+		assertEquals(90, srh.find("test").size());
+		srh.close();
+		// an index torn by a crash midway through saving it
+		RandomAccessFile index = new RandomAccessFile(new File(segDir, "index.dat"), "rw");
+		index.setLength(index.length() / 2);
+		index.close();
+		// a partial frame, as left by a crash midway through an append
+		String[] names = new File(segDir).list();
+		Arrays.sort(names);
+		FileOutputStream fos = new FileOutputStream(new File(segDir, names[names.length - 2]), true);
+		fos.write(new byte[]{0, 0, 1, 0, 7});
+		fos.close();
+		this.rh = new SegmentRecordHandler(segDir, 4096, true, 1);
+		int count = 0;
+		for(Record r : this.rh) {
+			assertEquals("<record id='" + r.getID() + "'>round 2 of the data of record '" + r.getID() + "'</record>", r.getData());
+			count++;
+		}
+		assertEquals(90, count);
+		assertFalse(this.rh.addRecord("test1", "<record id='test1'>round 2 of the data of record 'test1'</record>", RecordHandlerTest.class));
+		try {
+			this.rh.getRecord("test10");
+			fail("Deleted Record Request Should Throw IllegalArgumentException!");
+		} catch(IllegalArgumentException e) {
+			// ignore since this is the expected behavior
+		}
+		log.info("END testSegmentCompactAndReopen");
+	}
+	
 	/**
 	 * Test method for {@link org.vivoweb.harvester.util.repo.MapRecordHandler#MapRecordHandler() MapRecordHandler()}.
 	 * @throws IOException error
@@ -201,6 +662,39 @@ public class RecordHandlerTest extends TestCase {
 		log.info("END testJenaAddRecord");
 	}
 	
+	/**
+	 * Test iterating and looking up records of a {@link org.vivoweb.harvester.util.repo.JenaRecordHandler
+	 * JenaRecordHandler} through its record index
+	 * @throws IOException error
+	 */
+	public void testJenaIterateRecords() throws IOException {
+		log.info("BEGIN testJenaIterateRecords");
+		this.rh = new JenaRecordHandler(new SDBJenaConnect("jdbc:h2:mem:TestRH-JenaIterate", "sa", "", "H2", "org.h2.Driver", "layout2"), "http://localhost/jenarecordhandlerdemo#data");
+		Map<String, String> expected = new HashMap<String, String>();
+		for(int x = 0; x < 10; x++) {
+			expected.put("rec" + x, "data" + x);
+			assertTrue(this.rh.addRecord("rec" + x, "data" + x, this.getClass()));
+		}
+		// overwriting replaces the data rather than adding a second value
+		expected.put("rec3", "newdata3");
+		assertTrue(this.rh.addRecord("rec3", "newdata3", this.getClass(), true));
+		assertEquals("newdata3", this.rh.getRecordData("rec3"));
+		this.rh.delRecord("rec7");
+		expected.remove("rec7");
+		try {
+			this.rh.getRecordData("rec7");
+			fail("Deleted Record Request Should Throw IllegalArgumentException!");
+		} catch(IllegalArgumentException e) {
+			// ignore since this is the expected behavior
+		}
+		Map<String, String> found = new HashMap<String, String>();
+		for(Record r : this.rh) {
+			assertNull(found.put(r.getID(), r.getData()));
+		}
+		assertEquals(expected, found);
+		log.info("END testJenaIterateRecords");
+	}
+	
 	/**
 	 * @throws IOException error
 	 */